@@ -0,0 +1,365 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import com.datalogics.pdf.hsm.samples.util.IoUtils;
+import com.datalogics.pdf.security.Deadline;
+import com.datalogics.pdf.security.HsmManager;
+import com.datalogics.pdf.security.HsmManagerGroup;
+import com.datalogics.pdf.security.HsmTask;
+
+import java.net.URL;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Signs documents without blocking the caller.
+ *
+ * <p>
+ * {@link #signAsync} queues a document and returns a {@link SigningFuture} at once. The caller can attach callbacks to
+ * the future, or pass a {@link SigningCallback} that is also told about each field as it is signed, and so compose
+ * signing with other asynchronous work without tying up its own threads. Jobs can be cancelled through the future, and
+ * can be given a deadline after which they are cancelled.
+ *
+ * <p>
+ * Queued jobs start earliest deadline first, and jobs without a deadline start after those with one, in the order
+ * they were queued. A job that is cancelled or misses its deadline before it reaches the HSM is never signed: a queued
+ * job is skipped, and a running job stops before its HSM step.
+ *
+ * <p>
+ * Signing runs on the service's own worker threads. When the service is given an {@link HsmManagerGroup}, each
+ * document is signed by a single member, so the key handle and the signing operation stay in one HSM session.
+ *
+ * <p>
+ * Documents at least as large as a size threshold are signed on worker threads of their own, so that a few very large
+ * documents cannot occupy every worker while small ones wait. Documents whose size cannot be told without fetching
+ * them are treated as small.
+ */
+public final class AsyncSigningService implements AutoCloseable {
+    public static final int DEFAULT_THREADS = 8;
+
+    private final HsmManager hsmManager;
+    private final SigningProfile profile;
+    private final ExecutorService workers;
+    private final ExecutorService largeDocumentWorkers;
+    private final long largeDocumentBytes;
+    private final ScheduledExecutorService deadlines;
+    private final TemplateAnalysisCache templateCache = new TemplateAnalysisCache();
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile SignedResultStore resultStore;
+    private volatile SignatureAuditLog auditLog;
+
+    /**
+     * Create a service with {@value #DEFAULT_THREADS} worker threads.
+     *
+     * @param hsmManager a connected HsmManager or HsmManagerGroup
+     * @param profile the signing profile
+     */
+    public AsyncSigningService(final HsmManager hsmManager, final SigningProfile profile) {
+        this(hsmManager, profile, DEFAULT_THREADS);
+    }
+
+    /**
+     * Create a service with {@value SigningPipeline#DEFAULT_LARGE_DOCUMENT_THREADS} worker thread for documents of
+     * {@value SigningPipeline#DEFAULT_LARGE_DOCUMENT_BYTES} bytes or more.
+     *
+     * @param hsmManager a connected HsmManager or HsmManagerGroup
+     * @param profile the signing profile
+     * @param threads the number of worker threads for small documents
+     */
+    public AsyncSigningService(final HsmManager hsmManager, final SigningProfile profile, final int threads) {
+        this(hsmManager, profile, threads, SigningPipeline.DEFAULT_LARGE_DOCUMENT_THREADS,
+             SigningPipeline.DEFAULT_LARGE_DOCUMENT_BYTES);
+    }
+
+    /**
+     * Create a service.
+     *
+     * @param hsmManager a connected HsmManager or HsmManagerGroup
+     * @param profile the signing profile
+     * @param threads the number of worker threads for small documents
+     * @param largeDocumentThreads the number of worker threads for large documents
+     * @param largeDocumentBytes the size from which a document is large
+     */
+    public AsyncSigningService(final HsmManager hsmManager, final SigningProfile profile, final int threads,
+                               final int largeDocumentThreads, final long largeDocumentBytes) {
+        if (largeDocumentBytes <= 0) {
+            throw new IllegalArgumentException("The large document size must be positive");
+        }
+        this.hsmManager = hsmManager;
+        this.profile = profile;
+        this.largeDocumentBytes = largeDocumentBytes;
+        this.workers = newWorkers(threads, "signing-async-");
+        this.largeDocumentWorkers = newWorkers(largeDocumentThreads, "signing-async-large-");
+        final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new NamedDaemonThreadFactory(
+                        "signing-deadline-"));
+        timer.setRemoveOnCancelPolicy(true);
+        this.deadlines = timer;
+    }
+
+    /**
+     * Queue a document for signing, without a deadline.
+     *
+     * @param inputUrl the URL to the input file
+     * @param outputUrl the URL to the file to contain the signed document; this must be a file URL
+     * @param callback told about each signed field and the outcome, or null
+     * @return the pending result
+     * @throws RejectedExecutionException if the service has been closed
+     */
+    public SigningFuture signAsync(final URL inputUrl, final URL outputUrl, final SigningCallback callback) {
+        final DocumentSigning signing = newSigning(new SigningRequest(inputUrl, outputUrl));
+        final SigningFuture future = newJob(signing, callback, Deadline.NONE);
+        workersFor(signing).execute(future);
+        return future;
+    }
+
+    /**
+     * Queue a signing request, without a deadline. Documents filled in from the same form template reuse the analysis
+     * of the first one; see {@link TemplateAnalysisCache}.
+     *
+     * @param request the signing request
+     * @param callback told about each signed field and the outcome, or null
+     * @return the pending result
+     * @throws RejectedExecutionException if the service has been closed
+     */
+    public SigningFuture signAsync(final SigningRequest request, final SigningCallback callback) {
+        final DocumentSigning signing = newSigning(request);
+        final SigningFuture future = newJob(signing, callback, Deadline.NONE);
+        workersFor(signing).execute(future);
+        return future;
+    }
+
+    /**
+     * Queue one named field of a document for signing, without a deadline. The other fields are left unsigned.
+     *
+     * @param inputUrl the URL to the input file
+     * @param outputUrl the URL to the file to contain the signed document; this must be a file URL
+     * @param qualifiedFieldName the fully qualified name of the field to sign
+     * @param callback told about the signed field and the outcome, or null
+     * @return the pending result; it fails if the document has no such field, or it cannot be signed
+     * @throws RejectedExecutionException if the service has been closed
+     */
+    public SigningFuture signFieldAsync(final URL inputUrl, final URL outputUrl, final String qualifiedFieldName,
+                                        final SigningCallback callback) {
+        final DocumentSigning signing = newSigning(new SigningRequest(inputUrl, outputUrl, qualifiedFieldName, null));
+        final SigningFuture future = newJob(signing, callback, Deadline.NONE);
+        workersFor(signing).execute(future);
+        return future;
+    }
+
+    /**
+     * Queue a document for signing, to be cancelled if it has not finished within the given time.
+     *
+     * @param inputUrl the URL to the input file
+     * @param outputUrl the URL to the file to contain the signed document; this must be a file URL
+     * @param callback told about each signed field and the outcome, or null
+     * @param timeout the time the job may take, including time spent waiting to start
+     * @param unit the unit of the timeout
+     * @return the pending result
+     * @throws RejectedExecutionException if the service has been closed
+     */
+    public SigningFuture signAsync(final URL inputUrl, final URL outputUrl, final SigningCallback callback,
+                                   final long timeout, final TimeUnit unit) {
+        return submit(newSigning(new SigningRequest(inputUrl, outputUrl)), callback, timeout, unit);
+    }
+
+    /**
+     * Queue a signing request, to be cancelled if it has not finished within the given time.
+     *
+     * @param request the signing request
+     * @param callback told about each signed field and the outcome, or null
+     * @param timeout the time the job may take, including time spent waiting to start
+     * @param unit the unit of the timeout
+     * @return the pending result
+     * @throws RejectedExecutionException if the service has been closed
+     */
+    public SigningFuture signAsync(final SigningRequest request, final SigningCallback callback, final long timeout,
+                                   final TimeUnit unit) {
+        return submit(newSigning(request), callback, timeout, unit);
+    }
+
+    /**
+     * Answer requests that repeat an earlier one from a store of signed documents, instead of signing them again. The
+     * input of every request is then read into memory, and the bytes that are fingerprinted are the bytes parsed.
+     *
+     * @param resultStore the store of signed documents, or null to sign every request
+     */
+    public void setResultStore(final SignedResultStore resultStore) {
+        this.resultStore = resultStore;
+    }
+
+    /**
+     * Record every signature made in an audit log. A signed document is moved into place only once its records are on
+     * disk, whatever the durability window of the log; one whose signatures cannot be recorded fails instead. Documents
+     * answered from the result store make no signature, and are not recorded.
+     *
+     * @param auditLog the audit log, or null to record no signatures
+     */
+    public void setAuditLog(final SignatureAuditLog auditLog) {
+        this.auditLog = auditLog;
+    }
+
+    /**
+     * Get the cache of form template analyses used for requests that name a template.
+     *
+     * @return the template cache
+     */
+    public TemplateAnalysisCache getTemplateCache() {
+        return templateCache;
+    }
+
+    /**
+     * Stop accepting documents and cancel the queued ones. Jobs already running finish.
+     */
+    @Override
+    public void close() {
+        for (final ExecutorService pool : new ExecutorService[] { workers, largeDocumentWorkers }) {
+            for (final Runnable job : pool.shutdownNow()) {
+                ((SigningFuture) job).cancel(false);
+            }
+        }
+        deadlines.shutdownNow();
+    }
+
+    private SigningFuture submit(final DocumentSigning signing, final SigningCallback callback, final long timeout,
+                                 final TimeUnit unit) {
+        final SigningFuture future = newJob(signing, callback, Deadline.after(timeout, unit));
+        final ScheduledFuture<?> deadline = deadlines.schedule(new Runnable() {
+            @Override
+            public void run() {
+                future.expire();
+            }
+        }, timeout, unit);
+        future.addCallback(new SigningCallback() {
+            @Override
+            public void onFieldSigned(final String qualifiedFieldName) {}
+
+            @Override
+            public void onSuccess(final URL signedUrl) {
+                deadline.cancel(false);
+            }
+
+            @Override
+            public void onFailure(final Throwable failure) {
+                deadline.cancel(false);
+            }
+        });
+        try {
+            workersFor(signing).execute(future);
+        } catch (final RejectedExecutionException e) {
+            deadline.cancel(false);
+            throw e;
+        }
+        return future;
+    }
+
+    private DocumentSigning newSigning(final SigningRequest request) {
+        return new DocumentSigning(request, templateCache, resultStore, profile, auditLog);
+    }
+
+    private ExecutorService workersFor(final DocumentSigning signing) {
+        final long size = IoUtils.getLocalFileSize(signing.getInputUrl());
+        return size >= largeDocumentBytes ? largeDocumentWorkers : workers;
+    }
+
+    private SigningFuture newJob(final DocumentSigning signing, final SigningCallback callback,
+                                 final Deadline deadline) {
+        final SigningFuture future = new SigningFuture(new Callable<URL>() {
+            @Override
+            public URL call() throws Exception {
+                return sign(signing, callback);
+            }
+        }, deadline, sequence.getAndIncrement());
+        if (callback != null) {
+            future.addCallback(callback);
+        }
+        return future;
+    }
+
+    private URL sign(final DocumentSigning signing, final SigningCallback callback) throws Exception {
+        try {
+            signing.open();
+            signing.prepare();
+            if (signing.needsSigning()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // Cancelled, or its deadline passed, while the document was being prepared
+                    throw new InterruptedException("Signing was cancelled before it reached the HSM");
+                }
+                final SigningProfile jobProfile = signing.getProfile(profile);
+                final HsmTask<Void> task = new HsmTask<Void>() {
+                    @Override
+                    public Void call(final HsmManager manager) throws Exception {
+                        signing.sign(manager, jobProfile, callback);
+                        return null;
+                    }
+                };
+                if (hsmManager instanceof HsmManagerGroup) {
+                    // Prefer a member that has recently used the key
+                    ((HsmManagerGroup) hsmManager).execute(task, jobProfile.getKeyLabel());
+                } else {
+                    task.call(hsmManager);
+                }
+            }
+            return signing.finish();
+        } finally {
+            signing.release();
+        }
+    }
+
+    private static ExecutorService newWorkers(final int threads, final String prefix) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                      new PriorityBlockingQueue<Runnable>(threads, new EarliestDeadlineFirst()),
+                                      new NamedDaemonThreadFactory(prefix));
+    }
+
+    /*
+     * Orders queued jobs by deadline, and jobs with the same deadline, such as those without one, in the order they
+     * were queued. The queue of the workers only ever holds SigningFutures.
+     */
+    private static final class EarliestDeadlineFirst implements Comparator<Runnable> {
+        @Override
+        public int compare(final Runnable firstJob, final Runnable secondJob) {
+            final SigningFuture first = (SigningFuture) firstJob;
+            final SigningFuture second = (SigningFuture) secondJob;
+            final int order = first.getDeadline().compareTo(second.getDeadline());
+            if (order != 0) {
+                return order;
+            }
+            final long firstSequence = first.getSequence();
+            final long secondSequence = second.getSequence();
+            return firstSequence < secondSequence ? -1 : (firstSequence > secondSequence ? 1 : 0);
+        }
+    }
+
+    /*
+     * Creates named daemon threads, so a service that is never closed does not keep the JVM alive.
+     */
+    private static final class NamedDaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        private NamedDaemonThreadFactory(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
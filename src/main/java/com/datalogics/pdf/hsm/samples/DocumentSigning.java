@@ -0,0 +1,408 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import com.adobe.pdfjt.core.credentials.Credentials;
+import com.adobe.pdfjt.core.exceptions.PDFException;
+import com.adobe.pdfjt.core.exceptions.PDFIOException;
+import com.adobe.pdfjt.pdf.document.PDFDocument;
+import com.adobe.pdfjt.services.digsig.SignatureFieldInterface;
+import com.adobe.pdfjt.services.digsig.SignatureManager;
+
+import com.datalogics.pdf.hsm.samples.util.DocumentUtils;
+import com.datalogics.pdf.security.HsmManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The signing of one document, split into steps so that the steps needing the HSM can be scheduled apart from the
+ * rest.
+ *
+ * <p>
+ * The steps are run in order: {@link #open}, {@link #prepare}, {@link #sign} (only if {@link #needsSigning}), and
+ * {@link #finish}. {@link #release} must be called if the signing is abandoned after {@link #open}. Only one thread may
+ * work on a signing at a time, but the steps may be run on different threads if the hand-off between them is safely
+ * published, for example through a blocking queue.
+ *
+ * <p>
+ * When the signing is given a {@link SignedResultStore}, {@link #open} first looks for a stored result of the same
+ * input signed the same way. If there is one, it is copied into place and the remaining steps have nothing to do.
+ *
+ * <p>
+ * When the signing is given a {@link SignatureAuditLog}, {@link #finish} appends a record of each signed field before
+ * the signed document is moved into place. If the records cannot be appended, the signed document is not published.
+ */
+final class DocumentSigning {
+    private static final Logger LOGGER = Logger.getLogger(DocumentSigning.class.getName());
+
+    private static final String TEMP_FILE_PREFIX = "signing-";
+    private static final String TEMP_FILE_SUFFIX = ".pdf.tmp";
+    private static final String AUDIT_DIGEST_ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final SigningRequest request;
+    private final TemplateAnalysisCache templateCache;
+    private final SignedResultStore resultStore;
+    private final SigningProfile defaultProfile;
+    private final SignatureAuditLog auditLog;
+    private final List<SignatureFieldInterface> fields = new ArrayList<SignatureFieldInterface>();
+    private final List<String> signedFieldNames = new ArrayList<String>();
+    private byte[] content;
+    private PDFDocument document;
+    private SignatureManager signatureManager;
+    private Path tempPath;
+    private PreflightVerdict verdict;
+    private String fingerprint;
+    private boolean storedResult;
+    private String keyLabel;
+    private BigInteger certificateSerial;
+    private long signedAt;
+    private Exception partialFailure;
+
+    /**
+     * Create the signing of a document.
+     *
+     * @param inputUrl the URL to the input file
+     * @param outputUrl the URL to the file to contain the signed document; this must be a file URL
+     */
+    DocumentSigning(final URL inputUrl, final URL outputUrl) {
+        this(new SigningRequest(inputUrl, outputUrl), null);
+    }
+
+    /**
+     * Create the signing of one named field of a document.
+     *
+     * @param inputUrl the URL to the input file
+     * @param outputUrl the URL to the file to contain the signed document; this must be a file URL
+     * @param qualifiedFieldName the fully qualified name of the field to sign, or null to sign every field that can be
+     *        signed
+     */
+    DocumentSigning(final URL inputUrl, final URL outputUrl, final String qualifiedFieldName) {
+        this(new SigningRequest(inputUrl, outputUrl, qualifiedFieldName, null), null);
+    }
+
+    /**
+     * Create the signing of a document, reusing the analysis of its form template if the request names one.
+     *
+     * @param request the signing request
+     * @param templateCache the cache of template analyses, or null to inspect every document in full
+     */
+    DocumentSigning(final SigningRequest request, final TemplateAnalysisCache templateCache) {
+        this(request, templateCache, null, null);
+    }
+
+    /**
+     * Create the signing of a document, reusing the analysis of its form template if the request names one, and a
+     * stored result if the same input has been signed the same way before.
+     *
+     * @param request the signing request
+     * @param templateCache the cache of template analyses, or null to inspect every document in full
+     * @param resultStore the store of signed documents, or null to sign every document
+     * @param defaultProfile the profile of the service signing the document, used unless the request has its own
+     */
+    DocumentSigning(final SigningRequest request, final TemplateAnalysisCache templateCache,
+                    final SignedResultStore resultStore, final SigningProfile defaultProfile) {
+        this(request, templateCache, resultStore, defaultProfile, null);
+    }
+
+    /**
+     * Create the signing of a document, as above, recording each signature made in an audit log.
+     *
+     * @param request the signing request
+     * @param templateCache the cache of template analyses, or null to inspect every document in full
+     * @param resultStore the store of signed documents, or null to sign every document
+     * @param defaultProfile the profile of the service signing the document, used unless the request has its own
+     * @param auditLog the log to record the signatures in, or null to record none
+     */
+    DocumentSigning(final SigningRequest request, final TemplateAnalysisCache templateCache,
+                    final SignedResultStore resultStore, final SigningProfile defaultProfile,
+                    final SignatureAuditLog auditLog) {
+        this.request = request;
+        this.templateCache = templateCache;
+        this.resultStore = resultStore;
+        this.defaultProfile = defaultProfile;
+        this.auditLog = auditLog;
+    }
+
+    /**
+     * Get the URL to the input file.
+     *
+     * @return the input URL
+     */
+    URL getInputUrl() {
+        return request.getInputUrl();
+    }
+
+    /**
+     * Get the request this signing carries out.
+     *
+     * @return the signing request
+     */
+    SigningRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Tell whether the signed document was copied from the result store instead of being signed.
+     *
+     * @return true if a stored result was used
+     */
+    boolean isStoredResult() {
+        return storedResult;
+    }
+
+    /**
+     * Read the whole input into memory, so that {@link #open} does not wait on a slow input. This step is optional;
+     * without it, {@link #open} reads the input itself.
+     *
+     * @throws IOException the input could not be read
+     */
+    void fetch() throws IOException {
+        content = DocumentUtils.readDocument(request.getInputUrl());
+    }
+
+    /**
+     * Parse the document, unless a stored result can be used instead.
+     *
+     * @throws Exception a general exception was thrown
+     */
+    void open() throws Exception {
+        if (resultStore != null) {
+            // Read the input once, and parse the same bytes that were fingerprinted
+            if (content == null) {
+                fetch();
+            }
+            fingerprint = resultStore.fingerprint(content, request, getProfile(defaultProfile));
+            if (resultStore.copyTo(fingerprint, getOutputPath())) {
+                storedResult = true;
+                content = null;
+                return;
+            }
+        }
+        document = content == null ? DocumentUtils.openPdfDocument(request.getInputUrl())
+                                   : DocumentUtils.openPdfDocument(content);
+        content = null;
+        signatureManager = SignatureManager.newInstance(document);
+    }
+
+    /**
+     * Get the pre-flight verdict on the document.
+     *
+     * @return the verdict, or null before {@link #prepare} has run or when a stored result was used
+     */
+    PreflightVerdict getVerdict() {
+        return verdict;
+    }
+
+    /**
+     * Pick the fields that will be signed, refusing the document if signing it would fail, and create the temporary
+     * file the signed document is written to.
+     *
+     * @throws PDFIOException the pre-flight inspection refused the document, or the named field cannot be signed
+     * @throws Exception a general exception was thrown
+     */
+    void prepare() throws Exception {
+        if (storedResult) {
+            return;
+        }
+        final String qualifiedFieldName = request.getQualifiedFieldName();
+        if (templateCache != null) {
+            verdict = templateCache.inspect(request, signatureManager);
+        } else if (qualifiedFieldName == null) {
+            verdict = SigningPreflight.inspect(signatureManager);
+        } else {
+            verdict = SigningPreflight.inspect(signatureManager, qualifiedFieldName);
+        }
+        if (verdict.getStatus() == PreflightVerdict.Status.REJECTED
+            || (qualifiedFieldName != null && !verdict.isAccepted())) {
+            throw new PDFIOException(verdict.getReasons().toString());
+        }
+        fields.addAll(verdict.getSignableFields());
+        if (!fields.isEmpty()) {
+            tempPath = Files.createTempFile(getOutputPath().getParent(), TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX);
+        }
+    }
+
+    /**
+     * Tell whether the document has fields to sign.
+     *
+     * @return true if {@link #sign} needs to be run
+     */
+    boolean needsSigning() {
+        return !fields.isEmpty();
+    }
+
+    /**
+     * Get the profile to sign with: the request's own, or the given default.
+     *
+     * @param defaultProfile the profile of the service signing the document
+     * @return the signing profile
+     */
+    SigningProfile getProfile(final SigningProfile defaultProfile) {
+        return request.getProfile() == null ? defaultProfile : request.getProfile();
+    }
+
+    /**
+     * Sign the fields on an HSM. The credentials hold a handle to the key in this HsmManager's session, so they are
+     * fetched here rather than in an earlier step.
+     *
+     * @param hsmManager a connected HsmManager
+     * @param profile the signing profile
+     * @throws Exception a general exception was thrown
+     */
+    void sign(final HsmManager hsmManager, final SigningProfile profile) throws Exception {
+        sign(hsmManager, profile, null);
+    }
+
+    /**
+     * Sign the fields on an HSM, telling a callback about each field as it is signed.
+     *
+     * <p>
+     * Signing may be retried, for example on another member of an HSM group, if it failed before any field was
+     * signed. Once a field has been signed, signing it again would add a second signature and a second audit record,
+     * so a retry after such a failure throws the original failure again without using the HSM.
+     *
+     * @param hsmManager a connected HsmManager
+     * @param profile the signing profile
+     * @param callback the callback, or null
+     * @throws Exception a general exception was thrown
+     */
+    void sign(final HsmManager hsmManager, final SigningProfile profile, final SigningCallback callback)
+                    throws Exception {
+        if (partialFailure != null) {
+            throw partialFailure;
+        }
+        final X509Certificate[] certChain = HsmSignDocument.getCertificateChain(hsmManager, profile);
+        final Credentials credentials = HsmSignDocument.createCredentials(hsmManager, profile, certChain);
+        keyLabel = profile.getKeyLabel();
+        certificateSerial = certChain[0].getSerialNumber();
+        final URL tempUrl = tempPath.toUri().toURL();
+        try {
+            for (final SignatureFieldInterface field : fields) {
+                HsmSignDocument.signField(signatureManager, field, credentials, profile, tempUrl);
+                signedFieldNames.add(field.getQualifiedName());
+                if (callback != null) {
+                    callback.onFieldSigned(field.getQualifiedName());
+                }
+            }
+        } catch (final Exception e) {
+            if (!signedFieldNames.isEmpty()) {
+                partialFailure = e;
+            }
+            throw e;
+        }
+        signedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Move the signed document into place, and release the parsed document. With an audit log, the document is moved
+     * only once its records are on disk.
+     *
+     * @return the URL to the signed document
+     * @throws Exception a general exception was thrown
+     */
+    URL finish() throws Exception {
+        if (tempPath != null && Files.size(tempPath) > 0) {
+            if (auditLog != null) {
+                audit();
+            }
+            Files.move(tempPath, getOutputPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            tempPath = null;
+            if (resultStore != null) {
+                store();
+            }
+        }
+        release();
+        return request.getOutputUrl();
+    }
+
+    /**
+     * Close the document and remove the temporary file, whatever became of the signing.
+     */
+    void release() {
+        try {
+            if (document != null) {
+                document.close();
+            }
+        } catch (final PDFException e) {
+            LOGGER.severe(e.getMessage());
+        }
+        content = null;
+        document = null;
+        signatureManager = null;
+        fields.clear();
+        signedFieldNames.clear();
+        try {
+            if (tempPath != null) {
+                Files.deleteIfExists(tempPath);
+            }
+        } catch (final Exception e) {
+            if (LOGGER.isLoggable(Level.WARNING)) {
+                LOGGER.warning("Could not delete " + tempPath + ": " + e.getMessage());
+            }
+        }
+        tempPath = null;
+    }
+
+    /*
+     * Keep the signed document for requests that repeat this one. The document is already in place, so a failure to
+     * store it only costs a signature later.
+     */
+    private void store() throws Exception {
+        try {
+            resultStore.put(fingerprint, getOutputPath());
+        } catch (final IOException e) {
+            if (LOGGER.isLoggable(Level.WARNING)) {
+                LOGGER.warning("Could not store the signed document " + request.getOutputUrl() + ": "
+                               + e.getMessage());
+            }
+        }
+    }
+
+    /*
+     * Record each signed field in the audit log, with the digest of the signed document, and wait until the records
+     * are on disk. Documents finishing together share the commit.
+     */
+    private void audit() throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(AUDIT_DIGEST_ALGORITHM);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(AUDIT_DIGEST_ALGORITHM + " is not available", e);
+        }
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream input = Files.newInputStream(tempPath)) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        final byte[] documentHash = digest.digest();
+        for (final String qualifiedFieldName : signedFieldNames) {
+            auditLog.append(new SignatureAuditRecord(signedAt, documentHash, qualifiedFieldName, keyLabel,
+                                                     certificateSerial));
+        }
+        auditLog.flush();
+    }
+
+    private Path getOutputPath() throws Exception {
+        return new File(request.getOutputUrl().toURI()).toPath().toAbsolutePath();
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Feeds a {@link SigningPipeline} from a batch, recording each request in a {@link SigningJournal} so that the batch
+ * can resume after a crash.
+ *
+ * <p>
+ * A request is recorded as accepted before it enters the pipeline, and as completed once its signed document is in
+ * place. After a restart, {@link #resume} queues the requests that were accepted but not completed, and
+ * {@link #submit} skips requests that were already completed, so the batch driver can simply submit its whole input
+ * again. Requests that failed are not recorded as completed, and are tried again. A request's future is done once its
+ * outcome is recorded. Completions are recorded on threads of the queue's own, so the pipeline's write stage does not
+ * wait for the journal to reach the disk; the journal forces the completions recorded together with a single fsync.
+ *
+ * <p>
+ * Documents are signed at least once, not exactly once. A crash after a signed document is moved into place, but
+ * before its completion reaches the journal, leaves the request pending, and the resumed batch signs it again,
+ * replacing the output. The queue does not take an existing output file as proof that a request was completed, since
+ * the file may have been left by an earlier batch.
+ *
+ * <p>
+ * Meant to be fed by a single batch driver thread.
+ */
+public final class DurableSigningQueue implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(DurableSigningQueue.class.getName());
+
+    // Completions recorded by these threads at the same time share one fsync
+    public static final int DEFAULT_RECORDER_THREADS = 4;
+
+    private final SigningPipeline pipeline;
+    private final SigningJournal journal;
+    private final ConcurrentMap<String, Future<URL>> inFlight = new ConcurrentHashMap<String, Future<URL>>();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final ExecutorService recorders;
+
+    /**
+     * Create a queue.
+     *
+     * @param pipeline the pipeline signing the documents
+     * @param journal the journal recording the requests
+     */
+    public DurableSigningQueue(final SigningPipeline pipeline, final SigningJournal journal) {
+        this.pipeline = pipeline;
+        this.journal = journal;
+        this.recorders = Executors.newFixedThreadPool(DEFAULT_RECORDER_THREADS, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "signing-journal-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queue the requests the journal records as accepted but not completed, such as those in the pipeline when the
+     * process stopped.
+     *
+     * @return futures for the output URLs of the resumed requests
+     * @throws IOException the journal could not be written
+     * @throws InterruptedException if the thread was interrupted while waiting for room in the pipeline
+     * @throws RejectedExecutionException if the pipeline has been closed
+     */
+    public List<Future<URL>> resume() throws IOException, InterruptedException {
+        final List<SigningRequest> pending = journal.getPendingRequests();
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("Resuming " + pending.size() + " signing requests");
+        }
+        final List<Future<URL>> results = new ArrayList<Future<URL>>(pending.size());
+        for (final SigningRequest request : pending) {
+            results.add(submit(request));
+        }
+        return results;
+    }
+
+    /**
+     * Record a request as accepted and queue it, waiting while the pipeline is full. A request the journal records as
+     * completed is not signed again; its future is already done.
+     *
+     * @param request the signing request; it must not have a signing profile of its own
+     * @return a future for the output URL, completed once the signed document is in place
+     * @throws IOException the journal could not be written
+     * @throws InterruptedException if the thread was interrupted while waiting for room in the pipeline
+     * @throws RejectedExecutionException if the pipeline has been closed
+     */
+    public Future<URL> submit(final SigningRequest request) throws IOException, InterruptedException {
+        if (journal.isCompleted(request)) {
+            skippedCount.incrementAndGet();
+            return completed(request.getOutputUrl());
+        }
+        // Claimed before the request enters the pipeline, so that its callback always finds and removes this entry
+        final String key = request.getOutputUrl().toString();
+        final JournaledResult result = new JournaledResult();
+        final Future<URL> queued = inFlight.putIfAbsent(key, result);
+        if (queued != null) {
+            return queued;
+        }
+
+        try {
+            if (!journal.isPending(request)) {
+                journal.recordAccepted(request);
+            }
+            result.setSigning(pipeline.submit(request, new SigningCallback() {
+                @Override
+                public void onFieldSigned(final String qualifiedFieldName) {}
+
+                @Override
+                public void onSuccess(final URL signedUrl) {
+                    final Runnable record = new Runnable() {
+                        @Override
+                        public void run() {
+                            recordCompleted(request, signedUrl);
+                            inFlight.remove(key, result);
+                            result.complete(signedUrl);
+                        }
+                    };
+                    try {
+                        recorders.execute(record);
+                    } catch (final RejectedExecutionException e) {
+                        // The queue is closing, and a document finished in the meantime
+                        record.run();
+                    }
+                }
+
+                @Override
+                public void onFailure(final Throwable failure) {
+                    inFlight.remove(key, result);
+                    result.fail(failure);
+                }
+            }));
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            inFlight.remove(key, result);
+            result.fail(e);
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of submitted requests that were skipped because the journal records them as completed.
+     *
+     * @return the number of skipped requests
+     */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    /**
+     * Close the pipeline, then the journal. Requests still in the pipeline stay pending in the journal, and are
+     * resumed by the next batch.
+     *
+     * @throws IOException the journal could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        pipeline.close();
+        // Let the completions already handed over reach the journal
+        recorders.shutdown();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (recorders.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+                    break;
+                }
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+    }
+
+    private void recordCompleted(final SigningRequest request, final URL signedUrl) {
+        try {
+            journal.recordCompleted(request);
+        } catch (final IOException e) {
+            // The document will be signed again when the batch resumes
+            if (LOGGER.isLoggable(Level.WARNING)) {
+                LOGGER.warning("Could not record " + signedUrl + " as completed: " + e.getMessage());
+            }
+        }
+    }
+
+    private static Future<URL> completed(final URL outputUrl) {
+        final FutureTask<URL> future = new FutureTask<URL>(new Callable<URL>() {
+            @Override
+            public URL call() {
+                return outputUrl;
+            }
+        });
+        future.run();
+        return future;
+    }
+
+    /*
+     * The future handed to the batch driver. It is done once the outcome of the request is known and, for a signed
+     * document, recorded in the journal. Cancelling it cancels the request in the pipeline.
+     */
+    private static final class JournaledResult extends FutureTask<URL> {
+        private volatile Future<URL> signing;
+
+        private JournaledResult() {
+            super(new Callable<URL>() {
+                @Override
+                public URL call() {
+                    throw new IllegalStateException("The result is set by the pipeline");
+                }
+            });
+        }
+
+        private void setSigning(final Future<URL> pipelineFuture) {
+            signing = pipelineFuture;
+            if (isCancelled()) {
+                pipelineFuture.cancel(true);
+            }
+        }
+
+        private void complete(final URL signedUrl) {
+            set(signedUrl);
+        }
+
+        private void fail(final Throwable failure) {
+            setException(failure);
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.concurrent.FutureTask#cancel(boolean)
+         */
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            final Future<URL> pipelineFuture = signing;
+            if (cancelled && pipelineFuture != null) {
+                pipelineFuture.cancel(mayInterruptIfRunning);
+            }
+            return cancelled;
+        }
+    }
+}
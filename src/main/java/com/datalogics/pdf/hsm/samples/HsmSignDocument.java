@@ -22,8 +22,10 @@ import com.adobe.pdfjt.services.digsig.cryptoprovider.JCEProvider;
 import com.adobe.pdfjt.services.digsig.spi.CryptoContext;
 
 import com.datalogics.pdf.hsm.samples.util.DocumentUtils;
+import com.datalogics.pdf.hsm.samples.util.FontCacheManager;
 import com.datalogics.pdf.hsm.samples.util.IoUtils;
 import com.datalogics.pdf.hsm.samples.util.SampleConfigurationUtils;
+import com.datalogics.pdf.hsm.samples.util.SigningEvent;
 import com.datalogics.pdf.security.HsmManager;
 import com.datalogics.pdf.security.HsmManager.ConnectionState;
 import com.datalogics.pdf.security.HsmManagerFactory;
@@ -33,9 +35,10 @@ import org.apache.commons.configuration2.Configuration;
 
 import java.io.File;
 import java.net.URL;
+import java.nio.file.Paths;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
-import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -50,12 +53,12 @@ public final class HsmSignDocument {
     private static final Logger LOGGER = Logger.getLogger(HsmSignDocument.class.getName());
 
     private static final String TOKEN_LABEL = null; // The HSM partition name or null
-    private static final String PRIVATE_KEY_LABEL = "pdfjt-eval-key"; // The private key label/alias
-    private static final String CERTIFICATE_LABEL = "pdfjt-eval-cert"; // The certificate label/alias
-    private static final String DIGESTER_ALG = "SHA256";
 
     private static final String PROPERTIES_FILE = "hsm.properties";
     private static final String PASSWORD_PROPERTY = "hsm.password";
+    private static final String FONT_CACHE_DIRECTORY_PROPERTY = "hsm.fontcache.directory";
+    private static final String WARMUP_ITERATIONS_PROPERTY = "hsm.warmup.iterations";
+    private static final long FONT_CHECK_PERIOD_MINUTES = 10;
 
     public static final String INPUT_UNSIGNED_PDF_PATH = "UnsignedDocument.pdf";
     public static final String OUTPUT_SIGNED_PDF_PATH = "SignedField.pdf";
@@ -86,12 +89,32 @@ public final class HsmSignDocument {
         final Configuration loginConfiguration = SampleConfigurationUtils.getConfiguration(PROPERTIES_FILE);
         password = loginConfiguration.getString(PASSWORD_PROPERTY);
 
+        // Load the font cache before signing, so the first signature appearance does not pay for font discovery, and
+        // rebuild it in the background if fonts are installed while signing
+        final String fontCacheDirectory = loginConfiguration.getString(FONT_CACHE_DIRECTORY_PROPERTY, null);
+        try (FontCacheManager fontCache = fontCacheDirectory == null ? null
+                        : new FontCacheManager(Paths.get(fontCacheDirectory))) {
+            if (fontCache != null) {
+                fontCache.warmUp();
+                fontCache.startWatching(FONT_CHECK_PERIOD_MINUTES, TimeUnit.MINUTES);
+            }
+            signWithHsm(loginConfiguration, args);
+        }
+    }
+
+    /*
+     * Log in to the HSM, sign the example document, and log out.
+     */
+    private static void signWithHsm(final Configuration loginConfiguration, final String... args) throws Exception {
         final HsmManager hsmManager = HsmManagerFactory.newInstance(HsmManagerFactory.LUNA_HSM_TYPE);
 
         if (hsmManager.getConnectionState()
                       .equals(ConnectionState.READY)) {
             // Log in to the HSM
-            hsmManager.hsmLogin(new LunaHsmLoginParameters(TOKEN_LABEL, password));
+            try (SigningEvent event = SigningEvent.begin("hsmLogin")) {
+                hsmManager.hsmLogin(new LunaHsmLoginParameters(TOKEN_LABEL, password));
+                event.success();
+            }
         }
 
         // Report whether we successfully logged in
@@ -103,6 +126,13 @@ public final class HsmSignDocument {
             return;
         }
 
+        // Optionally run the signing path a few times, so the first real signature is as fast as the ones after it.
+        // Zero iterations still fetches the key and certificate, so a wrong label is reported now.
+        if (loginConfiguration.containsKey(WARMUP_ITERATIONS_PROPERTY)) {
+            SigningWarmUp.warmUp(hsmManager, new SigningProfile(password),
+                                 loginConfiguration.getInt(WARMUP_ITERATIONS_PROPERTY, 0));
+        }
+
         final URL inputUrl = HsmSignDocument.class.getResource(INPUT_UNSIGNED_PDF_PATH);
 
         URL outputUrl = null;
@@ -116,7 +146,10 @@ public final class HsmSignDocument {
         signExistingSignatureFields(hsmManager, inputUrl, outputUrl);
 
         // Log out of the HSM
-        hsmManager.hsmLogout();
+        try (SigningEvent event = SigningEvent.begin("hsmLogout")) {
+            hsmManager.hsmLogout();
+            event.success();
+        }
     }
 
     /**
@@ -133,6 +166,54 @@ public final class HsmSignDocument {
     public static void signExistingSignatureFields(final HsmManager hsmManager, final URL inputUrl,
                                                    final URL outputUrl)
                     throws Exception {
+        signExistingSignatureFields(hsmManager, inputUrl, outputUrl, new SigningProfile(password));
+    }
+
+    /**
+     * Sign existing signature fields found in a document, using the key and certificate named by a signing profile.
+     *
+     * <p>
+     * This takes an HsmManager that is in the CONNECTED state. If the calling thread is interrupted, this stops with an
+     * InterruptedException before it uses the HSM.
+     *
+     * @param hsmManager a connected HsmManager
+     * @param inputUrl the URL to the input file
+     * @param outputUrl the path to the file to contain the signed document
+     * @param profile the signing profile
+     * @throws Exception a general exception was thrown
+     */
+    public static void signExistingSignatureFields(final HsmManager hsmManager, final URL inputUrl,
+                                                   final URL outputUrl, final SigningProfile profile)
+                    throws Exception {
+        signDocument(hsmManager, inputUrl, outputUrl, profile, null);
+    }
+
+    /**
+     * Sign one named signature field in a document, leaving the other fields unsigned.
+     *
+     * <p>
+     * This takes an HsmManager that is in the CONNECTED state.
+     *
+     * @param hsmManager a connected HsmManager
+     * @param inputUrl the URL to the input file
+     * @param outputUrl the path to the file to contain the signed document
+     * @param qualifiedFieldName the fully qualified name of the field to sign
+     * @param profile the signing profile
+     * @throws PDFIOException the document has no such field, or it cannot be signed
+     * @throws Exception a general exception was thrown
+     */
+    public static void signSignatureField(final HsmManager hsmManager, final URL inputUrl, final URL outputUrl,
+                                          final String qualifiedFieldName, final SigningProfile profile)
+                    throws Exception {
+        signDocument(hsmManager, inputUrl, outputUrl, profile, qualifiedFieldName);
+    }
+
+    /*
+     * Sign the named field, or every field that can be signed if the name is null.
+     */
+    private static void signDocument(final HsmManager hsmManager, final URL inputUrl, final URL outputUrl,
+                                     final SigningProfile profile, final String qualifiedFieldName)
+                    throws Exception {
         // Verify that the HSM is connected
         if (hsmManager.getConnectionState() != HsmManager.ConnectionState.CONNECTED) {
             if (LOGGER.isLoggable(Level.SEVERE)) {
@@ -144,16 +225,35 @@ public final class HsmSignDocument {
         PDFDocument pdfDoc = null;
         try {
             // Get the PDF file.
-            pdfDoc = DocumentUtils.openPdfDocument(inputUrl);
+            try (SigningEvent event = SigningEvent.begin("open")) {
+                if (event.isEnabled()) {
+                    event.setDocumentSize(IoUtils.getLocalFileSize(inputUrl));
+                }
+                pdfDoc = DocumentUtils.openPdfDocument(inputUrl);
+                event.success();
+            }
 
-            // Set up a signature service and iterate over all of the
-            // signature fields.
+            // Set up a signature service and find the fields that can be signed, before any work is done on the HSM.
             final SignatureManager sigService = SignatureManager.newInstance(pdfDoc);
-            if (sigService.hasUnsignedSignatureFields()) {
-                final Iterator<SignatureFieldInterface> iter = sigService.getDocSignatureFieldIterator();
-                while (iter.hasNext()) {
-                    final SignatureFieldInterface sigField = iter.next();
-                    signField(hsmManager, sigService, sigField, outputUrl);
+            final PreflightVerdict verdict;
+            if (qualifiedFieldName == null) {
+                verdict = SigningPreflight.inspect(sigService);
+            } else {
+                verdict = SigningPreflight.inspect(sigService, qualifiedFieldName);
+            }
+            if (verdict.getStatus() == PreflightVerdict.Status.REJECTED
+                || (qualifiedFieldName != null && !verdict.isAccepted())) {
+                throw new PDFIOException(verdict.getReasons().toString());
+            }
+
+            if (verdict.isAccepted()) {
+                // The HSM work is the costly part, so a signing that has been cancelled stops here
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("Signing of " + inputUrl + " was cancelled");
+                }
+                final Credentials credentials = createCredentials(hsmManager, profile);
+                for (final SignatureFieldInterface sigField : verdict.getSignableFields()) {
+                    signField(sigService, sigField, credentials, profile, outputUrl);
                 }
             }
         } finally {
@@ -167,8 +267,81 @@ public final class HsmSignDocument {
         }
     }
 
-    private static void signField(final HsmManager hsmManager, final SignatureManager sigMgr,
-                                  final SignatureFieldInterface sigField, final URL outputUrl)
+    /**
+     * Create signing credentials from the private key and certificate chain named by a signing profile.
+     *
+     * <p>
+     * The private key stays on the HSM; the credentials only hold a handle to it, so they must be used with the same
+     * HsmManager session.
+     *
+     * @param hsmManager a connected HsmManager
+     * @param profile the signing profile
+     * @return the credentials
+     * @throws PDFException the credentials could not be created
+     */
+    public static Credentials createCredentials(final HsmManager hsmManager, final SigningProfile profile)
+                    throws PDFException {
+        return createCredentials(hsmManager, profile, getCertificateChain(hsmManager, profile));
+    }
+
+    /**
+     * Get the certificate chain named by a signing profile.
+     *
+     * @param hsmManager a connected HsmManager
+     * @param profile the signing profile
+     * @return the certificate chain, signing certificate first
+     */
+    public static X509Certificate[] getCertificateChain(final HsmManager hsmManager, final SigningProfile profile) {
+        try (SigningEvent event = SigningEvent.begin("getCertificateChain")) {
+            event.setKeyLabel(profile.getCertificateLabel());
+            final X509Certificate[] certChain = (X509Certificate[]) hsmManager.getCertificateChain(
+                            profile.getCertificateLabel());
+            event.success();
+            return certChain;
+        }
+    }
+
+    /**
+     * Create signing credentials from the private key named by a signing profile and a certificate chain already
+     * fetched from the HSM.
+     *
+     * @param hsmManager a connected HsmManager
+     * @param profile the signing profile
+     * @param certChain the certificate chain named by the profile, signing certificate first
+     * @return the credentials
+     * @throws PDFException the credentials could not be created
+     */
+    public static Credentials createCredentials(final HsmManager hsmManager, final SigningProfile profile,
+                                                final X509Certificate[] certChain)
+                    throws PDFException {
+        final PrivateKey privateKey;
+        try (SigningEvent event = SigningEvent.begin("getKey")) {
+            event.setKeyLabel(profile.getKeyLabel());
+            privateKey = (PrivateKey) hsmManager.getKey(profile.getKeyPassword(), profile.getKeyLabel());
+            event.success();
+        }
+
+        final CredentialFactory credentialFactory = CredentialFactory.newInstance();
+        final String provider = hsmManager.getProviderName();
+        final PrivateKeyHolder pkh = PrivateKeyHolderFactory.newInstance().createPrivateKey(privateKey, provider);
+        return credentialFactory.createCredentials(pkh, certChain[0], certChain);
+    }
+
+    /**
+     * Sign one signature field, writing the signed document to the output URL.
+     *
+     * <p>
+     * Fields that may not be signed are skipped; a field that may be signed but is not visible is an error.
+     *
+     * @param sigMgr the signature manager for the document
+     * @param sigField the field to sign
+     * @param credentials credentials created for the signing profile
+     * @param profile the signing profile
+     * @param outputUrl the path to the file to contain the signed document
+     * @throws Exception a general exception was thrown
+     */
+    public static void signField(final SignatureManager sigMgr, final SignatureFieldInterface sigField,
+                                 final Credentials credentials, final SigningProfile profile, final URL outputUrl)
                     throws Exception {
 
         final String qualifiedName = "Fully Qualified Name: " + sigField.getQualifiedName();
@@ -176,15 +349,6 @@ public final class HsmSignDocument {
 
         ByteWriter byteWriter = null;
         try {
-            final PrivateKey privateKey = (PrivateKey) hsmManager.getKey(password, PRIVATE_KEY_LABEL);
-            final X509Certificate[] certChain = (X509Certificate[]) hsmManager.getCertificateChain(CERTIFICATE_LABEL);
-
-            // Create credentials
-            final CredentialFactory credentialFactory = CredentialFactory.newInstance();
-            final String provider = hsmManager.getProviderName();
-            final PrivateKeyHolder pkh = PrivateKeyHolderFactory.newInstance().createPrivateKey(privateKey, provider);
-            final Credentials credentials = credentialFactory.createCredentials(pkh, certChain[0], certChain);
-
             // Must be permitted to sign doc and field must be visible.
             if (sigField.isSigningPermitted()) {
                 if (sigField.isVisible()) {
@@ -197,14 +361,22 @@ public final class HsmSignDocument {
                     // This name will show up in the signature as "Digitally signed by <name>".
                     // If no name is specified the signature will say it was signed by whatever name is
                     // on the credentials used to sign the document.
-                    userInfo.setName("John Doe");
+                    if (profile.getSignerName() != null) {
+                        userInfo.setName(profile.getSignerName());
+                    }
                     signatureOptions.setUserInfo(userInfo);
 
                     // Set the crypto context mode, digest/hash method, and signature/encryption algorithm
-                    final CryptoContext context = new CryptoContext(CryptoMode.NON_FIPS_MODE, DIGESTER_ALG, "RSA");
+                    final CryptoContext context = new CryptoContext(CryptoMode.NON_FIPS_MODE,
+                                                                    profile.getDigestAlgorithm(), "RSA");
 
                     // Sign the document.
-                    sigMgr.sign(sigField, signatureOptions, credentials, byteWriter, new JCEProvider(context));
+                    try (SigningEvent event = SigningEvent.begin("sign")) {
+                        event.setFieldName(sigField.getQualifiedName());
+                        event.setKeyLabel(profile.getKeyLabel());
+                        sigMgr.sign(sigField, signatureOptions, credentials, byteWriter, new JCEProvider(context));
+                        event.success();
+                    }
                 } else {
                     throw new PDFIOException("Signature field is not visible");
                 }
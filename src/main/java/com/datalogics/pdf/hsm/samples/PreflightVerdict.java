@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import com.adobe.pdfjt.services.digsig.SignatureFieldInterface;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of inspecting a document before signing it: whether it can be signed, which fields will be signed, and
+ * why anything was left out or refused.
+ */
+public final class PreflightVerdict {
+    /**
+     * Whether a document can go on to be signed.
+     */
+    public enum Status {
+        /** The document has fields that will be signed. */
+        ACCEPTED,
+        /** The document has no fields that may be signed; signing it would do nothing. */
+        NOTHING_TO_SIGN,
+        /** Signing the document would fail, so it must not be sent to the HSM. */
+        REJECTED
+    }
+
+    private final Status status;
+    private final List<SignatureFieldInterface> signableFields;
+    private final List<String> signableFieldNames;
+    private final List<String> reasons;
+
+    PreflightVerdict(final Status status, final List<SignatureFieldInterface> signableFields,
+                     final List<String> signableFieldNames, final List<String> reasons) {
+        this.status = status;
+        this.signableFields = Collections.unmodifiableList(new ArrayList<SignatureFieldInterface>(signableFields));
+        this.signableFieldNames = Collections.unmodifiableList(new ArrayList<String>(signableFieldNames));
+        this.reasons = Collections.unmodifiableList(new ArrayList<String>(reasons));
+    }
+
+    /**
+     * Get whether the document can go on to be signed.
+     *
+     * @return the status
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Tell whether the document has fields that will be signed.
+     *
+     * @return true if the status is {@link Status#ACCEPTED}
+     */
+    public boolean isAccepted() {
+        return status == Status.ACCEPTED;
+    }
+
+    /**
+     * Get the qualified names of the fields that will be signed.
+     *
+     * @return the field names
+     */
+    public List<String> getSignableFieldNames() {
+        return signableFieldNames;
+    }
+
+    /**
+     * Get the reasons fields were left out or the document was refused.
+     *
+     * @return the reasons, empty if every field will be signed
+     */
+    public List<String> getReasons() {
+        return reasons;
+    }
+
+    /**
+     * Get the fields that will be signed. These belong to the document that was inspected, and are only usable while
+     * it is open.
+     *
+     * @return the fields
+     */
+    List<SignatureFieldInterface> getSignableFields() {
+        return signableFields;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return status + (reasons.isEmpty() ? "" : ": " + reasons);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * The framing of records in the append-only files written by the samples: the length of the payload, the payload, and
+ * a CRC-32 checksum of the payload.
+ *
+ * <p>
+ * A crash while a record is being appended leaves a record that is cut short or fails its checksum. Readers stop at
+ * the first such record, and writers truncate the file there before appending again.
+ */
+final class RecordFraming {
+    // The payload length before each record, and its checksum after it
+    static final int RECORD_OVERHEAD = 8;
+    static final int MAX_PAYLOAD_LENGTH = 64 * 1024;
+
+    /**
+     * This is a utility class, and won't be instantiated.
+     */
+    private RecordFraming() {}
+
+    /**
+     * Frame a payload.
+     *
+     * @param payload the payload
+     * @return the framed record
+     */
+    static byte[] frame(final byte[] payload) {
+        if (payload.length > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("A record must not be larger than " + MAX_PAYLOAD_LENGTH + " bytes");
+        }
+        final CRC32 checksum = new CRC32();
+        checksum.update(payload);
+        final ByteArrayOutputStream record = new ByteArrayOutputStream(payload.length + RECORD_OVERHEAD);
+        final DataOutputStream data = new DataOutputStream(record);
+        try {
+            data.writeInt(payload.length);
+            data.write(payload);
+            data.writeInt((int) checksum.getValue());
+        } catch (final IOException e) {
+            // Cannot happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+        return record.toByteArray();
+    }
+
+    /**
+     * Read the payload of the next record.
+     *
+     * @param data the stream of records
+     * @return the payload, or null at the end of the stream or at a record that is cut short or damaged
+     * @throws IOException the stream could not be read
+     */
+    static byte[] read(final DataInputStream data) throws IOException {
+        try {
+            final int length = data.readInt();
+            if (length <= 0 || length > MAX_PAYLOAD_LENGTH) {
+                return null;
+            }
+            final byte[] payload = new byte[length];
+            data.readFully(payload);
+            final CRC32 checksum = new CRC32();
+            checksum.update(payload);
+            if (data.readInt() != (int) checksum.getValue()) {
+                return null;
+            }
+            return payload;
+        } catch (final EOFException e) {
+            return null;
+        }
+    }
+}
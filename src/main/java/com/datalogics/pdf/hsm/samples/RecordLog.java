@@ -0,0 +1,371 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append-only file of records framed with {@link RecordFraming}, written with group commits. It is shared by the
+ * {@link SigningJournal} and the {@link SignatureAuditLog}.
+ *
+ * <p>
+ * The file starts with a header of a magic number and a format version. When the file is opened, the records already
+ * in it are read back, and a record torn by a crash is cut off so that new records follow the last whole one.
+ *
+ * <p>
+ * Appended records are written by a writer thread, which collects the records appended within the durability window,
+ * writes them together, and forces them to disk with a single fsync. With a window of zero, each append waits for the
+ * commit that writes its record, and concurrent appends share the commits made while the previous one was being forced
+ * to disk.
+ */
+final class RecordLog implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(RecordLog.class.getName());
+
+    static final int HEADER_LENGTH = 8;
+    // Commit early once this much is waiting, whatever the window
+    private static final int MAX_BATCH_BYTES = 1024 * 1024;
+
+    /**
+     * Receives the records already in a file as it is opened.
+     */
+    interface RecordHandler {
+        /**
+         * Handle a record read back from the file.
+         *
+         * @param payload the payload of the record
+         * @throws IOException the record is not valid
+         */
+        void handle(byte[] payload) throws IOException;
+    }
+
+    private final Path path;
+    private final String description;
+    private final long durabilityWindowNanos;
+    private final FileChannel channel;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition recordsWaiting = lock.newCondition();
+    private final Condition recordsSynced = lock.newCondition();
+    private final Thread writer;
+    private final int recoveredCount;
+    private ByteArrayOutputStream unwritten = new ByteArrayOutputStream();
+    private long oldestUnwrittenNanos;
+    private long appendedCount;
+    private long syncedCount;
+    private long flushRequestedCount;
+    private long commitCount;
+    private IOException failure;
+    private boolean closed;
+
+    /**
+     * Open a file, creating it if it does not exist, read back the records in it, and start the writer thread.
+     *
+     * @param path the file
+     * @param magic the magic number that starts the header
+     * @param version the format version that follows the magic number
+     * @param description what the file is, such as "signing journal", for messages
+     * @param durabilityWindowNanos the longest time in nanoseconds a record may wait before it is forced to disk, or
+     *        zero to have each append wait until its record is on disk
+     * @param handler the handler for the records already in the file, or null to only check them
+     * @throws IOException the file could not be opened, has another header, or a record in it is not valid
+     */
+    RecordLog(final Path path, final int magic, final int version, final String description,
+              final long durabilityWindowNanos, final RecordHandler handler) throws IOException {
+        this.path = path;
+        this.description = description;
+        this.durabilityWindowNanos = durabilityWindowNanos;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE);
+        try {
+            this.recoveredCount = recover(magic, version, handler);
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, description.replace(' ', '-') + "-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Append a record. With a durability window, this returns once the record is queued for the next commit; with
+     * none, once it is on disk.
+     *
+     * @param payload the payload of the record
+     * @throws IOException the file has been closed, or an earlier commit failed
+     */
+    void append(final byte[] payload) throws IOException {
+        final byte[] framed = RecordFraming.frame(payload);
+
+        lock.lock();
+        try {
+            checkWritable();
+            final boolean first = unwritten.size() == 0;
+            if (first) {
+                oldestUnwrittenNanos = System.nanoTime();
+            }
+            unwritten.write(framed, 0, framed.length);
+            final long sequence = ++appendedCount;
+            // The writer waits for the first record of a batch, then for the window to pass
+            if (first || durabilityWindowNanos == 0 || unwritten.size() >= MAX_BATCH_BYTES) {
+                recordsWaiting.signal();
+            }
+            if (durabilityWindowNanos == 0) {
+                awaitSynced(sequence);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until every record appended so far is on disk, committing them now instead of at the end of the window.
+     *
+     * @throws IOException the file has been closed, or the records could not be written
+     */
+    void flush() throws IOException {
+        lock.lock();
+        try {
+            checkWritable();
+            final long sequence = appendedCount;
+            if (flushRequestedCount < sequence) {
+                flushRequestedCount = sequence;
+            }
+            recordsWaiting.signal();
+            awaitSynced(sequence);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of whole records that were in the file when it was opened.
+     *
+     * @return the number of records read back
+     */
+    int getRecoveredCount() {
+        return recoveredCount;
+    }
+
+    /**
+     * Get the number of records appended since the file was opened.
+     *
+     * @return the number of records
+     */
+    long getAppendedCount() {
+        lock.lock();
+        try {
+            return appendedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of times records were forced to disk.
+     *
+     * @return the number of group commits
+     */
+    long getCommitCount() {
+        lock.lock();
+        try {
+            return commitCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write the records still waiting, and close the file.
+     *
+     * @throws IOException the waiting records could not be written, or the file could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        final IOException error;
+        lock.lock();
+        try {
+            closed = true;
+            recordsWaiting.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            error = failure;
+        } finally {
+            lock.unlock();
+        }
+        channel.close();
+        if (error != null) {
+            throw new IOException("The " + description + " " + path + " could not be written", error);
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (closed) {
+            throw new IOException("The " + description + " " + path + " has been closed");
+        }
+        if (failure != null) {
+            throw new IOException("The " + description + " " + path + " could not be written", failure);
+        }
+    }
+
+    /*
+     * Wait until the given record has been forced to disk. Called with the lock held.
+     */
+    private void awaitSynced(final long sequence) throws IOException {
+        while (syncedCount < sequence && failure == null) {
+            recordsSynced.awaitUninterruptibly();
+        }
+        if (syncedCount < sequence) {
+            throw new IOException("The " + description + " " + path + " could not be written", failure);
+        }
+    }
+
+    /*
+     * Tell whether the waiting records should be committed now. Called with the lock held, and records waiting.
+     */
+    private boolean commitDue() {
+        return closed || durabilityWindowNanos == 0 || flushRequestedCount > syncedCount
+               || unwritten.size() >= MAX_BATCH_BYTES
+               || System.nanoTime() - oldestUnwrittenNanos >= durabilityWindowNanos;
+    }
+
+    /*
+     * The writer thread: once the oldest waiting record has waited for the durability window, write every waiting
+     * record, and force them to disk together.
+     */
+    private void write() {
+        while (true) {
+            final ByteArrayOutputStream batch;
+            final long batchEnd;
+            lock.lock();
+            try {
+                while (unwritten.size() == 0 || !commitDue()) {
+                    if (unwritten.size() == 0) {
+                        if (closed) {
+                            return;
+                        }
+                        recordsWaiting.awaitUninterruptibly();
+                    } else {
+                        try {
+                            recordsWaiting.awaitNanos(oldestUnwrittenNanos + durabilityWindowNanos
+                                                      - System.nanoTime());
+                        } catch (final InterruptedException e) {
+                            // Only closing the file stops the writer
+                        }
+                    }
+                }
+                batch = unwritten;
+                batchEnd = appendedCount;
+                unwritten = new ByteArrayOutputStream();
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                final ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (final IOException e) {
+                error = e;
+                if (LOGGER.isLoggable(Level.SEVERE)) {
+                    LOGGER.severe("Could not write the " + description + " " + path + ": " + e.getMessage());
+                }
+            }
+
+            lock.lock();
+            try {
+                if (error == null) {
+                    syncedCount = batchEnd;
+                    commitCount++;
+                } else {
+                    // Later records would follow a gap, so the file takes no more
+                    failure = error;
+                    unwritten = new ByteArrayOutputStream();
+                }
+                recordsSynced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (error != null) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * Read back the records already in the file, and cut off a record torn by a crash so that new records follow the
+     * last whole one. Return the number of whole records.
+     */
+    private int recover(final int magic, final int version, final RecordHandler handler) throws IOException {
+        final long size = channel.size();
+        if (size == 0) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(magic).putInt(version).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            channel.force(false);
+            return 0;
+        }
+
+        // Not closed, as that would close the channel too
+        final DataInputStream data = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        if (size < HEADER_LENGTH || data.readInt() != magic || data.readInt() != version) {
+            throw new IOException(path + " is not a " + description);
+        }
+
+        long validLength = HEADER_LENGTH;
+        int records = 0;
+        while (validLength < size) {
+            // Null at a record cut short or damaged by the crash
+            final byte[] payload = RecordFraming.read(data);
+            if (payload == null) {
+                break;
+            }
+            if (handler != null) {
+                handler.handle(payload);
+            }
+            validLength += payload.length + RecordFraming.RECORD_OVERHEAD;
+            records++;
+        }
+
+        if (validLength < size) {
+            if (LOGGER.isLoggable(Level.WARNING)) {
+                LOGGER.warning("Discarding " + (size - validLength) + " bytes of torn records at the end of " + path);
+            }
+            channel.truncate(validLength);
+            channel.force(false);
+        }
+        channel.position(validLength);
+        return records;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import com.datalogics.pdf.security.HsmManager;
+import com.datalogics.pdf.security.HsmTask;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A task that signs the existing signature fields of one document, for running on an
+ * {@link com.datalogics.pdf.security.HsmManagerGroup}.
+ *
+ * <p>
+ * The signed document is written to a temporary file next to the output file, and moved into place once signing has
+ * finished, so the output file is never partly written.
+ *
+ * <p>
+ * A task signs its document once. When it runs more than once at the same time, as
+ * {@link com.datalogics.pdf.security.HsmManagerGroup#executeHedged} does, only the first attempt to finish signing
+ * moves its document into place; a later attempt discards its document, and one that starts after the document has
+ * been published, or that is interrupted, stops before using the HSM. Create a new task for each signing request.
+ */
+public class SignDocumentTask implements HsmTask<URL> {
+    private static final String TEMP_FILE_PREFIX = "signing-";
+    private static final String TEMP_FILE_SUFFIX = ".pdf.tmp";
+
+    private final URL inputUrl;
+    private final URL outputUrl;
+    private final SigningProfile profile;
+    // Claimed by the one attempt that moves its document into place
+    private final AtomicBoolean published = new AtomicBoolean();
+
+    /**
+     * Create a task to sign a document.
+     *
+     * @param inputUrl the URL to the input file
+     * @param outputUrl the URL to the file to contain the signed document; this must be a file URL
+     * @param profile the key, certificate and settings to sign with
+     */
+    public SignDocumentTask(final URL inputUrl, final URL outputUrl, final SigningProfile profile) {
+        this.inputUrl = inputUrl;
+        this.outputUrl = outputUrl;
+        this.profile = profile;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.datalogics.pdf.security.HsmTask#call(com.datalogics.pdf.security.HsmManager)
+     */
+    @Override
+    public URL call(final HsmManager hsmManager) throws Exception {
+        if (published.get()) {
+            // Another attempt has already signed the document
+            return outputUrl;
+        }
+        final Path outputPath = new File(outputUrl.toURI()).toPath().toAbsolutePath();
+        final Path tempPath = Files.createTempFile(outputPath.getParent(), TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX);
+        try {
+            // Stops before the HSM is used if this attempt has been cancelled
+            HsmSignDocument.signExistingSignatureFields(hsmManager, inputUrl, tempPath.toUri().toURL(), profile);
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException("Signing of " + inputUrl + " was cancelled");
+            }
+            if (!published.compareAndSet(false, true)) {
+                // Another attempt finished first; its document stands
+                return outputUrl;
+            }
+            try {
+                // Nothing is written if the document had no fields to sign
+                if (Files.size(tempPath) > 0) {
+                    Files.move(tempPath, outputPath, StandardCopyOption.REPLACE_EXISTING,
+                               StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (final IOException | RuntimeException e) {
+                // Let a retry publish instead
+                published.set(false);
+                throw e;
+            }
+            return outputUrl;
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append-only log of every signature made, for compliance audits. It is read back with
+ * {@link SignatureAuditReader}.
+ *
+ * <p>
+ * Forcing each record to disk as it is appended would limit signing to one signature per disk sync. Instead, records
+ * are group committed: a writer thread collects the records appended within the durability window, writes them
+ * together, and forces them to disk with a single fsync. An append returns without waiting for the disk, so a crash
+ * loses at most the records of the last window; {@link #flush} waits until every record appended so far is on disk.
+ * With a window of zero, each append waits for the commit that writes its record, and concurrent appends still share
+ * commits. The signing classes flush the log before they move a signed document into place, so a document is never
+ * published without its records, whatever the window.
+ *
+ * <p>
+ * Every record carries a checksum. A record torn by a crash is detected when the log is opened again, and the log is
+ * truncated after the last whole record. Opening a log reads it from the start, so a long running service should start
+ * a new log file from time to time, for example every day.
+ */
+public final class SignatureAuditLog implements AutoCloseable {
+    public static final long DEFAULT_DURABILITY_WINDOW_MILLIS = 100;
+
+    // "SAUD", followed by the format version
+    static final int MAGIC = 0x53415544;
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = RecordLog.HEADER_LENGTH;
+
+    private final RecordLog log;
+
+    /**
+     * Open a log with a durability window of {@value #DEFAULT_DURABILITY_WINDOW_MILLIS} milliseconds.
+     *
+     * @param path the log file
+     * @throws IOException the log could not be opened or is not a signature audit log
+     */
+    public SignatureAuditLog(final Path path) throws IOException {
+        this(path, DEFAULT_DURABILITY_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Open a log, creating it if it does not exist, and append to it.
+     *
+     * @param path the log file
+     * @param durabilityWindow the longest time a record may wait before it is forced to disk, or zero to have each
+     *        append wait until its record is on disk
+     * @param unit the unit of the durability window
+     * @throws IOException the log could not be opened or is not a signature audit log
+     */
+    public SignatureAuditLog(final Path path, final long durabilityWindow, final TimeUnit unit) throws IOException {
+        if (durabilityWindow < 0) {
+            throw new IllegalArgumentException("The durability window must not be negative");
+        }
+        this.log = new RecordLog(path, MAGIC, VERSION, "signature audit log", unit.toNanos(durabilityWindow), null);
+    }
+
+    /**
+     * Append a record. With a durability window, this returns once the record is queued for the next commit; with
+     * none, once it is on disk.
+     *
+     * @param record the record of a signature
+     * @throws IOException the log has been closed, or an earlier commit failed
+     */
+    public void append(final SignatureAuditRecord record) throws IOException {
+        log.append(record.toBytes());
+    }
+
+    /**
+     * Wait until every record appended so far is on disk, committing them now instead of at the end of the window.
+     *
+     * @throws IOException the log has been closed, or the records could not be written
+     */
+    public void flush() throws IOException {
+        log.flush();
+    }
+
+    /**
+     * Get the number of records appended since the log was opened.
+     *
+     * @return the number of records
+     */
+    public long getAppendedCount() {
+        return log.getAppendedCount();
+    }
+
+    /**
+     * Get the number of times records were forced to disk. While signatures are being made, this is far lower than
+     * the number of records.
+     *
+     * @return the number of group commits
+     */
+    public long getCommitCount() {
+        return log.getCommitCount();
+    }
+
+    /**
+     * Write the records still waiting, and close the log file.
+     *
+     * @throws IOException the waiting records could not be written, or the log file could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the records of a {@link SignatureAuditLog}, and answers queries on them from the command line.
+ *
+ * <p>
+ * A log may be read while a service is appending to it; the reader stops at the end of the log as it was when the
+ * reader was opened. Reading stops at a record that is cut short or fails its checksum, which {@link #isDamaged}
+ * reports.
+ *
+ * <p>
+ * Run as a program, it prints the records that match every given option, one per line: the time, the document hash,
+ * the field name, the key label, and the certificate serial number in hex.
+ *
+ * <pre>
+ * SignatureAuditReader [--key label] [--field name] [--serial hex] [--hash hex]
+ *                      [--since yyyy-MM-ddTHH:mm:ssZ] [--until yyyy-MM-ddTHH:mm:ssZ] log...
+ * </pre>
+ */
+public final class SignatureAuditReader implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(SignatureAuditReader.class.getName());
+
+    private static final String USAGE = "Usage: SignatureAuditReader [--key label] [--field name] [--serial hex] "
+                                        + "[--hash hex] [--since yyyy-MM-ddTHH:mm:ssZ] "
+                                        + "[--until yyyy-MM-ddTHH:mm:ssZ] log...";
+    private static final String TIME_PATTERN = "yyyy-MM-dd'T'HH:mm:ss'Z'";
+
+    private final Path path;
+    private final long size;
+    private final DataInputStream data;
+    private long position;
+    private boolean damaged;
+
+    /**
+     * Open a log for reading.
+     *
+     * @param path the log file
+     * @throws IOException the log could not be opened or is not a signature audit log
+     */
+    public SignatureAuditReader(final Path path) throws IOException {
+        this.path = path;
+        this.size = Files.size(path);
+        this.data = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+        try {
+            if (size < SignatureAuditLog.HEADER_LENGTH || data.readInt() != SignatureAuditLog.MAGIC
+                || data.readInt() != SignatureAuditLog.VERSION) {
+                throw new IOException(path + " is not a signature audit log");
+            }
+        } catch (final IOException e) {
+            data.close();
+            throw e;
+        }
+        this.position = SignatureAuditLog.HEADER_LENGTH;
+    }
+
+    /**
+     * Read the next record.
+     *
+     * @return the record, or null at the end of the log or at a damaged record
+     * @throws IOException the log could not be read
+     */
+    public SignatureAuditRecord next() throws IOException {
+        if (position >= size || damaged) {
+            return null;
+        }
+        final byte[] payload = RecordFraming.read(data);
+        if (payload == null || position + payload.length + RecordFraming.RECORD_OVERHEAD > size) {
+            damaged = true;
+            return null;
+        }
+        position += payload.length + RecordFraming.RECORD_OVERHEAD;
+        return SignatureAuditRecord.fromBytes(payload);
+    }
+
+    /**
+     * Tell whether reading stopped at a record that is cut short or fails its checksum, rather than at the end of the
+     * log.
+     *
+     * @return true if the log is damaged
+     */
+    public boolean isDamaged() {
+        return damaged;
+    }
+
+    /**
+     * Close the log file.
+     *
+     * @throws IOException the log file could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        data.close();
+    }
+
+    /**
+     * Print the records in the logs that match a query.
+     *
+     * @param args the options of the query, followed by the log files
+     * @throws Exception a general exception was thrown
+     */
+    public static void main(final String... args) throws Exception {
+        final Query query = new Query();
+        final List<Path> logs = new ArrayList<Path>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].startsWith("--")) {
+                    if (i + 1 == args.length) {
+                        throw new IllegalArgumentException(args[i] + " needs a value");
+                    }
+                    query.set(args[i], args[++i]);
+                } else {
+                    logs.add(Paths.get(args[i]));
+                }
+            }
+        } catch (final IllegalArgumentException | ParseException e) {
+            LOGGER.severe(e.getMessage());
+            LOGGER.info(USAGE);
+            return;
+        }
+        if (logs.isEmpty()) {
+            LOGGER.info(USAGE);
+            return;
+        }
+
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        try {
+            for (final Path log : logs) {
+                print(log, query, out);
+            }
+        } finally {
+            out.flush();
+        }
+    }
+
+    /**
+     * Print the records in a log that match a query.
+     *
+     * @param log the log file
+     * @param query the query
+     * @param out where to print the records
+     * @return the number of matching records
+     * @throws IOException the log could not be read
+     */
+    static int print(final Path log, final Query query, final Writer out) throws IOException {
+        final DateFormat format = newTimeFormat();
+        int matches = 0;
+        try (SignatureAuditReader reader = new SignatureAuditReader(log)) {
+            SignatureAuditRecord record;
+            while ((record = reader.next()) != null) {
+                if (query.matches(record)) {
+                    out.write(format.format(record.getTimestamp()) + " " + record.getDocumentHashHex() + " "
+                              + record.getQualifiedFieldName() + " " + record.getKeyLabel() + " "
+                              + record.getCertificateSerial().toString(16) + System.lineSeparator());
+                    matches++;
+                }
+            }
+            if (reader.isDamaged() && LOGGER.isLoggable(Level.WARNING)) {
+                LOGGER.warning("Stopped at a damaged record in " + log + " after " + reader.position + " bytes");
+            }
+        }
+        return matches;
+    }
+
+    private static DateFormat newTimeFormat() {
+        final DateFormat format = new SimpleDateFormat(TIME_PATTERN, Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+
+    /*
+     * The options of a query. A record matches when it matches every option given.
+     */
+    static final class Query {
+        private String keyLabel;
+        private String qualifiedFieldName;
+        private BigInteger certificateSerial;
+        private String documentHash;
+        private long since = Long.MIN_VALUE;
+        private long until = Long.MAX_VALUE;
+
+        void set(final String option, final String value) throws ParseException {
+            switch (option) {
+                case "--key":
+                    keyLabel = value;
+                    break;
+                case "--field":
+                    qualifiedFieldName = value;
+                    break;
+                case "--serial":
+                    certificateSerial = new BigInteger(value, 16);
+                    break;
+                case "--hash":
+                    documentHash = value.toLowerCase(Locale.ROOT);
+                    break;
+                case "--since":
+                    since = newTimeFormat().parse(value).getTime();
+                    break;
+                case "--until":
+                    until = newTimeFormat().parse(value).getTime();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+
+        boolean matches(final SignatureAuditRecord record) {
+            return (keyLabel == null || keyLabel.equals(record.getKeyLabel()))
+                   && (qualifiedFieldName == null || qualifiedFieldName.equals(record.getQualifiedFieldName()))
+                   && (certificateSerial == null || certificateSerial.equals(record.getCertificateSerial()))
+                   && (documentHash == null || documentHash.equals(record.getDocumentHashHex()))
+                   && record.getTimestamp() >= since && record.getTimestamp() < until;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * The record of one signature in the {@link SignatureAuditLog}: when it was made, the digest of the signed document,
+ * the field that was signed, and the key and certificate it was signed with.
+ */
+public final class SignatureAuditRecord {
+    private final long timestamp;
+    private final byte[] documentHash;
+    private final String qualifiedFieldName;
+    private final String keyLabel;
+    private final BigInteger certificateSerial;
+
+    /**
+     * Create a record.
+     *
+     * @param timestamp when the signature was made, in milliseconds since the epoch
+     * @param documentHash the SHA-256 digest of the signed document
+     * @param qualifiedFieldName the fully qualified name of the signed field
+     * @param keyLabel the label of the private key on the HSM
+     * @param certificateSerial the serial number of the signing certificate
+     */
+    public SignatureAuditRecord(final long timestamp, final byte[] documentHash, final String qualifiedFieldName,
+                                final String keyLabel, final BigInteger certificateSerial) {
+        if (documentHash == null || qualifiedFieldName == null || keyLabel == null || certificateSerial == null) {
+            throw new IllegalArgumentException("Every part of an audit record must be given");
+        }
+        this.timestamp = timestamp;
+        this.documentHash = documentHash.clone();
+        this.qualifiedFieldName = qualifiedFieldName;
+        this.keyLabel = keyLabel;
+        this.certificateSerial = certificateSerial;
+    }
+
+    /**
+     * Get when the signature was made.
+     *
+     * @return the time in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Get the SHA-256 digest of the signed document.
+     *
+     * @return the digest
+     */
+    public byte[] getDocumentHash() {
+        return documentHash.clone();
+    }
+
+    /**
+     * Get the SHA-256 digest of the signed document as a hex string, as printed by {@code sha256sum}.
+     *
+     * @return the digest in lower case hex
+     */
+    public String getDocumentHashHex() {
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : documentHash) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Get the fully qualified name of the signed field.
+     *
+     * @return the field name
+     */
+    public String getQualifiedFieldName() {
+        return qualifiedFieldName;
+    }
+
+    /**
+     * Get the label of the private key the signature was made with.
+     *
+     * @return the key label
+     */
+    public String getKeyLabel() {
+        return keyLabel;
+    }
+
+    /**
+     * Get the serial number of the signing certificate.
+     *
+     * @return the serial number
+     */
+    public BigInteger getCertificateSerial() {
+        return certificateSerial;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(final Object obj) {
+        if (!(obj instanceof SignatureAuditRecord)) {
+            return false;
+        }
+        final SignatureAuditRecord other = (SignatureAuditRecord) obj;
+        return timestamp == other.timestamp && Arrays.equals(documentHash, other.documentHash)
+               && qualifiedFieldName.equals(other.qualifiedFieldName) && keyLabel.equals(other.keyLabel)
+               && certificateSerial.equals(other.certificateSerial);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(new Object[] { timestamp, Arrays.hashCode(documentHash), qualifiedFieldName, keyLabel,
+                                              certificateSerial });
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return timestamp + " " + getDocumentHashHex() + " " + qualifiedFieldName + " " + keyLabel + " "
+               + certificateSerial.toString(16);
+    }
+
+    /*
+     * Encode the record: the timestamp, the digest and the serial number each preceded by their length in one byte,
+     * and the names in modified UTF-8. A signature from a 2048-bit key is about 250 bytes; its record is about 80.
+     */
+    byte[] toBytes() {
+        final byte[] serial = certificateSerial.toByteArray();
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final DataOutputStream data = new DataOutputStream(payload);
+        try {
+            data.writeLong(timestamp);
+            data.writeByte(documentHash.length);
+            data.write(documentHash);
+            data.writeUTF(qualifiedFieldName);
+            data.writeUTF(keyLabel);
+            data.writeByte(serial.length);
+            data.write(serial);
+        } catch (final IOException e) {
+            // Cannot happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+        return payload.toByteArray();
+    }
+
+    static SignatureAuditRecord fromBytes(final byte[] payload) throws IOException {
+        final DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+        final long timestamp = data.readLong();
+        final byte[] documentHash = new byte[data.readUnsignedByte()];
+        data.readFully(documentHash);
+        final String qualifiedFieldName = data.readUTF();
+        final String keyLabel = data.readUTF();
+        final byte[] serial = new byte[data.readUnsignedByte()];
+        data.readFully(serial);
+        return new SignatureAuditRecord(timestamp, documentHash, qualifiedFieldName, keyLabel, new BigInteger(serial));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import com.adobe.pdfjt.core.exceptions.PDFException;
+import com.adobe.pdfjt.services.digsig.SignatureFieldInterface;
+import com.adobe.pdfjt.services.digsig.SignatureManager;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the signature fields of an open document by qualified name, for code that looks up several fields of the same
+ * document.
+ *
+ * <p>
+ * The fields are walked once, on the first lookup, and kept in a map from qualified name to field; later lookups on
+ * the same document do not walk the form again. Building the map reads every field, so a single lookup is better done
+ * with {@link SigningPreflight#inspect(SignatureManager, String)}, which stops at the field it is looking for. Like
+ * the document it indexes, an index must only be used by one thread at a time.
+ */
+public final class SignatureFieldIndex {
+    private final SignatureManager sigMgr;
+    private Map<String, SignatureFieldInterface> fields;
+
+    /**
+     * Create an index of the signature fields of a document. Nothing is read until the first lookup.
+     *
+     * @param sigMgr the signature manager for the document
+     */
+    public SignatureFieldIndex(final SignatureManager sigMgr) {
+        this.sigMgr = sigMgr;
+    }
+
+    /**
+     * Find a signature field.
+     *
+     * @param qualifiedName the fully qualified name of the field
+     * @return the field, or null if the document has no signature field with that name
+     * @throws PDFException the fields could not be read
+     */
+    public SignatureFieldInterface get(final String qualifiedName) throws PDFException {
+        return getFields().get(qualifiedName);
+    }
+
+    /**
+     * Get the qualified names of all the signature fields, in document order.
+     *
+     * @return the field names
+     * @throws PDFException the fields could not be read
+     */
+    public Set<String> getFieldNames() throws PDFException {
+        return Collections.unmodifiableSet(getFields().keySet());
+    }
+
+    private Map<String, SignatureFieldInterface> getFields() throws PDFException {
+        if (fields == null) {
+            final Map<String, SignatureFieldInterface> index = new LinkedHashMap<String, SignatureFieldInterface>();
+            final Iterator<SignatureFieldInterface> iter = sigMgr.getDocSignatureFieldIterator();
+            while (iter.hasNext()) {
+                final SignatureFieldInterface sigField = iter.next();
+                index.put(sigField.getQualifiedName(), sigField);
+            }
+            fields = index;
+        }
+        return fields;
+    }
+}
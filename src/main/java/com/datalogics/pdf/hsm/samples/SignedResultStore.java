@@ -0,0 +1,369 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A bounded on-disk store of recently signed documents, keyed by a fingerprint of the unsigned input and the way it is
+ * signed, so that a document submitted again is answered without another HSM signature.
+ *
+ * <p>
+ * The fingerprint is an HMAC-SHA256 of the input bytes, the name of the field to sign, the key, certificate, key
+ * password, digest algorithm and signer name of the signing profile, and the identity of the HSM token the store is
+ * used with. Two requests with the same fingerprint would produce the same document apart from the signing time, so
+ * the stored result of the first answers the second. Upstream systems that retry a submission then cost one signature
+ * instead of one per retry. Since the password and token are part of the fingerprint, a request with a wrong password,
+ * or meant for another token, never gets a document signed for someone else. The HMAC key is generated when the store
+ * is first created and kept in its directory, so the fingerprints, which are also the file names, do not let anyone
+ * test guesses of a password.
+ *
+ * <p>
+ * The store holds at most a given number of bytes of signed documents, evicting the least recently used first. It
+ * survives restarts: documents already in the directory are picked up, oldest first, when the store is opened. A
+ * store may be shared by several signing services in one process, but not by several processes.
+ */
+public final class SignedResultStore {
+    private static final Logger LOGGER = Logger.getLogger(SignedResultStore.class.getName());
+
+    public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+    private static final String FINGERPRINT_ALGORITHM = "HmacSHA256";
+    private static final String FINGERPRINT_KEY_FILE = "fingerprint.key";
+    private static final int FINGERPRINT_KEY_LENGTH = 32;
+    private static final String RESULT_SUFFIX = ".pdf";
+    private static final String TEMP_FILE_PREFIX = "storing-";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final String tokenIdentity;
+    private final SecretKeySpec fingerprintKey;
+    // Fingerprint to size of the stored document, in access order
+    private final Map<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long totalBytes;
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * Open a store of at most {@value #DEFAULT_MAX_BYTES} bytes.
+     *
+     * @param directory the directory to keep the signed documents in
+     * @throws IOException the directory could not be created or listed
+     */
+    public SignedResultStore(final Path directory) throws IOException {
+        this(directory, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Open a store for a service using a single HSM token.
+     *
+     * @param directory the directory to keep the signed documents in
+     * @param maxBytes the largest total size of the stored documents
+     * @throws IOException the directory could not be created or listed
+     */
+    public SignedResultStore(final Path directory, final long maxBytes) throws IOException {
+        this(directory, maxBytes, null);
+    }
+
+    /**
+     * Open a store, picking up the documents stored in the directory by an earlier process.
+     *
+     * @param directory the directory to keep the signed documents in
+     * @param maxBytes the largest total size of the stored documents
+     * @param tokenIdentity identifies the HSM token, partition or group whose keys sign the documents, such as its
+     *        token label, or null if the directory is only ever used with one. Documents stored for one token are not
+     *        given to requests signed with another.
+     * @throws IOException the directory could not be created or listed, or the fingerprint key could not be read
+     */
+    public SignedResultStore(final Path directory, final long maxBytes, final String tokenIdentity)
+                    throws IOException {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("The store must hold at least one byte");
+        }
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.tokenIdentity = tokenIdentity;
+        this.fingerprintKey = new SecretKeySpec(loadFingerprintKey(), FINGERPRINT_ALGORITHM);
+        load();
+    }
+
+    /**
+     * Compute the fingerprint of a request. The caller reads the input, so that the bytes fingerprinted are the bytes
+     * that are signed.
+     *
+     * @param content the content of the request's input
+     * @param request the signing request
+     * @param profile the profile the request is signed with
+     * @return the fingerprint, as a hex string
+     */
+    public String fingerprint(final byte[] content, final SigningRequest request, final SigningProfile profile) {
+        final Mac mac;
+        try {
+            mac = Mac.getInstance(FINGERPRINT_ALGORITHM);
+            mac.init(fingerprintKey);
+        } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new IllegalStateException(FINGERPRINT_ALGORITHM + " is not available", e);
+        }
+        mac.update(content);
+        for (final String part : new String[] { request.getQualifiedFieldName(), profile.getKeyLabel(),
+                                                profile.getCertificateLabel(), profile.getKeyPassword(),
+                                                profile.getDigestAlgorithm(), profile.getSignerName(),
+                                                tokenIdentity }) {
+            // Mark absent parts, and separate the parts, so that no two sets of parts digest alike
+            mac.update((byte) (part == null ? 0 : 1));
+            if (part != null) {
+                mac.update(part.getBytes(StandardCharsets.UTF_8));
+            }
+            mac.update((byte) 0);
+        }
+
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : mac.doFinal()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Copy the stored document for a fingerprint into place, if there is one.
+     *
+     * @param fingerprint the fingerprint of the request
+     * @param outputPath the file to contain the signed document
+     * @return true if a stored document was copied; false if there is none
+     * @throws IOException the stored document could not be copied
+     */
+    public boolean copyTo(final String fingerprint, final Path outputPath) throws IOException {
+        synchronized (entries) {
+            if (entries.get(fingerprint) == null) {
+                missCount++;
+                return false;
+            }
+        }
+
+        final Path tempPath = Files.createTempFile(outputPath.toAbsolutePath().getParent(), TEMP_FILE_PREFIX,
+                                                   TEMP_FILE_SUFFIX);
+        try {
+            Files.copy(resultPath(fingerprint), tempPath, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tempPath, outputPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final NoSuchFileException e) {
+            // Evicted in the meantime
+            Files.deleteIfExists(tempPath);
+            synchronized (entries) {
+                missCount++;
+            }
+            return false;
+        } catch (final IOException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+
+        try {
+            // Let the next process see how recently it was used
+            Files.setLastModifiedTime(resultPath(fingerprint), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (final NoSuchFileException e) {
+            // Evicted since it was copied; the copy stands
+        }
+        synchronized (entries) {
+            hitCount++;
+        }
+        return true;
+    }
+
+    /**
+     * Store a signed document, evicting the least recently used documents to stay within the size limit. A document
+     * larger than the whole store is not kept.
+     *
+     * @param fingerprint the fingerprint of the request the document was signed for
+     * @param signedPath the signed document
+     * @throws IOException the document could not be stored
+     */
+    public void put(final String fingerprint, final Path signedPath) throws IOException {
+        final long size = Files.size(signedPath);
+        if (size > maxBytes) {
+            return;
+        }
+        final Path tempPath = Files.createTempFile(directory, TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX);
+        try {
+            Files.copy(signedPath, tempPath, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tempPath, resultPath(fingerprint), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+
+        final List<String> evicted;
+        synchronized (entries) {
+            final Long replaced = entries.put(fingerprint, size);
+            totalBytes += size - (replaced == null ? 0 : replaced);
+            evicted = evict(fingerprint);
+        }
+        for (final String key : evicted) {
+            Files.deleteIfExists(resultPath(key));
+        }
+    }
+
+    /**
+     * Get the number of requests answered from the store.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        synchronized (entries) {
+            return hitCount;
+        }
+    }
+
+    /**
+     * Get the number of requests the store could not answer.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        synchronized (entries) {
+            return missCount;
+        }
+    }
+
+    /**
+     * Get the number of stored documents.
+     *
+     * @return the number of documents
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Get the total size of the stored documents.
+     *
+     * @return the size in bytes
+     */
+    public long getTotalBytes() {
+        synchronized (entries) {
+            return totalBytes;
+        }
+    }
+
+    /*
+     * Drop the least recently used entries until the store is within its size limit, keeping the given one. Called
+     * with the entries locked; the caller deletes the files of the returned entries.
+     */
+    private List<String> evict(final String keep) {
+        final List<String> evicted = new ArrayList<String>();
+        final Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            final Map.Entry<String, Long> entry = eldest.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            totalBytes -= entry.getValue();
+            evicted.add(entry.getKey());
+            eldest.remove();
+        }
+        return evicted;
+    }
+
+    private Path resultPath(final String fingerprint) {
+        return directory.resolve(fingerprint + RESULT_SUFFIX);
+    }
+
+    /*
+     * Read the key the fingerprints are computed with, generating it if the store is new.
+     */
+    private byte[] loadFingerprintKey() throws IOException {
+        final Path keyPath = directory.resolve(FINGERPRINT_KEY_FILE);
+        if (Files.exists(keyPath)) {
+            final byte[] key = Files.readAllBytes(keyPath);
+            if (key.length == FINGERPRINT_KEY_LENGTH) {
+                return key;
+            }
+            // Cannot happen, as the key is moved into place whole; start again, and let the old documents age out
+            if (LOGGER.isLoggable(Level.WARNING)) {
+                LOGGER.warning("Replacing the damaged fingerprint key " + keyPath);
+            }
+        }
+
+        final byte[] key = new byte[FINGERPRINT_KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+        final Path tempPath = Files.createTempFile(directory, TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX);
+        try {
+            Files.write(tempPath, key);
+            Files.move(tempPath, keyPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+        return key;
+    }
+
+    /*
+     * Pick up the documents stored by an earlier process, least recently used first, and remove the leftovers of
+     * copies it did not finish.
+     */
+    private void load() throws IOException {
+        final List<Path> stored = new ArrayList<Path>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (final Path file : files) {
+                final String name = file.getFileName().toString();
+                if (name.startsWith(TEMP_FILE_PREFIX)) {
+                    Files.deleteIfExists(file);
+                } else if (name.endsWith(RESULT_SUFFIX)) {
+                    stored.add(file);
+                }
+            }
+        }
+        final Map<Path, FileTime> modified = new LinkedHashMap<Path, FileTime>();
+        for (final Path file : stored) {
+            modified.put(file, Files.getLastModifiedTime(file));
+        }
+        Collections.sort(stored, new Comparator<Path>() {
+            @Override
+            public int compare(final Path first, final Path second) {
+                return modified.get(first).compareTo(modified.get(second));
+            }
+        });
+
+        for (final Path file : stored) {
+            final String name = file.getFileName().toString();
+            final long size = Files.size(file);
+            entries.put(name.substring(0, name.length() - RESULT_SUFFIX.length()), size);
+            totalBytes += size;
+        }
+        // The limit may have been lowered since the documents were stored
+        for (final String key : evict(null)) {
+            Files.deleteIfExists(resultPath(key));
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Found " + entries.size() + " signed documents in " + directory);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import java.net.URL;
+
+/**
+ * Receives the progress and outcome of an asynchronous signing job.
+ *
+ * <p>
+ * Methods are called on the thread doing the signing, or on the thread adding the callback if the job has already
+ * finished. They should return quickly and must not block; hand longer work to an executor of your own.
+ */
+public interface SigningCallback {
+    /**
+     * A signature field has been signed.
+     *
+     * @param qualifiedFieldName the fully qualified name of the field
+     */
+    void onFieldSigned(String qualifiedFieldName);
+
+    /**
+     * The job finished and the signed document is in place.
+     *
+     * @param outputUrl the URL to the signed document
+     */
+    void onSuccess(URL outputUrl);
+
+    /**
+     * The job failed, was cancelled, or missed its deadline.
+     *
+     * @param failure the cause; a {@link java.util.concurrent.CancellationException} if the job was cancelled, or a
+     *        {@link java.util.concurrent.TimeoutException} if it missed its deadline
+     */
+    void onFailure(Throwable failure);
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import com.datalogics.pdf.security.Deadline;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The pending result of an asynchronous signing job, to which completion callbacks can be attached.
+ *
+ * <p>
+ * A job that misses its deadline is cancelled, interrupting it if it is running. {@link #get()} then throws a
+ * {@link CancellationException}, {@link #isDeadlineExceeded()} returns true, and callbacks receive a
+ * {@link TimeoutException}.
+ */
+public final class SigningFuture extends FutureTask<URL> {
+    private static final Logger LOGGER = Logger.getLogger(SigningFuture.class.getName());
+
+    private final List<SigningCallback> callbacks = new ArrayList<SigningCallback>();
+    private final Deadline deadline;
+    private final long sequence;
+    private volatile boolean deadlineExceeded;
+
+    SigningFuture(final Callable<URL> job) {
+        this(job, Deadline.NONE, 0);
+    }
+
+    SigningFuture(final Callable<URL> job, final Deadline deadline, final long sequence) {
+        super(job);
+        this.deadline = deadline;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Add a callback to be told the outcome of the job. If the job has already finished, the callback is called
+     * immediately on this thread. Callbacks added this way are not told about individual fields.
+     *
+     * @param callback the callback
+     */
+    public void addCallback(final SigningCallback callback) {
+        synchronized (callbacks) {
+            if (!isDone()) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        notify(callback);
+    }
+
+    /**
+     * Tell whether the job was cancelled because it missed its deadline.
+     *
+     * @return true if the deadline passed before the job finished
+     */
+    public boolean isDeadlineExceeded() {
+        return deadlineExceeded;
+    }
+
+    /**
+     * Get the deadline of the job.
+     *
+     * @return the deadline, or {@link Deadline#NONE}
+     */
+    Deadline getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Get the position of the job in the order jobs were queued.
+     *
+     * @return the sequence number
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Cancel the job because its deadline has passed.
+     */
+    void expire() {
+        if (!isDone()) {
+            deadlineExceeded = true;
+            if (!cancel(true)) {
+                // It finished in the meantime
+                deadlineExceeded = false;
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.FutureTask#done()
+     */
+    @Override
+    protected void done() {
+        final List<SigningCallback> pending;
+        synchronized (callbacks) {
+            pending = new ArrayList<SigningCallback>(callbacks);
+            callbacks.clear();
+        }
+        for (final SigningCallback callback : pending) {
+            notify(callback);
+        }
+    }
+
+    private void notify(final SigningCallback callback) {
+        try {
+            final URL result;
+            try {
+                result = get();
+            } catch (final CancellationException e) {
+                callback.onFailure(deadlineExceeded ? new TimeoutException("The signing deadline passed") : e);
+                return;
+            } catch (final ExecutionException e) {
+                callback.onFailure(e.getCause());
+                return;
+            }
+            callback.onSuccess(result);
+        } catch (final InterruptedException e) {
+            // Cannot happen, as the job is done; keep the interrupt for the caller
+            Thread.currentThread().interrupt();
+        } catch (final RuntimeException e) {
+            if (LOGGER.isLoggable(Level.WARNING)) {
+                LOGGER.warning("Signing callback failed: " + e.getMessage());
+            }
+        }
+    }
+}
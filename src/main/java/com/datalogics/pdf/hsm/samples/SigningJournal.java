@@ -0,0 +1,229 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append-only journal of the signing requests a batch has accepted and completed, so that a batch interrupted by a
+ * crash can resume without signing any document twice.
+ *
+ * <p>
+ * Each record is on disk before the call that appends it returns. Appends from many threads are group committed: a
+ * writer thread writes every record appended while the previous write was being forced to disk, and forces them with a
+ * single fsync. Every record carries a checksum. A record torn by a crash is detected when the journal is opened again,
+ * and the journal is truncated after the last whole record.
+ *
+ * <p>
+ * Requests are identified by their output URL, so each request in a batch must write to a different file. A request's
+ * own signing profile is not recorded, as it holds the key password; such requests cannot be journaled.
+ */
+public final class SigningJournal implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(SigningJournal.class.getName());
+
+    // "SJNL", followed by the format version
+    private static final int MAGIC = 0x534a4e4c;
+    private static final int VERSION = 1;
+
+    private static final byte ACCEPTED = 1;
+    private static final byte COMPLETED = 2;
+
+    private final Path path;
+    private final RecordLog log;
+    private final Map<String, SigningRequest> pending = new LinkedHashMap<String, SigningRequest>();
+    private final Set<String> completed = new HashSet<String>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Open a journal, creating it if it does not exist, and read back the requests it records.
+     *
+     * @param path the journal file
+     * @throws IOException the journal could not be opened or is not a signing journal
+     */
+    public SigningJournal(final Path path) throws IOException {
+        this.path = path;
+        // Each append waits for its record, so the journal commits as soon as records are waiting
+        this.log = new RecordLog(path, MAGIC, VERSION, "signing journal", 0, new RecordLog.RecordHandler() {
+            @Override
+            public void handle(final byte[] payload) throws IOException {
+                apply(payload);
+            }
+        });
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("Read " + log.getRecoveredCount() + " records from " + path + ": " + completed.size()
+                        + " completed, " + pending.size() + " pending");
+        }
+    }
+
+    /**
+     * Record that a request has been accepted, waiting until the record is on disk.
+     *
+     * @param request the signing request
+     * @throws IOException the record could not be written
+     * @throws IllegalArgumentException if the request has its own signing profile
+     */
+    public void recordAccepted(final SigningRequest request) throws IOException {
+        if (request.getProfile() != null) {
+            throw new IllegalArgumentException("Requests with their own signing profile cannot be journaled");
+        }
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final DataOutputStream data = new DataOutputStream(payload);
+        data.writeByte(ACCEPTED);
+        data.writeUTF(request.getInputUrl().toString());
+        data.writeUTF(request.getOutputUrl().toString());
+        writeNullable(data, request.getQualifiedFieldName());
+        writeNullable(data, request.getTemplateKey());
+        log.append(payload.toByteArray());
+
+        lock.lock();
+        try {
+            pending.put(keyOf(request), request);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record that a request has been completed and its signed document is in place, waiting until the record is on
+     * disk.
+     *
+     * @param request the signing request
+     * @throws IOException the record could not be written
+     */
+    public void recordCompleted(final SigningRequest request) throws IOException {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final DataOutputStream data = new DataOutputStream(payload);
+        data.writeByte(COMPLETED);
+        data.writeUTF(keyOf(request));
+        log.append(payload.toByteArray());
+
+        lock.lock();
+        try {
+            pending.remove(keyOf(request));
+            completed.add(keyOf(request));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the requests that were accepted and not completed, in the order they were accepted. After a crash, these
+     * are the requests to resume.
+     *
+     * @return the pending requests
+     */
+    public List<SigningRequest> getPendingRequests() {
+        lock.lock();
+        try {
+            return new ArrayList<SigningRequest>(pending.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tell whether a request was accepted and has not been completed.
+     *
+     * @param request the signing request
+     * @return true if the request is pending
+     */
+    public boolean isPending(final SigningRequest request) {
+        lock.lock();
+        try {
+            return pending.containsKey(keyOf(request));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tell whether a request has been completed.
+     *
+     * @param request the signing request
+     * @return true if the signed document for the request is in place
+     */
+    public boolean isCompleted(final SigningRequest request) {
+        lock.lock();
+        try {
+            return completed.contains(keyOf(request));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of times records were forced to disk. With many threads appending, this is far lower than the
+     * number of records.
+     *
+     * @return the number of group commits
+     */
+    public long getCommitCount() {
+        return log.getCommitCount();
+    }
+
+    /**
+     * Close the journal file.
+     *
+     * @throws IOException an earlier record could not be written, or the journal file could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    private static String keyOf(final SigningRequest request) {
+        return request.getOutputUrl().toString();
+    }
+
+    /*
+     * Apply a record read back from the journal.
+     */
+    private void apply(final byte[] payload) throws IOException {
+        final DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+        final byte type = data.readByte();
+        if (type == ACCEPTED) {
+            final URL inputUrl = new URL(data.readUTF());
+            final URL outputUrl = new URL(data.readUTF());
+            final String qualifiedFieldName = readNullable(data);
+            final String templateKey = readNullable(data);
+            final SigningRequest request = new SigningRequest(inputUrl, outputUrl, qualifiedFieldName, templateKey);
+            if (!completed.contains(keyOf(request))) {
+                pending.put(keyOf(request), request);
+            }
+        } else if (type == COMPLETED) {
+            final String key = data.readUTF();
+            pending.remove(key);
+            completed.add(key);
+        } else {
+            throw new IOException("Unknown record type " + type + " in " + path);
+        }
+    }
+
+    private static void writeNullable(final DataOutputStream data, final String value) throws IOException {
+        data.writeBoolean(value != null);
+        if (value != null) {
+            data.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(final DataInputStream data) throws IOException {
+        return data.readBoolean() ? data.readUTF() : null;
+    }
+}
@@ -0,0 +1,711 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import com.datalogics.pdf.hsm.samples.util.IoUtils;
+import com.datalogics.pdf.security.Deadline;
+import com.datalogics.pdf.security.HsmManager;
+import com.datalogics.pdf.security.HsmManagerGroup;
+import com.datalogics.pdf.security.HsmTask;
+import com.datalogics.pdf.security.HsmTaskExecutor;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Signs documents in stages, so that CPU-bound work on some documents overlaps HSM-bound work on others.
+ *
+ * <p>
+ * Each document passes through four stages:
+ * <ol>
+ * <li><b>open</b>: parse the document.</li>
+ * <li><b>prepare</b>: inspect the document with {@link SigningPreflight}, refusing it if signing would fail, and create
+ * the temporary output file. Refused documents never reach the HSM.</li>
+ * <li><b>sign</b>: fetch the credentials and sign the fields on a member of the HSM group. PDF Java Toolkit computes
+ * the digest and the signature in a single call, so digesting happens here too.</li>
+ * <li><b>write</b>: move the signed document into place and release the parsed document.</li>
+ * </ol>
+ *
+ * <p>
+ * Every stage has its own worker threads, sized for its kind of work, and hands documents to the next stage through a
+ * bounded queue. When a stage falls behind, the stages before it block rather than pile up parsed documents in memory,
+ * and {@link #submit} blocks the caller once the first queue is full.
+ *
+ * <p>
+ * Parsing and inspecting a very large document takes far longer than a small one. So that a few large documents do
+ * not hold up many small ones, documents at least as large as a size threshold go through open and prepare stages of
+ * their own, with their own threads, and join the small documents at the sign stage. Documents whose size cannot be
+ * told without fetching them, such as those behind an HTTP URL, are treated as small.
+ *
+ * <p>
+ * A document can be given a deadline, for example the timeout of the caller waiting for it. Each stage takes the
+ * document with the earliest deadline first, and documents without a deadline after those with one. A document whose
+ * deadline has passed, or whose future has been cancelled, is dropped at the next stage it reaches and never signed on
+ * the HSM; the future of an expired document fails with a {@link TimeoutException}. A document whose deadline passes
+ * while it is being signed, or whose future is cancelled with {@code cancel(true)}, has its sign thread interrupted.
+ * Whether that stops the signature depends on whether the HSM client and the toolkit give up when interrupted.
+ */
+public final class SigningPipeline implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(SigningPipeline.class.getName());
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+    public static final int DEFAULT_WRITE_THREADS = 2;
+    public static final int DEFAULT_LARGE_DOCUMENT_THREADS = 1;
+    public static final long DEFAULT_LARGE_DOCUMENT_BYTES = 16L * 1024 * 1024;
+
+    private final HsmManagerGroup group;
+    private final SigningProfile profile;
+    private final Stage open;
+    private final Stage prepare;
+    private final Stage openLarge;
+    private final Stage prepareLarge;
+    private final Stage sign;
+    private final Stage write;
+    private final long largeDocumentBytes;
+    private final ScheduledExecutorService deadlines;
+    private final TemplateAnalysisCache templateCache = new TemplateAnalysisCache();
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile SignedResultStore resultStore;
+    private volatile SignatureAuditLog auditLog;
+    private volatile boolean closed;
+
+    /**
+     * Create a pipeline with one open and one prepare thread per processor,
+     * {@value HsmTaskExecutor#DEFAULT_INITIAL_CONCURRENCY_PER_MEMBER} sign threads per member of the group, and
+     * {@value #DEFAULT_LARGE_DOCUMENT_THREADS} open and prepare thread for documents of
+     * {@value #DEFAULT_LARGE_DOCUMENT_BYTES} bytes or more.
+     *
+     * @param group a logged in HSM group
+     * @param profile the signing profile
+     */
+    public SigningPipeline(final HsmManagerGroup group, final SigningProfile profile) {
+        this(group, profile, Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors(),
+             HsmTaskExecutor.DEFAULT_INITIAL_CONCURRENCY_PER_MEMBER * group.getMemberCount(), DEFAULT_WRITE_THREADS,
+             DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Create a pipeline with {@value #DEFAULT_LARGE_DOCUMENT_THREADS} open and prepare thread for documents of
+     * {@value #DEFAULT_LARGE_DOCUMENT_BYTES} bytes or more.
+     *
+     * @param group a logged in HSM group
+     * @param profile the signing profile
+     * @param openThreads the number of threads opening documents
+     * @param prepareThreads the number of threads preparing documents for signing
+     * @param signThreads the number of threads signing on the HSM, usually the number of HSM sessions to use
+     * @param writeThreads the number of threads writing signed documents
+     * @param queueCapacity the number of documents each stage may hold waiting
+     */
+    public SigningPipeline(final HsmManagerGroup group, final SigningProfile profile, final int openThreads,
+                           final int prepareThreads, final int signThreads, final int writeThreads,
+                           final int queueCapacity) {
+        this(group, profile, openThreads, prepareThreads, signThreads, writeThreads, queueCapacity,
+             DEFAULT_LARGE_DOCUMENT_THREADS, DEFAULT_LARGE_DOCUMENT_BYTES);
+    }
+
+    /**
+     * Create a pipeline.
+     *
+     * @param group a logged in HSM group
+     * @param profile the signing profile
+     * @param openThreads the number of threads opening small documents
+     * @param prepareThreads the number of threads preparing small documents for signing
+     * @param signThreads the number of threads signing on the HSM, usually the number of HSM sessions to use
+     * @param writeThreads the number of threads writing signed documents
+     * @param queueCapacity the number of documents each stage may hold waiting
+     * @param largeDocumentThreads the number of threads opening, and the number preparing, large documents
+     * @param largeDocumentBytes the size from which a document is large
+     */
+    public SigningPipeline(final HsmManagerGroup group, final SigningProfile profile, final int openThreads,
+                           final int prepareThreads, final int signThreads, final int writeThreads,
+                           final int queueCapacity, final int largeDocumentThreads, final long largeDocumentBytes) {
+        if (largeDocumentBytes <= 0) {
+            throw new IllegalArgumentException("The large document size must be positive");
+        }
+        this.group = group;
+        this.profile = profile;
+        this.largeDocumentBytes = largeDocumentBytes;
+        final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "signing-deadline");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        this.deadlines = timer;
+
+        // Built back to front, so each stage knows the next
+        write = new Stage("write", writeThreads, queueCapacity, null) {
+            @Override
+            void process(final SigningJob job) throws Exception {
+                job.complete(job.signing.finish());
+            }
+        };
+        sign = new Stage("sign", signThreads, queueCapacity, write) {
+            @Override
+            void process(final SigningJob job) throws Exception {
+                signFields(job);
+            }
+        };
+        prepare = new Stage("prepare", prepareThreads, queueCapacity, sign) {
+            @Override
+            void process(final SigningJob job) throws Exception {
+                job.signing.prepare();
+            }
+        };
+        open = new Stage("open", openThreads, queueCapacity, prepare) {
+            @Override
+            void process(final SigningJob job) throws Exception {
+                job.signing.open();
+            }
+        };
+        // Parsed large documents take the most memory, so only one per thread may wait to be prepared
+        prepareLarge = new Stage("prepare-large", largeDocumentThreads, largeDocumentThreads, sign) {
+            @Override
+            void process(final SigningJob job) throws Exception {
+                job.signing.prepare();
+            }
+        };
+        openLarge = new Stage("open-large", largeDocumentThreads, queueCapacity, prepareLarge) {
+            @Override
+            void process(final SigningJob job) throws Exception {
+                job.signing.open();
+            }
+        };
+    }
+
+    /**
+     * Queue a document for signing, waiting while the pipeline is full.
+     *
+     * @param inputUrl the URL to the input file
+     * @param outputUrl the URL to the file to contain the signed document; this must be a file URL
+     * @return a future for the output URL, completed once the signed document is in place
+     * @throws InterruptedException if the thread was interrupted while waiting
+     * @throws RejectedExecutionException if the pipeline has been closed
+     */
+    public Future<URL> submit(final URL inputUrl, final URL outputUrl) throws InterruptedException {
+        return submit(new SigningRequest(inputUrl, outputUrl));
+    }
+
+    /**
+     * Queue a signing request, waiting while the pipeline is full. Documents filled in from the same form template
+     * reuse the analysis of the first one in the prepare stage; see {@link TemplateAnalysisCache}. Large documents
+     * wait only behind other large documents.
+     *
+     * @param request the signing request
+     * @return a future for the output URL, completed once the signed document is in place
+     * @throws InterruptedException if the thread was interrupted while waiting
+     * @throws RejectedExecutionException if the pipeline has been closed
+     */
+    public Future<URL> submit(final SigningRequest request) throws InterruptedException {
+        return submit(request, Deadline.NONE, null);
+    }
+
+    /**
+     * Queue a signing request, waiting while the pipeline is full, and tell a callback about each signed field and the
+     * outcome. The callback is called on the pipeline's threads, whether the document was signed, failed or was
+     * cancelled. It hears of success before the future completes.
+     *
+     * @param request the signing request
+     * @param callback told about each signed field and the outcome
+     * @return a future for the output URL, completed once the signed document is in place
+     * @throws InterruptedException if the thread was interrupted while waiting
+     * @throws RejectedExecutionException if the pipeline has been closed
+     */
+    public Future<URL> submit(final SigningRequest request, final SigningCallback callback)
+                    throws InterruptedException {
+        return submit(request, Deadline.NONE, callback);
+    }
+
+    /**
+     * Queue a signing request with a deadline, waiting while the pipeline is full. The document is dropped if it is
+     * not signed by the deadline.
+     *
+     * @param request the signing request
+     * @param timeout the time the document may take, including time spent waiting to enter the pipeline
+     * @param unit the unit of the timeout
+     * @return a future for the output URL; it fails with a {@link TimeoutException} if the deadline passed first
+     * @throws InterruptedException if the thread was interrupted while waiting
+     * @throws RejectedExecutionException if the pipeline has been closed
+     */
+    public Future<URL> submit(final SigningRequest request, final long timeout, final TimeUnit unit)
+                    throws InterruptedException {
+        return submit(request, Deadline.after(timeout, unit), null);
+    }
+
+    private Future<URL> submit(final SigningRequest request, final Deadline deadline, final SigningCallback callback)
+                    throws InterruptedException {
+        if (closed) {
+            throw new RejectedExecutionException("SigningPipeline has been closed");
+        }
+        final DocumentSigning signing = new DocumentSigning(request, templateCache, resultStore, profile, auditLog);
+        final SigningJob job = new SigningJob(signing, deadline, sequence.getAndIncrement(), callback);
+        if (!(isLarge(request) ? openLarge : open).put(job)) {
+            throw new RejectedExecutionException("SigningPipeline has been closed");
+        }
+        return job;
+    }
+
+    /**
+     * Answer requests that repeat an earlier one from a store of signed documents, instead of signing them again. The
+     * input of every request is then read into memory, and the bytes that are fingerprinted are the bytes parsed.
+     *
+     * @param resultStore the store of signed documents, or null to sign every request
+     */
+    public void setResultStore(final SignedResultStore resultStore) {
+        this.resultStore = resultStore;
+    }
+
+    /**
+     * Record every signature made in an audit log. A signed document is moved into place only once its records are on
+     * disk, whatever the durability window of the log; one whose signatures cannot be recorded fails instead. Documents
+     * answered from the result store make no signature, and are not recorded.
+     *
+     * @param auditLog the audit log, or null to record no signatures
+     */
+    public void setAuditLog(final SignatureAuditLog auditLog) {
+        this.auditLog = auditLog;
+    }
+
+    /**
+     * Get the cache of form template analyses used for requests that name a template.
+     *
+     * @return the template cache
+     */
+    public TemplateAnalysisCache getTemplateCache() {
+        return templateCache;
+    }
+
+    /**
+     * Tell whether a request is for a document large enough to go through the stages for large documents.
+     *
+     * @param request the signing request
+     * @return true if the input is a local file at least as large as the threshold
+     */
+    public boolean isLarge(final SigningRequest request) {
+        return IoUtils.getLocalFileSize(request.getInputUrl()) >= largeDocumentBytes;
+    }
+
+    /**
+     * Stop accepting documents, and stop the worker threads. Documents still in the pipeline are abandoned and their
+     * futures cancelled.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        // From the front, so that each stage is drained after the stages feeding it have stopped; a document handed
+        // on by a stage finishing its last job is cancelled by the stopped stage it is handed to
+        for (final Stage stage : new Stage[] { open, openLarge, prepare, prepareLarge, sign, write }) {
+            stage.stop();
+        }
+        deadlines.shutdownNow();
+    }
+
+    private void signFields(final SigningJob job) throws Exception {
+        if (!job.signing.needsSigning()) {
+            return;
+        }
+        // Prefer a member that has recently used the key
+        final SigningProfile jobProfile = job.signing.getProfile(profile);
+        group.execute(new HsmTask<Void>() {
+            @Override
+            public Void call(final HsmManager hsmManager) throws Exception {
+                // Waiting for a member may have outlasted the caller
+                if (job.deadline.isExpired()) {
+                    throw expired();
+                }
+                if (!job.startSigning()) {
+                    return null;
+                }
+                final ScheduledFuture<?> expiry = scheduleExpiry(job);
+                try {
+                    job.signing.sign(hsmManager, jobProfile, job.callback);
+                } finally {
+                    if (expiry != null) {
+                        expiry.cancel(false);
+                    }
+                    job.finishSigning();
+                }
+                return null;
+            }
+        }, jobProfile.getKeyLabel());
+    }
+
+    /*
+     * Fail the job, interrupting its signing, if its deadline passes while it is being signed. Returns null for a job
+     * without a deadline.
+     */
+    private ScheduledFuture<?> scheduleExpiry(final SigningJob job) {
+        if (job.deadline.getRemaining(TimeUnit.NANOSECONDS) == Long.MAX_VALUE) {
+            return null;
+        }
+        try {
+            return deadlines.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    job.expire();
+                }
+            }, job.deadline.getRemaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        } catch (final RejectedExecutionException e) {
+            // The pipeline is closing, and the job is cancelled by the stopped write stage
+            return null;
+        }
+    }
+
+    private static TimeoutException expired() {
+        return new TimeoutException("The signing deadline passed");
+    }
+
+    /*
+     * A stage of the pipeline: a bounded queue of jobs, ordered by deadline, and the threads working on it.
+     */
+    private abstract class Stage {
+        private final String name;
+        private final BlockingQueue<SigningJob> queue;
+        private final Semaphore room;
+        private final Stage next;
+        private final List<Thread> threads = new ArrayList<Thread>();
+        private boolean stopped;
+
+        private Stage(final String name, final int threadCount, final int queueCapacity, final Stage next) {
+            if (threadCount <= 0) {
+                throw new IllegalArgumentException("Each stage needs at least one thread");
+            }
+            this.name = name;
+            this.queue = new PriorityBlockingQueue<SigningJob>(queueCapacity, new EarliestDeadlineFirst());
+            this.room = new Semaphore(queueCapacity);
+            this.next = next;
+            for (int i = 1; i <= threadCount; i++) {
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        work();
+                    }
+                }, "signing-" + name + "-" + i);
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+        }
+
+        abstract void process(SigningJob job) throws Exception;
+
+        /*
+         * Queue a job, waiting while the stage is full. A stage that has been stopped takes no more jobs.
+         */
+        private boolean put(final SigningJob job) throws InterruptedException {
+            room.acquire();
+            synchronized (this) {
+                if (!stopped) {
+                    queue.add(job);
+                    return true;
+                }
+            }
+            room.release();
+            job.signing.release();
+            return false;
+        }
+
+        private void work() {
+            while (!closed) {
+                final SigningJob job;
+                try {
+                    job = queue.take();
+                } catch (final InterruptedException e) {
+                    return;
+                }
+                room.release();
+                if (job.isDone()) {
+                    // Cancelled by the caller
+                    job.signing.release();
+                    continue;
+                }
+                if (job.deadline.isExpired()) {
+                    job.signing.release();
+                    job.fail(expired());
+                    continue;
+                }
+
+                try {
+                    process(job);
+                } catch (final Exception e) {
+                    if (LOGGER.isLoggable(Level.FINE)) {
+                        LOGGER.fine("Signing " + job.signing.getInputUrl() + " failed in stage " + name + ": "
+                                    + e.getMessage());
+                    }
+                    job.signing.release();
+                    job.fail(e);
+                    continue;
+                }
+
+                if (next != null) {
+                    try {
+                        if (!next.put(job)) {
+                            job.cancel(false);
+                        }
+                    } catch (final InterruptedException e) {
+                        job.signing.release();
+                        job.cancel(false);
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void stop() {
+            synchronized (this) {
+                stopped = true;
+            }
+            for (final Thread thread : threads) {
+                thread.interrupt();
+            }
+            SigningJob job;
+            while ((job = queue.poll()) != null) {
+                room.release();
+                job.signing.release();
+                job.cancel(false);
+            }
+        }
+    }
+
+    /*
+     * A document travelling through the pipeline, and the future for its result, which the stages complete.
+     */
+    private static final class SigningJob implements Future<URL> {
+        private final DocumentSigning signing;
+        private final Deadline deadline;
+        private final long sequence;
+        private final SigningCallback callback;
+        private final CountDownLatch doneSignal = new CountDownLatch(1);
+        // Set once the outcome is decided; the callback may still be hearing of success
+        private boolean settled;
+        private URL result;
+        private Throwable failure;
+        private boolean cancelled;
+        // The thread signing the job on the HSM, to be interrupted if the job is cancelled or expires meanwhile
+        private Thread signingThread;
+        private boolean signingInterrupted;
+
+        private SigningJob(final DocumentSigning signing, final Deadline deadline, final long sequence,
+                           final SigningCallback callback) {
+            this.signing = signing;
+            this.deadline = deadline;
+            this.sequence = sequence;
+            this.callback = callback;
+        }
+
+        /*
+         * The callback hears of success before the future completes, so that a caller who sees the result also sees
+         * whatever the callback recorded.
+         */
+        private void complete(final URL url) {
+            synchronized (this) {
+                if (settled) {
+                    return;
+                }
+                settled = true;
+                result = url;
+            }
+            if (callback != null) {
+                try {
+                    callback.onSuccess(url);
+                } catch (final RuntimeException e) {
+                    if (LOGGER.isLoggable(Level.WARNING)) {
+                        LOGGER.warning("Signing callback failed: " + e.getMessage());
+                    }
+                }
+            }
+            doneSignal.countDown();
+        }
+
+        private void fail(final Throwable cause) {
+            synchronized (this) {
+                if (settled) {
+                    return;
+                }
+                settled = true;
+                failure = cause;
+            }
+            doneSignal.countDown();
+            tellFailure(cause);
+        }
+
+        /*
+         * Fail the job with a TimeoutException, interrupting its signing if it is being signed.
+         */
+        private void expire() {
+            final TimeoutException cause = expired();
+            synchronized (this) {
+                if (settled) {
+                    return;
+                }
+                settled = true;
+                failure = cause;
+                interruptSigning();
+            }
+            doneSignal.countDown();
+            tellFailure(cause);
+        }
+
+        /*
+         * Record that the calling thread is signing the job, unless it has already been settled.
+         */
+        private synchronized boolean startSigning() {
+            if (settled) {
+                return false;
+            }
+            signingThread = Thread.currentThread();
+            return true;
+        }
+
+        /*
+         * Record that signing has stopped, and clear an interrupt meant for it, so that it does not reach the next job
+         * on this thread.
+         */
+        private synchronized void finishSigning() {
+            signingThread = null;
+            if (signingInterrupted) {
+                Thread.interrupted();
+            }
+        }
+
+        /*
+         * Interrupt the thread signing the job, if there is one. Called with the lock held, so that the thread is still
+         * signing the job.
+         */
+        private void interruptSigning() {
+            if (signingThread != null) {
+                signingInterrupted = true;
+                signingThread.interrupt();
+            }
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.concurrent.Future#cancel(boolean)
+         */
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (settled) {
+                    return false;
+                }
+                settled = true;
+                cancelled = true;
+                if (mayInterruptIfRunning) {
+                    interruptSigning();
+                }
+            }
+            doneSignal.countDown();
+            tellFailure(new CancellationException("Signing was cancelled"));
+            return true;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.concurrent.Future#isCancelled()
+         */
+        @Override
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.concurrent.Future#isDone()
+         */
+        @Override
+        public synchronized boolean isDone() {
+            return settled;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.concurrent.Future#get()
+         */
+        @Override
+        public URL get() throws InterruptedException, ExecutionException {
+            doneSignal.await();
+            return outcome();
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+         */
+        @Override
+        public URL get(final long timeout, final TimeUnit unit)
+                        throws InterruptedException, ExecutionException, TimeoutException {
+            if (!doneSignal.await(timeout, unit)) {
+                throw new TimeoutException("Signing has not finished");
+            }
+            return outcome();
+        }
+
+        private synchronized URL outcome() throws ExecutionException {
+            if (cancelled) {
+                throw new CancellationException("Signing was cancelled");
+            }
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return result;
+        }
+
+        private void tellFailure(final Throwable cause) {
+            if (callback == null) {
+                return;
+            }
+            try {
+                callback.onFailure(cause);
+            } catch (final RuntimeException e) {
+                if (LOGGER.isLoggable(Level.WARNING)) {
+                    LOGGER.warning("Signing callback failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /*
+     * Orders jobs by deadline, and jobs with the same deadline, such as those without one, in the order they were
+     * submitted.
+     */
+    private static final class EarliestDeadlineFirst implements Comparator<SigningJob> {
+        @Override
+        public int compare(final SigningJob first, final SigningJob second) {
+            final int order = first.deadline.compareTo(second.deadline);
+            if (order != 0) {
+                return order;
+            }
+            return first.sequence < second.sequence ? -1 : (first.sequence > second.sequence ? 1 : 0);
+        }
+    }
+}
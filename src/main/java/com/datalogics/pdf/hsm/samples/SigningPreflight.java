@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import com.adobe.pdfjt.core.exceptions.PDFException;
+import com.adobe.pdfjt.core.exceptions.PDFSecurityException;
+import com.adobe.pdfjt.pdf.document.PDFDocument;
+import com.adobe.pdfjt.services.digsig.SignatureFieldInterface;
+import com.adobe.pdfjt.services.digsig.SignatureManager;
+
+import com.datalogics.pdf.hsm.samples.util.DocumentUtils;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Inspects documents before any HSM work is done for them, so the HSM only sees documents that will sign.
+ *
+ * <p>
+ * A field is signed if it is unsigned, signing it is permitted and it is visible. Whether signing is permitted takes
+ * the document's permissions and any certification (DocMDP) or field locks into account. A field that may be signed
+ * but is not visible cannot be signed, and refuses the whole document, as does a document whose security handler
+ * cannot be opened, for example because it is encrypted with a password that was not supplied.
+ *
+ * <p>
+ * Inspection only reads the document, so many documents may be inspected in parallel.
+ */
+public final class SigningPreflight {
+    private static final Logger LOGGER = Logger.getLogger(SigningPreflight.class.getName());
+
+    /**
+     * This is a utility class, and won't be instantiated.
+     */
+    private SigningPreflight() {}
+
+    /**
+     * Open a document and inspect it.
+     *
+     * @param inputUrl the URL to the input file
+     * @return the verdict
+     * @throws Exception the document could not be read
+     */
+    public static PreflightVerdict inspect(final URL inputUrl) throws Exception {
+        final PDFDocument pdfDoc;
+        try {
+            pdfDoc = DocumentUtils.openPdfDocument(inputUrl);
+        } catch (final PDFSecurityException e) {
+            return rejected("Document security could not be opened: " + e.getMessage());
+        }
+        try {
+            return inspect(SignatureManager.newInstance(pdfDoc));
+        } finally {
+            try {
+                pdfDoc.close();
+            } catch (final PDFException e) {
+                LOGGER.severe(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Inspect an open document.
+     *
+     * @param sigMgr the signature manager for the document
+     * @return the verdict; its fields belong to the open document
+     * @throws PDFException the document could not be read
+     */
+    public static PreflightVerdict inspect(final SignatureManager sigMgr) throws PDFException {
+        try {
+            if (!sigMgr.hasUnsignedSignatureFields()) {
+                return inspect(new ArrayList<SignatureFieldInterface>().iterator());
+            }
+            return inspect(sigMgr.getDocSignatureFieldIterator());
+        } catch (final PDFSecurityException e) {
+            return rejected("Document security could not be opened: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Inspect an open document for signing a single field. The fields are read only until the named field is found.
+     *
+     * @param sigMgr the signature manager for the document
+     * @param qualifiedName the fully qualified name of the field to sign
+     * @return the verdict; a document without a field of that name is refused
+     * @throws PDFException the document could not be read
+     */
+    public static PreflightVerdict inspect(final SignatureManager sigMgr, final String qualifiedName)
+                    throws PDFException {
+        try {
+            final Iterator<SignatureFieldInterface> iter = sigMgr.getDocSignatureFieldIterator();
+            while (iter.hasNext()) {
+                final SignatureFieldInterface sigField = iter.next();
+                if (qualifiedName.equals(sigField.getQualifiedName())) {
+                    return inspectField(sigField, qualifiedName);
+                }
+            }
+            return inspectField(null, qualifiedName);
+        } catch (final PDFSecurityException e) {
+            return rejected("Document security could not be opened: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Inspect an open document for signing a single field, looking the field up in an index that is kept for other
+     * lookups on the same document.
+     *
+     * @param index the signature field index for the document
+     * @param qualifiedName the fully qualified name of the field to sign
+     * @return the verdict; a document without a field of that name is refused
+     * @throws PDFException the document could not be read
+     */
+    public static PreflightVerdict inspect(final SignatureFieldIndex index, final String qualifiedName)
+                    throws PDFException {
+        try {
+            return inspectField(index.get(qualifiedName), qualifiedName);
+        } catch (final PDFSecurityException e) {
+            return rejected("Document security could not be opened: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Inspect signature fields.
+     *
+     * @param fields the signature fields of a document
+     * @return the verdict
+     * @throws PDFException the fields could not be read
+     */
+    static PreflightVerdict inspect(final Iterator<SignatureFieldInterface> fields) throws PDFException {
+        final List<SignatureFieldInterface> signable = new ArrayList<SignatureFieldInterface>();
+        final List<String> signableNames = new ArrayList<String>();
+        final List<String> reasons = new ArrayList<String>();
+        boolean refused = false;
+
+        while (fields.hasNext()) {
+            final SignatureFieldInterface sigField = fields.next();
+            final String name = sigField.getQualifiedName();
+            if (sigField.isSigned()) {
+                reasons.add("Signature field " + name + " is already signed");
+            } else if (!sigField.isSigningPermitted()) {
+                reasons.add("Signing is not permitted for signature field " + name);
+            } else if (!sigField.isVisible()) {
+                reasons.add("Signature field " + name + " is not visible");
+                refused = true;
+            } else {
+                signable.add(sigField);
+                signableNames.add(name);
+            }
+        }
+
+        final PreflightVerdict.Status status;
+        if (refused) {
+            status = PreflightVerdict.Status.REJECTED;
+        } else if (signable.isEmpty()) {
+            status = PreflightVerdict.Status.NOTHING_TO_SIGN;
+        } else {
+            status = PreflightVerdict.Status.ACCEPTED;
+        }
+        return new PreflightVerdict(status, signable, signableNames, reasons);
+    }
+
+    private static PreflightVerdict inspectField(final SignatureFieldInterface sigField, final String qualifiedName)
+                    throws PDFException {
+        if (sigField == null) {
+            return rejected("There is no signature field named " + qualifiedName);
+        }
+        return inspect(Collections.singletonList(sigField).iterator());
+    }
+
+    private static PreflightVerdict rejected(final String reason) {
+        final List<String> reasons = new ArrayList<String>();
+        reasons.add(reason);
+        return new PreflightVerdict(PreflightVerdict.Status.REJECTED, new ArrayList<SignatureFieldInterface>(),
+                                    new ArrayList<String>(), reasons);
+    }
+}
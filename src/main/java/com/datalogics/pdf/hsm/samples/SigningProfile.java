@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+/**
+ * The settings used to sign a document: which key and certificate on the HSM to use, the digest algorithm, and the
+ * name shown in the signature.
+ *
+ * <p>
+ * The defaults match the evaluation certificate installed on the HSM used to develop these samples; they must be
+ * customized for a particular HSM installation.
+ */
+public class SigningProfile {
+    public static final String DEFAULT_KEY_LABEL = "pdfjt-eval-key";
+    public static final String DEFAULT_CERTIFICATE_LABEL = "pdfjt-eval-cert";
+    public static final String DEFAULT_DIGEST_ALGORITHM = "SHA256";
+    public static final String DEFAULT_SIGNER_NAME = "John Doe";
+
+    private final String keyLabel;
+    private final String certificateLabel;
+    private final String keyPassword;
+    private final String digestAlgorithm;
+    private final String signerName;
+
+    /**
+     * Create a profile that uses the default key, certificate, digest algorithm and signer name.
+     *
+     * @param keyPassword the password protecting the private key
+     */
+    public SigningProfile(final String keyPassword) {
+        this(DEFAULT_KEY_LABEL, DEFAULT_CERTIFICATE_LABEL, keyPassword, DEFAULT_DIGEST_ALGORITHM, DEFAULT_SIGNER_NAME);
+    }
+
+    /**
+     * Create a profile.
+     *
+     * @param keyLabel the label/alias of the private key on the HSM
+     * @param certificateLabel the label/alias of the certificate on the HSM
+     * @param keyPassword the password protecting the private key
+     * @param digestAlgorithm the digest algorithm, for example "SHA256"
+     * @param signerName the name that shows up in the signature as "Digitally signed by &lt;name&gt;", or null to use
+     *        the name on the certificate
+     */
+    public SigningProfile(final String keyLabel, final String certificateLabel, final String keyPassword,
+                          final String digestAlgorithm, final String signerName) {
+        if (keyLabel == null || certificateLabel == null) {
+            throw new IllegalArgumentException("Key and certificate labels must not be null");
+        }
+        if (digestAlgorithm == null) {
+            throw new IllegalArgumentException("Digest algorithm must not be null");
+        }
+        this.keyLabel = keyLabel;
+        this.certificateLabel = certificateLabel;
+        this.keyPassword = keyPassword;
+        this.digestAlgorithm = digestAlgorithm;
+        this.signerName = signerName;
+    }
+
+    /**
+     * Get the label/alias of the private key on the HSM.
+     *
+     * @return the key label
+     */
+    public String getKeyLabel() {
+        return keyLabel;
+    }
+
+    /**
+     * Get the label/alias of the certificate on the HSM.
+     *
+     * @return the certificate label
+     */
+    public String getCertificateLabel() {
+        return certificateLabel;
+    }
+
+    /**
+     * Get the password protecting the private key.
+     *
+     * @return the key password
+     */
+    public String getKeyPassword() {
+        return keyPassword;
+    }
+
+    /**
+     * Get the digest algorithm.
+     *
+     * @return the digest algorithm
+     */
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    /**
+     * Get the name that shows up in the signature.
+     *
+     * @return the signer name, or null to use the name on the certificate
+     */
+    public String getSignerName() {
+        return signerName;
+    }
+}
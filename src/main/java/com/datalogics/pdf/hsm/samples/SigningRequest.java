@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import java.net.URL;
+
+/**
+ * A request to sign a document: where to read it, where to write it, and optionally which field to sign, which form
+ * template the document is an instance of, and which signing profile to use instead of the service's own.
+ */
+public final class SigningRequest {
+    private final URL inputUrl;
+    private final URL outputUrl;
+    private final String qualifiedFieldName;
+    private final String templateKey;
+    private final SigningProfile profile;
+
+    /**
+     * Create a request to sign every field of a document that can be signed.
+     *
+     * @param inputUrl the URL to the input file
+     * @param outputUrl the URL to the file to contain the signed document; this must be a file URL
+     */
+    public SigningRequest(final URL inputUrl, final URL outputUrl) {
+        this(inputUrl, outputUrl, null, null);
+    }
+
+    /**
+     * Create a request.
+     *
+     * @param inputUrl the URL to the input file
+     * @param outputUrl the URL to the file to contain the signed document; this must be a file URL
+     * @param qualifiedFieldName the fully qualified name of the field to sign, or null to sign every field that can be
+     *        signed
+     * @param templateKey identifies the form template the document was filled in from, such as a form number and
+     *        revision, or null if it is not an instance of a known template. Every document with the same key must
+     *        have the same signature fields, permissions and locks.
+     */
+    public SigningRequest(final URL inputUrl, final URL outputUrl, final String qualifiedFieldName,
+                          final String templateKey) {
+        this(inputUrl, outputUrl, qualifiedFieldName, templateKey, null);
+    }
+
+    /**
+     * Create a request signed with its own profile, for example with the key of one tenant of a shared service.
+     *
+     * @param inputUrl the URL to the input file
+     * @param outputUrl the URL to the file to contain the signed document; this must be a file URL
+     * @param qualifiedFieldName the fully qualified name of the field to sign, or null to sign every field that can be
+     *        signed
+     * @param templateKey identifies the form template the document was filled in from, or null
+     * @param profile the signing profile, or null to use the profile of the service signing the document
+     */
+    public SigningRequest(final URL inputUrl, final URL outputUrl, final String qualifiedFieldName,
+                          final String templateKey, final SigningProfile profile) {
+        if (inputUrl == null || outputUrl == null) {
+            throw new IllegalArgumentException("Input and output URLs must not be null");
+        }
+        this.inputUrl = inputUrl;
+        this.outputUrl = outputUrl;
+        this.qualifiedFieldName = qualifiedFieldName;
+        this.templateKey = templateKey;
+        this.profile = profile;
+    }
+
+    /**
+     * Get the URL to the input file.
+     *
+     * @return the input URL
+     */
+    public URL getInputUrl() {
+        return inputUrl;
+    }
+
+    /**
+     * Get the URL to the file to contain the signed document.
+     *
+     * @return the output URL
+     */
+    public URL getOutputUrl() {
+        return outputUrl;
+    }
+
+    /**
+     * Get the fully qualified name of the field to sign.
+     *
+     * @return the field name, or null to sign every field that can be signed
+     */
+    public String getQualifiedFieldName() {
+        return qualifiedFieldName;
+    }
+
+    /**
+     * Get the key of the form template the document was filled in from.
+     *
+     * @return the template key, or null
+     */
+    public String getTemplateKey() {
+        return templateKey;
+    }
+
+    /**
+     * Get the signing profile of this request.
+     *
+     * @return the signing profile, or null to use the profile of the service signing the document
+     */
+    public SigningProfile getProfile() {
+        return profile;
+    }
+}
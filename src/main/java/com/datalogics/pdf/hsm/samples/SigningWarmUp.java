@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import com.datalogics.pdf.security.HsmManager;
+import com.datalogics.pdf.security.HsmManagerGroup;
+import com.datalogics.pdf.security.HsmTask;
+
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the signing path a few times before a process reports ready, so the first real signature is not slowed down by
+ * one-time work.
+ *
+ * <p>
+ * The first signature after startup pays for registering the HSM's security provider, loading the key store, finding
+ * the key and certificate, loading the toolkit's classes, and running unoptimized code. Warming up fetches the key and
+ * certificate named by the signing profile, which also reports a wrong label at startup rather than on the first
+ * request, and then signs the bundled sample document a number of times, discarding the result. Each member of an
+ * {@link HsmManagerGroup} has a session, key handles and signing contexts of its own, so every member of a group is
+ * warmed up in turn.
+ */
+public final class SigningWarmUp {
+    private static final Logger LOGGER = Logger.getLogger(SigningWarmUp.class.getName());
+
+    /**
+     * This is a utility class, and won't be instantiated.
+     */
+    private SigningWarmUp() {}
+
+    /**
+     * Warm up the signing path, on every member in turn if the HsmManager is a group.
+     *
+     * @param hsmManager a connected HsmManager or HsmManagerGroup
+     * @param profile the signing profile that will be used for real documents
+     * @param iterations the number of times to sign the sample document; zero only fetches the key and certificate
+     * @throws IllegalStateException if the HsmManager is not connected
+     * @throws Exception the key or certificate could not be found, or signing failed
+     */
+    public static void warmUp(final HsmManager hsmManager, final SigningProfile profile, final int iterations)
+                    throws Exception {
+        if (iterations < 0) {
+            throw new IllegalArgumentException("The number of iterations must not be negative");
+        }
+        if (hsmManager.getConnectionState() != HsmManager.ConnectionState.CONNECTED) {
+            throw new IllegalStateException("HsmManager is not connected to HSM device.");
+        }
+
+        if (hsmManager instanceof HsmManagerGroup) {
+            ((HsmManagerGroup) hsmManager).executeOnEach(new HsmTask<Void>() {
+                @Override
+                public Void call(final HsmManager member) throws Exception {
+                    warmUpSession(member, profile, iterations);
+                    return null;
+                }
+            });
+        } else {
+            warmUpSession(hsmManager, profile, iterations);
+        }
+    }
+
+    /*
+     * Warm up the signing path of a single HSM session.
+     */
+    private static void warmUpSession(final HsmManager hsmManager, final SigningProfile profile, final int iterations)
+                    throws Exception {
+        final long start = System.nanoTime();
+        HsmSignDocument.createCredentials(hsmManager, profile);
+
+        final URL inputUrl = HsmSignDocument.class.getResource(HsmSignDocument.INPUT_UNSIGNED_PDF_PATH);
+        final Path outputPath = Files.createTempFile("warmup-", ".pdf");
+        long firstNanos = 0;
+        long lastNanos = 0;
+        try {
+            final URL outputUrl = outputPath.toUri().toURL();
+            for (int i = 0; i < iterations; i++) {
+                final long iterationStart = System.nanoTime();
+                HsmSignDocument.signExistingSignatureFields(hsmManager, inputUrl, outputUrl, profile);
+                lastNanos = System.nanoTime() - iterationStart;
+                if (i == 0) {
+                    firstNanos = lastNanos;
+                }
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine("Warm-up signature " + (i + 1) + " took " + TimeUnit.NANOSECONDS.toMillis(lastNanos)
+                                + " ms");
+                }
+            }
+        } finally {
+            Files.deleteIfExists(outputPath);
+        }
+
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("Warm-up finished in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms: "
+                        + iterations + " signatures, first " + TimeUnit.NANOSECONDS.toMillis(firstNanos)
+                        + " ms, last " + TimeUnit.NANOSECONDS.toMillis(lastNanos) + " ms");
+        }
+    }
+}
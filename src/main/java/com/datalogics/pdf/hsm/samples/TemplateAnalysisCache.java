@@ -0,0 +1,212 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import com.adobe.pdfjt.core.exceptions.PDFException;
+import com.adobe.pdfjt.core.exceptions.PDFSecurityException;
+import com.adobe.pdfjt.services.digsig.SignatureFieldInterface;
+import com.adobe.pdfjt.services.digsig.SignatureManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the pre-flight analysis of form templates, so documents filled in from the same template are not analyzed
+ * from scratch each time.
+ *
+ * <p>
+ * Parsed documents cannot be shared between instances, since each instance has its own content, but the outcome of
+ * inspecting a template's signature fields, permissions and locks is the same for every instance. The first instance
+ * of a template is inspected in full with {@link SigningPreflight}; later instances only read their fields until the
+ * fields the analysis chose have been found, and check that each of those is still unsigned, permitted to be signed
+ * and visible. A signature on another field of an instance may lock a chosen field, so the permission is checked on
+ * every instance; this is cheap once the field has been found. An instance lacking one of the chosen fields, or in
+ * which one fails these checks, is inspected in full instead. Analyses are keyed by the caller-supplied template
+ * key of a {@link SigningRequest}, and the least recently used are dropped once the cache is full.
+ *
+ * <p>
+ * Only analyses that accepted the template are kept. Whether there is anything to sign, or a reason to refuse the
+ * document, depends on the state of each instance, for example on which fields its signers have already signed, so
+ * such verdicts are worked out for every instance.
+ */
+public final class TemplateAnalysisCache {
+    public static final int DEFAULT_MAX_TEMPLATES = 64;
+
+    private final Map<String, TemplateAnalysis> analyses;
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * Create a cache holding up to {@value #DEFAULT_MAX_TEMPLATES} analyses.
+     */
+    public TemplateAnalysisCache() {
+        this(DEFAULT_MAX_TEMPLATES);
+    }
+
+    /**
+     * Create a cache.
+     *
+     * @param maxTemplates the largest number of analyses to keep
+     */
+    public TemplateAnalysisCache(final int maxTemplates) {
+        if (maxTemplates <= 0) {
+            throw new IllegalArgumentException("The cache must hold at least one template");
+        }
+        analyses = new LinkedHashMap<String, TemplateAnalysis>(16, 0.75f, true) {
+            private static final long serialVersionUID = -3217962740457069382L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, TemplateAnalysis> eldest) {
+                return size() > maxTemplates;
+            }
+        };
+    }
+
+    /**
+     * Inspect an open document for signing, reusing the analysis of its template if there is one.
+     *
+     * @param request the signing request; requests without a template key are always inspected in full
+     * @param sigMgr the signature manager for the document
+     * @return the verdict; its fields belong to the open document
+     * @throws PDFException the document could not be read
+     */
+    public PreflightVerdict inspect(final SigningRequest request, final SignatureManager sigMgr) throws PDFException {
+        if (request.getTemplateKey() == null) {
+            return inspectInFull(request, sigMgr);
+        }
+
+        // The analysis depends on which fields were asked for, as well as on the template
+        final String key = request.getTemplateKey() + '\u0000'
+                           + (request.getQualifiedFieldName() == null ? "" : request.getQualifiedFieldName());
+        final TemplateAnalysis analysis;
+        synchronized (analyses) {
+            analysis = analyses.get(key);
+            if (analysis == null) {
+                missCount++;
+            } else {
+                hitCount++;
+            }
+        }
+
+        if (analysis != null) {
+            final PreflightVerdict verdict = analysis.apply(sigMgr);
+            if (verdict != null) {
+                return verdict;
+            }
+            // This instance does not match its template; fall back to a full inspection
+        }
+
+        final PreflightVerdict verdict = inspectInFull(request, sigMgr);
+        if (verdict.isAccepted()) {
+            synchronized (analyses) {
+                analyses.put(key, new TemplateAnalysis(verdict));
+            }
+        }
+        return verdict;
+    }
+
+    /**
+     * Get the number of inspections that reused a template analysis.
+     *
+     * @return the hit count
+     */
+    public long getHitCount() {
+        synchronized (analyses) {
+            return hitCount;
+        }
+    }
+
+    /**
+     * Get the number of inspections of a template with no analysis yet.
+     *
+     * @return the miss count
+     */
+    public long getMissCount() {
+        synchronized (analyses) {
+            return missCount;
+        }
+    }
+
+    /**
+     * Get the number of templates analyzed.
+     *
+     * @return the number of cached analyses
+     */
+    public int size() {
+        synchronized (analyses) {
+            return analyses.size();
+        }
+    }
+
+    /**
+     * Forget every analysis, for example after the templates have been revised.
+     */
+    public void clear() {
+        synchronized (analyses) {
+            analyses.clear();
+        }
+    }
+
+    private static PreflightVerdict inspectInFull(final SigningRequest request, final SignatureManager sigMgr)
+                    throws PDFException {
+        if (request.getQualifiedFieldName() == null) {
+            return SigningPreflight.inspect(sigMgr);
+        }
+        return SigningPreflight.inspect(sigMgr, request.getQualifiedFieldName());
+    }
+
+    /*
+     * The outcome of inspecting a template that was accepted, without the fields of any particular instance.
+     */
+    private static final class TemplateAnalysis {
+        private final PreflightVerdict.Status status;
+        private final List<String> signableFieldNames;
+        private final List<String> reasons;
+
+        private TemplateAnalysis(final PreflightVerdict verdict) {
+            status = verdict.getStatus();
+            signableFieldNames = verdict.getSignableFieldNames();
+            reasons = verdict.getReasons();
+        }
+
+        /*
+         * Build the verdict for an instance, reading its fields only until the chosen ones have been found. Return
+         * null if the instance lacks a chosen field, or one has been signed, locked by another signature or hidden, so
+         * that it is inspected in full.
+         */
+        private PreflightVerdict apply(final SignatureManager sigMgr) throws PDFException {
+            final Map<String, SignatureFieldInterface> found = new HashMap<String, SignatureFieldInterface>();
+            try {
+                final Iterator<SignatureFieldInterface> iter = sigMgr.getDocSignatureFieldIterator();
+                while (found.size() < signableFieldNames.size() && iter.hasNext()) {
+                    final SignatureFieldInterface sigField = iter.next();
+                    final String name = sigField.getQualifiedName();
+                    if (signableFieldNames.contains(name)) {
+                        if (sigField.isSigned() || !sigField.isSigningPermitted() || !sigField.isVisible()) {
+                            return null;
+                        }
+                        found.put(name, sigField);
+                    }
+                }
+            } catch (final PDFSecurityException e) {
+                // The full inspection reports why
+                return null;
+            }
+            if (found.size() < signableFieldNames.size()) {
+                return null;
+            }
+
+            final List<SignatureFieldInterface> fields = new ArrayList<SignatureFieldInterface>();
+            for (final String name : signableFieldNames) {
+                fields.add(found.get(name));
+            }
+            return new PreflightVerdict(status, fields, signableFieldNames, reasons);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import com.datalogics.pdf.security.HsmManager;
+import com.datalogics.pdf.security.HsmManagerGroup;
+import com.datalogics.pdf.security.HsmTask;
+import com.datalogics.pdf.security.HsmTaskExecutor;
+
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Signs each document on a thread of its own, with semaphores bounding how many documents are parsed, and how many use
+ * the HSM, at once.
+ *
+ * <p>
+ * Fetching the document, writing the result and waiting on the HSM are all blocking, so a signing job spends most of
+ * its time waiting. Giving each job its own thread keeps the code a plain sequence of blocking calls, and lets the
+ * number of jobs in flight grow with the number of slow inputs instead of with a tuned pool size, up to a cap on the
+ * number of job threads. A job first reads its whole input into memory without holding any permit, so every job can
+ * be fetching at once. It then takes a document permit, which it keeps while the document is parsed, signed and
+ * written, so parsed documents never outnumber those permits. It takes an HSM permit only around the HSM work. A job
+ * waiting for either permit holds its thread and its fetched input, and makes no progress until a permit is released.
+ *
+ * <p>
+ * By default the threads are daemon threads with a small stack, so that thousands of them fit in a modest heap. A JVM
+ * that offers cheaper threads can supply its own {@link ThreadFactory}, for example one creating virtual threads.
+ */
+public final class ThreadPerJobSigningExecutor implements AutoCloseable {
+    public static final long DEFAULT_STACK_SIZE = 256 * 1024;
+    public static final int DEFAULT_MAX_JOBS = 1024;
+    public static final int DEFAULT_OPEN_DOCUMENTS_PER_SESSION = 4;
+
+    private final HsmManagerGroup group;
+    private final SigningProfile profile;
+    private final Semaphore openDocuments;
+    private final int maxOpenDocuments;
+    private final Semaphore hsmSessions;
+    private final int maxHsmSessions;
+    private final int maxJobs;
+    private final ThreadFactory threadFactory;
+    private final AtomicInteger activeJobs = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * Create an executor using {@value HsmTaskExecutor#DEFAULT_INITIAL_CONCURRENCY_PER_MEMBER} HSM sessions per member
+     * of the group, and at most {@value #DEFAULT_MAX_JOBS} daemon threads with a small stack.
+     *
+     * @param group a logged in HSM group
+     * @param profile the signing profile
+     */
+    public ThreadPerJobSigningExecutor(final HsmManagerGroup group, final SigningProfile profile) {
+        this(group, profile, HsmTaskExecutor.DEFAULT_INITIAL_CONCURRENCY_PER_MEMBER * group.getMemberCount(),
+             new SmallStackThreadFactory());
+    }
+
+    /**
+     * Create an executor running at most {@value #DEFAULT_MAX_JOBS} jobs.
+     *
+     * @param group a logged in HSM group
+     * @param profile the signing profile
+     * @param maxHsmSessions the largest number of documents that may use the HSM at once
+     * @param threadFactory creates the thread for each job
+     */
+    public ThreadPerJobSigningExecutor(final HsmManagerGroup group, final SigningProfile profile,
+                                       final int maxHsmSessions, final ThreadFactory threadFactory) {
+        this(group, profile, maxHsmSessions, DEFAULT_MAX_JOBS, threadFactory);
+    }
+
+    /**
+     * Create an executor allowing {@value #DEFAULT_OPEN_DOCUMENTS_PER_SESSION} parsed documents per HSM session, up
+     * to the job limit.
+     *
+     * @param group a logged in HSM group
+     * @param profile the signing profile
+     * @param maxHsmSessions the largest number of documents that may use the HSM at once
+     * @param maxJobs the largest number of jobs, and so of job threads, that may be running or waiting for a permit
+     * @param threadFactory creates the thread for each job
+     */
+    public ThreadPerJobSigningExecutor(final HsmManagerGroup group, final SigningProfile profile,
+                                       final int maxHsmSessions, final int maxJobs,
+                                       final ThreadFactory threadFactory) {
+        this(group, profile, maxHsmSessions,
+             (int) Math.min(maxJobs, (long) maxHsmSessions * DEFAULT_OPEN_DOCUMENTS_PER_SESSION), maxJobs,
+             threadFactory);
+    }
+
+    /**
+     * Create an executor.
+     *
+     * @param group a logged in HSM group
+     * @param profile the signing profile
+     * @param maxHsmSessions the largest number of documents that may use the HSM at once
+     * @param maxOpenDocuments the largest number of documents that may be parsed at once
+     * @param maxJobs the largest number of jobs, and so of job threads, that may be running or waiting for a permit
+     * @param threadFactory creates the thread for each job
+     */
+    public ThreadPerJobSigningExecutor(final HsmManagerGroup group, final SigningProfile profile,
+                                       final int maxHsmSessions, final int maxOpenDocuments, final int maxJobs,
+                                       final ThreadFactory threadFactory) {
+        if (maxHsmSessions <= 0) {
+            throw new IllegalArgumentException("At least one HSM session is needed");
+        }
+        if (maxOpenDocuments < maxHsmSessions) {
+            throw new IllegalArgumentException("The document limit must allow a document for each HSM session");
+        }
+        if (maxJobs < maxOpenDocuments) {
+            throw new IllegalArgumentException("The job limit must allow a job for each open document");
+        }
+        this.group = group;
+        this.profile = profile;
+        this.openDocuments = new Semaphore(maxOpenDocuments, true);
+        this.maxOpenDocuments = maxOpenDocuments;
+        this.hsmSessions = new Semaphore(maxHsmSessions, true);
+        this.maxHsmSessions = maxHsmSessions;
+        this.maxJobs = maxJobs;
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Start signing a document on a new thread.
+     *
+     * <p>
+     * Cancelling the returned future with interruption stops the job at its next blocking call.
+     *
+     * @param inputUrl the URL to the input file
+     * @param outputUrl the URL to the file to contain the signed document; this must be a file URL
+     * @return a future for the output URL, completed once the signed document is in place
+     * @throws RejectedExecutionException if the executor has been closed, or the job limit has been reached
+     */
+    public Future<URL> submit(final URL inputUrl, final URL outputUrl) {
+        if (closed) {
+            throw new RejectedExecutionException("ThreadPerJobSigningExecutor has been closed");
+        }
+        if (!reserveJob()) {
+            throw new RejectedExecutionException("Too many signing jobs are running");
+        }
+        final DocumentSigning signing = new DocumentSigning(inputUrl, outputUrl);
+        final FutureTask<URL> job = new FutureTask<URL>(new Callable<URL>() {
+            @Override
+            public URL call() throws Exception {
+                return sign(signing);
+            }
+        });
+        final Thread thread = threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    job.run();
+                } finally {
+                    activeJobs.decrementAndGet();
+                }
+            }
+        });
+        boolean started = false;
+        try {
+            thread.start();
+            started = true;
+        } finally {
+            if (!started) {
+                activeJobs.decrementAndGet();
+            }
+        }
+        return job;
+    }
+
+    /**
+     * Get the number of jobs that have been started and have not finished.
+     *
+     * @return the number of active jobs
+     */
+    public int getActiveJobCount() {
+        return activeJobs.get();
+    }
+
+    /**
+     * Get the number of documents using the HSM right now.
+     *
+     * @return the number of HSM sessions in use
+     */
+    public int getHsmSessionsInUse() {
+        return maxHsmSessions - hsmSessions.availablePermits();
+    }
+
+    /**
+     * Get the number of documents parsed, and not yet released, right now.
+     *
+     * @return the number of open documents
+     */
+    public int getOpenDocumentCount() {
+        return maxOpenDocuments - openDocuments.availablePermits();
+    }
+
+    /**
+     * Stop accepting documents. Jobs already started run to completion.
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    /*
+     * Count a new job, unless the job limit has been reached.
+     */
+    private boolean reserveJob() {
+        while (true) {
+            final int count = activeJobs.get();
+            if (count >= maxJobs) {
+                return false;
+            }
+            if (activeJobs.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private URL sign(final DocumentSigning signing) throws Exception {
+        // The slow part of a slow input, done without holding a permit
+        signing.fetch();
+
+        openDocuments.acquire();
+        try {
+            signing.open();
+            signing.prepare();
+            if (signing.needsSigning()) {
+                hsmSessions.acquire();
+                try {
+                    group.execute(new HsmTask<Void>() {
+                        @Override
+                        public Void call(final HsmManager hsmManager) throws Exception {
+                            signing.sign(hsmManager, profile);
+                            return null;
+                        }
+                    }, profile.getKeyLabel());
+                } finally {
+                    hsmSessions.release();
+                }
+            }
+            return signing.finish();
+        } finally {
+            signing.release();
+            openDocuments.release();
+        }
+    }
+
+    /*
+     * Creates daemon threads with a small stack.
+     */
+    private static final class SmallStackThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(null, runnable, "signing-job-" + threadCount.incrementAndGet(),
+                                             DEFAULT_STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
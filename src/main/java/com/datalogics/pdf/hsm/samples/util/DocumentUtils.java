@@ -4,6 +4,7 @@
 
 package com.datalogics.pdf.hsm.samples.util;
 
+import com.adobe.internal.io.ByteArrayByteReader;
 import com.adobe.internal.io.ByteReader;
 import com.adobe.internal.io.InputStreamByteReader;
 import com.adobe.pdfjt.core.exceptions.PDFIOException;
@@ -12,6 +13,7 @@ import com.adobe.pdfjt.core.exceptions.PDFSecurityException;
 import com.adobe.pdfjt.pdf.document.PDFDocument;
 import com.adobe.pdfjt.pdf.document.PDFOpenOptions;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
@@ -87,4 +89,40 @@ public final class DocumentUtils {
 
         return document;
     }
+
+    /**
+     * Open a PDF file whose content has already been read, for example to fingerprint it.
+     *
+     * @param content The content of a PDF file
+     * @return A new PDFDocument instance of the input document
+     * @throws PDFInvalidDocumentException a general problem with the PDF document, which may now be in an invalid state
+     * @throws PDFIOException there was an error reading or writing a PDF file or temporary caches
+     * @throws PDFSecurityException some general security issue occurred during the processing of the request
+     * @throws IOException an I/O operation failed or was interrupted
+     */
+    public static PDFDocument openPdfDocument(final byte[] content)
+                    throws IOException, PDFInvalidDocumentException, PDFIOException, PDFSecurityException {
+        return PDFDocument.newInstance(new ByteArrayByteReader(content), PDFOpenOptions.newInstance());
+    }
+
+    /**
+     * Read the whole content of a document.
+     *
+     * @param inputUrl The URL to a PDF file
+     * @return the content of the document
+     * @throws IOException an I/O operation failed or was interrupted
+     */
+    public static byte[] readDocument(final URL inputUrl) throws IOException {
+        final long size = IoUtils.getLocalFileSize(inputUrl);
+        final ByteArrayOutputStream content = new ByteArrayOutputStream(size > 0 && size < Integer.MAX_VALUE
+                                                                                    ? (int) size : 64 * 1024);
+        final byte[] buffer = new byte[64 * 1024];
+        try (InputStream inputStream = inputUrl.openStream()) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
+            }
+        }
+        return content.toByteArray();
+    }
 }
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples.util;
+
+import com.datalogics.pdf.document.FontSetLoader;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Manages a persistent font cache for a production process, so the first signature appearance does not pay for font
+ * discovery.
+ *
+ * <p>
+ * The cache file is named after a fingerprint of the installed fonts (the name, size and modification time of every
+ * file in the font directories) and of the Java version. A process started with the same fonts loads the cache
+ * written by an earlier one; a process started after fonts were added or removed builds a new cache. The old caches
+ * are only deleted once the new one has been written, so a process that stops while building still finds a cache on
+ * its next start. {@link #warmUp} loads or builds the cache before the first document is signed, and
+ * {@link #startWatching} checks the font directories periodically and rebuilds the cache in the background when they
+ * change.
+ *
+ * <p>
+ * This is the production counterpart of the font cache set up for the test suite. Close the manager to stop watching
+ * and restore the font cache properties it replaced.
+ */
+public final class FontCacheManager implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(FontCacheManager.class.getName());
+
+    private static final String CACHE_FILE_PREFIX = "fonts-";
+    private static final String CACHE_FILE_SUFFIX = ".ser";
+
+    private final Path cacheDirectory;
+    private final List<Path> fontDirectories;
+    private final String cacheName;
+    private final String timeout;
+    private String version;
+    private ScheduledExecutorService watcher;
+
+    /**
+     * Create a manager for the fonts in the usual system and Java font directories.
+     *
+     * @param cacheDirectory the directory to keep the font cache in
+     * @throws IOException the cache directory could not be created, or the fonts could not be listed
+     */
+    public FontCacheManager(final Path cacheDirectory) throws IOException {
+        this(cacheDirectory, defaultFontDirectories());
+    }
+
+    /**
+     * Create a manager, and point the font set loader at the cache for the fonts installed now.
+     *
+     * @param cacheDirectory the directory to keep the font cache in
+     * @param fontDirectories the directories whose fonts the cache depends on; missing directories are ignored
+     * @throws IOException the cache directory could not be created, or the fonts could not be listed
+     */
+    public FontCacheManager(final Path cacheDirectory, final List<Path> fontDirectories) throws IOException {
+        Files.createDirectories(cacheDirectory);
+        this.cacheDirectory = cacheDirectory;
+        this.fontDirectories = new ArrayList<Path>(fontDirectories);
+
+        cacheName = System.getProperty(FontSetLoader.FONTSET_CACHE_NAME_PROPERTY);
+        timeout = System.getProperty(FontSetLoader.FONTSET_CACHE_TIMEOUT_PROPERTY);
+
+        // The cache is replaced when the fonts change, so it never needs to expire by age
+        System.setProperty(FontSetLoader.FONTSET_CACHE_TIMEOUT_PROPERTY, "0");
+        useVersion(fingerprintFonts());
+    }
+
+    /**
+     * Get the version of the font cache in use, a fingerprint of the installed fonts.
+     *
+     * @return the cache version
+     */
+    public synchronized String getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the font cache file in use.
+     *
+     * @return the path to the cache file; it does not exist until the cache has been built
+     */
+    public synchronized Path getCacheFile() {
+        return cacheFile(version);
+    }
+
+    /**
+     * Load the font cache, building it first if there is none for the installed fonts. Once the cache is in place, the
+     * caches built for other fonts are deleted.
+     *
+     * <p>
+     * Call this at startup, before reporting the process ready.
+     *
+     * @throws IOException the old caches could not be deleted
+     */
+    public void warmUp() throws IOException {
+        final Path cacheFile = getCacheFile();
+        final long start = System.nanoTime();
+        final boolean existed = Files.exists(cacheFile);
+        FontSetLoader.newInstance().getFontSet();
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info((existed ? "Loaded" : "Built") + " font cache " + cacheFile + " in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }
+        if (Files.exists(cacheFile)) {
+            deleteCachesOtherThan(cacheFile);
+        }
+    }
+
+    /**
+     * Check the font directories periodically, and rebuild the cache on a background thread when the fonts change.
+     *
+     * @param period the time between checks
+     * @param unit the unit of the period
+     */
+    public synchronized void startWatching(final long period, final TimeUnit unit) {
+        if (watcher != null) {
+            throw new IllegalStateException("FontCacheManager is already watching the font directories");
+        }
+        watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "font-cache-watcher");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        watcher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (final Exception e) {
+                    // Keep watching; the cache in use is still valid for the fonts it was built from
+                    if (LOGGER.isLoggable(Level.WARNING)) {
+                        LOGGER.warning("Could not refresh the font cache: " + e.getMessage());
+                    }
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Rebuild the font cache if the fonts have changed since it was built.
+     *
+     * @return true if the cache was rebuilt
+     * @throws IOException the fonts could not be listed
+     */
+    public boolean refresh() throws IOException {
+        final String current = fingerprintFonts();
+        final String previous;
+        synchronized (this) {
+            if (current.equals(version)) {
+                return false;
+            }
+            if (LOGGER.isLoggable(Level.INFO)) {
+                LOGGER.info("Fonts have changed; rebuilding the font cache");
+            }
+            previous = version;
+            useVersion(current);
+        }
+        warmUp();
+
+        if (!Files.exists(cacheFile(current))) {
+            // Keep using the old cache, which is still valid for the fonts it was built from, and try again later
+            synchronized (this) {
+                if (current.equals(version)) {
+                    useVersion(previous);
+                }
+            }
+            if (LOGGER.isLoggable(Level.WARNING)) {
+                LOGGER.warning("The new font cache " + cacheFile(current) + " was not written; keeping the old one");
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.AutoCloseable#close()
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (watcher != null) {
+                watcher.shutdownNow();
+                watcher = null;
+            }
+        }
+        if (cacheName == null) {
+            System.clearProperty(FontSetLoader.FONTSET_CACHE_NAME_PROPERTY);
+        } else {
+            System.setProperty(FontSetLoader.FONTSET_CACHE_NAME_PROPERTY, cacheName);
+        }
+        if (timeout == null) {
+            System.clearProperty(FontSetLoader.FONTSET_CACHE_TIMEOUT_PROPERTY);
+        } else {
+            System.setProperty(FontSetLoader.FONTSET_CACHE_TIMEOUT_PROPERTY, timeout);
+        }
+    }
+
+    /*
+     * Point the font set loader at the cache for a version.
+     */
+    private synchronized void useVersion(final String newVersion) {
+        version = newVersion;
+        System.setProperty(FontSetLoader.FONTSET_CACHE_NAME_PROPERTY, cacheFile(newVersion).toString());
+    }
+
+    /*
+     * Delete the caches built for other fonts, unless the fonts changed again and the given cache is no longer in use.
+     */
+    private synchronized void deleteCachesOtherThan(final Path current) throws IOException {
+        if (!current.equals(cacheFile(version))) {
+            return;
+        }
+        try (DirectoryStream<Path> caches = Files.newDirectoryStream(cacheDirectory, CACHE_FILE_PREFIX + "*"
+                                                                                     + CACHE_FILE_SUFFIX)) {
+            for (final Path cache : caches) {
+                if (!cache.toAbsolutePath().equals(current)) {
+                    Files.deleteIfExists(cache);
+                }
+            }
+        }
+    }
+
+    private Path cacheFile(final String cacheVersion) {
+        return cacheDirectory.resolve(CACHE_FILE_PREFIX + cacheVersion + CACHE_FILE_SUFFIX).toAbsolutePath();
+    }
+
+    /*
+     * Fingerprint the Java version and the name, size and modification time of every font file.
+     */
+    private String fingerprintFonts() throws IOException {
+        final List<String> entries = new ArrayList<String>();
+        entries.add(System.getProperty("java.version"));
+        for (final Path directory : fontDirectories) {
+            if (!Files.isDirectory(directory)) {
+                continue;
+            }
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                    entries.add(file.toAbsolutePath() + "|" + attrs.size() + "|" + attrs.lastModifiedTime()
+                                                                                           .toMillis());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path file, final IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        Collections.sort(entries);
+
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        for (final String entry : entries) {
+            digest.update(entry.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : Arrays.copyOf(digest.digest(), 8)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /*
+     * The directories fonts are usually installed in on Windows, macOS and Linux, and the fonts shipped with Java.
+     */
+    private static List<Path> defaultFontDirectories() {
+        final String home = System.getProperty("user.home");
+        final List<Path> directories = new ArrayList<Path>();
+        directories.add(Paths.get(System.getProperty("java.home"), "lib", "fonts"));
+        final String windows = System.getenv("WINDIR");
+        if (windows != null) {
+            directories.add(Paths.get(windows, "Fonts"));
+        }
+        directories.add(Paths.get("/Library/Fonts"));
+        directories.add(Paths.get("/System/Library/Fonts"));
+        directories.add(Paths.get(home, "Library", "Fonts"));
+        directories.add(Paths.get("/usr/share/fonts"));
+        directories.add(Paths.get("/usr/local/share/fonts"));
+        directories.add(Paths.get(home, ".fonts"));
+        directories.add(Paths.get(home, ".local", "share", "fonts"));
+        return directories;
+    }
+}
@@ -16,6 +16,7 @@ import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.Files;
+import java.nio.file.Paths;
 
 /**
  * A utility class that contains some commonly used I/O methods.
@@ -59,6 +60,27 @@ public final class IoUtils {
         return FilenameUtils.getExtension(stringPath);
     }
 
+    /**
+     * Gets the size of a local file without reading it, for example to schedule work on it by size.
+     *
+     * <p>
+     * Only the size of a local file can be told this way. The size of a resource behind any other kind of URL is
+     * unknown until it has been fetched, and asking a server for it would cost a round trip of its own.
+     *
+     * @param url The URL of the file
+     * @return The size of the file in bytes, or -1 if it is not a local file or its size cannot be read
+     */
+    public static long getLocalFileSize(final URL url) {
+        if (!"file".equals(url.getProtocol())) {
+            return -1;
+        }
+        try {
+            return Files.size(Paths.get(url.toURI()));
+        } catch (final IOException | URISyntaxException | IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
     /**
      * Creates a URL representation of a String.
      *
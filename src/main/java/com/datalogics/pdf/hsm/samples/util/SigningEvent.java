@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Records the duration and outcome of a single stage of the signing pipeline.
+ *
+ * <p>
+ * Events are published as {@link Level#FINE} log records to the logger named after this class, so they can be routed
+ * to a profiling or monitoring handler with the usual {@code logging.properties} configuration. When that logger is
+ * not enabled for {@code FINE}, {@link #begin(String)} returns a shared instance that records nothing, so an
+ * instrumented stage costs one level check.
+ *
+ * <p>
+ * Use an event with try-with-resources, and call {@link #success()} as the last statement of the block; an event that
+ * is closed without being marked successful reports a failure outcome.
+ *
+ * <pre>
+ * try (SigningEvent event = SigningEvent.begin("getKey")) {
+ *     event.setKeyLabel(keyLabel);
+ *     key = hsmManager.getKey(password, keyLabel);
+ *     event.success();
+ * }
+ * </pre>
+ */
+public class SigningEvent implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(SigningEvent.class.getName());
+
+    public static final String OUTCOME_SUCCESS = "success";
+    public static final String OUTCOME_FAILURE = "failure";
+
+    private static final String MESSAGE = "stage={0} outcome={1} durationMicros={2} allocatedBytes={3} "
+                                          + "documentSize={4} fieldName={5} keyLabel={6}";
+
+    // Shared by every thread, so it must never be written to
+    private static final SigningEvent DISABLED = new SigningEvent(null, false);
+
+    private final String stage;
+    private final boolean enabled;
+    private final long startNanos;
+    private final long startAllocatedBytes;
+
+    private long documentSize = -1;
+    private String fieldName;
+    private String keyLabel;
+    private boolean succeeded;
+
+    private SigningEvent(final String stage, final boolean enabled) {
+        this.stage = stage;
+        this.enabled = enabled;
+        this.startAllocatedBytes = enabled ? currentThreadAllocatedBytes() : -1;
+        this.startNanos = enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Begin timing a signing stage.
+     *
+     * @param stage the name of the stage, for example {@code "open"} or {@code "sign"}
+     * @return a new event, or a shared inactive event if signing events are not being logged
+     */
+    public static SigningEvent begin(final String stage) {
+        if (!LOGGER.isLoggable(Level.FINE)) {
+            return DISABLED;
+        }
+        return new SigningEvent(stage, true);
+    }
+
+    /**
+     * Tell whether this event is being recorded.
+     *
+     * <p>
+     * Callers can use this to skip computing attributes that are expensive to obtain.
+     *
+     * @return true if the event will be logged when it is closed
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Set the size in bytes of the document being processed.
+     *
+     * @param documentSize the document size, or -1 if it is not known
+     */
+    public void setDocumentSize(final long documentSize) {
+        if (!enabled) {
+            return;
+        }
+        this.documentSize = documentSize;
+    }
+
+    /**
+     * Set the qualified name of the signature field being processed.
+     *
+     * @param fieldName the fully qualified field name
+     */
+    public void setFieldName(final String fieldName) {
+        if (!enabled) {
+            return;
+        }
+        this.fieldName = fieldName;
+    }
+
+    /**
+     * Set the label of the HSM key or certificate used by this stage.
+     *
+     * @param keyLabel the key or certificate label
+     */
+    public void setKeyLabel(final String keyLabel) {
+        if (!enabled) {
+            return;
+        }
+        this.keyLabel = keyLabel;
+    }
+
+    /**
+     * Mark the stage as having completed successfully.
+     */
+    public void success() {
+        if (!enabled) {
+            return;
+        }
+        succeeded = true;
+    }
+
+    /**
+     * Publish the event.
+     */
+    @Override
+    public void close() {
+        if (!enabled) {
+            return;
+        }
+        final long durationMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        final long endAllocatedBytes = currentThreadAllocatedBytes();
+        long allocatedBytes = -1;
+        if (startAllocatedBytes >= 0 && endAllocatedBytes >= 0) {
+            allocatedBytes = endAllocatedBytes - startAllocatedBytes;
+        }
+
+        final LogRecord record = new LogRecord(Level.FINE, MESSAGE);
+        record.setLoggerName(LOGGER.getName());
+        record.setParameters(new Object[] { stage, succeeded ? OUTCOME_SUCCESS : OUTCOME_FAILURE,
+                                            String.valueOf(durationMicros), String.valueOf(allocatedBytes),
+                                            String.valueOf(documentSize), fieldName, keyLabel });
+        LOGGER.log(record);
+    }
+
+    /*
+     * Bytes allocated so far by the current thread, or -1 where the JVM cannot measure it.
+     */
+    private static long currentThreadAllocatedBytes() {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            final com.sun.management.ThreadMXBean sunThreadBean = (com.sun.management.ThreadMXBean) threadBean;
+            if (sunThreadBean.isThreadAllocatedMemorySupported() && sunThreadBean.isThreadAllocatedMemoryEnabled()) {
+                return sunThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A limit on the number of concurrent HSM operations that adjusts itself to the observed latency.
+ *
+ * <p>
+ * The limit behaves like a semaphore whose number of permits changes over time. Each completed operation reports its
+ * latency, and the limit follows an additive-increase, multiplicative-decrease rule:
+ * <ul>
+ * <li>While latency stays close to the lowest latency recently seen, the device is not queueing work, so the limit
+ * grows by about one permit for every limit's worth of completed operations.</li>
+ * <li>When latency rises well above that baseline, or an operation fails, requests are queueing inside the device, so
+ * the limit shrinks by a fixed ratio, at most once per baseline latency.</li>
+ * </ul>
+ *
+ * <p>
+ * The limit never leaves the range given at construction; the upper bound should be the number of sessions available
+ * to the HSM, so the limit settles near the point where adding concurrency stops adding throughput.
+ */
+public class AdaptiveConcurrencyLimit {
+    public static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+    public static final double DEFAULT_BACKOFF_RATIO = 0.9;
+
+    // The baseline latency is re-learned after this many samples, so that it can follow changes in the device
+    private static final int BASELINE_RESET_SAMPLES = 1000;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition permitAvailable = lock.newCondition();
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double latencyTolerance;
+    private final double backoffRatio;
+
+    private double limit;
+    private int inFlight;
+    private long baselineNanos = Long.MAX_VALUE;
+    private long nextBaselineNanos = Long.MAX_VALUE;
+    private int samplesSinceBaselineReset;
+    private long lastDecreaseNanos;
+
+    /**
+     * Create a limit with the default latency tolerance and backoff ratio.
+     *
+     * @param initialLimit the starting limit
+     * @param minLimit the smallest the limit may become
+     * @param maxLimit the largest the limit may become, usually the number of available HSM sessions
+     */
+    public AdaptiveConcurrencyLimit(final int initialLimit, final int minLimit, final int maxLimit) {
+        this(initialLimit, minLimit, maxLimit, DEFAULT_LATENCY_TOLERANCE, DEFAULT_BACKOFF_RATIO);
+    }
+
+    /**
+     * Create a limit.
+     *
+     * @param initialLimit the starting limit
+     * @param minLimit the smallest the limit may become
+     * @param maxLimit the largest the limit may become, usually the number of available HSM sessions
+     * @param latencyTolerance how many times the baseline latency an operation may take before the limit is reduced
+     * @param backoffRatio the factor by which the limit is multiplied when it is reduced
+     */
+    public AdaptiveConcurrencyLimit(final int initialLimit, final int minLimit, final int maxLimit,
+                                    final double latencyTolerance, final double backoffRatio) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Limits must satisfy 1 <= minLimit <= maxLimit");
+        }
+        if (latencyTolerance <= 1.0) {
+            throw new IllegalArgumentException("Latency tolerance must be greater than 1.0");
+        }
+        if (backoffRatio <= 0.0 || backoffRatio >= 1.0) {
+            throw new IllegalArgumentException("Backoff ratio must be between 0.0 and 1.0");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyTolerance = latencyTolerance;
+        this.backoffRatio = backoffRatio;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Wait for a permit to start an operation.
+     *
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= getLimitLocked()) {
+                permitAvailable.await();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait up to a given time for a permit to start an operation.
+     *
+     * @param timeout the longest time to wait
+     * @param unit the unit of the timeout
+     * @return true if a permit was acquired
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public boolean tryAcquire(final long timeout, final TimeUnit unit) throws InterruptedException {
+        long remainingNanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= getLimitLocked()) {
+                if (remainingNanos <= 0) {
+                    return false;
+                }
+                remainingNanos = permitAvailable.awaitNanos(remainingNanos);
+            }
+            inFlight++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return a permit without reporting a sample, for example when the operation never started.
+     */
+    public void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            permitAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return a permit and report how the operation went.
+     *
+     * @param latencyNanos the latency of the operation in nanoseconds
+     * @param success false if the operation failed
+     */
+    public void release(final long latencyNanos, final boolean success) {
+        lock.lock();
+        try {
+            // The permit is counted until the limit is updated, so a saturated limit is seen as saturated
+            update(latencyNanos, success);
+            inFlight--;
+            permitAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the current limit.
+     *
+     * @return the number of operations that may currently run at once
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return getLimitLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of operations currently holding a permit.
+     *
+     * @return the number of operations in flight
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the largest the limit may become.
+     *
+     * @return the maximum limit
+     */
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    private int getLimitLocked() {
+        return (int) limit;
+    }
+
+    private void update(final long latencyNanos, final boolean success) {
+        final long now = System.nanoTime();
+        updateBaseline(latencyNanos, success);
+
+        if (!success || latencyNanos > baselineNanos * latencyTolerance) {
+            // Reduce at most once per baseline latency, so one burst of slow operations is one signal
+            final long decreaseIntervalNanos = baselineNanos == Long.MAX_VALUE ? 0 : baselineNanos;
+            if (lastDecreaseNanos == 0 || now - lastDecreaseNanos >= decreaseIntervalNanos) {
+                limit = Math.max(minLimit, limit * backoffRatio);
+                lastDecreaseNanos = now;
+            }
+        } else if (inFlight >= getLimitLocked()) {
+            // Only grow when the limit is actually holding work back
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    private void updateBaseline(final long latencyNanos, final boolean success) {
+        if (!success) {
+            return;
+        }
+        baselineNanos = Math.min(baselineNanos, latencyNanos);
+        nextBaselineNanos = Math.min(nextBaselineNanos, latencyNanos);
+        if (++samplesSinceBaselineReset >= BASELINE_RESET_SAMPLES) {
+            baselineNanos = nextBaselineNanos;
+            nextBaselineNanos = Long.MAX_VALUE;
+            samplesSinceBaselineReset = 0;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache holding at most a fixed number of entries, dropping the least recently used when full, and counting hits,
+ * misses and evictions.
+ *
+ * <p>
+ * The cache is split into segments, each with its own lock and an equal share of the capacity, so that threads
+ * looking up different keys rarely wait for each other. Each segment drops its own least recently used entry, so the
+ * cache as a whole approximates a single LRU order. Frequently used entries stay resident however many others pass
+ * through.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public final class BoundedLruCache<K, V> {
+    private static final int SEGMENT_COUNT = 16;
+
+    private final List<Segment> segments;
+    private final int maxSize;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Create a cache.
+     *
+     * @param maxSize the largest number of entries to hold
+     */
+    BoundedLruCache(final int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("The cache must hold at least one entry");
+        }
+        this.maxSize = maxSize;
+        // Small caches get fewer segments, so that every segment can hold at least one entry
+        final int segmentCount = Math.min(SEGMENT_COUNT, maxSize);
+        segments = new ArrayList<Segment>(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            // Share out the capacity so the segments add up to exactly maxSize
+            segments.add(new Segment(maxSize / segmentCount + (i < maxSize % segmentCount ? 1 : 0)));
+        }
+    }
+
+    /**
+     * Look up a value, marking it as recently used.
+     *
+     * @param key the key
+     * @return the value, or null if it is not in the cache
+     */
+    V get(final K key) {
+        final Segment segment = segmentFor(key);
+        final V value;
+        synchronized (segment) {
+            value = segment.get(key);
+        }
+        if (value == null) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+        return value;
+    }
+
+    /**
+     * Add a value, dropping the least recently used entry of its segment if the segment is full.
+     *
+     * @param key the key
+     * @param value the value; must not be null
+     */
+    void put(final K key, final V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Cached values must not be null");
+        }
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, value);
+        }
+    }
+
+    /**
+     * Drop every entry. The counts are kept.
+     */
+    void clear() {
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Get the number of entries in the cache.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        int size = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the largest number of entries the cache holds.
+     *
+     * @return the capacity
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Get the number of lookups that found their entry.
+     *
+     * @return the hit count
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Get the number of lookups that did not find their entry.
+     *
+     * @return the miss count
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Get the number of entries dropped to make room for others.
+     *
+     * @return the eviction count
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    private Segment segmentFor(final K key) {
+        // Spread the hash bits, so keys differing only in their high bits land in different segments
+        final int hash = key.hashCode();
+        final int spread = hash ^ (hash >>> 16);
+        return segments.get((spread & Integer.MAX_VALUE) % segments.size());
+    }
+
+    /*
+     * One segment: an access-ordered map that drops its eldest entry when full.
+     */
+    private final class Segment extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = -6064924935818592706L;
+
+        private final int capacity;
+
+        private Segment(final int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+            if (size() > capacity) {
+                evictionCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stops sending work to an HSM that is failing or badly overloaded, so callers fail fast instead of piling up.
+ *
+ * <p>
+ * The breaker watches the outcome of the most recent calls. A call counts against the HSM if it failed, or if it took
+ * longer than the slow call threshold. The breaker has three states:
+ * <ul>
+ * <li>{@link State#CLOSED}: calls are allowed. When the share of bad calls in the window reaches the failure rate
+ * threshold, the breaker opens.</li>
+ * <li>{@link State#OPEN}: calls are refused until the open duration has passed.</li>
+ * <li>{@link State#HALF_OPEN}: one trial call is allowed. If it goes well the breaker closes, otherwise it opens
+ * again.</li>
+ * </ul>
+ */
+public class CircuitBreaker {
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+
+    public static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+    public static final long DEFAULT_SLOW_CALL_THRESHOLD_MILLIS = 10000;
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+    public static final int DEFAULT_MINIMUM_CALLS = 10;
+    public static final long DEFAULT_OPEN_DURATION_MILLIS = 5000;
+
+    /**
+     * The state of a circuit breaker.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final double failureRateThreshold;
+    private final long slowCallThresholdNanos;
+    private final int minimumCalls;
+    private final long openDurationNanos;
+
+    // Ring of recent outcomes; true marks a call that counted against the HSM
+    private final boolean[] window;
+    private int next;
+    private int count;
+    private int badCount;
+
+    private State state = State.CLOSED;
+    private long openedAtNanos;
+    private boolean trialInFlight;
+    private long trialStartedAtNanos;
+
+    /**
+     * Create a breaker with the default thresholds.
+     */
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_RATE_THRESHOLD, DEFAULT_SLOW_CALL_THRESHOLD_MILLIS, DEFAULT_WINDOW_SIZE,
+             DEFAULT_MINIMUM_CALLS, DEFAULT_OPEN_DURATION_MILLIS);
+    }
+
+    /**
+     * Create a breaker.
+     *
+     * @param failureRateThreshold the share of failed or slow calls, between 0.0 and 1.0, that opens the breaker
+     * @param slowCallThresholdMillis calls taking longer than this count as failures
+     * @param windowSize the number of recent calls considered
+     * @param minimumCalls the number of calls needed in the window before the breaker may open
+     * @param openDurationMillis how long the breaker refuses calls before allowing a trial call
+     */
+    public CircuitBreaker(final double failureRateThreshold, final long slowCallThresholdMillis, final int windowSize,
+                          final int minimumCalls, final long openDurationMillis) {
+        if (failureRateThreshold <= 0.0 || failureRateThreshold > 1.0) {
+            throw new IllegalArgumentException("Failure rate threshold must be between 0.0 and 1.0");
+        }
+        if (windowSize <= 0 || minimumCalls <= 0 || minimumCalls > windowSize) {
+            throw new IllegalArgumentException("Window size and minimum calls must satisfy 1 <= minimumCalls <= "
+                                               + "windowSize");
+        }
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowCallThresholdMillis);
+        this.window = new boolean[windowSize];
+        this.minimumCalls = minimumCalls;
+        this.openDurationNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMillis);
+    }
+
+    /**
+     * Ask whether a call may go ahead. In the half-open state, this grants the single trial call.
+     *
+     * @return true if the call may go ahead
+     */
+    public synchronized boolean allowCall() {
+        final long now = System.nanoTime();
+        if (state == State.OPEN && now - openedAtNanos >= openDurationNanos) {
+            transition(State.HALF_OPEN);
+        }
+        switch (state) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                // A trial that never reported back, for example because it was cancelled, does not block forever
+                if (trialInFlight && now - trialStartedAtNanos < openDurationNanos) {
+                    return false;
+                }
+                trialInFlight = true;
+                trialStartedAtNanos = now;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Wait while the trial call of the half-open state is in flight, so that calls queued behind it are held until it
+     * has reported back. A trial that never reports back is waited for at most the open duration.
+     *
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public synchronized void awaitTrial() throws InterruptedException {
+        while (state == State.HALF_OPEN && trialInFlight) {
+            final long remainingNanos = openDurationNanos - (System.nanoTime() - trialStartedAtNanos);
+            if (remainingNanos <= 0) {
+                return;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+        }
+    }
+
+    /**
+     * Report a call that completed.
+     *
+     * @param latencyNanos the latency of the call in nanoseconds
+     */
+    public void onSuccess(final long latencyNanos) {
+        record(latencyNanos > slowCallThresholdNanos);
+    }
+
+    /**
+     * Report a call that failed.
+     */
+    public void onFailure() {
+        record(true);
+    }
+
+    /**
+     * Get the state of the breaker.
+     *
+     * @return the state
+     */
+    public synchronized State getState() {
+        if (state == State.OPEN && System.nanoTime() - openedAtNanos >= openDurationNanos) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * Get how long a refused caller should wait before trying again.
+     *
+     * @return the time until a trial call will be allowed in milliseconds, or 0 if calls are allowed now
+     */
+    public synchronized long getRetryAfterMillis() {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        final long remainingNanos = openDurationNanos - (System.nanoTime() - openedAtNanos);
+        return remainingNanos <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(remainingNanos) + 1;
+    }
+
+    private synchronized void record(final boolean bad) {
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+            notifyAll();
+            if (bad) {
+                open();
+            } else {
+                resetWindow();
+                transition(State.CLOSED);
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            // A call admitted before the breaker opened
+            return;
+        }
+
+        if (count == window.length) {
+            if (window[next]) {
+                badCount--;
+            }
+        } else {
+            count++;
+        }
+        window[next] = bad;
+        if (bad) {
+            badCount++;
+        }
+        next = (next + 1) % window.length;
+
+        if (count >= minimumCalls && badCount >= failureRateThreshold * count) {
+            open();
+        }
+    }
+
+    private void open() {
+        openedAtNanos = System.nanoTime();
+        resetWindow();
+        transition(State.OPEN);
+    }
+
+    private void resetWindow() {
+        next = 0;
+        count = 0;
+        badCount = 0;
+    }
+
+    private void transition(final State newState) {
+        if (state != newState && LOGGER.isLoggable(Level.WARNING)) {
+            LOGGER.warning("HSM circuit breaker " + state + " -> " + newState);
+        }
+        state = newState;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The point in time by which a job must be finished, measured on {@link System#nanoTime()}.
+ *
+ * <p>
+ * Deadlines order earliest first, with jobs that have no deadline after every job that has one, so a queue ordered by
+ * deadline serves the most urgent job first. A job whose deadline has passed before it reaches the HSM is dropped
+ * instead of spending a signature on a caller that has already given up.
+ */
+public final class Deadline implements Comparable<Deadline> {
+    /**
+     * The deadline of a job that may take as long as it needs.
+     */
+    public static final Deadline NONE = new Deadline(0, false);
+
+    private final long nanos;
+    private final boolean bounded;
+
+    private Deadline(final long nanos, final boolean bounded) {
+        this.nanos = nanos;
+        this.bounded = bounded;
+    }
+
+    /**
+     * Get the deadline the given time from now.
+     *
+     * @param timeout the time the job may take
+     * @param unit the unit of the timeout
+     * @return the deadline
+     */
+    public static Deadline after(final long timeout, final TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative");
+        }
+        return new Deadline(System.nanoTime() + unit.toNanos(timeout), true);
+    }
+
+    /**
+     * Tell whether the deadline has passed.
+     *
+     * @return true if the deadline has passed; never true for {@link #NONE}
+     */
+    public boolean isExpired() {
+        return bounded && System.nanoTime() - nanos >= 0;
+    }
+
+    /**
+     * Get the time left until the deadline.
+     *
+     * @param unit the unit of the result
+     * @return the time left, zero if the deadline has passed, or {@link Long#MAX_VALUE} for {@link #NONE}
+     */
+    public long getRemaining(final TimeUnit unit) {
+        if (!bounded) {
+            return Long.MAX_VALUE;
+        }
+        return unit.convert(Math.max(0, nanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Comparable#compareTo(java.lang.Object)
+     */
+    @Override
+    public int compareTo(final Deadline other) {
+        if (bounded != other.bounded) {
+            return bounded ? -1 : 1;
+        }
+        if (!bounded) {
+            return 0;
+        }
+        // Compare the difference, as System.nanoTime may wrap
+        final long difference = nanos - other.nanos;
+        return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(final Object other) {
+        if (!(other instanceof Deadline)) {
+            return false;
+        }
+        final Deadline deadline = (Deadline) other;
+        return bounded == deadline.bounded && nanos == deadline.nanos;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return bounded ? (int) (nanos ^ (nanos >>> 32)) : 0;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+/**
+ * Settings for hedged requests in an {@link HsmManagerGroup}.
+ *
+ * <p>
+ * A hedged request is sent to one member of the group; if it has not completed by the time a configured percentile of
+ * recent latencies has elapsed, a duplicate is sent to another member and whichever finishes first wins. Only the slow
+ * tail of requests is duplicated, and the number of duplicates is further capped at a fraction of all requests, so the
+ * extra load on the HSMs stays small.
+ */
+public class HedgingPolicy {
+    public static final double DEFAULT_PERCENTILE = 0.95;
+    public static final double DEFAULT_MAX_HEDGE_RATIO = 0.05;
+    public static final int DEFAULT_MIN_SAMPLES = 100;
+    public static final long DEFAULT_MIN_DELAY_MILLIS = 1;
+
+    private final double percentile;
+    private final double maxHedgeRatio;
+    private final int minSamples;
+    private final long minDelayMillis;
+
+    /**
+     * Create a policy that hedges requests slower than the 95th percentile, duplicating at most 5% of requests.
+     */
+    public HedgingPolicy() {
+        this(DEFAULT_PERCENTILE, DEFAULT_MAX_HEDGE_RATIO, DEFAULT_MIN_SAMPLES, DEFAULT_MIN_DELAY_MILLIS);
+    }
+
+    /**
+     * Create a policy.
+     *
+     * @param percentile the latency percentile after which a request is hedged, between 0.0 and 1.0
+     * @param maxHedgeRatio the largest fraction of requests that may be duplicated
+     * @param minSamples the number of latency samples needed before any request is hedged
+     * @param minDelayMillis the shortest time to wait before hedging a request
+     */
+    public HedgingPolicy(final double percentile, final double maxHedgeRatio, final int minSamples,
+                         final long minDelayMillis) {
+        if (percentile <= 0.0 || percentile >= 1.0) {
+            throw new IllegalArgumentException("Percentile must be between 0.0 and 1.0");
+        }
+        if (maxHedgeRatio < 0.0 || maxHedgeRatio > 1.0) {
+            throw new IllegalArgumentException("Maximum hedge ratio must be between 0.0 and 1.0");
+        }
+        this.percentile = percentile;
+        this.maxHedgeRatio = maxHedgeRatio;
+        this.minSamples = minSamples;
+        this.minDelayMillis = minDelayMillis;
+    }
+
+    /**
+     * Get the latency percentile after which a request is hedged.
+     *
+     * @return the percentile, between 0.0 and 1.0
+     */
+    public double getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * Get the largest fraction of requests that may be duplicated.
+     *
+     * @return the maximum hedge ratio
+     */
+    public double getMaxHedgeRatio() {
+        return maxHedgeRatio;
+    }
+
+    /**
+     * Get the number of latency samples needed before any request is hedged.
+     *
+     * @return the minimum number of samples
+     */
+    public int getMinSamples() {
+        return minSamples;
+    }
+
+    /**
+     * Get the shortest time to wait before hedging a request.
+     *
+     * @return the minimum delay in milliseconds
+     */
+    public long getMinDelayMillis() {
+        return minDelayMillis;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class represents login parameters that are used to login into a group of HSM partitions or appliances that hold
+ * the same key material.
+ *
+ * <p>
+ * Each member of the group has its own login parameters, for example a {@link LunaHsmLoginParameters} naming the
+ * partition to use. The group itself has no password.
+ */
+public class HsmGroupLoginParameters extends HsmLoginParameters {
+
+    private final List<HsmLoginParameters> memberParameters;
+
+    /**
+     * Instantiate the login parameters for logging in to a group of HSM partitions.
+     *
+     * @param memberParameters the login parameters of each member of the group
+     */
+    public HsmGroupLoginParameters(final List<? extends HsmLoginParameters> memberParameters) {
+        super(null);
+        this.memberParameters = Collections.unmodifiableList(new ArrayList<HsmLoginParameters>(memberParameters));
+    }
+
+    /**
+     * Get the login parameters of each member of the group.
+     *
+     * @return an unmodifiable list of login parameters
+     */
+    public List<HsmLoginParameters> getMemberParameters() {
+        return memberParameters;
+    }
+}
@@ -13,8 +13,10 @@ import java.security.cert.Certificate;
  *
  * <p>
  * Note: Once an instance of HsmManager goes into a
- * {@link com.datalogics.pdf.security.HsmManager.ConnectionState#DISCONNECTED} state during logout from the HSM you will
- * need to create a new instance of this class if you need to login to the HSM device again.
+ * {@link com.datalogics.pdf.security.HsmManager.ConnectionState#DISCONNECTED} state during logout from the HSM, or
+ * because the device dropped the session, you will need to create a new instance of this class if you need to login to
+ * the HSM device again. {@link HsmManagerFactory#newReconnectingInstance(String)} provides an HsmManager that does this
+ * automatically.
  *
  */
 public interface HsmManager {
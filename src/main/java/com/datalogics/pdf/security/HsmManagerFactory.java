@@ -4,6 +4,7 @@
 
 package com.datalogics.pdf.security;
 
+import java.util.concurrent.Callable;
 
 /**
  * Used to get instances of a HsmManager object.
@@ -33,4 +34,59 @@ public final class HsmManagerFactory {
         }
         throw new IllegalArgumentException("Must use a valid HsmType");
     }
+
+    /**
+     * Gets a new instance of a HsmManager that logs in again automatically when its session with the HSM device is
+     * lost.
+     *
+     * @param hsmType name of the HSM device you are requesting.
+     * @return HsmManager
+     * @see ReconnectingHsmManager
+     */
+    public static HsmManager newReconnectingInstance(final String hsmType) {
+        if (hsmType.equals(LUNA_HSM_TYPE)) {
+            return new ReconnectingHsmManager(hsmType);
+        }
+        throw new IllegalArgumentException("Must use a valid HsmType");
+    }
+
+    /**
+     * Gets a new instance of a HsmManager that logs into several HSM partitions or appliances holding the same key
+     * material, and spreads work across them. Log it in with {@link HsmGroupLoginParameters}.
+     *
+     * @param hsmType name of the HSM device you are requesting.
+     * @return HsmManagerGroup
+     * @see HsmManagerGroup
+     */
+    public static HsmManagerGroup newGroupInstance(final String hsmType) {
+        if (hsmType.equals(LUNA_HSM_TYPE)) {
+            return newGroupInstance(new Callable<HsmManager>() {
+                @Override
+                public HsmManager call() {
+                    return newInstance(hsmType);
+                }
+            }, ReconnectingHsmManager.DEFAULT_MAX_LOGIN_ATTEMPTS);
+        }
+        throw new IllegalArgumentException("Must use a valid HsmType");
+    }
+
+    /**
+     * Gets a new group whose members are reconnecting HsmManagers over sessions made by the given source. This is how
+     * {@link #newGroupInstance(String)} builds its groups; tests use it with fake sessions.
+     *
+     * @param sessionSource creates a new, unconnected HsmManager for each session of each member
+     * @param maxLoginAttempts the number of login attempts a member makes to reconnect before giving up
+     * @return HsmManagerGroup
+     */
+    static HsmManagerGroup newGroupInstance(final Callable<HsmManager> sessionSource, final int maxLoginAttempts) {
+        return new HsmManagerGroup(new Callable<HsmManager>() {
+            @Override
+            public HsmManager call() {
+                return new ReconnectingHsmManager(sessionSource, ReconnectingHsmManager.DEFAULT_PROBE_INTERVAL_MILLIS,
+                                                  ReconnectingHsmManager.DEFAULT_INITIAL_BACKOFF_MILLIS,
+                                                  ReconnectingHsmManager.DEFAULT_MAX_BACKOFF_MILLIS,
+                                                  maxLoginAttempts);
+            }
+        }, HsmManagerGroup.DEFAULT_FAILURE_COOL_DOWN_MILLIS);
+    }
 }
@@ -0,0 +1,793 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+import java.security.Key;
+import java.security.ProviderException;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An HsmManager that logs into several HSM partitions or appliances holding the same key material, and distributes
+ * work across them.
+ *
+ * <p>
+ * Work is sent to the healthy member with the fewest outstanding requests. A member on which a request fails because
+ * the member has lost its HSM is taken out of rotation for a cool-down period, and the request is retried once on
+ * another member, so losing one appliance does not fail requests while the others are available. The member has lost
+ * its HSM if the failure is, or was caused by, a {@link ProviderException} from the device or an
+ * {@link HsmUnavailableException} from a member that gave up reconnecting, or if the member no longer reports itself
+ * as connected. Any other failure, for example because of a wrong password or a missing key, fails without a retry.
+ *
+ * <p>
+ * A key obtained from one member can only be used with that member's session. Work that obtains a key and then signs
+ * with it should therefore be run with {@link #execute(HsmTask)}, or inside a {@link Lease}, so that the whole signing
+ * operation is counted against, and stays on, a single member. The {@link HsmManager} methods of the group are
+ * provided for compatibility, and each runs on whichever member is least loaded at the time of the call.
+ *
+ * <p>
+ * Tasks run with {@link #execute(HsmTask, String)} name the key they sign with. Each member remembers the keys it has
+ * used recently, and a task goes to a member that already holds a handle for its key, unless that member is noticeably
+ * busier than the least loaded one. With many keys in use, one per tenant for example, this saves looking keys up and
+ * setting up signing contexts on members that have not used them.
+ *
+ * <p>
+ * Tasks run with {@link #executeHedged(HsmTask, HedgingPolicy)} are duplicated on a second member when they are slower
+ * than most recent tasks, to cut the latency tail caused by one slow appliance.
+ */
+public final class HsmManagerGroup implements HsmManager {
+    private static final Logger LOGGER = Logger.getLogger(HsmManagerGroup.class.getName());
+
+    public static final long DEFAULT_FAILURE_COOL_DOWN_MILLIS = 5000;
+
+    // The most hedges that can be saved up by a run of fast requests
+    private static final double MAX_HEDGE_CREDIT = 10.0;
+
+    // How many more outstanding requests a member that recently used a key may have than the least loaded member, and
+    // still be given work for that key
+    private static final int AFFINITY_SLACK = 2;
+
+    // The number of key labels each member remembers using
+    private static final int MAX_RECENT_KEY_LABELS = 16;
+
+    private final Callable<HsmManager> memberSource;
+    private final long failureCoolDownNanos;
+    private final AtomicInteger nextStart = new AtomicInteger();
+    private final LatencyTracker latencies = new LatencyTracker();
+    private final AtomicLong hedgedRequestCount = new AtomicLong();
+    private final AtomicLong affinityHitCount = new AtomicLong();
+    private double hedgeCredit;
+    private ExecutorService hedgeExecutor;
+
+    private volatile List<Member> members = Collections.emptyList();
+    private volatile ConnectionState state = ConnectionState.READY;
+
+    /**
+     * Create a group of HsmManagers made by the given source, for HSM devices that {@link HsmManagerFactory} does not
+     * know about.
+     *
+     * @param memberSource creates a new, unconnected HsmManager for each member of the group
+     * @param failureCoolDownMillis how long a member on which a request failed is kept out of rotation
+     */
+    public HsmManagerGroup(final Callable<HsmManager> memberSource, final long failureCoolDownMillis) {
+        this.memberSource = memberSource;
+        this.failureCoolDownNanos = TimeUnit.MILLISECONDS.toNanos(failureCoolDownMillis);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.datalogics.pdf.security.HsmManager#hsmLogin(com.datalogics.pdf.security.HsmLoginParameters)
+     */
+    @Override
+    public synchronized void hsmLogin(final HsmLoginParameters parms) {
+        if (!(parms instanceof HsmGroupLoginParameters)) {
+            throw new IllegalArgumentException("Must pass a instanceof HsmGroupLoginParameters "
+                                               + "to hsmLogin for HsmManagerGroup");
+        }
+        if (!state.equals(ConnectionState.READY)) {
+            throw new IllegalStateException("HsmManager not in a ready to login state, "
+                                            + "create a new HsmManager instance");
+        }
+
+        final List<HsmLoginParameters> memberParameters = ((HsmGroupLoginParameters) parms).getMemberParameters();
+        if (memberParameters.isEmpty()) {
+            throw new IllegalArgumentException("HSM group must have at least one member");
+        }
+
+        // Log into the members in parallel, so the group is up in the time of its slowest login rather than the sum.
+        // Luna members that log into the same slot take turns themselves.
+        final ExecutorService loginExecutor = Executors.newFixedThreadPool(memberParameters.size(),
+                                                                           new NamedDaemonThreadFactory("hsm-login-"));
+        final List<Future<HsmManager>> logins = new ArrayList<Future<HsmManager>>();
+        for (final HsmLoginParameters memberParms : memberParameters) {
+            // Members are created here, since the member source need not be thread safe; only logins run in parallel
+            final HsmManager manager = newMember();
+            logins.add(loginExecutor.submit(new Callable<HsmManager>() {
+                @Override
+                public HsmManager call() {
+                    manager.hsmLogin(memberParms);
+                    return manager;
+                }
+            }));
+        }
+        loginExecutor.shutdown();
+
+        final List<Member> loggedIn = new ArrayList<Member>();
+        RuntimeException lastFailure = null;
+        boolean interrupted = false;
+        for (final Future<HsmManager> login : logins) {
+            try {
+                // Wait for every login, even when interrupted, so no member is left logged in behind the group's back
+                HsmManager manager = null;
+                while (manager == null) {
+                    try {
+                        manager = login.get();
+                    } catch (final InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                loggedIn.add(new Member(manager));
+            } catch (final ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (!(cause instanceof RuntimeException)) {
+                    throw new IllegalStateException("Could not log into HSM group member", cause);
+                }
+                // The group can run without this member
+                lastFailure = (RuntimeException) cause;
+                if (LOGGER.isLoggable(Level.WARNING)) {
+                    LOGGER.warning("Could not log into HSM group member: " + cause.getMessage());
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (loggedIn.isEmpty()) {
+            throw new IllegalStateException("Could not log into any member of the HSM group", lastFailure);
+        }
+        members = Collections.unmodifiableList(loggedIn);
+        state = ConnectionState.CONNECTED;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.datalogics.pdf.security.HsmManager#hsmLogout()
+     */
+    @Override
+    public synchronized void hsmLogout() {
+        if (state.equals(ConnectionState.CONNECTED)) {
+            for (final Member member : members) {
+                member.manager.hsmLogout();
+            }
+            if (hedgeExecutor != null) {
+                hedgeExecutor.shutdownNow();
+                hedgeExecutor = null;
+            }
+            members = Collections.emptyList();
+            state = ConnectionState.DISCONNECTED;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.datalogics.pdf.security.HsmManager#getConnectionState()
+     */
+    @Override
+    public ConnectionState getConnectionState() {
+        if (state.equals(ConnectionState.CONNECTED)) {
+            for (final Member member : members) {
+                if (member.isConnected()) {
+                    return state;
+                }
+            }
+            return ConnectionState.DISCONNECTED;
+        }
+        return state;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.datalogics.pdf.security.HsmManager#getKey(java.lang.String, java.lang.String)
+     */
+    @Override
+    public Key getKey(final String password, final String keyLabel) {
+        return executeUnchecked(new HsmTask<Key>() {
+            @Override
+            public Key call(final HsmManager hsmManager) {
+                return hsmManager.getKey(password, keyLabel);
+            }
+        });
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.datalogics.pdf.security.HsmManager#getCertificateChain(java.lang.String)
+     */
+    @Override
+    public Certificate[] getCertificateChain(final String certLabel) {
+        return executeUnchecked(new HsmTask<Certificate[]>() {
+            @Override
+            public Certificate[] call(final HsmManager hsmManager) {
+                return hsmManager.getCertificateChain(certLabel);
+            }
+        });
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.datalogics.pdf.security.HsmManager#getProviderName()
+     */
+    @Override
+    public String getProviderName() {
+        final List<Member> current = members;
+        return current.isEmpty() ? null : current.get(0).manager.getProviderName();
+    }
+
+    /**
+     * Get the number of members that logged in successfully.
+     *
+     * @return the number of members
+     */
+    public int getMemberCount() {
+        return members.size();
+    }
+
+    /**
+     * Get the number of members that are currently accepting work.
+     *
+     * @return the number of healthy members
+     */
+    public int getAvailableMemberCount() {
+        final long now = System.nanoTime();
+        int count = 0;
+        for (final Member member : members) {
+            if (member.isHealthy(now)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /*
+     * Get a percentile of the recent task latencies, which sets how long a hedged task waits before it is duplicated.
+     */
+    long getLatencyPercentile(final double percentile) {
+        return latencies.getPercentile(percentile);
+    }
+
+    /*
+     * Get the number of task latencies recorded, one for each task however many attempts it took.
+     */
+    int getLatencySampleCount() {
+        return latencies.getSampleCount();
+    }
+
+    /**
+     * Get the number of tasks that were duplicated on a second member by hedging.
+     *
+     * @return the number of hedged tasks
+     */
+    public long getHedgedRequestCount() {
+        return hedgedRequestCount.get();
+    }
+
+    /**
+     * Get the number of tasks sent to a member that had recently used the task's key.
+     *
+     * @return the number of affinity hits
+     */
+    public long getAffinityHitCount() {
+        return affinityHitCount.get();
+    }
+
+    /**
+     * Run a task on the least loaded healthy member.
+     *
+     * <p>
+     * If the task fails because its member has lost the HSM, the member is taken out of rotation and the task is run
+     * once more on another member. Any other failure is thrown to the caller.
+     *
+     * @param <T> the type of the result of the task
+     * @param task the task to run
+     * @return the result of the task
+     * @throws Exception a general exception was thrown by the task
+     */
+    public <T> T execute(final HsmTask<T> task) throws Exception {
+        return execute(task, null);
+    }
+
+    /**
+     * Run a task that signs with a given key, preferring a member that has recently used the key.
+     *
+     * <p>
+     * The task goes to a healthy member that recently used the key, as long as it has at most a couple more
+     * outstanding requests than the least loaded member; otherwise it goes to the least loaded member. Failures are
+     * handled as for {@link #execute(HsmTask)}.
+     *
+     * @param <T> the type of the result of the task
+     * @param task the task to run
+     * @param keyLabel the label of the key the task uses, or null if it has no preference
+     * @return the result of the task
+     * @throws Exception a general exception was thrown by the task
+     */
+    public <T> T execute(final HsmTask<T> task, final String keyLabel) throws Exception {
+        Member failed = null;
+        try (Lease lease = acquire(null, keyLabel)) {
+            try {
+                final long start = System.nanoTime();
+                final T result = task.call(lease.getHsmManager());
+                latencies.record(System.nanoTime() - start);
+                return result;
+            } catch (final Exception e) {
+                if (getMemberCount() < 2 || !lease.member.hasFailed(e)) {
+                    throw e;
+                }
+                lease.markFailed();
+                failed = lease.member;
+                if (LOGGER.isLoggable(Level.INFO)) {
+                    LOGGER.info("HSM group member failed, failing over: " + e.getMessage());
+                }
+            }
+        }
+        try (Lease lease = acquire(failed, keyLabel)) {
+            return task.call(lease.getHsmManager());
+        }
+    }
+
+    /**
+     * Run a task on every connected member in turn, for work that each member must do for itself, such as warming up
+     * its session before the group takes real work.
+     *
+     * <p>
+     * Each member is leased while the task runs on it. Nothing is retried, and the latencies are not recorded for
+     * hedging. A member on which the task fails because the member has lost its HSM is taken out of rotation, and the
+     * failure is thrown to the caller.
+     *
+     * @param <T> the type of the result of the task
+     * @param task the task to run
+     * @return the results of the task, one for each member it ran on, in member order
+     * @throws Exception a general exception was thrown by the task
+     */
+    public <T> List<T> executeOnEach(final HsmTask<T> task) throws Exception {
+        final List<Member> current = members;
+        if (current.isEmpty()) {
+            throw new SecurityException("Call the hsmLogin method to login to HSM device first.");
+        }
+        final List<T> results = new ArrayList<T>(current.size());
+        for (final Member member : current) {
+            if (!member.isConnected()) {
+                continue;
+            }
+            member.outstanding.incrementAndGet();
+            try (Lease lease = new Lease(member)) {
+                try {
+                    results.add(task.call(lease.getHsmManager()));
+                } catch (final Exception e) {
+                    if (member.hasFailed(e)) {
+                        lease.markFailed();
+                    }
+                    throw e;
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Run a task on the least loaded healthy member, duplicating it on a second member if it is slow.
+     *
+     * <p>
+     * If the task has not completed once the policy's latency percentile has elapsed, and the hedging budget allows,
+     * the task is also started on another member. The first attempt to succeed provides the result, and the other
+     * attempt is cancelled, which interrupts it. The losing attempt may already be past the point where it checks for
+     * the interrupt, so both attempts may finish; a task with side effects must let only one attempt publish them. For
+     * example, {@link com.datalogics.pdf.hsm.samples.SignDocumentTask} signs into a temporary file, and only the first
+     * attempt to finish moves its file into place.
+     *
+     * <p>
+     * Hedging needs at least two available members and enough latency samples; otherwise this behaves like
+     * {@link #execute(HsmTask)}.
+     *
+     * @param <T> the type of the result of the task
+     * @param task the task to run
+     * @param policy when to hedge, and how many tasks may be hedged
+     * @return the result of the first attempt to succeed
+     * @throws Exception a general exception was thrown by the task
+     */
+    public <T> T executeHedged(final HsmTask<T> task, final HedgingPolicy policy) throws Exception {
+        addHedgeCredit(policy.getMaxHedgeRatio());
+        if (getAvailableMemberCount() < 2 || latencies.getSampleCount() < policy.getMinSamples()) {
+            return execute(task);
+        }
+
+        final long delayNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(policy.getMinDelayMillis()),
+                                         latencies.getPercentile(policy.getPercentile()));
+        final CompletionService<T> completion = new ExecutorCompletionService<T>(hedgeExecutor());
+        final List<Future<T>> attempts = new ArrayList<Future<T>>(2);
+        // The request is timed once, from its start to the first result, so that a hedge that wins does not record a
+        // latency lower than the caller saw, and a loser that also succeeds does not add a second sample
+        final long start = System.nanoTime();
+
+        final Lease primary = acquire(null, null);
+        attempts.add(completion.submit(new Attempt<T>(task, primary)));
+        try {
+            Future<T> completed = completion.poll(delayNanos, TimeUnit.NANOSECONDS);
+            if (completed == null && takeHedgeCredit()) {
+                final Lease hedge = acquireForHedge(primary.member);
+                if (hedge != null) {
+                    attempts.add(completion.submit(new Attempt<T>(task, hedge)));
+                    hedgedRequestCount.incrementAndGet();
+                }
+            }
+
+            ExecutionException failure = null;
+            for (int remaining = attempts.size(); remaining > 0; remaining--) {
+                if (completed == null) {
+                    completed = completion.take();
+                }
+                try {
+                    final T result = completed.get();
+                    latencies.record(System.nanoTime() - start);
+                    return result;
+                } catch (final ExecutionException e) {
+                    failure = e;
+                }
+                completed = null;
+            }
+
+            if (attempts.size() == 1 && primary.member.hasFailed(failure.getCause()) && getMemberCount() > 1) {
+                // The task failed before it was hedged; fail over as execute() would
+                try (Lease lease = acquire(primary.member, null)) {
+                    final T result = task.call(lease.getHsmManager());
+                    latencies.record(System.nanoTime() - start);
+                    return result;
+                }
+            }
+            throw unwrap(failure);
+        } finally {
+            for (final Future<T> attempt : attempts) {
+                attempt.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Reserve the least loaded healthy member for a unit of work.
+     *
+     * <p>
+     * The member counts as having one more outstanding request until the lease is closed.
+     *
+     * @return a lease on a member of the group
+     * @throws IllegalStateException if no member is available
+     */
+    public Lease acquire() {
+        return acquire(null, null);
+    }
+
+    /**
+     * Reserve a member for a unit of work with a given key, preferring a member that has recently used the key.
+     *
+     * <p>
+     * The member counts as having one more outstanding request until the lease is closed.
+     *
+     * @param keyLabel the label of the key the work uses, or null if it has no preference
+     * @return a lease on a member of the group
+     * @throws IllegalStateException if no member is available
+     */
+    public Lease acquire(final String keyLabel) {
+        return acquire(null, keyLabel);
+    }
+
+    private Lease acquire(final Member excluded, final String keyLabel) {
+        final List<Member> current = members;
+        if (current.isEmpty()) {
+            throw new SecurityException("Call the hsmLogin method to login to HSM device first.");
+        }
+
+        Member chosen = leastLoaded(current, excluded, true, keyLabel);
+        if (chosen == null) {
+            // Every member is cooling down; try the least loaded one anyway rather than failing outright
+            chosen = leastLoaded(current, excluded, false, null);
+        }
+        if (chosen == null) {
+            throw new IllegalStateException("No member of the HSM group is available");
+        }
+        chosen.outstanding.incrementAndGet();
+        if (keyLabel != null && chosen.useKeyLabel(keyLabel)) {
+            affinityHitCount.incrementAndGet();
+        }
+        return new Lease(chosen);
+    }
+
+    /*
+     * Find the member with the fewest outstanding requests, starting the scan at a rotating position so that ties are
+     * shared out evenly. If a key label is given, a member that recently used the key is preferred while it is within
+     * the affinity slack of the least loaded member.
+     */
+    private Member leastLoaded(final List<Member> current, final Member excluded, final boolean healthyOnly,
+                               final String keyLabel) {
+        final long now = System.nanoTime();
+        final int size = current.size();
+        final int start = (nextStart.getAndIncrement() & Integer.MAX_VALUE) % size;
+
+        Member best = null;
+        int bestOutstanding = Integer.MAX_VALUE;
+        Member bestAffine = null;
+        int bestAffineOutstanding = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            final Member member = current.get((start + i) % size);
+            if (member == excluded && size > 1) {
+                continue;
+            }
+            if (healthyOnly ? !member.isHealthy(now) : !member.isConnected()) {
+                continue;
+            }
+            final int outstanding = member.outstanding.get();
+            if (outstanding < bestOutstanding) {
+                best = member;
+                bestOutstanding = outstanding;
+            }
+            if (keyLabel != null && outstanding < bestAffineOutstanding && member.hasRecentlyUsed(keyLabel)) {
+                bestAffine = member;
+                bestAffineOutstanding = outstanding;
+            }
+        }
+        if (bestAffine != null && bestAffineOutstanding <= bestOutstanding + AFFINITY_SLACK) {
+            return bestAffine;
+        }
+        return best;
+    }
+
+    private Lease acquireForHedge(final Member excluded) {
+        try {
+            final Lease lease = acquire(excluded, null);
+            if (lease.member == excluded) {
+                lease.close();
+                return null;
+            }
+            return lease;
+        } catch (final IllegalStateException e) {
+            return null;
+        }
+    }
+
+    private synchronized void addHedgeCredit(final double credit) {
+        hedgeCredit = Math.min(MAX_HEDGE_CREDIT, hedgeCredit + credit);
+    }
+
+    private synchronized boolean takeHedgeCredit() {
+        if (hedgeCredit >= 1.0) {
+            hedgeCredit -= 1.0;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized ExecutorService hedgeExecutor() {
+        if (hedgeExecutor == null) {
+            hedgeExecutor = Executors.newCachedThreadPool(new NamedDaemonThreadFactory("hsm-hedge-"));
+        }
+        return hedgeExecutor;
+    }
+
+    private static Exception unwrap(final ExecutionException failure) {
+        final Throwable cause = failure.getCause();
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return cause instanceof Exception ? (Exception) cause : failure;
+    }
+
+    /*
+     * Tell whether a failure shows that the HSM itself is failing, whatever the connection state the HsmManager
+     * reports: the device reported an error through its provider, or a reconnecting HsmManager gave up.
+     */
+    static boolean isDeviceFailure(final Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof ProviderException || cause instanceof HsmUnavailableException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private <T> T executeUnchecked(final HsmTask<T> task) {
+        try {
+            return execute(task);
+        } catch (final RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new SecurityException("Exception while running HSM group operation: ", e);
+        }
+    }
+
+    private HsmManager newMember() {
+        try {
+            return memberSource.call();
+        } catch (final RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new IllegalStateException("Could not create a new HsmManager", e);
+        }
+    }
+
+    /*
+     * One attempt at a hedged task, which holds the lease on its member until it finishes.
+     */
+    private final class Attempt<T> implements Callable<T> {
+        private final HsmTask<T> task;
+        private final Lease lease;
+
+        private Attempt(final HsmTask<T> task, final Lease lease) {
+            this.task = task;
+            this.lease = lease;
+        }
+
+        @Override
+        public T call() throws Exception {
+            try {
+                return task.call(lease.getHsmManager());
+            } catch (final Exception e) {
+                if (lease.member.hasFailed(e)) {
+                    lease.markFailed();
+                }
+                throw e;
+            } finally {
+                lease.close();
+            }
+        }
+    }
+
+    /*
+     * Creates numbered daemon threads, so a group that is never logged out does not keep the JVM alive.
+     */
+    private static final class NamedDaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        private NamedDaemonThreadFactory(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /*
+     * A member of the group, and its load and health.
+     */
+    private final class Member {
+        private final HsmManager manager;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final Map<String, Boolean> recentKeyLabels = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            private static final long serialVersionUID = 2787331948436627154L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+                return size() > MAX_RECENT_KEY_LABELS;
+            }
+        };
+        private volatile long failedAtNanos;
+        private volatile boolean failed;
+
+        private Member(final HsmManager manager) {
+            this.manager = manager;
+        }
+
+        private boolean isConnected() {
+            return ConnectionState.CONNECTED.equals(manager.getConnectionState());
+        }
+
+        private boolean isHealthy(final long now) {
+            if (failed && now - failedAtNanos < failureCoolDownNanos) {
+                return false;
+            }
+            return isConnected();
+        }
+
+        /*
+         * Tell whether a failure of work on this member is a failure of the member, rather than of the work: the
+         * member has lost its connection to the HSM. Reconnecting members still report themselves connected once they
+         * have given up, so the failure itself is checked first.
+         */
+        private boolean hasFailed(final Throwable failure) {
+            if (isDeviceFailure(failure)) {
+                return true;
+            }
+            return failure instanceof RuntimeException && !(failure instanceof IllegalArgumentException)
+                   && !isConnected();
+        }
+
+        private void markFailed() {
+            failedAtNanos = System.nanoTime();
+            failed = true;
+        }
+
+        private boolean hasRecentlyUsed(final String keyLabel) {
+            synchronized (recentKeyLabels) {
+                return recentKeyLabels.containsKey(keyLabel);
+            }
+        }
+
+        /*
+         * Remember that the member is using a key, and tell whether it had used it recently.
+         */
+        private boolean useKeyLabel(final String keyLabel) {
+            synchronized (recentKeyLabels) {
+                return recentKeyLabels.put(keyLabel, Boolean.TRUE) != null;
+            }
+        }
+    }
+
+    /**
+     * A reservation of one member of the group.
+     *
+     * <p>
+     * Close the lease when the work is finished, so that the member's outstanding request count is decremented.
+     */
+    public static final class Lease implements AutoCloseable {
+        private final Member member;
+        private boolean closed;
+
+        private Lease(final Member member) {
+            this.member = member;
+        }
+
+        /**
+         * Get the HsmManager of the reserved member.
+         *
+         * @return a connected HsmManager
+         */
+        public HsmManager getHsmManager() {
+            return member.manager;
+        }
+
+        /**
+         * Report that work on the reserved member failed, taking the member out of rotation for the cool-down period.
+         */
+        public void markFailed() {
+            member.markFailed();
+        }
+
+        /**
+         * Release the reserved member.
+         */
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                member.outstanding.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+/**
+ * A unit of work that needs a connected HSM session, such as signing a document.
+ *
+ * <p>
+ * Tasks are handed a single HsmManager for their whole duration, so that keys obtained from it are used on the same
+ * partition that issued them.
+ *
+ * @param <T> the type of the result of the task
+ */
+public interface HsmTask<T> {
+
+    /**
+     * Perform the task.
+     *
+     * @param hsmManager a connected HsmManager
+     * @return the result of the task
+     * @throws Exception a general exception was thrown
+     */
+    T call(final HsmManager hsmManager) throws Exception;
+}
@@ -0,0 +1,443 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs {@link HsmTask}s on an {@link HsmManagerGroup}, keeping the number of tasks in flight at the level the HSMs
+ * handle best.
+ *
+ * <p>
+ * Submitted tasks wait in a queue. A dispatcher thread takes a task from the queue whenever the
+ * {@link AdaptiveConcurrencyLimit} allows another task to run, and hands it to a worker thread. The latency and outcome
+ * of every task is fed back into the limit, so the number of concurrent HSM operations follows what the devices can
+ * absorb without tuning the thread count per appliance model.
+ *
+ * <p>
+ * Each task is queued in the lane for its {@link TaskPriority}. When a session frees up, the dispatcher picks the next
+ * task from the lanes by weighted round robin, so interactive tasks get most of the sessions while a bulk backlog is
+ * draining, and bulk tasks still make progress. Each lane has its own capacity, so a full bulk lane does not turn away
+ * interactive tasks.
+ *
+ * <p>
+ * A task can be given a {@link Deadline}. Within a lane, tasks run earliest deadline first, and tasks without a
+ * deadline run after them in the order they were submitted. A task whose deadline passes while it is queued is dropped
+ * without reaching the HSM, and its future fails with a {@link TimeoutException}. Cancelling the future of a running
+ * task interrupts it.
+ *
+ * <p>
+ * A degraded HSM must not take the JVM down with it, so the executor also refuses work it cannot get through in
+ * reasonable time. New tasks are rejected with a {@link SigningRejectedException} while the {@link CircuitBreaker} is
+ * open, or when the queue is full; queued tasks fail fast if the breaker opens before they start. The exception carries
+ * a hint for when to try again. Once the breaker is half open, the dispatcher sends one queued task to the HSM as the
+ * trial, and holds the others until the trial has finished. Only lost sessions and device errors count against the
+ * breaker; a task that fails on a connected HSM, for example because its key is missing, does not.
+ */
+public final class HsmTaskExecutor implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(HsmTaskExecutor.class.getName());
+
+    public static final int DEFAULT_MAX_CONCURRENCY_PER_MEMBER = 16;
+    public static final int DEFAULT_INITIAL_CONCURRENCY_PER_MEMBER = 4;
+    public static final int DEFAULT_MAX_QUEUE_DEPTH_PER_MEMBER = 256;
+
+    // Shortest retry-after hint given to a rejected caller
+    private static final long MIN_RETRY_AFTER_MILLIS = 100;
+    // Weight of each new sample in the average task latency
+    private static final double LATENCY_SMOOTHING = 0.1;
+
+    private final HsmManagerGroup group;
+    private final AdaptiveConcurrencyLimit limit;
+    private final CircuitBreaker breaker;
+    private final PriorityLaneQueue<Job<?>> queue;
+    private final ExecutorService workers;
+    private final Thread dispatcher;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+    private volatile boolean closed;
+    private volatile double averageLatencyNanos;
+
+    /**
+     * Create an executor whose concurrency limit is bounded by {@value #DEFAULT_MAX_CONCURRENCY_PER_MEMBER} sessions
+     * for each member of the group, and whose priority lanes each hold {@value #DEFAULT_MAX_QUEUE_DEPTH_PER_MEMBER}
+     * tasks for each member.
+     *
+     * @param group a logged in HSM group
+     */
+    public HsmTaskExecutor(final HsmManagerGroup group) {
+        this(group, new AdaptiveConcurrencyLimit(DEFAULT_INITIAL_CONCURRENCY_PER_MEMBER * group.getMemberCount(), 1,
+                                                 DEFAULT_MAX_CONCURRENCY_PER_MEMBER * group.getMemberCount()));
+    }
+
+    /**
+     * Create an executor with a default circuit breaker and priority lanes each holding
+     * {@value #DEFAULT_MAX_QUEUE_DEPTH_PER_MEMBER} tasks for each member of the group.
+     *
+     * @param group a logged in HSM group
+     * @param limit the limit on the number of tasks in flight
+     */
+    public HsmTaskExecutor(final HsmManagerGroup group, final AdaptiveConcurrencyLimit limit) {
+        this(group, limit, new CircuitBreaker(), DEFAULT_MAX_QUEUE_DEPTH_PER_MEMBER * group.getMemberCount());
+    }
+
+    /**
+     * Create an executor.
+     *
+     * @param group a logged in HSM group
+     * @param limit the limit on the number of tasks in flight
+     * @param breaker the circuit breaker guarding the group
+     * @param maxQueueDepth the largest number of tasks that may wait to run in each priority lane
+     */
+    public HsmTaskExecutor(final HsmManagerGroup group, final AdaptiveConcurrencyLimit limit,
+                           final CircuitBreaker breaker, final int maxQueueDepth) {
+        this.group = group;
+        this.limit = limit;
+        this.breaker = breaker;
+        this.queue = new PriorityLaneQueue<Job<?>>(maxQueueDepth, new EarliestDeadlineFirst());
+        this.workers = Executors.newCachedThreadPool(new NamedDaemonThreadFactory("hsm-task-worker-"));
+        this.dispatcher = new NamedDaemonThreadFactory("hsm-task-dispatcher-").newThread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        });
+        this.dispatcher.start();
+    }
+
+    /**
+     * Queue a task to run on the HSM group with {@link TaskPriority#NORMAL} priority.
+     *
+     * @param <T> the type of the result of the task
+     * @param task the task to run
+     * @return a future for the result of the task
+     * @throws SigningRejectedException if the circuit breaker is open or the queue is full
+     * @throws RejectedExecutionException if the executor has been closed
+     */
+    public <T> Future<T> submit(final HsmTask<T> task) {
+        return submit(task, TaskPriority.NORMAL);
+    }
+
+    /**
+     * Queue a task to run on the HSM group.
+     *
+     * @param <T> the type of the result of the task
+     * @param task the task to run
+     * @param priority the priority class of the task
+     * @return a future for the result of the task
+     * @throws SigningRejectedException if the circuit breaker is open or the lane for the priority is full
+     * @throws RejectedExecutionException if the executor has been closed
+     */
+    public <T> Future<T> submit(final HsmTask<T> task, final TaskPriority priority) {
+        return submit(task, priority, Deadline.NONE);
+    }
+
+    /**
+     * Queue a task to run on the HSM group, to be dropped if it has not started by its deadline.
+     *
+     * @param <T> the type of the result of the task
+     * @param task the task to run
+     * @param priority the priority class of the task
+     * @param timeout the time the task may wait to start
+     * @param unit the unit of the timeout
+     * @return a future for the result of the task; it fails with a {@link TimeoutException} if the deadline passed
+     *         before the task started
+     * @throws SigningRejectedException if the circuit breaker is open or the lane for the priority is full
+     * @throws RejectedExecutionException if the executor has been closed
+     */
+    public <T> Future<T> submit(final HsmTask<T> task, final TaskPriority priority, final long timeout,
+                                final TimeUnit unit) {
+        return submit(task, priority, Deadline.after(timeout, unit));
+    }
+
+    /**
+     * Queue a task to run on the HSM group, to be dropped if it has not started by its deadline.
+     *
+     * @param <T> the type of the result of the task
+     * @param task the task to run
+     * @param priority the priority class of the task
+     * @param deadline the deadline by which the task must start, or {@link Deadline#NONE}
+     * @return a future for the result of the task; it fails with a {@link TimeoutException} if the deadline passed
+     *         before the task started
+     * @throws SigningRejectedException if the circuit breaker is open or the lane for the priority is full
+     * @throws RejectedExecutionException if the executor has been closed
+     */
+    public <T> Future<T> submit(final HsmTask<T> task, final TaskPriority priority, final Deadline deadline) {
+        if (closed) {
+            throw new RejectedExecutionException("HsmTaskExecutor has been closed");
+        }
+        if (!queue.hasRoom(priority)) {
+            throw queueFull();
+        }
+        // The trial call of a half-open breaker is granted when a task is dispatched, not here
+        if (breaker.getState() == CircuitBreaker.State.OPEN) {
+            throw breakerOpen();
+        }
+        final Job<T> job = new Job<T>(task, deadline, sequence.getAndIncrement());
+        if (!queue.offer(job, priority)) {
+            throw queueFull();
+        }
+        return job;
+    }
+
+    /**
+     * Get the number of tasks waiting to run.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Get the number of tasks of one priority waiting to run.
+     *
+     * @param priority the priority class
+     * @return the depth of the lane for the priority
+     */
+    public int getQueueDepth(final TaskPriority priority) {
+        return queue.size(priority);
+    }
+
+    /**
+     * Get the number of tasks dropped because their deadline passed before they started.
+     *
+     * @return the number of expired tasks
+     */
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    /**
+     * Get the limit on the number of tasks in flight.
+     *
+     * @return the concurrency limit
+     */
+    public AdaptiveConcurrencyLimit getConcurrencyLimit() {
+        return limit;
+    }
+
+    /**
+     * Get the circuit breaker guarding the group.
+     *
+     * @return the circuit breaker
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Stop accepting tasks, cancel the tasks that are still queued, and stop the worker threads once the running tasks
+     * have finished.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        dispatcher.interrupt();
+        for (final Job<?> job : queue.drain()) {
+            job.cancel(false);
+        }
+        workers.shutdown();
+    }
+
+    private void dispatch() {
+        while (!closed) {
+            // Wait for a permit before choosing a task, so that the choice takes in tasks queued in the meantime
+            try {
+                queue.awaitNotEmpty();
+                limit.acquire();
+            } catch (final InterruptedException e) {
+                // Closed; the queued tasks are cancelled by close
+                return;
+            }
+            try {
+                // While the trial call of a half-open breaker runs, the other tasks stay queued
+                breaker.awaitTrial();
+            } catch (final InterruptedException e) {
+                limit.release();
+                return;
+            }
+            final Job<?> job = queue.poll();
+            if (job == null) {
+                // Drained by close
+                limit.release();
+                continue;
+            }
+            if (job.isDone()) {
+                // Cancelled while it waited
+                limit.release();
+                continue;
+            }
+            if (job.deadline.isExpired()) {
+                // The caller has given up; do not spend a signature on it, or the breaker's trial call
+                limit.release();
+                expiredCount.incrementAndGet();
+                job.reject(new TimeoutException("The deadline of the HSM task passed before it started"));
+                continue;
+            }
+            // Grants the trial call to this task if the breaker is half open
+            if (!breaker.allowCall()) {
+                limit.release();
+                job.reject(breakerOpen());
+                continue;
+            }
+
+            try {
+                workers.execute(job);
+            } catch (final RejectedExecutionException e) {
+                limit.release();
+                job.cancel(false);
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine("HSM task rejected during shutdown");
+                }
+            }
+        }
+    }
+
+    private SigningRejectedException breakerOpen() {
+        return new SigningRejectedException("The HSM circuit breaker is open",
+                                            Math.max(MIN_RETRY_AFTER_MILLIS, breaker.getRetryAfterMillis()));
+    }
+
+    private SigningRejectedException queueFull() {
+        // Estimate how long the tasks already queued will take to drain at the current limit
+        final double drainNanos = averageLatencyNanos * queue.size() / Math.max(1, limit.getLimit());
+        return new SigningRejectedException("Too many HSM tasks are waiting",
+                                            Math.max(MIN_RETRY_AFTER_MILLIS,
+                                                     TimeUnit.NANOSECONDS.toMillis((long) drainNanos)));
+    }
+
+    private void recordLatency(final long latencyNanos) {
+        // Racy updates only lose a sample now and then, which is fine for a hint
+        final double average = averageLatencyNanos;
+        averageLatencyNanos = average == 0 ? latencyNanos
+                                           : average + LATENCY_SMOOTHING * (latencyNanos - average);
+    }
+
+    /*
+     * Failures of the HSM, as opposed to failures of the task itself such as an unreadable document or a missing
+     * key: an error reported by the device through the provider, a member that gave up reconnecting, or a failure
+     * that left the group without a session. The group's members keep reporting themselves connected after giving up,
+     * so the failure is classified from the exception first, as the group does for failover.
+     */
+    private boolean isHsmFailure(final Throwable failure) {
+        if (HsmManagerGroup.isDeviceFailure(failure)) {
+            return true;
+        }
+        return failure instanceof RuntimeException && !(failure instanceof IllegalArgumentException)
+               && !HsmManager.ConnectionState.CONNECTED.equals(group.getConnectionState());
+    }
+
+    /*
+     * A queued task; completing it reports its latency and outcome to the concurrency limit and the circuit breaker.
+     */
+    private final class Job<T> extends FutureTask<T> {
+        private final Deadline deadline;
+        private final long sequence;
+        private long startNanos;
+
+        private Job(final HsmTask<T> task, final Deadline deadline, final long sequence) {
+            super(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    return group.execute(task);
+                }
+            });
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            if (isDone()) {
+                // Cancelled after it was dispatched; it says nothing about the HSM
+                limit.release();
+                return;
+            }
+            startNanos = System.nanoTime();
+            super.run();
+        }
+
+        /*
+         * The permit is returned before the result is published, so a caller that sees the result also sees the
+         * permit back in the limit.
+         */
+        @Override
+        protected void set(final T result) {
+            final long latencyNanos = System.nanoTime() - startNanos;
+            limit.release(latencyNanos, true);
+            breaker.onSuccess(latencyNanos);
+            recordLatency(latencyNanos);
+            super.set(result);
+        }
+
+        @Override
+        protected void setException(final Throwable failure) {
+            final long latencyNanos = System.nanoTime() - startNanos;
+            final boolean hsmFailure = isHsmFailure(failure);
+            limit.release(latencyNanos, !hsmFailure);
+            if (hsmFailure) {
+                breaker.onFailure();
+            } else {
+                breaker.onSuccess(latencyNanos);
+            }
+            recordLatency(latencyNanos);
+            super.setException(failure);
+        }
+
+        /*
+         * Fail the task without running it.
+         */
+        private void reject(final Exception rejection) {
+            super.setException(rejection);
+        }
+    }
+
+    /*
+     * Orders jobs by deadline, and jobs with the same deadline, such as those without one, in the order they were
+     * submitted.
+     */
+    private static final class EarliestDeadlineFirst implements Comparator<Job<?>> {
+        @Override
+        public int compare(final Job<?> first, final Job<?> second) {
+            final int order = first.deadline.compareTo(second.deadline);
+            if (order != 0) {
+                return order;
+            }
+            return first.sequence < second.sequence ? -1 : (first.sequence > second.sequence ? 1 : 0);
+        }
+    }
+
+    /*
+     * Creates named daemon threads, so an executor that is never closed does not keep the JVM alive.
+     */
+    private static final class NamedDaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        private NamedDaemonThreadFactory(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
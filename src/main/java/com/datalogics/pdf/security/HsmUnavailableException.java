@@ -0,0 +1,28 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+/**
+ * Thrown when an HSM session has been lost and could not be re-established, as opposed to a request that the HSM
+ * refused.
+ *
+ * <p>
+ * An HsmManager that reconnects, such as {@link ReconnectingHsmManager}, keeps reporting itself as connected after it
+ * has given up, so that a later request can try again. Code that has to tell a failing HSM from a failing request,
+ * such as {@link HsmManagerGroup} and {@link HsmTaskExecutor}, looks for this exception instead.
+ */
+public class HsmUnavailableException extends IllegalStateException {
+    private static final long serialVersionUID = -3168474212350941157L;
+
+    /**
+     * Create the exception.
+     *
+     * @param message the reason the HSM could not be used
+     * @param cause the last failure seen while trying to reach the HSM, or null if there was none
+     */
+    public HsmUnavailableException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+}
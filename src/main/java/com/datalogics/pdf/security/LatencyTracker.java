@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+import java.util.Arrays;
+
+/**
+ * Keeps a window of recent operation latencies, and reports percentiles over it.
+ *
+ * <p>
+ * The window is a fixed-size ring, so old samples age out as new ones arrive. Percentiles are computed by sorting a
+ * copy of the window; the sorted copy is reused until enough new samples have been recorded to make it stale, so
+ * asking for a percentile on every request stays cheap.
+ */
+public class LatencyTracker {
+    public static final int DEFAULT_WINDOW_SIZE = 1024;
+
+    private final long[] samples;
+    private int next;
+    private int count;
+
+    private long[] sorted;
+    private int recordedSinceSort;
+
+    /**
+     * Create a tracker with the default window size.
+     */
+    public LatencyTracker() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Create a tracker.
+     *
+     * @param windowSize the number of recent samples to keep
+     */
+    public LatencyTracker(final int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size must be positive");
+        }
+        samples = new long[windowSize];
+    }
+
+    /**
+     * Record the latency of one operation.
+     *
+     * @param latencyNanos the latency in nanoseconds
+     */
+    public synchronized void record(final long latencyNanos) {
+        samples[next] = latencyNanos;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+        recordedSinceSort++;
+    }
+
+    /**
+     * Get the number of samples in the window.
+     *
+     * @return the number of samples
+     */
+    public synchronized int getSampleCount() {
+        return count;
+    }
+
+    /**
+     * Get a percentile of the latencies in the window.
+     *
+     * @param percentile the percentile, between 0.0 and 1.0
+     * @return the latency in nanoseconds at that percentile, or -1 if no samples have been recorded
+     */
+    public synchronized long getPercentile(final double percentile) {
+        if (percentile < 0.0 || percentile > 1.0) {
+            throw new IllegalArgumentException("Percentile must be between 0.0 and 1.0");
+        }
+        if (count == 0) {
+            return -1;
+        }
+        // Re-sort once a tenth of the samples are newer than the sorted copy
+        if (sorted == null || recordedSinceSort > Math.max(1, count / 10)) {
+            sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            recordedSinceSort = 0;
+        }
+        final int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return sorted[Math.max(0, index)];
+    }
+}
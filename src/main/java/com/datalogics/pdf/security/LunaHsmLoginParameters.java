@@ -10,6 +10,7 @@ package com.datalogics.pdf.security;
 public class LunaHsmLoginParameters extends HsmLoginParameters {
 
     private final String tokenLabel;
+    private final int cacheSize;
 
     /**
      * Instantiate the login parameters for logging in to a Luna SA device using the first available HSM partition slot
@@ -18,8 +19,7 @@ public class LunaHsmLoginParameters extends HsmLoginParameters {
      * @param password the password to use for the login
      */
     public LunaHsmLoginParameters(final String password) {
-        super(password);
-        this.tokenLabel = null;
+        this(null, password);
     }
 
     /**
@@ -30,8 +30,25 @@ public class LunaHsmLoginParameters extends HsmLoginParameters {
      * 
      */
     public LunaHsmLoginParameters(final String tokenLabel, final String password) {
+        this(tokenLabel, password, LunaHsmManager.DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Instantiate the login parameters for logging in to a Luna SA HSM device using the given tokenLabel and password,
+     * and caching the given number of keys and of certificates.
+     *
+     * @param tokenLabel the label of the token to which to login, or null for the first available slot
+     * @param password the password to use for the login
+     * @param cacheSize the largest number of keys, and of certificates, to keep after looking them up by label; use
+     *        at least the number of keys signed with regularly
+     */
+    public LunaHsmLoginParameters(final String tokenLabel, final String password, final int cacheSize) {
         super(password);
+        if (cacheSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
         this.tokenLabel = tokenLabel;
+        this.cacheSize = cacheSize;
     }
 
     /**
@@ -42,4 +59,13 @@ public class LunaHsmLoginParameters extends HsmLoginParameters {
     public String getTokenLabel() {
         return tokenLabel;
     }
+
+    /**
+     * Get the largest number of keys, and of certificates, to keep after looking them up by label.
+     *
+     * @return the cache size
+     */
+    public int getCacheSize() {
+        return cacheSize;
+    }
 }
@@ -9,28 +9,87 @@ import com.safenetinc.luna.LunaException;
 import com.safenetinc.luna.LunaSlotManager;
 import com.safenetinc.luna.provider.LunaProvider;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
+import java.security.SecureRandom;
 import java.security.Security;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 /**
  * This class allows for connecting to a Luna SA Hsm Device.
+ *
+ * <p>
+ * Each manager works with one slot: the slot of the partition named by the token label it logs in with, or the default
+ * slot. It logs in and out of that slot only, and loads the key store of that slot, so several managers in one process
+ * can use different partitions, for example as the members of an {@link HsmManagerGroup}, and one of them logging out
+ * or losing its partition does not affect the others. The session is reported as lost once the slot's token is no
+ * longer present. Asking the device costs a round trip, so the presence of the token is checked at most once every
+ * {@value #TOKEN_CHECK_INTERVAL_MILLIS} milliseconds, and again straight after a key or certificate lookup fails; in
+ * between, the connection state is answered without reaching the device.
+ *
+ * <p>
+ * A Luna login, like any PKCS#11 login, belongs to the slot for the whole process rather than to one session: logging
+ * into a slot that is already logged in fails, and logging out of a slot ends the login of every session on it. Logins
+ * and logouts of the same slot are therefore made one at a time, while managers of different slots log in and out, and
+ * reconnect, independently.
+ *
+ * <p>
+ * Login returns as soon as the session is established. Loading the key store reads every object on the partition, so
+ * it is started on a thread of its own right after login, including the login of every reconnect, and does not slow
+ * login down as the partition fills up with objects. A key or certificate asked for before the load has finished
+ * waits only for the rest of it; if the load fails, the first lookup loads the key store again. Keys found by label and
+ * password, and certificates found by label, are kept in caches holding the number of entries given by
+ * {@link LunaHsmLoginParameters#getCacheSize}, by default {@value #DEFAULT_CACHE_SIZE}, dropping the least recently
+ * used. The most used of thousands of tenants' keys are then not looked up again while the memory used stays bounded.
+ * Keys are cached under a keyed digest of their password, so the cache does not hold the passwords themselves.
  */
 public final class LunaHsmManager implements HsmManager {
+    private static final Logger LOGGER = Logger.getLogger(LunaHsmManager.class.getName());
 
-    private LunaSlotManager slotManager;
+    private static final String PASSWORD_DIGEST_ALGORITHM = "HmacSHA256";
+    private static final int PASSWORD_DIGEST_KEY_LENGTH = 32;
+
+    // Guards the logins and logouts of each slot, by slot number, across every manager in the process
+    private static final ConcurrentMap<Integer, Object> SLOT_LOCKS = new ConcurrentHashMap<Integer, Object>();
+
+    private final LunaSlotManager slotManager;
+    // Guards the changes of state, so that only one caller sees a dropped session and cleans up after it
+    private final Object stateLock = new Object();
     private KeyStore lunaKeyStore;
-    private ConnectionState state;
+    private volatile ConnectionState state;
+    // The slot logged into; set before the state becomes CONNECTED
+    private int slot = -1;
+    // When the presence of the slot's token is next asked of the device, from System.nanoTime()
+    private volatile long nextTokenCheckNanos;
+    // Keyed by label and password digest, so that a key is only served to callers who gave the password it was found
+    // with. Both caches are replaced by ones of the size asked for at login, before the state becomes CONNECTED.
+    private volatile BoundedLruCache<String, PrivateKey> keysByLabel =
+                    new BoundedLruCache<String, PrivateKey>(DEFAULT_CACHE_SIZE);
+    private volatile BoundedLruCache<String, X509Certificate> certificatesByLabel =
+                    new BoundedLruCache<String, X509Certificate>(DEFAULT_CACHE_SIZE);
+    // Known only to this manager, so that the password digests in the key cache cannot be matched elsewhere
+    private final SecretKeySpec passwordDigestKey;
 
     public static final String KEYSTORE_TYPE = "Luna";
     public static final String PROVIDER_NAME = "LunaProvider";
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+    public static final long TOKEN_CHECK_INTERVAL_MILLIS = 1000;
 
     /**
      * Default no-arg constructor.
@@ -39,6 +98,9 @@ public final class LunaHsmManager implements HsmManager {
     protected LunaHsmManager() {
         super();
         slotManager = LunaSlotManager.getInstance();
+        final byte[] digestKey = new byte[PASSWORD_DIGEST_KEY_LENGTH];
+        new SecureRandom().nextBytes(digestKey);
+        passwordDigestKey = new SecretKeySpec(digestKey, PASSWORD_DIGEST_ALGORITHM);
         initializeProvider();
         state = ConnectionState.READY;
     }
@@ -61,22 +123,24 @@ public final class LunaHsmManager implements HsmManager {
 
         final String tokenLabel = lunaParms.getTokenLabel();
         final String password = lunaParms.getPassword();
+        final int loginSlot = tokenLabel == null ? slotManager.getDefaultSlot()
+                                                 : LunaSlotTopology.getInstance().findSlot(slotManager, tokenLabel);
         try {
-            if (tokenLabel == null) {
-                slotManager.login(password);
-            } else {
-                slotManager.login(tokenLabel, password);
+            synchronized (slotLock(loginSlot)) {
+                slotManager.login(loginSlot, password);
             }
         } catch (LunaException | LunaCryptokiException e) {
             throw new IllegalArgumentException("Error while logging into the Luna HSM" + e);
         }
 
-        if (slotManager.isLoggedIn()) {
+        synchronized (stateLock) {
+            slot = loginSlot;
+            keysByLabel = new BoundedLruCache<String, PrivateKey>(lunaParms.getCacheSize());
+            certificatesByLabel = new BoundedLruCache<String, X509Certificate>(lunaParms.getCacheSize());
+            nextTokenCheckNanos = System.nanoTime();
             state = ConnectionState.CONNECTED;
-            loadKeyStore();
-        } else {
-            throw new IllegalStateException("Could not log into the Luna HSM");
         }
+        startKeyStoreLoad();
     }
 
     /*
@@ -91,10 +155,14 @@ public final class LunaHsmManager implements HsmManager {
          * a later point in your application.
          *
          */
-        if (state.equals(ConnectionState.CONNECTED)) {
-            slotManager.logout();
-            state = ConnectionState.DISCONNECTED;
-            cleanUpResources();
+        synchronized (stateLock) {
+            if (state.equals(ConnectionState.CONNECTED)) {
+                synchronized (slotLock(slot)) {
+                    slotManager.logout(slot);
+                }
+                state = ConnectionState.DISCONNECTED;
+                cleanUpResources();
+            }
         }
     }
 
@@ -105,6 +173,20 @@ public final class LunaHsmManager implements HsmManager {
      */
     @Override
     public ConnectionState getConnectionState() {
+        // A session dropped by the device is reported as disconnected, once the token has been checked again
+        if (state.equals(ConnectionState.CONNECTED) && System.nanoTime() - nextTokenCheckNanos >= 0) {
+            synchronized (stateLock) {
+                if (state.equals(ConnectionState.CONNECTED) && System.nanoTime() - nextTokenCheckNanos >= 0) {
+                    if (slotManager.isTokenPresent(slot)) {
+                        nextTokenCheckNanos = System.nanoTime()
+                                              + TimeUnit.MILLISECONDS.toNanos(TOKEN_CHECK_INTERVAL_MILLIS);
+                    } else {
+                        state = ConnectionState.DISCONNECTED;
+                        cleanUpResources();
+                    }
+                }
+            }
+        }
         return state;
     }
 
@@ -119,11 +201,18 @@ public final class LunaHsmManager implements HsmManager {
             throw new SecurityException("Call the hsmLogin method to login to HSM device first.");
         }
 
-        X509Certificate cert;
-        try {
-            cert = (X509Certificate) lunaKeyStore.getCertificate(certLabel);
-        } catch (final KeyStoreException e) {
-            throw new SecurityException("Exception while obtaining certificate chain for LunaSA: ", e);
+        X509Certificate cert = certificatesByLabel.get(certLabel);
+        if (cert == null) {
+            try {
+                cert = (X509Certificate) getKeyStore().getCertificate(certLabel);
+            } catch (final KeyStoreException e) {
+                checkTokenSoon();
+                throw new SecurityException("Exception while obtaining certificate chain for LunaSA: ", e);
+            }
+            // Labels not found are looked up again next time, in case the object has been created since
+            if (cert != null) {
+                certificatesByLabel.put(certLabel, cert);
+            }
         }
         final X509Certificate[] certChain = new X509Certificate[1];
         certChain[0] = cert;
@@ -141,11 +230,24 @@ public final class LunaHsmManager implements HsmManager {
         if (!state.equals(ConnectionState.CONNECTED)) {
             throw new SecurityException("Call the hsmLogin method to login to HSM device first.");
         }
-        try {
-            return (PrivateKey) lunaKeyStore.getKey(keyLabel, password.toCharArray());
-        } catch (UnrecoverableKeyException | KeyStoreException | NoSuchAlgorithmException e) {
-            throw new SecurityException("Exception while obtaining Private Key for LunaSa: ", e);
+        if (password == null) {
+            throw new IllegalArgumentException("Password must not be null");
         }
+        // The key is a handle valid for the whole session, so one lookup per label and password is enough
+        final String cacheKey = keyLabel + '\u0000' + digestPassword(password);
+        PrivateKey key = keysByLabel.get(cacheKey);
+        if (key == null) {
+            try {
+                key = (PrivateKey) getKeyStore().getKey(keyLabel, password.toCharArray());
+            } catch (UnrecoverableKeyException | KeyStoreException | NoSuchAlgorithmException e) {
+                checkTokenSoon();
+                throw new SecurityException("Exception while obtaining Private Key for LunaSa: ", e);
+            }
+            if (key != null) {
+                keysByLabel.put(cacheKey, key);
+            }
+        }
+        return key;
     }
 
     /*
@@ -158,6 +260,24 @@ public final class LunaHsmManager implements HsmManager {
         return PROVIDER_NAME;
     }
 
+    /**
+     * Get the cache of private keys by label and password, for its hit, miss and eviction counts.
+     *
+     * @return the key cache
+     */
+    public BoundedLruCache<String, PrivateKey> getKeyCache() {
+        return keysByLabel;
+    }
+
+    /**
+     * Get the cache of certificates by label, for its hit, miss and eviction counts.
+     *
+     * @return the certificate cache
+     */
+    public BoundedLruCache<String, X509Certificate> getCertificateCache() {
+        return certificatesByLabel;
+    }
+
     private void checkLoginAbility(final LunaHsmLoginParameters parms) {
         if (!state.equals(ConnectionState.READY)) {
             throw new IllegalStateException("HsmManager not in a ready to login state, "
@@ -174,14 +294,74 @@ public final class LunaHsmManager implements HsmManager {
 
         // Confirm that tokenLabel exists
         final String tokenLabel = parms.getTokenLabel();
-        if (tokenLabel != null && slotManager.findSlotFromLabel(tokenLabel) < 0) {
+        if (tokenLabel != null && LunaSlotTopology.getInstance().findSlot(slotManager, tokenLabel) < 0) {
             throw new IllegalArgumentException("Token label must refer to available slot");
         }
     }
 
+    /*
+     * Have the next call to getConnectionState ask the device whether the token is still present.
+     */
+    private void checkTokenSoon() {
+        nextTokenCheckNanos = System.nanoTime();
+    }
+
+    /*
+     * Load the key store on a thread of its own, so that neither login nor the first request waits for all of it.
+     */
+    private void startKeyStoreLoad() {
+        final Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (LunaHsmManager.this) {
+                        // Skipped if the session has already ended, or a request got to the key store first
+                        if (state.equals(ConnectionState.CONNECTED) && lunaKeyStore == null) {
+                            loadKeyStore();
+                        }
+                    }
+                } catch (final SecurityException e) {
+                    if (LOGGER.isLoggable(Level.WARNING)) {
+                        LOGGER.warning("Could not load the key store of slot " + slot + " after login: "
+                                       + e.getMessage());
+                    }
+                }
+            }
+        }, "luna-key-store-loader-slot-" + slot);
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /*
+     * Digest a key password with this manager's secret key, for the key cache.
+     */
+    private String digestPassword(final String password) {
+        final Mac mac;
+        try {
+            mac = Mac.getInstance(PASSWORD_DIGEST_ALGORITHM);
+            mac.init(passwordDigestKey);
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new IllegalStateException(PASSWORD_DIGEST_ALGORITHM + " is not available", e);
+        }
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : mac.doFinal(password.getBytes(StandardCharsets.UTF_8))) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static Object slotLock(final int slot) {
+        final Object lock = new Object();
+        final Object existing = SLOT_LOCKS.putIfAbsent(slot, lock);
+        return existing == null ? lock : existing;
+    }
+
     private void cleanUpResources() {
-        slotManager = null;
-        lunaKeyStore = null;
+        synchronized (this) {
+            lunaKeyStore = null;
+        }
+        keysByLabel.clear();
+        certificatesByLabel.clear();
     }
 
     private void initializeProvider() {
@@ -192,13 +372,25 @@ public final class LunaHsmManager implements HsmManager {
         }
     }
 
+    /*
+     * Get the key store, waiting for the load started at login, or loading it again if that failed.
+     */
+    private synchronized KeyStore getKeyStore() {
+        if (lunaKeyStore == null) {
+            loadKeyStore();
+        }
+        return lunaKeyStore;
+    }
+
     private void loadKeyStore() {
         try {
-            // Obtain the Luna Keystore - Access the LunaSA via PKCS11 through
-            // the Luna Provider
+            // Obtain the Luna Keystore of this manager's slot - Access the LunaSA via PKCS11 through
+            // the Luna Provider. The password can be null after login.
             lunaKeyStore = KeyStore.getInstance(KEYSTORE_TYPE);
-            lunaKeyStore.load(null, null); // Can be null-null after login
+            lunaKeyStore.load(new ByteArrayInputStream(("slot:" + slot).getBytes(StandardCharsets.US_ASCII)), null);
         } catch (NoSuchAlgorithmException | CertificateException | IOException | KeyStoreException e) {
+            lunaKeyStore = null;
+            checkTokenSoon();
             throw new SecurityException("Exception while loading LunaSA KeyStore: ", e);
         }
     }
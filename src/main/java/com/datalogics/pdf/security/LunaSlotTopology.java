@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+import com.safenetinc.luna.LunaSlotManager;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A snapshot of which slot holds each Luna partition, shared by every LunaHsmManager in the process.
+ *
+ * <p>
+ * Looking up a partition's slot by label asks the HSM client library, which may in turn ask the appliance. The
+ * topology looks each label up once, and answers later logins from the snapshot. Once a label has been found, a
+ * background thread looks the known labels up again every {@value #DEFAULT_REFRESH_MILLIS} ms, so partitions that move
+ * or disappear are noticed without slowing down logins. Labels that are not found are not remembered, so a partition
+ * added later is found on the next login.
+ */
+final class LunaSlotTopology {
+    private static final Logger LOGGER = Logger.getLogger(LunaSlotTopology.class.getName());
+
+    static final long DEFAULT_REFRESH_MILLIS = 60000;
+
+    private static final LunaSlotTopology INSTANCE = new LunaSlotTopology();
+
+    private final ConcurrentMap<String, Integer> slotsByLabel = new ConcurrentHashMap<String, Integer>();
+    private ScheduledExecutorService refresher;
+
+    private LunaSlotTopology() {}
+
+    /**
+     * Get the topology shared by the process, like the {@link LunaSlotManager} it describes.
+     *
+     * @return the slot topology
+     */
+    static LunaSlotTopology getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Find the slot holding the partition with a label.
+     *
+     * @param slotManager the slot manager to ask if the label is not in the snapshot
+     * @param tokenLabel the label of the partition
+     * @return the slot number, or a negative number if there is no such partition
+     */
+    int findSlot(final LunaSlotManager slotManager, final String tokenLabel) {
+        final Integer known = slotsByLabel.get(tokenLabel);
+        if (known != null) {
+            return known;
+        }
+        final int slot = slotManager.findSlotFromLabel(tokenLabel);
+        if (slot >= 0) {
+            slotsByLabel.put(tokenLabel, slot);
+            startRefreshing();
+        }
+        return slot;
+    }
+
+    /**
+     * Look every known label up again, dropping labels that are no longer found.
+     */
+    void refresh() {
+        final LunaSlotManager slotManager = LunaSlotManager.getInstance();
+        for (final Map.Entry<String, Integer> entry : slotsByLabel.entrySet()) {
+            final int slot = slotManager.findSlotFromLabel(entry.getKey());
+            if (slot == entry.getValue()) {
+                continue;
+            }
+            if (slot < 0) {
+                slotsByLabel.remove(entry.getKey(), entry.getValue());
+                if (LOGGER.isLoggable(Level.INFO)) {
+                    LOGGER.info("Luna partition " + entry.getKey() + " is no longer available");
+                }
+            } else {
+                slotsByLabel.replace(entry.getKey(), entry.getValue(), slot);
+                if (LOGGER.isLoggable(Level.INFO)) {
+                    LOGGER.info("Luna partition " + entry.getKey() + " moved from slot " + entry.getValue() + " to "
+                                + slot);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget every label.
+     */
+    void clear() {
+        slotsByLabel.clear();
+    }
+
+    private synchronized void startRefreshing() {
+        if (refresher != null) {
+            return;
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "luna-slot-topology");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        refresher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (final RuntimeException e) {
+                    // Keep the snapshot; a login to a partition that really moved fails and is retried
+                    if (LOGGER.isLoggable(Level.WARNING)) {
+                        LOGGER.warning("Could not refresh the Luna slot topology: " + e.getMessage());
+                    }
+                }
+            }
+        }, DEFAULT_REFRESH_MILLIS, DEFAULT_REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A queue with a bounded lane for each {@link TaskPriority}, which hands out elements from the lanes in proportion to
+ * their weights.
+ *
+ * <p>
+ * The lanes are served by smooth weighted round robin: every time an element is taken, each lane with elements waiting
+ * earns its weight in credit, the lane with the most credit is served, and it gives back the total weight of the lanes
+ * that were waiting. Over any stretch where several lanes are busy, each is served in proportion to its weight, and
+ * the turns of the lighter lanes are spread out rather than bunched. A full lane refuses elements without affecting
+ * the others, so a flood of bulk work cannot crowd out interactive work.
+ *
+ * <p>
+ * Within a lane, elements come out in the order of the queue's comparator if it has one, and first in first out
+ * otherwise.
+ *
+ * @param <E> the type of the elements
+ */
+final class PriorityLaneQueue<E> {
+    // Lanes start small and grow up to their capacity as needed
+    private static final int INITIAL_LANE_CAPACITY = 16;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Map<TaskPriority, Lane<E>> lanes = new EnumMap<TaskPriority, Lane<E>>(TaskPriority.class);
+    private final int laneCapacity;
+    private int size;
+
+    /**
+     * Create a queue whose lanes are first in first out.
+     *
+     * @param laneCapacity the largest number of elements each lane may hold
+     */
+    PriorityLaneQueue(final int laneCapacity) {
+        this(laneCapacity, null);
+    }
+
+    /**
+     * Create a queue whose lanes are ordered by a comparator.
+     *
+     * @param laneCapacity the largest number of elements each lane may hold
+     * @param comparator the order of the elements within a lane, or null for first in first out
+     */
+    PriorityLaneQueue(final int laneCapacity, final Comparator<? super E> comparator) {
+        if (laneCapacity <= 0) {
+            throw new IllegalArgumentException("Each lane must hold at least one element");
+        }
+        this.laneCapacity = laneCapacity;
+        for (final TaskPriority priority : TaskPriority.values()) {
+            final Queue<E> elements;
+            if (comparator == null) {
+                elements = new ArrayDeque<E>();
+            } else {
+                elements = new PriorityQueue<E>(Math.min(laneCapacity, INITIAL_LANE_CAPACITY), comparator);
+            }
+            lanes.put(priority, new Lane<E>(elements, priority.getWeight()));
+        }
+    }
+
+    /**
+     * Add an element to the lane for its priority, unless the lane is full.
+     *
+     * @param element the element
+     * @param priority the priority of the element
+     * @return true if the element was added
+     */
+    boolean offer(final E element, final TaskPriority priority) {
+        lock.lock();
+        try {
+            final Lane<E> lane = lanes.get(priority);
+            if (lane.elements.size() >= laneCapacity) {
+                return false;
+            }
+            lane.elements.add(element);
+            size++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tell whether the lane for a priority has room for another element.
+     *
+     * @param priority the priority of the lane
+     * @return true if the lane is not full
+     */
+    boolean hasRoom(final TaskPriority priority) {
+        lock.lock();
+        try {
+            return lanes.get(priority).elements.size() < laneCapacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until an element is waiting.
+     *
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    void awaitNotEmpty() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the next element, choosing the lane by weight and the element by the order of the lane.
+     *
+     * @return the element, or null if the queue is empty
+     */
+    E poll() {
+        lock.lock();
+        try {
+            if (size == 0) {
+                return null;
+            }
+            Lane<E> chosen = null;
+            int totalWeight = 0;
+            for (final Lane<E> lane : lanes.values()) {
+                if (lane.elements.isEmpty()) {
+                    continue;
+                }
+                lane.credit += lane.weight;
+                totalWeight += lane.weight;
+                if (chosen == null || lane.credit > chosen.credit) {
+                    chosen = lane;
+                }
+            }
+            chosen.credit -= totalWeight;
+            size--;
+            final E element = chosen.elements.remove();
+            if (chosen.elements.isEmpty()) {
+                // An idle lane does not save up turns for later
+                chosen.credit = 0;
+            }
+            return element;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take every waiting element.
+     *
+     * @return the elements that were waiting
+     */
+    List<E> drain() {
+        lock.lock();
+        try {
+            final List<E> drained = new ArrayList<E>(size);
+            for (final Lane<E> lane : lanes.values()) {
+                drained.addAll(lane.elements);
+                lane.elements.clear();
+                lane.credit = 0;
+            }
+            size = 0;
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of waiting elements.
+     *
+     * @return the number of elements in every lane
+     */
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of elements waiting in one lane.
+     *
+     * @param priority the priority of the lane
+     * @return the number of elements in the lane
+     */
+    int size(final TaskPriority priority) {
+        lock.lock();
+        try {
+            return lanes.get(priority).elements.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * The elements of one priority, and the lane's round robin credit.
+     */
+    private static final class Lane<E> {
+        private final Queue<E> elements;
+        private final int weight;
+        private int credit;
+
+        private Lane(final Queue<E> elements, final int weight) {
+            this.elements = elements;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+import java.security.Key;
+import java.security.cert.Certificate;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An HsmManager that re-establishes its session with the HSM device when the session is lost.
+ *
+ * <p>
+ * A device-specific HsmManager, such as {@link LunaHsmManager}, cannot log in again once it reaches the
+ * {@link com.datalogics.pdf.security.HsmManager.ConnectionState#DISCONNECTED} state. This class holds on to the login
+ * parameters and, whenever the current session is found to be dead, replaces it with a newly created HsmManager of the
+ * same type and logs it in, retrying with exponential backoff.
+ *
+ * <p>
+ * Sessions are checked in two ways:
+ * <ul>
+ * <li>A background probe checks the connection state of sessions that have been idle for a probe interval, so a
+ * dropped session is usually replaced before the next request arrives.</li>
+ * <li>A request that fails because its session has been lost is retried once on a fresh session. A request that
+ * fails while its session is still connected, for example because of a wrong key password, is not retried, and the
+ * session is kept.</li>
+ * </ul>
+ *
+ * <p>
+ * Reconnecting, including the backoff between login attempts, does not block {@link #getConnectionState()},
+ * {@link #getProviderName()} or {@link #hsmLogout()}.
+ *
+ * <p>
+ * When a reconnection gives up, the request fails with an {@link HsmUnavailableException}. This manager still reports
+ * itself as connected, so that the next request or probe tries again; callers that need to know whether the HSM itself
+ * is failing should look for that exception rather than at the connection state.
+ *
+ * <p>
+ * An explicit call to {@link #hsmLogout()} stops reconnection, and moves this manager to the
+ * {@link com.datalogics.pdf.security.HsmManager.ConnectionState#DISCONNECTED} state for good.
+ */
+public final class ReconnectingHsmManager implements HsmManager {
+    private static final Logger LOGGER = Logger.getLogger(ReconnectingHsmManager.class.getName());
+
+    public static final long DEFAULT_PROBE_INTERVAL_MILLIS = 30000;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 100;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 10000;
+    public static final int DEFAULT_MAX_LOGIN_ATTEMPTS = 6;
+
+    private final Callable<HsmManager> managerSource;
+    private final long probeIntervalMillis;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final int maxLoginAttempts;
+    private final Random jitter = new Random();
+    // Held for a whole reconnection, so that only one thread logs in; the monitor only guards the fields below
+    private final Object reconnectLock = new Object();
+
+    private HsmManager session;
+    private HsmLoginParameters loginParameters;
+    private String providerName;
+    private ConnectionState state;
+    private ScheduledExecutorService prober;
+    private volatile long lastActivityNanos;
+
+    /**
+     * Create a reconnecting manager with the default probe interval and backoff.
+     *
+     * @param hsmType the type of HSM device, as accepted by {@link HsmManagerFactory#newInstance(String)}
+     */
+    ReconnectingHsmManager(final String hsmType) {
+        this(new Callable<HsmManager>() {
+            @Override
+            public HsmManager call() {
+                return HsmManagerFactory.newInstance(hsmType);
+            }
+        }, DEFAULT_PROBE_INTERVAL_MILLIS, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS,
+             DEFAULT_MAX_LOGIN_ATTEMPTS);
+    }
+
+    /**
+     * Create a reconnecting manager.
+     *
+     * @param managerSource creates a new, unconnected HsmManager for each session
+     * @param probeIntervalMillis how long a session may be idle before it is probed, or 0 to disable probing
+     * @param initialBackoffMillis the delay before the second login attempt of a reconnection
+     * @param maxBackoffMillis the upper bound of the delay between login attempts
+     * @param maxLoginAttempts the number of login attempts made by one reconnection before giving up
+     */
+    ReconnectingHsmManager(final Callable<HsmManager> managerSource, final long probeIntervalMillis,
+                           final long initialBackoffMillis, final long maxBackoffMillis,
+                           final int maxLoginAttempts) {
+        this.managerSource = managerSource;
+        this.probeIntervalMillis = probeIntervalMillis;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.maxLoginAttempts = maxLoginAttempts;
+        this.state = ConnectionState.READY;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.datalogics.pdf.security.HsmManager#hsmLogin(com.datalogics.pdf.security.HsmLoginParameters)
+     */
+    @Override
+    public synchronized void hsmLogin(final HsmLoginParameters parms) {
+        if (!state.equals(ConnectionState.READY)) {
+            throw new IllegalStateException("HsmManager not in a ready to login state, "
+                                            + "create a new HsmManager instance");
+        }
+
+        // The first login is not retried, so that bad parameters are reported right away
+        final HsmManager newSession = newSession();
+        newSession.hsmLogin(parms);
+
+        session = newSession;
+        loginParameters = parms;
+        providerName = newSession.getProviderName();
+        state = ConnectionState.CONNECTED;
+        lastActivityNanos = System.nanoTime();
+        startProbing();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.datalogics.pdf.security.HsmManager#hsmLogout()
+     */
+    @Override
+    public synchronized void hsmLogout() {
+        if (state.equals(ConnectionState.CONNECTED)) {
+            stopProbing();
+            session.hsmLogout();
+            session = null;
+            loginParameters = null;
+            state = ConnectionState.DISCONNECTED;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.datalogics.pdf.security.HsmManager#getConnectionState()
+     */
+    @Override
+    public synchronized ConnectionState getConnectionState() {
+        return state;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.datalogics.pdf.security.HsmManager#getKey(java.lang.String, java.lang.String)
+     */
+    @Override
+    public Key getKey(final String password, final String keyLabel) {
+        return perform(new Operation<Key>() {
+            @Override
+            public Key perform(final HsmManager hsmManager) {
+                return hsmManager.getKey(password, keyLabel);
+            }
+        });
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.datalogics.pdf.security.HsmManager#getCertificateChain(java.lang.String)
+     */
+    @Override
+    public Certificate[] getCertificateChain(final String certLabel) {
+        return perform(new Operation<Certificate[]>() {
+            @Override
+            public Certificate[] perform(final HsmManager hsmManager) {
+                return hsmManager.getCertificateChain(certLabel);
+            }
+        });
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.datalogics.pdf.security.HsmManager#getProviderName()
+     */
+    @Override
+    public synchronized String getProviderName() {
+        return providerName;
+    }
+
+    /**
+     * Check the current session, and replace it if it is no longer connected.
+     *
+     * <p>
+     * This is the health probe that runs in the background on idle sessions; it is public so that applications can
+     * also run it on their own schedule.
+     *
+     * @return true if a connected session is available after the check
+     */
+    public boolean probe() {
+        final HsmManager current = currentSession();
+        if (current == null) {
+            return false;
+        }
+        if (ConnectionState.CONNECTED.equals(current.getConnectionState())) {
+            return true;
+        }
+        try {
+            reconnect(current);
+            return true;
+        } catch (final IllegalStateException e) {
+            if (LOGGER.isLoggable(Level.WARNING)) {
+                LOGGER.warning("HSM health probe could not reconnect: " + e.getMessage());
+            }
+            return false;
+        }
+    }
+
+    /*
+     * Run an operation on the current session, retrying it once on a fresh session if it fails.
+     */
+    private <T> T perform(final Operation<T> operation) {
+        lastActivityNanos = System.nanoTime();
+
+        HsmManager current = currentSession();
+        if (current == null) {
+            throw new SecurityException("Call the hsmLogin method to login to HSM device first.");
+        }
+        if (!ConnectionState.CONNECTED.equals(current.getConnectionState())) {
+            current = reconnect(current);
+        }
+
+        try {
+            return operation.perform(current);
+        } catch (final IllegalArgumentException e) {
+            // Bad arguments will fail on any session
+            throw e;
+        } catch (final RuntimeException e) {
+            if (ConnectionState.CONNECTED.equals(current.getConnectionState())) {
+                // The session is fine, so the request itself was refused, and would be on any session
+                throw e;
+            }
+            if (LOGGER.isLoggable(Level.INFO)) {
+                LOGGER.info("HSM operation failed, retrying on a fresh session: " + e.getMessage());
+            }
+        }
+
+        final HsmManager fresh = reconnect(current);
+        try {
+            return operation.perform(fresh);
+        } catch (final IllegalArgumentException e) {
+            throw e;
+        } catch (final RuntimeException e) {
+            if (ConnectionState.CONNECTED.equals(fresh.getConnectionState())) {
+                throw e;
+            }
+            // The HSM takes logins but keeps dropping sessions
+            throw new HsmUnavailableException("HSM session was lost again right after reconnecting", e);
+        }
+    }
+
+    private synchronized HsmManager currentSession() {
+        return state.equals(ConnectionState.CONNECTED) ? session : null;
+    }
+
+    /*
+     * Replace a failed session with a new, logged in session.
+     *
+     * If another thread has already replaced the failed session, its replacement is returned without logging in
+     * again. The monitor is only held to read and replace the session, not while logging in or backing off.
+     */
+    private HsmManager reconnect(final HsmManager failed) {
+        synchronized (reconnectLock) {
+            final HsmLoginParameters parms;
+            synchronized (this) {
+                checkNotLoggedOut();
+                if (session != failed) {
+                    return session;
+                }
+                parms = loginParameters;
+            }
+
+            closeQuietly(failed);
+
+            RuntimeException lastFailure = null;
+            long backoffMillis = initialBackoffMillis;
+            for (int attempt = 1; attempt <= maxLoginAttempts; attempt++) {
+                HsmManager newSession;
+                try {
+                    newSession = newSession();
+                    newSession.hsmLogin(parms);
+                } catch (final RuntimeException e) {
+                    lastFailure = e;
+                    newSession = null;
+                }
+                if (newSession != null) {
+                    if (!replaceSession(newSession)) {
+                        // Logged out while the new session was logging in
+                        closeQuietly(newSession);
+                        throw new SecurityException("Call the hsmLogin method to login to HSM device first.");
+                    }
+                    if (LOGGER.isLoggable(Level.INFO)) {
+                        LOGGER.info("Reconnected to HSM after " + attempt + " login attempt(s)");
+                    }
+                    return newSession;
+                }
+
+                if (attempt < maxLoginAttempts) {
+                    sleep(backoffMillis + nextJitter(backoffMillis));
+                    backoffMillis = Math.min(backoffMillis * 2, maxBackoffMillis);
+                    synchronized (this) {
+                        checkNotLoggedOut();
+                    }
+                }
+            }
+            throw new HsmUnavailableException("Could not reconnect to the HSM after " + maxLoginAttempts
+                                              + " login attempts", lastFailure);
+        }
+    }
+
+    /*
+     * Install a newly logged in session, unless this manager was logged out while it was being created.
+     */
+    private synchronized boolean replaceSession(final HsmManager newSession) {
+        if (!state.equals(ConnectionState.CONNECTED)) {
+            return false;
+        }
+        session = newSession;
+        return true;
+    }
+
+    /*
+     * Refuse to reconnect once this manager has been logged out. Called with the monitor held.
+     */
+    private void checkNotLoggedOut() {
+        if (!state.equals(ConnectionState.CONNECTED)) {
+            throw new SecurityException("Call the hsmLogin method to login to HSM device first.");
+        }
+    }
+
+    private HsmManager newSession() {
+        try {
+            return managerSource.call();
+        } catch (final RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new IllegalStateException("Could not create a new HsmManager", e);
+        }
+    }
+
+    private long nextJitter(final long backoffMillis) {
+        // Up to half the backoff again, so that many clients do not retry in lock step
+        final int bound = (int) Math.min(Integer.MAX_VALUE, backoffMillis / 2);
+        return bound > 0 ? jitter.nextInt(bound) : 0;
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reconnecting to the HSM", e);
+        }
+    }
+
+    private static void closeQuietly(final HsmManager failed) {
+        try {
+            failed.hsmLogout();
+        } catch (final RuntimeException e) {
+            // The session is already unusable; there is nothing more to clean up
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Ignoring failure to log out of a dead HSM session: " + e.getMessage());
+            }
+        }
+    }
+
+    private void startProbing() {
+        if (probeIntervalMillis <= 0) {
+            return;
+        }
+        prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "hsm-health-probe");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        prober.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                final long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActivityNanos);
+                if (idleMillis >= probeIntervalMillis) {
+                    probe();
+                }
+            }
+        }, probeIntervalMillis, probeIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopProbing() {
+        if (prober != null) {
+            prober.shutdownNow();
+            prober = null;
+        }
+    }
+
+    /*
+     * An operation on a single HSM session.
+     */
+    private interface Operation<T> {
+        T perform(HsmManager hsmManager);
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown when an HSM task is refused because the HSM is failing or too much work is already waiting for it.
+ *
+ * <p>
+ * The exception carries a hint for how long the caller should wait before trying again, suitable for passing on as,
+ * for example, an HTTP Retry-After header.
+ */
+public class SigningRejectedException extends RejectedExecutionException {
+    private static final long serialVersionUID = 7906375226341384617L;
+
+    private final long retryAfterMillis;
+
+    /**
+     * Create the exception.
+     *
+     * @param message the reason the task was refused
+     * @param retryAfterMillis how long the caller should wait before trying again
+     */
+    public SigningRejectedException(final String message, final long retryAfterMillis) {
+        super(message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Get how long the caller should wait before trying again.
+     *
+     * @return the suggested delay in milliseconds
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
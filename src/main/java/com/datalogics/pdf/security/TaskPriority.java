@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+/**
+ * The priority class of an HSM task, which decides its share of the HSM sessions when tasks of several classes are
+ * waiting.
+ *
+ * <p>
+ * While every class has tasks waiting, each gets sessions in proportion to its weight, so a backlog of bulk work
+ * still drains, but a user-facing task gets one of the next free sessions.
+ */
+public enum TaskPriority {
+    /** A task a user is waiting for. */
+    INTERACTIVE(16),
+    /** A task with no particular urgency. */
+    NORMAL(4),
+    /** A task from a batch run, which can wait for more urgent work. */
+    BULK(1);
+
+    private final int weight;
+
+    TaskPriority(final int weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * Get the share of sessions this class gets relative to the others while all have tasks waiting.
+     *
+     * @return the weight
+     */
+    public int getWeight() {
+        return weight;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.datalogics.pdf.hsm.samples.fakes.FakeConnectedHsmManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the AsyncSigningService.
+ */
+public class AsyncSigningServiceTest extends SampleTest {
+    private static final String PASSWORD = "password";
+
+    private AsyncSigningService service;
+    private URL inputUrl;
+
+    /**
+     * Create a service on an always connected HsmManager.
+     *
+     * @throws Exception a general exception was thrown
+     */
+    @Before
+    public void setUpService() throws Exception {
+        service = new AsyncSigningService(new FakeConnectedHsmManager(), new SigningProfile(PASSWORD), 2);
+        inputUrl = HsmSignDocument.class.getResource(HsmSignDocument.INPUT_UNSIGNED_PDF_PATH);
+    }
+
+    /**
+     * Shut the service down.
+     */
+    @After
+    public void tearDownService() {
+        service.close();
+    }
+
+    @Test
+    public void callbackIsToldAboutFieldsAndResult() throws Exception {
+        final File outputFile = newOutputFileWithDelete("AsyncSignedField.pdf");
+        Files.createDirectories(outputFile.getParentFile().toPath());
+        final List<String> signedFields = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        final SigningFuture future = service.signAsync(inputUrl, outputFile.toURI().toURL(), new SigningCallback() {
+            @Override
+            public void onFieldSigned(final String qualifiedFieldName) {
+                signedFields.add(qualifiedFieldName);
+            }
+
+            @Override
+            public void onSuccess(final URL outputUrl) {
+                finished.countDown();
+            }
+
+            @Override
+            public void onFailure(final Throwable failure) {}
+        }, 60, TimeUnit.SECONDS);
+
+        assertTrue("Callback should be told about the result", finished.await(30, TimeUnit.SECONDS));
+        assertEquals("Future should report the output URL", outputFile.toURI().toURL(), future.get());
+        assertEquals("Callback should be told about the signed field",
+                     Collections.singletonList(FakeConnectedHsmTest.QUALIFIED_SIGNATURE_FIELD_NAME), signedFields);
+        assertTrue(outputFile.getPath() + " must exist after signing", outputFile.exists());
+    }
+
+    @Test
+    public void documentsFromOneTemplateShareAnalysis() throws Exception {
+        for (int i = 1; i <= 3; i++) {
+            final File outputFile = newOutputFileWithDelete("AsyncTemplate" + i + ".pdf");
+            Files.createDirectories(outputFile.getParentFile().toPath());
+            final SigningRequest request = new SigningRequest(inputUrl, outputFile.toURI().toURL(), null,
+                                                              "approval-form-rev-1");
+
+            service.signAsync(request, null).get(30, TimeUnit.SECONDS);
+
+            assertTrue(outputFile.getPath() + " must exist after signing", outputFile.exists());
+        }
+
+        final TemplateAnalysisCache cache = service.getTemplateCache();
+        assertEquals("Only the first document should be analyzed in full", 1, cache.getMissCount());
+        assertEquals("Later documents should reuse the analysis", 2, cache.getHitCount());
+        assertEquals("One template should be cached", 1, cache.size());
+    }
+
+    @Test
+    public void repeatedDocumentIsAnsweredFromResultStore() throws Exception {
+        // A fresh store, so that results of earlier runs are not found
+        final Path outputDirectory = newOutputFile("AsyncResultStore").getParentFile().toPath();
+        Files.createDirectories(outputDirectory);
+        final SignedResultStore store = new SignedResultStore(Files.createTempDirectory(outputDirectory,
+                                                                                        "AsyncResultStore"));
+        service.setResultStore(store);
+        final List<String> signedFields = Collections.synchronizedList(new ArrayList<String>());
+        final SigningCallback callback = new SigningCallback() {
+            @Override
+            public void onFieldSigned(final String qualifiedFieldName) {
+                signedFields.add(qualifiedFieldName);
+            }
+
+            @Override
+            public void onSuccess(final URL outputUrl) {}
+
+            @Override
+            public void onFailure(final Throwable failure) {}
+        };
+
+        final List<File> outputFiles = new ArrayList<File>();
+        for (int i = 1; i <= 2; i++) {
+            final File outputFile = newOutputFileWithDelete("AsyncRepeated" + i + ".pdf");
+            Files.createDirectories(outputFile.getParentFile().toPath());
+            outputFiles.add(outputFile);
+            service.signAsync(inputUrl, outputFile.toURI().toURL(), callback).get(30, TimeUnit.SECONDS);
+        }
+
+        assertEquals("Only the first document should be signed", 1, signedFields.size());
+        assertEquals("The repeated document should be answered from the store", 1, store.getHitCount());
+        assertTrue("The stored result should be in place",
+                   Arrays.equals(Files.readAllBytes(outputFiles.get(0).toPath()),
+                                 Files.readAllBytes(outputFiles.get(1).toPath())));
+    }
+
+    @Test
+    public void signedFieldsAreRecordedInAuditLog() throws Exception {
+        final Path outputDirectory = newOutputFile("AsyncAudit").getParentFile().toPath();
+        Files.createDirectories(outputDirectory);
+        final Path logPath = Files.createTempFile(outputDirectory, "AsyncAudit", ".audit");
+        Files.delete(logPath);
+        final List<String> signedFields = Collections.synchronizedList(new ArrayList<String>());
+        final File outputFile = newOutputFileWithDelete("AsyncAudited.pdf");
+        try (SignatureAuditLog log = new SignatureAuditLog(logPath)) {
+            service.setAuditLog(log);
+            service.signAsync(inputUrl, outputFile.toURI().toURL(), new SigningCallback() {
+                @Override
+                public void onFieldSigned(final String qualifiedFieldName) {
+                    signedFields.add(qualifiedFieldName);
+                }
+
+                @Override
+                public void onSuccess(final URL outputUrl) {}
+
+                @Override
+                public void onFailure(final Throwable failure) {}
+            }).get(30, TimeUnit.SECONDS);
+        }
+
+        final byte[] documentHash = MessageDigest.getInstance("SHA-256")
+                                                 .digest(Files.readAllBytes(outputFile.toPath()));
+        final List<String> auditedFields = new ArrayList<String>();
+        try (SignatureAuditReader reader = new SignatureAuditReader(logPath)) {
+            SignatureAuditRecord record;
+            while ((record = reader.next()) != null) {
+                auditedFields.add(record.getQualifiedFieldName());
+                assertTrue("The record should hold the digest of the signed document",
+                           Arrays.equals(documentHash, record.getDocumentHash()));
+                assertEquals("The record should name the key", new SigningProfile(PASSWORD).getKeyLabel(),
+                             record.getKeyLabel());
+            }
+        }
+        assertEquals("Every signed field should be recorded", signedFields, auditedFields);
+    }
+
+    @Test
+    public void auditRecordsAreOnDiskBeforeDocumentIsInPlace() throws Exception {
+        final Path outputDirectory = newOutputFile("AsyncAudit").getParentFile().toPath();
+        Files.createDirectories(outputDirectory);
+        final Path logPath = Files.createTempFile(outputDirectory, "AsyncAuditWindow", ".audit");
+        Files.delete(logPath);
+        final File outputFile = newOutputFileWithDelete("AsyncAuditedWindow.pdf");
+        // A window far longer than the test, so only the flush before the move can commit the records
+        try (SignatureAuditLog log = new SignatureAuditLog(logPath, 1, TimeUnit.HOURS)) {
+            service.setAuditLog(log);
+            service.signAsync(inputUrl, outputFile.toURI().toURL(), null).get(30, TimeUnit.SECONDS);
+
+            assertTrue("The signed document should be in place", outputFile.length() > 0);
+            assertEquals("The records should have been committed before the move", 1, log.getCommitCount());
+        }
+    }
+
+    @Test
+    public void largeDocumentIsSignedOnItsOwnWorkers() throws Exception {
+        // Every local document counts as large
+        final AsyncSigningService sizeAwareService = new AsyncSigningService(new FakeConnectedHsmManager(),
+                                                                             new SigningProfile(PASSWORD), 2, 1, 1);
+        try {
+            final File outputFile = newOutputFileWithDelete("AsyncLarge.pdf");
+            Files.createDirectories(outputFile.getParentFile().toPath());
+            final List<String> threadNames = Collections.synchronizedList(new ArrayList<String>());
+
+            sizeAwareService.signAsync(inputUrl, outputFile.toURI().toURL(), new SigningCallback() {
+                @Override
+                public void onFieldSigned(final String qualifiedFieldName) {
+                    threadNames.add(Thread.currentThread().getName());
+                }
+
+                @Override
+                public void onSuccess(final URL outputUrl) {}
+
+                @Override
+                public void onFailure(final Throwable failure) {}
+            }).get(30, TimeUnit.SECONDS);
+
+            assertEquals("One field should be signed", 1, threadNames.size());
+            assertTrue("A large document should be signed by a large document worker",
+                       threadNames.get(0).startsWith("signing-async-large-"));
+        } finally {
+            sizeAwareService.close();
+        }
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void closedServiceRejectsDocuments() throws Exception {
+        service.close();
+
+        service.signAsync(inputUrl, newOutputFile("AsyncClosed.pdf").toURI().toURL(), null);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.datalogics.pdf.hsm.samples.fakes.FakeConnectedHsmManager;
+import com.datalogics.pdf.security.HsmGroupLoginParameters;
+import com.datalogics.pdf.security.HsmLoginParameters;
+import com.datalogics.pdf.security.HsmManager;
+import com.datalogics.pdf.security.HsmManagerGroup;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the DurableSigningQueue.
+ */
+public class DurableSigningQueueTest extends SampleTest {
+    private static final String PASSWORD = "password";
+
+    private HsmManagerGroup group;
+    private URL inputUrl;
+
+    /**
+     * Log a two member group in.
+     *
+     * @throws Exception a general exception was thrown
+     */
+    @Before
+    public void setUpGroup() throws Exception {
+        group = new HsmManagerGroup(new Callable<HsmManager>() {
+            @Override
+            public HsmManager call() throws Exception {
+                return new FakeConnectedHsmManager();
+            }
+        }, 60000);
+        group.hsmLogin(new HsmGroupLoginParameters(Arrays.asList(new HsmLoginParameters(PASSWORD),
+                                                                 new HsmLoginParameters(PASSWORD))));
+        inputUrl = HsmSignDocument.class.getResource(HsmSignDocument.INPUT_UNSIGNED_PDF_PATH);
+    }
+
+    @Test
+    public void batchResumesWithoutSigningTwice() throws Exception {
+        final File outputFile = newOutputFileWithDelete("DurableSigned.pdf");
+        Files.createDirectories(outputFile.getParentFile().toPath());
+        final Path journalPath = newOutputFileWithDelete("DurableSigned.journal").toPath();
+        final SigningRequest request = new SigningRequest(inputUrl, outputFile.toURI().toURL());
+
+        // A batch that accepted the request and then stopped
+        try (SigningJournal journal = new SigningJournal(journalPath)) {
+            journal.recordAccepted(request);
+        }
+
+        try (DurableSigningQueue queue = newQueue(journalPath)) {
+            final List<Future<URL>> resumed = queue.resume();
+            assertEquals("The accepted request should be resumed", 1, resumed.size());
+            assertEquals("Future should report the output URL", outputFile.toURI().toURL(),
+                         resumed.get(0).get(30, TimeUnit.SECONDS));
+        }
+        assertTrue(outputFile.getPath() + " must exist after signing", outputFile.exists());
+        Files.delete(outputFile.toPath());
+
+        try (DurableSigningQueue queue = newQueue(journalPath)) {
+            assertTrue("Nothing should be left to resume", queue.resume().isEmpty());
+            final Future<URL> result = queue.submit(request);
+            assertTrue("A completed request should not be queued again", result.isDone());
+            assertEquals("The skipped request should be counted", 1, queue.getSkippedCount());
+        }
+        assertTrue(outputFile.getPath() + " must not be signed again", !outputFile.exists());
+    }
+
+    @Test
+    public void requestIsRecordedBeforeItsFutureIsDone() throws Exception {
+        final File outputFile = newOutputFileWithDelete("DurableRecorded.pdf");
+        Files.createDirectories(outputFile.getParentFile().toPath());
+        final Path journalPath = newOutputFileWithDelete("DurableRecorded.journal").toPath();
+        final SigningRequest request = new SigningRequest(inputUrl, outputFile.toURI().toURL());
+
+        final SigningJournal journal = new SigningJournal(journalPath);
+        try (DurableSigningQueue queue = new DurableSigningQueue(newPipeline(), journal)) {
+            final Future<URL> first = queue.submit(request);
+            final Future<URL> second = queue.submit(request);
+            assertTrue("A request still in flight should not be queued again",
+                       second == first || queue.getSkippedCount() == 1);
+
+            first.get(30, TimeUnit.SECONDS);
+            assertTrue("The request should be recorded as completed", journal.isCompleted(request));
+        }
+    }
+
+    private SigningPipeline newPipeline() {
+        return new SigningPipeline(group, new SigningProfile(PASSWORD), 1, 1, 2, 1, 1);
+    }
+
+    private DurableSigningQueue newQueue(final Path journalPath) throws Exception {
+        return new DurableSigningQueue(newPipeline(), new SigningJournal(journalPath));
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the SignatureAuditLog and SignatureAuditReader.
+ */
+public class SignatureAuditLogTest {
+    // 2016-03-01T12:00:00Z
+    private static final long TIMESTAMP = 1456833600000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordsAreReadBack() throws Exception {
+        final Path path = folder.getRoot().toPath().resolve("signatures.audit");
+        try (SignatureAuditLog log = new SignatureAuditLog(path)) {
+            log.append(record(1, "Signature1"));
+            log.append(record(2, "Form.Approval"));
+        }
+
+        try (SignatureAuditReader reader = new SignatureAuditReader(path)) {
+            assertEquals("The first record should be read back", record(1, "Signature1"), reader.next());
+            assertEquals("The second record should be read back", record(2, "Form.Approval"), reader.next());
+            assertNull("There should be no more records", reader.next());
+            assertFalse("The log should not be damaged", reader.isDamaged());
+        }
+    }
+
+    @Test
+    public void tornRecordIsDiscarded() throws Exception {
+        final Path path = folder.getRoot().toPath().resolve("torn.audit");
+        try (SignatureAuditLog log = new SignatureAuditLog(path)) {
+            log.append(record(1, "Signature1"));
+        }
+        final long wholeLength = Files.size(path);
+        // A record cut short by a crash: its length, and only part of its payload
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 80, 1, 2, 3 }));
+        }
+
+        try (SignatureAuditReader reader = new SignatureAuditReader(path)) {
+            assertEquals("The whole record should be read", record(1, "Signature1"), reader.next());
+            assertNull("Reading should stop at the torn record", reader.next());
+            assertTrue("The torn record should be reported", reader.isDamaged());
+        }
+
+        try (SignatureAuditLog log = new SignatureAuditLog(path)) {
+            assertEquals("The torn record should be cut off", wholeLength, Files.size(path));
+            log.append(record(2, "Signature1"));
+        }
+        try (SignatureAuditReader reader = new SignatureAuditReader(path)) {
+            reader.next();
+            assertEquals("Records after the cut should be read", record(2, "Signature1"), reader.next());
+        }
+    }
+
+    @Test
+    public void concurrentAppendsAreCommittedTogether() throws Exception {
+        final Path path = folder.getRoot().toPath().resolve("group.audit");
+        final int signatures = 200;
+        final ExecutorService threads = Executors.newFixedThreadPool(16);
+        try (SignatureAuditLog log = new SignatureAuditLog(path, 0, TimeUnit.MILLISECONDS)) {
+            final List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < signatures; i++) {
+                final SignatureAuditRecord record = record(i, "Signature1");
+                results.add(threads.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        log.append(record);
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Void> result : results) {
+                result.get();
+            }
+            assertEquals("Every record should be appended", signatures, log.getAppendedCount());
+            assertTrue("Records should share commits", log.getCommitCount() < signatures);
+        } finally {
+            threads.shutdown();
+        }
+
+        int read = 0;
+        try (SignatureAuditReader reader = new SignatureAuditReader(path)) {
+            while (reader.next() != null) {
+                read++;
+            }
+        }
+        assertEquals("Every record should be on disk", signatures, read);
+    }
+
+    @Test
+    public void recordsWithinTheWindowShareOneCommit() throws Exception {
+        final Path path = folder.getRoot().toPath().resolve("window.audit");
+        try (SignatureAuditLog log = new SignatureAuditLog(path, 1, TimeUnit.HOURS)) {
+            for (int i = 0; i < 50; i++) {
+                log.append(record(i, "Signature1"));
+            }
+            assertEquals("No record should be committed before the window ends", 0, log.getCommitCount());
+
+            log.flush();
+            assertEquals("Flushing should commit every record at once", 1, log.getCommitCount());
+        }
+    }
+
+    @Test
+    public void queriesSelectMatchingRecords() throws Exception {
+        final Path path = folder.getRoot().toPath().resolve("query.audit");
+        try (SignatureAuditLog log = new SignatureAuditLog(path)) {
+            log.append(record(1, "Signature1"));
+            log.append(record(2, "Signature2"));
+            log.append(new SignatureAuditRecord(TIMESTAMP + 3, hash(3), "Signature1", "other-key",
+                                                BigInteger.valueOf(0x1234)));
+        }
+
+        final SignatureAuditReader.Query query = new SignatureAuditReader.Query();
+        query.set("--field", "Signature1");
+        query.set("--since", "2016-03-01T12:00:00Z");
+        final StringWriter out = new StringWriter();
+        assertEquals("Both records of the field should match", 2, SignatureAuditReader.print(path, query, out));
+
+        query.set("--serial", "1234");
+        assertEquals("Only the record of that certificate should match", 1,
+                     SignatureAuditReader.print(path, query, new StringWriter()));
+
+        query.set("--until", "2016-03-01T12:00:00Z");
+        assertEquals("No record should match an empty time range", 0,
+                     SignatureAuditReader.print(path, query, new StringWriter()));
+        assertTrue("Matching records should be printed with their time",
+                   out.toString().startsWith("2016-03-01T12:00:00Z " + record(1, "x").getDocumentHashHex()
+                                             + " Signature1 signing-key 7b"));
+    }
+
+    @Test(expected = IOException.class)
+    public void closedLogRefusesRecords() throws Exception {
+        final Path path = folder.getRoot().toPath().resolve("closed.audit");
+        final SignatureAuditLog log = new SignatureAuditLog(path);
+        log.close();
+
+        log.append(record(1, "Signature1"));
+    }
+
+    private static SignatureAuditRecord record(final int number, final String qualifiedFieldName) {
+        return new SignatureAuditRecord(TIMESTAMP + number, hash(number), qualifiedFieldName, "signing-key",
+                                        BigInteger.valueOf(123));
+    }
+
+    private static byte[] hash(final int number) {
+        final byte[] hash = new byte[32];
+        hash[0] = (byte) number;
+        return hash;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.adobe.pdfjt.pdf.document.PDFDocument;
+import com.adobe.pdfjt.services.digsig.SignatureFieldInterface;
+import com.adobe.pdfjt.services.digsig.SignatureManager;
+
+import com.datalogics.pdf.hsm.samples.util.DocumentUtils;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+/**
+ * Unit tests for the SignatureFieldIndex.
+ */
+public class SignatureFieldIndexTest extends SampleTest {
+    @Test
+    public void fieldIsFoundByQualifiedName() throws Exception {
+        final PDFDocument doc = DocumentUtils.openPdfDocument(HsmSignDocument.class.getResource(
+                        HsmSignDocument.INPUT_UNSIGNED_PDF_PATH));
+        try {
+            final SignatureFieldIndex index = new SignatureFieldIndex(SignatureManager.newInstance(doc));
+
+            final SignatureFieldInterface sigField = index.get(FakeConnectedHsmTest.QUALIFIED_SIGNATURE_FIELD_NAME);
+
+            assertEquals("Qualified field names must match", FakeConnectedHsmTest.QUALIFIED_SIGNATURE_FIELD_NAME,
+                         sigField.getQualifiedName());
+            assertSame("Later lookups must return the indexed field", sigField,
+                       index.get(FakeConnectedHsmTest.QUALIFIED_SIGNATURE_FIELD_NAME));
+        } finally {
+            doc.close();
+        }
+    }
+
+    @Test
+    public void missingFieldIsNull() throws Exception {
+        final PDFDocument doc = DocumentUtils.openPdfDocument(HsmSignDocument.class.getResource(
+                        HsmSignDocument.INPUT_UNSIGNED_PDF_PATH));
+        try {
+            final SignatureFieldIndex index = new SignatureFieldIndex(SignatureManager.newInstance(doc));
+
+            assertNull("There must be no field with an unknown name", index.get("NoSuchField"));
+            assertEquals("The index must list the document's fields",
+                         Collections.singleton(FakeConnectedHsmTest.QUALIFIED_SIGNATURE_FIELD_NAME),
+                         index.getFieldNames());
+        } finally {
+            doc.close();
+        }
+    }
+}
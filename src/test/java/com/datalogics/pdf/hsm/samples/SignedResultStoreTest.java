@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Unit tests for the SignedResultStore.
+ */
+public class SignedResultStoreTest {
+    private static final String PASSWORD = "password";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path storeDirectory;
+    private Path input;
+
+    /**
+     * Create an input document and a directory for the store.
+     *
+     * @throws Exception a general exception was thrown
+     */
+    @Before
+    public void setUpStore() throws Exception {
+        storeDirectory = folder.getRoot().toPath().resolve("store");
+        input = folder.getRoot().toPath().resolve("input.pdf");
+        Files.write(input, "%PDF-1.7 unsigned".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void fingerprintCoversInputFieldAndProfile() throws Exception {
+        final SignedResultStore store = new SignedResultStore(storeDirectory);
+        final SigningProfile profile = new SigningProfile(PASSWORD);
+        final SigningRequest request = new SigningRequest(input.toUri().toURL(), output("a.pdf").toUri().toURL());
+        final byte[] content = Files.readAllBytes(input);
+
+        final String fingerprint = store.fingerprint(content, request, profile);
+        assertEquals("The output location should not matter", fingerprint,
+                     store.fingerprint(content,
+                                       new SigningRequest(input.toUri().toURL(), output("b.pdf").toUri().toURL()),
+                                       profile));
+        assertNotEquals("The field to sign should matter", fingerprint,
+                        store.fingerprint(content,
+                                          new SigningRequest(input.toUri().toURL(), output("a.pdf").toUri().toURL(),
+                                                             "Signature1", null),
+                                          profile));
+        assertNotEquals("The key should matter", fingerprint,
+                        store.fingerprint(content, request, new SigningProfile("other-key",
+                                                                               SigningProfile.DEFAULT_CERTIFICATE_LABEL,
+                                                                               PASSWORD,
+                                                                               SigningProfile.DEFAULT_DIGEST_ALGORITHM,
+                                                                               SigningProfile.DEFAULT_SIGNER_NAME)));
+        assertNotEquals("The key password should matter", fingerprint,
+                        store.fingerprint(content, request, new SigningProfile("wrong-password")));
+        assertNotEquals("The input bytes should matter", fingerprint,
+                        store.fingerprint("%PDF-1.7 changed".getBytes(StandardCharsets.US_ASCII), request, profile));
+    }
+
+    @Test
+    public void fingerprintCoversToken() throws Exception {
+        final SigningProfile profile = new SigningProfile(PASSWORD);
+        final SigningRequest request = new SigningRequest(input.toUri().toURL(), output("a.pdf").toUri().toURL());
+        final byte[] content = Files.readAllBytes(input);
+
+        final String fingerprint = new SignedResultStore(storeDirectory, Long.MAX_VALUE, "token-a")
+                        .fingerprint(content, request, profile);
+
+        assertEquals("The same token should give the same fingerprint", fingerprint,
+                     new SignedResultStore(storeDirectory, Long.MAX_VALUE, "token-a")
+                                     .fingerprint(content, request, profile));
+        assertNotEquals("The token should matter", fingerprint,
+                        new SignedResultStore(storeDirectory, Long.MAX_VALUE, "token-b")
+                                        .fingerprint(content, request, profile));
+    }
+
+    @Test
+    public void fingerprintKeyBelongsToTheStore() throws Exception {
+        final SigningProfile profile = new SigningProfile(PASSWORD);
+        final SigningRequest request = new SigningRequest(input.toUri().toURL(), output("a.pdf").toUri().toURL());
+        final byte[] content = Files.readAllBytes(input);
+
+        final String fingerprint = new SignedResultStore(storeDirectory).fingerprint(content, request, profile);
+
+        assertEquals("A reopened store should keep its fingerprints", fingerprint,
+                     new SignedResultStore(storeDirectory).fingerprint(content, request, profile));
+        assertNotEquals("Another store should not compute the same fingerprints", fingerprint,
+                        new SignedResultStore(folder.getRoot().toPath().resolve("other"))
+                                        .fingerprint(content, request, profile));
+    }
+
+    @Test
+    public void storedDocumentIsCopiedIntoPlace() throws Exception {
+        final SignedResultStore store = new SignedResultStore(storeDirectory);
+        final Path signed = signedDocument("signed.pdf", 100);
+
+        assertFalse("An empty store should have nothing to copy", store.copyTo("abc", output("first.pdf")));
+        store.put("abc", signed);
+        assertTrue("The stored document should be copied", store.copyTo("abc", output("second.pdf")));
+
+        assertArrayEquals("The copy should match the stored document", Files.readAllBytes(signed),
+                          Files.readAllBytes(output("second.pdf")));
+        assertEquals("One request should be answered", 1, store.getHitCount());
+        assertEquals("One request should be missed", 1, store.getMissCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedDocumentsAreEvicted() throws Exception {
+        final SignedResultStore store = new SignedResultStore(storeDirectory, 250);
+        store.put("first", signedDocument("first.pdf", 100));
+        store.put("second", signedDocument("second.pdf", 100));
+        // Use the first, so the second is the least recently used
+        store.copyTo("first", output("copy.pdf"));
+        store.put("third", signedDocument("third.pdf", 100));
+
+        assertEquals("Two documents should fit", 2, store.size());
+        assertEquals("The total size should stay within the limit", 200, store.getTotalBytes());
+        assertFalse("The least recently used document should be evicted", store.copyTo("second", output("x.pdf")));
+        assertTrue("The recently used document should be kept", store.copyTo("first", output("y.pdf")));
+    }
+
+    @Test
+    public void storedDocumentsSurviveReopening() throws Exception {
+        new SignedResultStore(storeDirectory).put("abc", signedDocument("signed.pdf", 100));
+
+        final SignedResultStore reopened = new SignedResultStore(storeDirectory);
+        assertEquals("The stored document should be found again", 1, reopened.size());
+        assertTrue("The stored document should be copied", reopened.copyTo("abc", output("copy.pdf")));
+    }
+
+    private Path output(final String name) {
+        return folder.getRoot().toPath().resolve(name);
+    }
+
+    private Path signedDocument(final String name, final int size) throws Exception {
+        final Path path = folder.getRoot().toPath().resolve(name);
+        Files.write(path, new byte[size]);
+        return path;
+    }
+}
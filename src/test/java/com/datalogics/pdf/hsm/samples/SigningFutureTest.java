@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Unit tests for the SigningFuture.
+ */
+public class SigningFutureTest {
+    @Test
+    public void callbackIsToldAboutSuccess() throws Exception {
+        final URL outputUrl = new URL("file:///signed.pdf");
+        final SigningFuture future = new SigningFuture(new ConstantJob(outputUrl));
+        final RecordingCallback callback = new RecordingCallback();
+        future.addCallback(callback);
+
+        future.run();
+
+        assertEquals("Callback should get the output URL", outputUrl, callback.result);
+        assertNull("Callback should not get a failure", callback.failure);
+    }
+
+    @Test
+    public void callbackAddedLateIsCalledImmediately() throws Exception {
+        final URL outputUrl = new URL("file:///signed.pdf");
+        final SigningFuture future = new SigningFuture(new ConstantJob(outputUrl));
+        future.run();
+
+        final RecordingCallback callback = new RecordingCallback();
+        future.addCallback(callback);
+
+        assertEquals("Callback should get the output URL", outputUrl, callback.result);
+    }
+
+    @Test
+    public void callbackIsToldAboutFailure() {
+        final SigningFuture future = new SigningFuture(new Callable<URL>() {
+            @Override
+            public URL call() throws IOException {
+                throw new IOException("Unreadable document");
+            }
+        });
+        final RecordingCallback callback = new RecordingCallback();
+        future.addCallback(callback);
+
+        future.run();
+
+        assertTrue("Callback should get the cause", callback.failure instanceof IOException);
+    }
+
+    @Test
+    public void cancelledJobReportsCancellation() throws Exception {
+        final SigningFuture future = new SigningFuture(new ConstantJob(new URL("file:///signed.pdf")));
+        final RecordingCallback callback = new RecordingCallback();
+        future.addCallback(callback);
+
+        future.cancel(false);
+
+        assertTrue("Callback should get a CancellationException",
+                   callback.failure instanceof CancellationException);
+        assertFalse("Deadline should not be reported", future.isDeadlineExceeded());
+    }
+
+    @Test
+    public void expiredJobIsInterruptedAndReportsTimeout() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final SigningFuture future = new SigningFuture(new Callable<URL>() {
+            @Override
+            public URL call() {
+                started.countDown();
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+                } catch (final InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return null;
+            }
+        });
+        final RecordingCallback callback = new RecordingCallback();
+        future.addCallback(callback);
+        final Thread runner = new Thread(future);
+        runner.start();
+        started.await(10, TimeUnit.SECONDS);
+
+        future.expire();
+
+        assertTrue("Running job should be interrupted", interrupted.await(10, TimeUnit.SECONDS));
+        assertTrue("Deadline should be reported", future.isDeadlineExceeded());
+        assertTrue("Callback should get a TimeoutException", callback.failure instanceof TimeoutException);
+        runner.join();
+    }
+
+    @Test
+    public void expiringFinishedJobHasNoEffect() throws Exception {
+        final SigningFuture future = new SigningFuture(new ConstantJob(new URL("file:///signed.pdf")));
+        future.run();
+
+        future.expire();
+
+        assertFalse("Deadline should not be reported", future.isDeadlineExceeded());
+        assertFalse("Job should not be cancelled", future.isCancelled());
+    }
+
+    private static final class ConstantJob implements Callable<URL> {
+        private final URL result;
+
+        private ConstantJob(final URL result) {
+            this.result = result;
+        }
+
+        @Override
+        public URL call() {
+            return result;
+        }
+    }
+
+    private static final class RecordingCallback implements SigningCallback {
+        private volatile URL result;
+        private volatile Throwable failure;
+
+        @Override
+        public void onFieldSigned(final String qualifiedFieldName) {}
+
+        @Override
+        public void onSuccess(final URL outputUrl) {
+            result = outputUrl;
+        }
+
+        @Override
+        public void onFailure(final Throwable cause) {
+            failure = cause;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Unit tests for the SigningJournal.
+ */
+public class SigningJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void pendingRequestsSurviveReopening() throws Exception {
+        final Path path = folder.getRoot().toPath().resolve("batch.journal");
+        final SigningRequest first = request(1);
+        final SigningRequest second = new SigningRequest(new URL("file:///in/2.pdf"), new URL("file:///out/2.pdf"),
+                                                         "Signature1", "approval-form-rev-1");
+        try (SigningJournal journal = new SigningJournal(path)) {
+            journal.recordAccepted(first);
+            journal.recordAccepted(second);
+            journal.recordAccepted(request(3));
+            journal.recordCompleted(request(3));
+        }
+
+        try (SigningJournal journal = new SigningJournal(path)) {
+            final List<SigningRequest> pending = journal.getPendingRequests();
+            assertEquals("Two requests should be pending", 2, pending.size());
+            assertEquals("Pending requests should keep their order", first.getOutputUrl(),
+                         pending.get(0).getOutputUrl());
+            assertEquals("The field name should be recorded", "Signature1",
+                         pending.get(1).getQualifiedFieldName());
+            assertEquals("The template key should be recorded", "approval-form-rev-1",
+                         pending.get(1).getTemplateKey());
+            assertTrue("The completed request should be remembered", journal.isCompleted(request(3)));
+            assertFalse("The completed request should not be pending", journal.isPending(request(3)));
+        }
+    }
+
+    @Test
+    public void tornRecordIsDiscarded() throws Exception {
+        final Path path = folder.getRoot().toPath().resolve("torn.journal");
+        try (SigningJournal journal = new SigningJournal(path)) {
+            journal.recordAccepted(request(1));
+        }
+        final long wholeLength = Files.size(path);
+        // A record cut short by a crash: its length, and only part of its payload
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 40, 1, 2, 3 }));
+        }
+
+        try (SigningJournal journal = new SigningJournal(path)) {
+            assertEquals("The torn record should be cut off", wholeLength, Files.size(path));
+            assertEquals("The whole record should be read", 1, journal.getPendingRequests().size());
+            journal.recordCompleted(request(1));
+        }
+        try (SigningJournal journal = new SigningJournal(path)) {
+            assertTrue("Records after the cut should be read", journal.isCompleted(request(1)));
+        }
+    }
+
+    @Test
+    public void concurrentRecordsAreCommittedTogether() throws Exception {
+        final Path path = folder.getRoot().toPath().resolve("group.journal");
+        final int requests = 200;
+        final ExecutorService threads = Executors.newFixedThreadPool(16);
+        try (SigningJournal journal = new SigningJournal(path)) {
+            final List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < requests; i++) {
+                final SigningRequest request = request(i);
+                results.add(threads.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        journal.recordAccepted(request);
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Void> result : results) {
+                result.get();
+            }
+            assertTrue("Records should share commits", journal.getCommitCount() < requests);
+        } finally {
+            threads.shutdown();
+        }
+
+        try (SigningJournal journal = new SigningJournal(path)) {
+            assertEquals("Every record should be on disk", requests, journal.getPendingRequests().size());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRefused() throws Exception {
+        final Path path = folder.getRoot().toPath().resolve("other.txt");
+        Files.write(path, Arrays.asList("not a journal"), StandardCharsets.UTF_8);
+
+        new SigningJournal(path).close();
+    }
+
+    private static SigningRequest request(final int number) throws IOException {
+        return new SigningRequest(new URL("file:///in/" + number + ".pdf"), new URL("file:///out/" + number + ".pdf"));
+    }
+}
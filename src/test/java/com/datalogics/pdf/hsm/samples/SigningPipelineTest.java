@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.datalogics.pdf.hsm.samples.fakes.FakeConnectedHsmManager;
+import com.datalogics.pdf.security.HsmGroupLoginParameters;
+import com.datalogics.pdf.security.HsmLoginParameters;
+import com.datalogics.pdf.security.HsmManager;
+import com.datalogics.pdf.security.HsmManagerGroup;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Unit tests for the SigningPipeline.
+ */
+public class SigningPipelineTest extends SampleTest {
+    private static final String PASSWORD = "password";
+
+    private HsmManagerGroup group;
+    private SigningPipeline pipeline;
+    private URL inputUrl;
+
+    /**
+     * Log a two member group in, and create a pipeline with small queues.
+     *
+     * @throws Exception a general exception was thrown
+     */
+    @Before
+    public void setUpPipeline() throws Exception {
+        group = new HsmManagerGroup(new Callable<HsmManager>() {
+            @Override
+            public HsmManager call() throws Exception {
+                return new FakeConnectedHsmManager();
+            }
+        }, 60000);
+        group.hsmLogin(new HsmGroupLoginParameters(Arrays.asList(new HsmLoginParameters(PASSWORD),
+                                                                 new HsmLoginParameters(PASSWORD))));
+        pipeline = new SigningPipeline(group, new SigningProfile(PASSWORD), 1, 1, 2, 1, 1);
+        inputUrl = HsmSignDocument.class.getResource(HsmSignDocument.INPUT_UNSIGNED_PDF_PATH);
+    }
+
+    /**
+     * Shut the pipeline down.
+     */
+    @After
+    public void tearDownPipeline() {
+        pipeline.close();
+    }
+
+    @Test
+    public void documentsAreSigned() throws Exception {
+        final List<File> outputFiles = new ArrayList<File>();
+        final List<Future<URL>> results = new ArrayList<Future<URL>>();
+        for (int i = 0; i < 4; i++) {
+            final File outputFile = newOutputFileWithDelete("PipelineSignedField" + i + ".pdf");
+            Files.createDirectories(outputFile.getParentFile().toPath());
+            outputFiles.add(outputFile);
+            results.add(pipeline.submit(inputUrl, outputFile.toURI().toURL()));
+        }
+
+        for (int i = 0; i < outputFiles.size(); i++) {
+            assertEquals("Future should report the output URL", outputFiles.get(i).toURI().toURL(),
+                         results.get(i).get(30, TimeUnit.SECONDS));
+            assertTrue(outputFiles.get(i).getPath() + " must exist after signing", outputFiles.get(i).exists());
+        }
+    }
+
+    @Test
+    public void failureCompletesFuture() throws Exception {
+        final File outputFile = newOutputFileWithDelete("PipelineMissingInput.pdf");
+        final URL missingUrl = new File(outputFile.getParentFile(), "NoSuchDocument.pdf").toURI().toURL();
+
+        try {
+            pipeline.submit(missingUrl, outputFile.toURI().toURL()).get(30, TimeUnit.SECONDS);
+            fail("Signing a missing document should fail");
+        } catch (final ExecutionException e) {
+            assertTrue(outputFile.getPath() + " must not exist after a failure", !outputFile.exists());
+        }
+    }
+
+    @Test
+    public void expiredDocumentIsNotSigned() throws Exception {
+        final File outputFile = newOutputFileWithDelete("PipelineExpired.pdf");
+        Files.createDirectories(outputFile.getParentFile().toPath());
+        final SigningRequest request = new SigningRequest(inputUrl, outputFile.toURI().toURL());
+
+        try {
+            pipeline.submit(request, 0, TimeUnit.MILLISECONDS).get(30, TimeUnit.SECONDS);
+            fail("A document whose deadline passed should not be signed");
+        } catch (final ExecutionException e) {
+            assertTrue("The future should fail with a timeout", e.getCause() instanceof TimeoutException);
+            assertTrue(outputFile.getPath() + " must not exist after the deadline passed", !outputFile.exists());
+        }
+    }
+
+    @Test
+    public void deadlinePassingDuringSigningInterruptsIt() throws Exception {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final SigningPipeline stuckPipeline = newStuckPipeline(new CountDownLatch(1), interrupted);
+        try {
+            final SigningRequest request = new SigningRequest(inputUrl, newOutputFile("PipelineStuck.pdf").toURI()
+                                                                                                      .toURL());
+            try {
+                stuckPipeline.submit(request, 5, TimeUnit.SECONDS).get(30, TimeUnit.SECONDS);
+                fail("A document whose deadline passed should not be signed");
+            } catch (final ExecutionException e) {
+                assertTrue("The future should fail with a timeout", e.getCause() instanceof TimeoutException);
+            }
+            assertTrue("The sign thread should be interrupted", interrupted.await(10, TimeUnit.SECONDS));
+        } finally {
+            stuckPipeline.close();
+        }
+    }
+
+    @Test
+    public void cancellingDuringSigningInterruptsIt() throws Exception {
+        final CountDownLatch signing = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final SigningPipeline stuckPipeline = newStuckPipeline(signing, interrupted);
+        try {
+            final Future<URL> future = stuckPipeline.submit(inputUrl, newOutputFile("PipelineCancelled.pdf").toURI()
+                                                                                                          .toURL());
+            assertTrue("The document should reach the HSM", signing.await(30, TimeUnit.SECONDS));
+
+            assertTrue("The future should be cancelled", future.cancel(true));
+            assertTrue("The sign thread should be interrupted", interrupted.await(10, TimeUnit.SECONDS));
+        } finally {
+            stuckPipeline.close();
+        }
+    }
+
+    @Test
+    public void largeDocumentsGoThroughTheirOwnStages() throws Exception {
+        final File outputFile = newOutputFileWithDelete("PipelineLarge.pdf");
+        Files.createDirectories(outputFile.getParentFile().toPath());
+        final SigningRequest request = new SigningRequest(inputUrl, outputFile.toURI().toURL());
+        final SigningRequest remoteRequest = new SigningRequest(new URL("http://example.com/remote.pdf"),
+                                                                outputFile.toURI().toURL());
+        assertFalse("The sample document should be small by default", pipeline.isLarge(request));
+
+        // Every local document counts as large
+        final SigningPipeline sizeAwarePipeline = new SigningPipeline(group, new SigningProfile(PASSWORD), 1, 1, 2, 1,
+                                                                      1, 1, 1);
+        try {
+            assertTrue("The sample document should be large", sizeAwarePipeline.isLarge(request));
+            assertFalse("A document of unknown size should be small", sizeAwarePipeline.isLarge(remoteRequest));
+
+            assertEquals("Future should report the output URL", outputFile.toURI().toURL(),
+                         sizeAwarePipeline.submit(request).get(30, TimeUnit.SECONDS));
+            assertTrue(outputFile.getPath() + " must exist after signing", outputFile.exists());
+        } finally {
+            sizeAwarePipeline.close();
+        }
+    }
+
+    @Test
+    public void closeSettlesEveryDocument() throws Exception {
+        final List<Future<URL>> futures = new ArrayList<Future<URL>>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(pipeline.submit(inputUrl, newOutputFile("PipelineClose" + i + ".pdf").toURI().toURL()));
+        }
+
+        pipeline.close();
+
+        // Each document is signed, fails or is cancelled; none is left behind in a stopped stage
+        for (final Future<URL> future : futures) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+            } catch (final CancellationException | ExecutionException e) {
+                assertTrue("The document should be settled", future.isDone());
+            }
+        }
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void closedPipelineRejectsDocuments() throws Exception {
+        pipeline.close();
+
+        pipeline.submit(inputUrl, newOutputFile("PipelineClosed.pdf").toURI().toURL());
+    }
+
+    /*
+     * Create a pipeline on a member that hangs when asked for a certificate, until it is interrupted.
+     */
+    private SigningPipeline newStuckPipeline(final CountDownLatch signing, final CountDownLatch interrupted) {
+        final HsmManagerGroup stuckGroup = new HsmManagerGroup(new Callable<HsmManager>() {
+            @Override
+            public HsmManager call() throws Exception {
+                return new FakeConnectedHsmManager() {
+                    @Override
+                    public Certificate[] getCertificateChain(final String certLabel) {
+                        signing.countDown();
+                        try {
+                            Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+                        } catch (final InterruptedException e) {
+                            interrupted.countDown();
+                            throw new IllegalStateException("Interrupted while fetching the certificate", e);
+                        }
+                        return super.getCertificateChain(certLabel);
+                    }
+                };
+            }
+        }, 60000);
+        stuckGroup.hsmLogin(new HsmGroupLoginParameters(Arrays.asList(new HsmLoginParameters(PASSWORD))));
+        return new SigningPipeline(stuckGroup, new SigningProfile(PASSWORD), 1, 1, 1, 1, 1);
+    }
+}
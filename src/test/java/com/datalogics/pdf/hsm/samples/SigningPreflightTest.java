@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.adobe.pdfjt.services.digsig.SignatureFieldInterface;
+
+import mockit.Mock;
+import mockit.MockUp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Unit tests for the SigningPreflight.
+ */
+public class SigningPreflightTest {
+    @Test
+    public void signableFieldsAreAccepted() throws Exception {
+        final PreflightVerdict verdict = SigningPreflight.inspect(Arrays.asList(field("Approver", false, true, true),
+                                                                                field("Witness", false, true, true))
+                                                                        .iterator());
+
+        assertEquals("Document should be accepted", PreflightVerdict.Status.ACCEPTED, verdict.getStatus());
+        assertEquals("Both fields should be signed", Arrays.asList("Approver", "Witness"),
+                     verdict.getSignableFieldNames());
+        assertTrue("There should be no reasons", verdict.getReasons().isEmpty());
+    }
+
+    @Test
+    public void signedAndLockedFieldsAreSkipped() throws Exception {
+        final PreflightVerdict verdict = SigningPreflight.inspect(Arrays.asList(field("Signed", true, false, true),
+                                                                                field("Locked", false, false, true),
+                                                                                field("Approver", false, true, true))
+                                                                        .iterator());
+
+        assertEquals("Document should be accepted", PreflightVerdict.Status.ACCEPTED, verdict.getStatus());
+        assertEquals("Only the open field should be signed", Collections.singletonList("Approver"),
+                     verdict.getSignableFieldNames());
+        assertEquals("Skipped fields should be explained", 2, verdict.getReasons().size());
+    }
+
+    @Test
+    public void invisibleFieldRejectsDocument() throws Exception {
+        final PreflightVerdict verdict = SigningPreflight.inspect(Arrays.asList(field("Approver", false, true, true),
+                                                                                field("Hidden", false, true, false))
+                                                                        .iterator());
+
+        assertEquals("Document should be rejected", PreflightVerdict.Status.REJECTED, verdict.getStatus());
+        assertEquals("The invisible field should be the reason",
+                     Collections.singletonList("Signature field Hidden is not visible"), verdict.getReasons());
+    }
+
+    @Test
+    public void documentWithoutOpenFieldsHasNothingToSign() throws Exception {
+        final PreflightVerdict verdict = SigningPreflight.inspect(Collections.singletonList(field("Locked", false,
+                                                                                                 false, true))
+                                                                             .iterator());
+
+        assertEquals("Document should have nothing to sign", PreflightVerdict.Status.NOTHING_TO_SIGN,
+                     verdict.getStatus());
+        assertTrue("No fields should be signed", verdict.getSignableFieldNames().isEmpty());
+    }
+
+    private static SignatureFieldInterface field(final String name, final boolean signed, final boolean permitted,
+                                                 final boolean visible) {
+        return new MockUp<SignatureFieldInterface>() {
+            @Mock
+            String getQualifiedName() {
+                return name;
+            }
+
+            @Mock
+            boolean isSigned() {
+                return signed;
+            }
+
+            @Mock
+            boolean isSigningPermitted() {
+                return permitted;
+            }
+
+            @Mock
+            boolean isVisible() {
+                return visible;
+            }
+        }.getMockInstance();
+    }
+}
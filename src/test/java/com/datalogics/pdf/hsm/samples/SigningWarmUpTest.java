@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import static org.junit.Assert.assertEquals;
+
+import com.datalogics.pdf.hsm.samples.fakes.FakeConnectedHsmManager;
+import com.datalogics.pdf.hsm.samples.util.LogRecordListCollector;
+import com.datalogics.pdf.security.HsmGroupLoginParameters;
+import com.datalogics.pdf.security.HsmLoginParameters;
+import com.datalogics.pdf.security.HsmManager;
+import com.datalogics.pdf.security.HsmManagerGroup;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Unit tests for the SigningWarmUp.
+ */
+public class SigningWarmUpTest extends SampleTest {
+    private static final String PASSWORD = "password";
+
+    @Test
+    public void warmUpReportsReady() throws Exception {
+        final ArrayList<LogRecord> logRecords = new ArrayList<LogRecord>();
+        final Logger logger = Logger.getLogger(SigningWarmUp.class.getName());
+        try (LogRecordListCollector collector = new LogRecordListCollector(logger, logRecords)) {
+            SigningWarmUp.warmUp(new FakeConnectedHsmManager(), new SigningProfile(PASSWORD), 3);
+        }
+
+        assertEquals("Must have one log record", 1, logRecords.size());
+        assertEquals(Level.INFO, logRecords.get(0).getLevel());
+    }
+
+    @Test
+    public void everyGroupMemberIsWarmedUp() throws Exception {
+        final HsmManagerGroup group = new HsmManagerGroup(new Callable<HsmManager>() {
+            @Override
+            public HsmManager call() throws Exception {
+                return new FakeConnectedHsmManager();
+            }
+        }, 60000);
+        group.hsmLogin(new HsmGroupLoginParameters(Arrays.asList(new HsmLoginParameters(PASSWORD),
+                                                                 new HsmLoginParameters(PASSWORD))));
+
+        final ArrayList<LogRecord> logRecords = new ArrayList<LogRecord>();
+        final Logger logger = Logger.getLogger(SigningWarmUp.class.getName());
+        try (LogRecordListCollector collector = new LogRecordListCollector(logger, logRecords)) {
+            SigningWarmUp.warmUp(group, new SigningProfile(PASSWORD), 1);
+        }
+
+        assertEquals("Each member must report ready", 2, logRecords.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeIterationsAreRejected() throws Exception {
+        SigningWarmUp.warmUp(new FakeConnectedHsmManager(), new SigningProfile(PASSWORD), -1);
+    }
+}
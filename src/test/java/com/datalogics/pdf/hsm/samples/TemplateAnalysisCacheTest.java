@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import static org.junit.Assert.assertEquals;
+
+import com.adobe.pdfjt.pdf.document.PDFDocument;
+import com.adobe.pdfjt.services.digsig.SignatureManager;
+
+import com.datalogics.pdf.hsm.samples.fakes.FakeConnectedHsmManager;
+import com.datalogics.pdf.hsm.samples.util.DocumentUtils;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.Collections;
+
+/**
+ * Unit tests for the TemplateAnalysisCache.
+ */
+public class TemplateAnalysisCacheTest extends SampleTest {
+    private static final String TEMPLATE_KEY = "approval-form-rev1";
+
+    private static URL unsignedUrl;
+    private static URL signedUrl;
+
+    /**
+     * Sign a copy of the unsigned document, to have an instance of the template whose field is already signed.
+     *
+     * @throws Exception a general exception was thrown
+     */
+    @BeforeClass
+    public static void setUpDocuments() throws Exception {
+        unsignedUrl = HsmSignDocument.class.getResource(HsmSignDocument.INPUT_UNSIGNED_PDF_PATH);
+        signedUrl = newOutputFileWithDelete("TemplateAnalysisCacheTest.pdf").toURI().toURL();
+        HsmSignDocument.signExistingSignatureFields(new FakeConnectedHsmManager(), unsignedUrl, signedUrl);
+    }
+
+    @Test
+    public void laterInstancesAreHits() throws Exception {
+        final TemplateAnalysisCache cache = new TemplateAnalysisCache();
+
+        final PreflightVerdict first = inspect(cache, unsignedUrl, TEMPLATE_KEY);
+        final PreflightVerdict second = inspect(cache, unsignedUrl, TEMPLATE_KEY);
+
+        assertEquals("The first instance should be a miss", 1, cache.getMissCount());
+        assertEquals("The second instance should be a hit", 1, cache.getHitCount());
+        assertEquals("The first instance should be accepted", PreflightVerdict.Status.ACCEPTED, first.getStatus());
+        assertEquals("The second instance should be accepted", PreflightVerdict.Status.ACCEPTED, second.getStatus());
+        assertEquals("The cached analysis should choose the same field",
+                     Collections.singletonList(FakeConnectedHsmTest.QUALIFIED_SIGNATURE_FIELD_NAME),
+                     second.getSignableFieldNames());
+        assertEquals("The field should come from the second instance", 1, second.getSignableFields().size());
+    }
+
+    @Test
+    public void requestWithoutTemplateKeyIsNotCached() throws Exception {
+        final TemplateAnalysisCache cache = new TemplateAnalysisCache();
+
+        inspect(cache, unsignedUrl, null);
+        inspect(cache, unsignedUrl, null);
+
+        assertEquals("Nothing should be cached", 0, cache.size());
+        assertEquals("There should be no hits", 0, cache.getHitCount());
+    }
+
+    @Test
+    public void instanceWithSignedFieldIsInspectedInFull() throws Exception {
+        final TemplateAnalysisCache cache = new TemplateAnalysisCache();
+        inspect(cache, unsignedUrl, TEMPLATE_KEY);
+
+        final PreflightVerdict verdict = inspect(cache, signedUrl, TEMPLATE_KEY);
+
+        assertEquals("The signed instance should have nothing to sign", PreflightVerdict.Status.NOTHING_TO_SIGN,
+                     verdict.getStatus());
+        assertEquals("The template's analysis should be kept", 1, cache.size());
+    }
+
+    @Test
+    public void nothingToSignIsNotReused() throws Exception {
+        final TemplateAnalysisCache cache = new TemplateAnalysisCache();
+        final PreflightVerdict signed = inspect(cache, signedUrl, TEMPLATE_KEY);
+
+        final PreflightVerdict unsigned = inspect(cache, unsignedUrl, TEMPLATE_KEY);
+
+        assertEquals("The signed instance should have nothing to sign", PreflightVerdict.Status.NOTHING_TO_SIGN,
+                     signed.getStatus());
+        assertEquals("The unsigned instance should be accepted", PreflightVerdict.Status.ACCEPTED,
+                     unsigned.getStatus());
+        assertEquals("Only the accepted analysis should be cached", 1, cache.size());
+    }
+
+    private static PreflightVerdict inspect(final TemplateAnalysisCache cache, final URL inputUrl,
+                                            final String templateKey)
+                    throws Exception {
+        final SigningRequest request = new SigningRequest(inputUrl, newOutputFile("unused.pdf").toURI().toURL(),
+                                                          null, templateKey);
+        final PDFDocument doc = DocumentUtils.openPdfDocument(inputUrl);
+        try {
+            return cache.inspect(request, SignatureManager.newInstance(doc));
+        } finally {
+            doc.close();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.datalogics.pdf.hsm.samples.fakes.FakeConnectedHsmManager;
+import com.datalogics.pdf.security.HsmGroupLoginParameters;
+import com.datalogics.pdf.security.HsmLoginParameters;
+import com.datalogics.pdf.security.HsmManager;
+import com.datalogics.pdf.security.HsmManagerGroup;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for the ThreadPerJobSigningExecutor.
+ */
+public class ThreadPerJobSigningExecutorTest extends SampleTest {
+    private static final String PASSWORD = "password";
+
+    private final AtomicInteger threadsCreated = new AtomicInteger();
+    private ThreadPerJobSigningExecutor executor;
+    private URL inputUrl;
+
+    /**
+     * Log a group in, and create an executor with a single HSM session.
+     */
+    @Before
+    public void setUpExecutor() {
+        final HsmManagerGroup group = new HsmManagerGroup(new Callable<HsmManager>() {
+            @Override
+            public HsmManager call() throws Exception {
+                return new FakeConnectedHsmManager();
+            }
+        }, 60000);
+        group.hsmLogin(new HsmGroupLoginParameters(Collections.singletonList(new HsmLoginParameters(PASSWORD))));
+        executor = new ThreadPerJobSigningExecutor(group, new SigningProfile(PASSWORD), 1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                threadsCreated.incrementAndGet();
+                final Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        inputUrl = HsmSignDocument.class.getResource(HsmSignDocument.INPUT_UNSIGNED_PDF_PATH);
+    }
+
+    /**
+     * Shut the executor down.
+     */
+    @After
+    public void tearDownExecutor() {
+        executor.close();
+    }
+
+    @Test
+    public void eachDocumentIsSignedOnItsOwnThread() throws Exception {
+        final List<File> outputFiles = new ArrayList<File>();
+        final List<Future<URL>> results = new ArrayList<Future<URL>>();
+        for (int i = 0; i < 4; i++) {
+            final File outputFile = newOutputFileWithDelete("ThreadPerJobSignedField" + i + ".pdf");
+            Files.createDirectories(outputFile.getParentFile().toPath());
+            outputFiles.add(outputFile);
+            results.add(executor.submit(inputUrl, outputFile.toURI().toURL()));
+        }
+
+        for (int i = 0; i < outputFiles.size(); i++) {
+            assertEquals("Future should report the output URL", outputFiles.get(i).toURI().toURL(),
+                         results.get(i).get(30, TimeUnit.SECONDS));
+            assertTrue(outputFiles.get(i).getPath() + " must exist after signing", outputFiles.get(i).exists());
+        }
+        assertEquals("Each job should get its own thread", 4, threadsCreated.get());
+        assertEquals("No HSM session should be left in use", 0, executor.getHsmSessionsInUse());
+    }
+
+    @Test
+    public void slowInputsDoNotHoldPermits() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final URL slowInputUrl = new URL(null, "slow:" + inputUrl, new URLStreamHandler() {
+            @Override
+            protected URLConnection openConnection(final URL url) throws IOException {
+                return new URLConnection(url) {
+                    @Override
+                    public void connect() {}
+
+                    @Override
+                    public InputStream getInputStream() throws IOException {
+                        try {
+                            release.await(30, TimeUnit.SECONDS);
+                        } catch (final InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        return inputUrl.openStream();
+                    }
+                };
+            }
+        });
+
+        try {
+            // More slow inputs than there are permits of either kind
+            final List<Future<URL>> slowResults = new ArrayList<Future<URL>>();
+            for (int i = 0; i < 6; i++) {
+                final File outputFile = newOutputFileWithDelete("ThreadPerJobSlowInput" + i + ".pdf");
+                Files.createDirectories(outputFile.getParentFile().toPath());
+                slowResults.add(executor.submit(slowInputUrl, outputFile.toURI().toURL()));
+            }
+            final File outputFile = newOutputFileWithDelete("ThreadPerJobFastInput.pdf");
+            final Future<URL> fastResult = executor.submit(inputUrl, outputFile.toURI().toURL());
+
+            assertEquals("A fast input should not wait for the slow ones", outputFile.toURI().toURL(),
+                         fastResult.get(30, TimeUnit.SECONDS));
+            assertEquals("Fetching should not hold a document permit", 0, executor.getOpenDocumentCount());
+            assertEquals("Fetching should not hold an HSM session", 0, executor.getHsmSessionsInUse());
+
+            release.countDown();
+            for (final Future<URL> result : slowResults) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void jobsBeyondTheLimitAreRejected() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final HsmManagerGroup group = new HsmManagerGroup(new Callable<HsmManager>() {
+            @Override
+            public HsmManager call() throws Exception {
+                return new FakeConnectedHsmManager();
+            }
+        }, 60000);
+        group.hsmLogin(new HsmGroupLoginParameters(Collections.singletonList(new HsmLoginParameters(PASSWORD))));
+        // Each job waits to be released before it starts signing
+        final ThreadFactory heldThreads = new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            release.await(30, TimeUnit.SECONDS);
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        runnable.run();
+                    }
+                });
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        try (ThreadPerJobSigningExecutor limited = new ThreadPerJobSigningExecutor(group, new SigningProfile(PASSWORD),
+                                                                                   1, 1, heldThreads)) {
+            final File outputFile = newOutputFileWithDelete("ThreadPerJobLimited.pdf");
+            Files.createDirectories(outputFile.getParentFile().toPath());
+            final Future<URL> result = limited.submit(inputUrl, outputFile.toURI().toURL());
+            try {
+                limited.submit(inputUrl, newOutputFile("ThreadPerJobRejected.pdf").toURI().toURL());
+                fail("A job beyond the limit should be rejected");
+            } catch (final RejectedExecutionException e) {
+                assertEquals("Only the first job should be running", 1, limited.getActiveJobCount());
+            } finally {
+                release.countDown();
+            }
+            assertEquals("The first job should finish", outputFile.toURI().toURL(), result.get(30, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void closedExecutorRejectsDocuments() throws Exception {
+        executor.close();
+
+        executor.submit(inputUrl, newOutputFile("ThreadPerJobClosed.pdf").toURI().toURL());
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples.fakes;
+
+import com.adobe.pdfjt.core.credentials.PrivateKeyHolder;
+import com.adobe.pdfjt.core.credentials.PrivateKeyHolderFactory;
+import com.adobe.pdfjt.core.credentials.impl.ByteArrayKeyHolder;
+import com.adobe.pdfjt.core.credentials.impl.utils.CertUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.security.spec.InvalidKeySpecException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An HsmManager which is always connected, and returns the test key and certificate for any label.
+ */
+public class FakeConnectedHsmManager extends AbstractHsmManager {
+    private static final Logger LOGGER = Logger.getLogger(FakeConnectedHsmManager.class.getName());
+
+    private static final String DER_KEY_PATH = "/com/datalogics/pdf/hsm/samples/pdfjt-key.der";
+    private static final String DER_CERT_PATH = "/com/datalogics/pdf/hsm/samples/pdfjt-cert.der";
+
+    private Key key;
+    private Certificate[] certificateChain;
+
+    /**
+     * Create the HsmManager, loading the test key and certificate.
+     *
+     * @throws Exception the key or certificate could not be loaded
+     */
+    public FakeConnectedHsmManager() throws Exception {
+        initializeProvider();
+        loadKey();
+        loadCertificateChain();
+    }
+
+    @Override
+    public ConnectionState getConnectionState() {
+        return ConnectionState.CONNECTED;
+    }
+
+    @Override
+    public Key getKey(final String password, final String keyLabel) {
+        return key;
+    }
+
+    @Override
+    public Certificate[] getCertificateChain(final String certLabel) {
+        return certificateChain;
+    }
+
+    @Override
+    public String getProviderName() {
+        return FakeProvider.PROVIDER_NAME;
+    }
+
+    private static void initializeProvider() {
+        if (Security.getProvider(FakeProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new FakeProvider());
+        }
+    }
+
+    private void loadKey() throws Exception {
+        try {
+            final byte[] derEncodedPrivateKey = getDerEncodedData(DER_KEY_PATH);
+            final PrivateKeyHolder privateKeyHolder = PrivateKeyHolderFactory
+                                                                             .newInstance()
+                                                                             .createPrivateKey(derEncodedPrivateKey,
+                                                                                               "RSA");
+            key = CertUtils.createJCEPrivateKey(((ByteArrayKeyHolder) privateKeyHolder).getDerEncodedKey(),
+                                                ((ByteArrayKeyHolder) privateKeyHolder).getAlgorithm());
+        } catch (final IOException | NoSuchAlgorithmException | InvalidKeySpecException e) {
+            if (LOGGER.isLoggable(Level.SEVERE)) {
+                LOGGER.severe("Could not create private key: " + e.getMessage());
+            }
+            throw new Exception(e);
+        }
+    }
+
+    private void loadCertificateChain() throws Exception {
+        try {
+            final byte[] derEncodedCert = getDerEncodedData(DER_CERT_PATH);
+            final X509Certificate jceCert = (X509Certificate) CertUtils.importCertificate(derEncodedCert);
+            certificateChain = new X509Certificate[] { jceCert };
+        } catch (final IOException | CertificateException e) {
+            if (LOGGER.isLoggable(Level.SEVERE)) {
+                LOGGER.severe("Could not create certificate: " + e.getMessage());
+            }
+            throw new Exception(e);
+        }
+    }
+
+    private static byte[] getDerEncodedData(final String resourcePath) throws IOException {
+        try (InputStream inputStream = FakeConnectedHsmManager.class.getResourceAsStream(resourcePath)) {
+            final byte[] derData = new byte[inputStream.available()];
+            final int totalBytes = inputStream.read(derData, 0, derData.length);
+            if (totalBytes == 0) {
+                LOGGER.info("getDerEncodedData(): No bytes read from InputStream");
+            }
+            return derData;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples.fakes;
+
+import com.datalogics.pdf.security.HsmLoginParameters;
+
+import java.security.Key;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An HsmManager standing in for one session with one HSM partition.
+ *
+ * <p>
+ * Tests can make its login or its requests fail, and can drop its session, to exercise code that manages several
+ * sessions.
+ */
+public class FakeSessionHsmManager extends AbstractHsmManager {
+    private final String name;
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private volatile ConnectionState state = ConnectionState.READY;
+    private volatile boolean loginFails;
+    private volatile boolean requestsFail;
+    private volatile boolean requestsRefused;
+
+    /**
+     * Create a fake session.
+     *
+     * @param name a name identifying the session in test assertions
+     */
+    public FakeSessionHsmManager(final String name) {
+        super();
+        this.name = name;
+    }
+
+    /**
+     * Get the name of this session.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Make logins to this session fail.
+     *
+     * @param loginFails true if logins should fail
+     */
+    public void setLoginFails(final boolean loginFails) {
+        this.loginFails = loginFails;
+    }
+
+    /**
+     * Make requests on this session fail, as they would if the device had dropped the session.
+     *
+     * @param requestsFail true if requests should fail
+     */
+    public void setRequestsFail(final boolean requestsFail) {
+        this.requestsFail = requestsFail;
+    }
+
+    /**
+     * Make the device refuse requests on this session, while the session stays connected.
+     *
+     * @param requestsRefused true if requests should be refused
+     */
+    public void setRequestsRefused(final boolean requestsRefused) {
+        this.requestsRefused = requestsRefused;
+    }
+
+    /**
+     * Simulate the device dropping the session.
+     */
+    public void dropSession() {
+        state = ConnectionState.DISCONNECTED;
+    }
+
+    /**
+     * Record a request on this session, failing it if requests have been made to fail or to be refused.
+     */
+    public void request() {
+        requestCount.incrementAndGet();
+        if (requestsFail) {
+            state = ConnectionState.DISCONNECTED;
+            throw new SecurityException("Session handle is invalid");
+        }
+        if (requestsRefused) {
+            throw new SecurityException("User is not authorized to use the key");
+        }
+    }
+
+    /**
+     * Get the number of requests made on this session.
+     *
+     * @return the number of requests
+     */
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    /* (non-Javadoc)
+     * @see com.datalogics.pdf.security.HsmManager#hsmLogin(com.datalogics.pdf.security.HsmLoginParameters)
+     */
+    @Override
+    public void hsmLogin(final HsmLoginParameters parms) {
+        if (loginFails) {
+            throw new IllegalArgumentException("Error while logging into the fake HSM");
+        }
+        state = ConnectionState.CONNECTED;
+    }
+
+    /* (non-Javadoc)
+     * @see com.datalogics.pdf.security.HsmManager#hsmLogout()
+     */
+    @Override
+    public void hsmLogout() {
+        state = ConnectionState.DISCONNECTED;
+    }
+
+    /* (non-Javadoc)
+     * @see com.datalogics.pdf.security.HsmManager#getConnectionState()
+     */
+    @Override
+    public ConnectionState getConnectionState() {
+        return state;
+    }
+
+    /* (non-Javadoc)
+     * @see com.datalogics.pdf.security.HsmManager#getKey(java.lang.String, java.lang.String)
+     */
+    @Override
+    public Key getKey(final String password, final String keyLabel) {
+        // A request, so that it fails like any other when the session has been made to fail
+        request();
+        return super.getKey(password, keyLabel);
+    }
+
+    /* (non-Javadoc)
+     * @see com.datalogics.pdf.security.HsmManager#getProviderName()
+     */
+    @Override
+    public String getProviderName() {
+        return FakeProvider.PROVIDER_NAME;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.datalogics.pdf.document.FontSetLoader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+/**
+ * Unit tests for the FontCacheManager.
+ */
+public class FontCacheManagerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path cacheDirectory;
+    private Path fontDirectory;
+    private String savedCacheName;
+    private String savedTimeout;
+
+    /**
+     * Create empty cache and font directories, and save the font cache properties.
+     *
+     * @throws Exception a general exception was thrown
+     */
+    @Before
+    public void setUp() throws Exception {
+        cacheDirectory = folder.newFolder("cache").toPath();
+        fontDirectory = folder.newFolder("fonts").toPath();
+        Files.write(fontDirectory.resolve("Serif.ttf"), new byte[] { 1, 2, 3 });
+        savedCacheName = System.getProperty(FontSetLoader.FONTSET_CACHE_NAME_PROPERTY);
+        savedTimeout = System.getProperty(FontSetLoader.FONTSET_CACHE_TIMEOUT_PROPERTY);
+        System.clearProperty(FontSetLoader.FONTSET_CACHE_NAME_PROPERTY);
+        System.clearProperty(FontSetLoader.FONTSET_CACHE_TIMEOUT_PROPERTY);
+    }
+
+    /**
+     * Restore the font cache properties.
+     */
+    @After
+    public void tearDown() {
+        restore(FontSetLoader.FONTSET_CACHE_NAME_PROPERTY, savedCacheName);
+        restore(FontSetLoader.FONTSET_CACHE_TIMEOUT_PROPERTY, savedTimeout);
+    }
+
+    @Test
+    public void cacheIsNamedAfterFonts() throws Exception {
+        try (FontCacheManager manager = newManager()) {
+            assertEquals("Font set loader should use the versioned cache", manager.getCacheFile().toString(),
+                         System.getProperty(FontSetLoader.FONTSET_CACHE_NAME_PROPERTY));
+            assertTrue("Cache file should be named after the version",
+                       manager.getCacheFile().getFileName().toString().contains(manager.getVersion()));
+        }
+    }
+
+    @Test
+    public void unchangedFontsKeepVersion() throws Exception {
+        final String version;
+        try (FontCacheManager manager = newManager()) {
+            version = manager.getVersion();
+            assertFalse("Unchanged fonts should not be rebuilt", manager.refresh());
+        }
+        try (FontCacheManager manager = newManager()) {
+            assertEquals("A new process with the same fonts should reuse the cache", version, manager.getVersion());
+        }
+    }
+
+    @Test
+    public void changedFontsReplaceCache() throws Exception {
+        try (FontCacheManager manager = newManager()) {
+            final Path oldCache = manager.getCacheFile();
+            Files.write(oldCache, new byte[] { 0 });
+
+            Files.write(fontDirectory.resolve("Sans.ttf"), new byte[] { 4, 5, 6 });
+
+            assertTrue("Changed fonts should rebuild the cache", manager.refresh());
+            assertNotEquals("Cache file should change with the fonts", oldCache, manager.getCacheFile());
+            assertFalse("The old cache should be deleted", Files.exists(oldCache));
+        }
+    }
+
+    @Test
+    public void oldCacheIsKeptUntilNewOneIsBuilt() throws Exception {
+        final Path oldCache = cacheDirectory.resolve("fonts-0000000000000000.ser");
+        Files.write(oldCache, new byte[] { 0 });
+
+        try (FontCacheManager manager = newManager()) {
+            assertNotEquals("The fonts should have a new version", oldCache.toAbsolutePath(), manager.getCacheFile());
+            assertTrue("The old cache should be kept until the new one is built", Files.exists(oldCache));
+        }
+    }
+
+    @Test
+    public void closeRestoresProperties() throws Exception {
+        try (FontCacheManager manager = newManager()) {
+            assertEquals("Cache should not expire by age", "0",
+                         System.getProperty(FontSetLoader.FONTSET_CACHE_TIMEOUT_PROPERTY));
+        }
+
+        assertNull("Cache name should be restored", System.getProperty(FontSetLoader.FONTSET_CACHE_NAME_PROPERTY));
+        assertNull("Timeout should be restored", System.getProperty(FontSetLoader.FONTSET_CACHE_TIMEOUT_PROPERTY));
+    }
+
+    private FontCacheManager newManager() throws Exception {
+        return new FontCacheManager(cacheDirectory, Collections.singletonList(fontDirectory));
+    }
+
+    private static void restore(final String property, final String value) {
+        if (value == null) {
+            System.clearProperty(property);
+        } else {
+            System.setProperty(property, value);
+        }
+    }
+}
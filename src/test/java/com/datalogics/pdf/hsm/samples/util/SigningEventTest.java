@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.hsm.samples.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Unit tests for the SigningEvent.
+ */
+public class SigningEventTest {
+    private static final String STAGE = "sign";
+    private static final String FIELD_NAME = "Approver";
+    private static final String KEY_LABEL = "key_label";
+
+    private final Logger logger = Logger.getLogger(SigningEvent.class.getName());
+    private Level savedLevel;
+
+    @Before
+    public void setUp() {
+        savedLevel = logger.getLevel();
+    }
+
+    @After
+    public void tearDown() {
+        logger.setLevel(savedLevel);
+    }
+
+    @Test
+    public void eventIsDisabledWhenNotLoggingFine() {
+        logger.setLevel(Level.INFO);
+
+        try (SigningEvent event = SigningEvent.begin(STAGE)) {
+            assertFalse("Event must be disabled when FINE is not loggable", event.isEnabled());
+        }
+    }
+
+    @Test
+    public void successfulEventIsLogged() throws Exception {
+        logger.setLevel(Level.FINE);
+
+        final ArrayList<LogRecord> logRecords = new ArrayList<LogRecord>();
+        try (LogRecordListCollector collector = new LogRecordListCollector(logger, logRecords)) {
+            try (SigningEvent event = SigningEvent.begin(STAGE)) {
+                assertTrue("Event must be enabled when FINE is loggable", event.isEnabled());
+                event.setDocumentSize(1024);
+                event.setFieldName(FIELD_NAME);
+                event.setKeyLabel(KEY_LABEL);
+                event.success();
+            }
+        }
+
+        assertEquals("Must have one log record", 1, logRecords.size());
+        final Object[] parameters = logRecords.get(0).getParameters();
+        assertEquals(STAGE, parameters[0]);
+        assertEquals(SigningEvent.OUTCOME_SUCCESS, parameters[1]);
+        assertEquals("1024", parameters[4]);
+        assertEquals(FIELD_NAME, parameters[5]);
+        assertEquals(KEY_LABEL, parameters[6]);
+    }
+
+    @Test
+    public void eventWithoutSuccessReportsFailure() throws Exception {
+        logger.setLevel(Level.FINE);
+
+        final ArrayList<LogRecord> logRecords = new ArrayList<LogRecord>();
+        try (LogRecordListCollector collector = new LogRecordListCollector(logger, logRecords)) {
+            try (SigningEvent event = SigningEvent.begin(STAGE)) {
+                event.setKeyLabel(KEY_LABEL);
+            }
+        }
+
+        assertEquals("Must have one log record", 1, logRecords.size());
+        assertEquals(SigningEvent.OUTCOME_FAILURE, logRecords.get(0).getParameters()[1]);
+    }
+}
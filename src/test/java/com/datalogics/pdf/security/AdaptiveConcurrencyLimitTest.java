@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the AdaptiveConcurrencyLimit.
+ */
+public class AdaptiveConcurrencyLimitTest {
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    public void acquireStopsAtLimit() throws Exception {
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 1, 10);
+
+        assertTrue("First permit should be granted", limit.tryAcquire(0, TimeUnit.MILLISECONDS));
+        assertTrue("Second permit should be granted", limit.tryAcquire(0, TimeUnit.MILLISECONDS));
+        assertFalse("Third permit should be refused", limit.tryAcquire(0, TimeUnit.MILLISECONDS));
+        assertEquals("Two operations should be in flight", 2, limit.getInFlight());
+    }
+
+    @Test
+    public void limitGrowsWhileLatencyStaysLow() throws Exception {
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 1, 10);
+
+        for (int i = 0; i < 50; i++) {
+            runSaturated(limit, FAST);
+        }
+
+        assertTrue("Limit should grow when saturated at low latency", limit.getLimit() > 2);
+    }
+
+    @Test
+    public void limitNeverExceedsMaximum() throws Exception {
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 1, 4);
+
+        for (int i = 0; i < 500; i++) {
+            runSaturated(limit, FAST);
+        }
+
+        assertEquals("Limit should stop at the maximum", 4, limit.getLimit());
+    }
+
+    @Test
+    public void limitDoesNotGrowWhenUnused() throws Exception {
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(4, 1, 10);
+
+        for (int i = 0; i < 50; i++) {
+            limit.acquire();
+            limit.release(FAST, true);
+        }
+
+        assertEquals("Limit should not grow while it is not holding work back", 4, limit.getLimit());
+    }
+
+    @Test
+    public void limitShrinksWhenLatencyRises() throws Exception {
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(8, 1, 10);
+        limit.acquire();
+        limit.release(FAST, true);
+
+        limit.acquire();
+        limit.release(SLOW, true);
+
+        assertEquals("Limit should shrink by the backoff ratio", 7, limit.getLimit());
+    }
+
+    @Test
+    public void limitShrinksOnFailure() throws Exception {
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(8, 1, 10);
+
+        limit.acquire();
+        limit.release(FAST, false);
+
+        assertEquals("Limit should shrink by the backoff ratio", 7, limit.getLimit());
+    }
+
+    @Test
+    public void limitNeverGoesBelowMinimum() throws Exception {
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 2, 10);
+
+        limit.acquire();
+        limit.release(FAST, false);
+
+        assertEquals("Limit should stop at the minimum", 2, limit.getLimit());
+    }
+
+    /*
+     * Fill every permit, then complete them all with the given latency.
+     */
+    private static void runSaturated(final AdaptiveConcurrencyLimit limit, final long latencyNanos)
+                    throws InterruptedException {
+        int acquired = 0;
+        while (limit.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+            acquired++;
+        }
+        for (int i = 0; i < acquired; i++) {
+            limit.release(latencyNanos, true);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the BoundedLruCache.
+ */
+public class BoundedLruCacheTest {
+    @Test
+    public void hitsAndMissesAreCounted() {
+        final BoundedLruCache<String, String> cache = new BoundedLruCache<String, String>(4);
+
+        assertNull("Empty cache should miss", cache.get("tenant-1"));
+        cache.put("tenant-1", "key-1");
+        assertEquals("Cached value should be found", "key-1", cache.get("tenant-1"));
+
+        assertEquals("One lookup should hit", 1, cache.getHitCount());
+        assertEquals("One lookup should miss", 1, cache.getMissCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() {
+        // A single entry per segment makes the eviction order predictable
+        final BoundedLruCache<Integer, String> cache = new BoundedLruCache<Integer, String>(1);
+        cache.put(1, "one");
+        cache.put(2, "two");
+
+        assertNull("The older entry should be evicted", cache.get(1));
+        assertEquals("The newer entry should stay", "two", cache.get(2));
+        assertEquals("One entry should be evicted", 1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void recentlyUsedEntryStaysResident() {
+        final BoundedLruCache<Integer, String> cache = new BoundedLruCache<Integer, String>(64);
+        cache.put(0, "hot");
+
+        // Touch the hot entry between every insertion, while far more entries than fit pass through
+        for (int i = 1; i <= 5000; i++) {
+            assertEquals("Hot entry should stay resident", "hot", cache.get(0));
+            cache.put(i, "cold");
+        }
+
+        assertEquals("Cache should stay within its capacity", 64, cache.size());
+        assertEquals("Cold entries should be evicted", 5000 + 1 - 64, cache.getEvictionCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyCacheIsRejected() {
+        new BoundedLruCache<String, String>(0);
+    }
+}
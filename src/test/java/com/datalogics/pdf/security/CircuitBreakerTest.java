@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the CircuitBreaker.
+ */
+public class CircuitBreakerTest {
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SLOW = TimeUnit.SECONDS.toNanos(2);
+
+    @Test
+    public void breakerStaysClosedWhileCallsSucceed() {
+        final CircuitBreaker breaker = new CircuitBreaker(0.5, 1000, 10, 4, 60000);
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue("Calls should be allowed", breaker.allowCall());
+            breaker.onSuccess(FAST);
+        }
+
+        assertEquals("Breaker should be closed", CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals("No retry-after hint should be given", 0, breaker.getRetryAfterMillis());
+    }
+
+    @Test
+    public void breakerOpensWhenFailureRateIsReached() {
+        final CircuitBreaker breaker = new CircuitBreaker(0.5, 1000, 10, 4, 60000);
+
+        breaker.onSuccess(FAST);
+        breaker.onFailure();
+        breaker.onSuccess(FAST);
+        assertEquals("Breaker should wait for the minimum number of calls", CircuitBreaker.State.CLOSED,
+                     breaker.getState());
+        breaker.onFailure();
+
+        assertEquals("Breaker should be open", CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse("Calls should be refused", breaker.allowCall());
+        assertTrue("A retry-after hint should be given", breaker.getRetryAfterMillis() > 0);
+    }
+
+    @Test
+    public void slowCallsCountAsFailures() {
+        final CircuitBreaker breaker = new CircuitBreaker(0.5, 1000, 10, 2, 60000);
+
+        breaker.onSuccess(SLOW);
+        breaker.onSuccess(SLOW);
+
+        assertEquals("Breaker should be open", CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void trialCallClosesBreaker() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker(0.5, 1000, 10, 1, 10);
+        breaker.onFailure();
+        Thread.sleep(20);
+
+        assertEquals("Breaker should be half open", CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue("One trial call should be allowed", breaker.allowCall());
+        assertFalse("Only one trial call should be allowed", breaker.allowCall());
+        breaker.onSuccess(FAST);
+
+        assertEquals("Breaker should be closed", CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue("Calls should be allowed", breaker.allowCall());
+    }
+
+    @Test
+    public void awaitTrialReturnsWhenTrialReports() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker(0.5, 1000, 10, 1, 200);
+        breaker.onFailure();
+        Thread.sleep(250);
+        assertTrue("One trial call should be allowed", breaker.allowCall());
+
+        final Thread trial = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                breaker.onSuccess(FAST);
+            }
+        });
+        trial.start();
+        breaker.awaitTrial();
+
+        assertEquals("Breaker should be closed once the trial reports", CircuitBreaker.State.CLOSED,
+                     breaker.getState());
+        trial.join();
+    }
+
+    @Test
+    public void failedTrialCallReopensBreaker() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker(0.5, 1000, 10, 1, 10);
+        breaker.onFailure();
+        Thread.sleep(20);
+
+        assertTrue("One trial call should be allowed", breaker.allowCall());
+        breaker.onFailure();
+
+        assertEquals("Breaker should be open", CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse("Calls should be refused", breaker.allowCall());
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the Deadline.
+ */
+public class DeadlineTest {
+    @Test
+    public void deadlinesOrderEarliestFirst() {
+        final Deadline soon = Deadline.after(1, TimeUnit.SECONDS);
+        final Deadline late = Deadline.after(1, TimeUnit.HOURS);
+        final List<Deadline> deadlines = new ArrayList<Deadline>(Arrays.asList(Deadline.NONE, late, soon));
+
+        Collections.sort(deadlines);
+
+        assertEquals("Deadlines should sort earliest first, then no deadline",
+                     Arrays.asList(soon, late, Deadline.NONE), deadlines);
+    }
+
+    @Test
+    public void passedDeadlineIsExpired() {
+        assertTrue("A zero timeout should expire at once", Deadline.after(0, TimeUnit.SECONDS).isExpired());
+        assertFalse("A distant deadline should not be expired", Deadline.after(1, TimeUnit.HOURS).isExpired());
+        assertFalse("No deadline never expires", Deadline.NONE.isExpired());
+        assertEquals("No deadline leaves unlimited time", Long.MAX_VALUE,
+                     Deadline.NONE.getRemaining(TimeUnit.MILLISECONDS));
+    }
+}
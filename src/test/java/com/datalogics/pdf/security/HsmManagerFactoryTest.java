@@ -44,6 +44,21 @@ public class HsmManagerFactoryTest {
         assertThat(hsmManager, instanceOf(LunaHsmManager.class));
     }
 
+    @Test
+    public void obtainReconnectingLunaHsmDevice() {
+        final HsmManager hsmManager = HsmManagerFactory.newReconnectingInstance(HsmManagerFactory.LUNA_HSM_TYPE);
+        assertThat(hsmManager, instanceOf(ReconnectingHsmManager.class));
+    }
+
+    @Test
+    public void throwExceptionForUnsupportedReconnectingDevice() {
+        // Expect an IllegalArgumentException to be thrown
+        expected.expect(IllegalArgumentException.class);
+        expected.expectMessage("Must use a valid HsmType");
+
+        HsmManagerFactory.newReconnectingInstance("unsupported device");
+    }
+
     /*
      * Fake LunaSlotManager
      */
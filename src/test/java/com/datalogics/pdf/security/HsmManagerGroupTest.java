@@ -0,0 +1,450 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.datalogics.pdf.hsm.samples.fakes.FakeSessionHsmManager;
+import com.datalogics.pdf.security.HsmManager.ConnectionState;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for the HsmManagerGroup.
+ */
+public class HsmManagerGroupTest {
+    public static final String PASSWORD = "password";
+
+    private final List<FakeSessionHsmManager> sessions = new ArrayList<FakeSessionHsmManager>();
+    private final List<Boolean> failingLogins = new ArrayList<Boolean>();
+    private HsmManagerGroup group;
+
+    @Rule
+    public ExpectedException expected = ExpectedException.none();
+
+    /**
+     * Create a group whose member sessions are recorded for inspection.
+     */
+    @Before
+    public void setUp() {
+        final Callable<HsmManager> source = new Callable<HsmManager>() {
+            @Override
+            public HsmManager call() {
+                final FakeSessionHsmManager session = new FakeSessionHsmManager("member" + sessions.size());
+                if (sessions.size() < failingLogins.size()) {
+                    session.setLoginFails(failingLogins.get(sessions.size()));
+                }
+                sessions.add(session);
+                return session;
+            }
+        };
+        group = new HsmManagerGroup(source, 60000);
+    }
+
+    @Test
+    public void loginConnectsAllMembers() {
+        group.hsmLogin(threeMembers());
+
+        assertEquals("Group should be connected", ConnectionState.CONNECTED, group.getConnectionState());
+        assertEquals("All members should log in", 3, group.getMemberCount());
+    }
+
+    @Test
+    public void loginToleratesFailedMember() {
+        failingLogins.addAll(Arrays.asList(false, true, false));
+
+        group.hsmLogin(threeMembers());
+
+        assertEquals("Group should be connected", ConnectionState.CONNECTED, group.getConnectionState());
+        assertEquals("Failed member should be left out", 2, group.getMemberCount());
+    }
+
+    @Test
+    public void loginFailsWhenNoMemberLogsIn() {
+        failingLogins.addAll(Arrays.asList(true, true, true));
+
+        expected.expect(IllegalStateException.class);
+        expected.expectMessage("Could not log into any member of the HSM group");
+
+        group.hsmLogin(threeMembers());
+    }
+
+    @Test
+    public void membersLogInInParallel() {
+        // Each login waits for the others to start, so logging in one member at a time would fail them all
+        final CountDownLatch loginsStarted = new CountDownLatch(3);
+        final HsmManagerGroup parallelGroup = new HsmManagerGroup(new Callable<HsmManager>() {
+            @Override
+            public HsmManager call() {
+                return new FakeSessionHsmManager("parallel") {
+                    @Override
+                    public void hsmLogin(final HsmLoginParameters parms) {
+                        loginsStarted.countDown();
+                        try {
+                            if (!loginsStarted.await(10, TimeUnit.SECONDS)) {
+                                throw new IllegalStateException("Logins ran one at a time");
+                            }
+                        } catch (final InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        super.hsmLogin(parms);
+                    }
+                };
+            }
+        }, 60000);
+
+        parallelGroup.hsmLogin(threeMembers());
+
+        assertEquals("All members should log in", 3, parallelGroup.getMemberCount());
+    }
+
+    @Test
+    public void loginRequiresGroupParameters() {
+        expected.expect(IllegalArgumentException.class);
+
+        group.hsmLogin(new HsmLoginParameters(PASSWORD));
+    }
+
+    @Test
+    public void leasesGoToLeastOutstandingMember() {
+        group.hsmLogin(threeMembers());
+
+        try (HsmManagerGroup.Lease first = group.acquire();
+             HsmManagerGroup.Lease second = group.acquire();
+             HsmManagerGroup.Lease third = group.acquire()) {
+            assertNotSame("Busy members should not be chosen", first.getHsmManager(), second.getHsmManager());
+            assertNotSame("Busy members should not be chosen", first.getHsmManager(), third.getHsmManager());
+            assertNotSame("Busy members should not be chosen", second.getHsmManager(), third.getHsmManager());
+        }
+    }
+
+    @Test
+    public void releasedMemberIsChosenAgain() {
+        group.hsmLogin(new HsmGroupLoginParameters(Arrays.asList(new HsmLoginParameters(PASSWORD),
+                                                                 new HsmLoginParameters(PASSWORD))));
+
+        try (HsmManagerGroup.Lease busy = group.acquire()) {
+            final HsmManager idle;
+            try (HsmManagerGroup.Lease lease = group.acquire()) {
+                idle = lease.getHsmManager();
+            }
+            try (HsmManagerGroup.Lease lease = group.acquire()) {
+                assertSame("The idle member should be chosen again", idle, lease.getHsmManager());
+            }
+        }
+    }
+
+    @Test
+    public void keyGoesBackToMemberThatUsedIt() {
+        group.hsmLogin(threeMembers());
+
+        final HsmManager tenantA;
+        try (HsmManagerGroup.Lease lease = group.acquire("tenant-a")) {
+            tenantA = lease.getHsmManager();
+        }
+        for (int i = 0; i < 3; i++) {
+            try (HsmManagerGroup.Lease other = group.acquire("tenant-b");
+                 HsmManagerGroup.Lease lease = group.acquire("tenant-a")) {
+                assertSame("The member that used the key should be chosen", tenantA, lease.getHsmManager());
+            }
+        }
+        // Every lease after the first for each key is a hit: three for tenant-a and two for tenant-b
+        assertEquals("Later leases for a key should be affinity hits", 5, group.getAffinityHitCount());
+    }
+
+    @Test
+    public void busyMemberGivesUpAffinity() {
+        group.hsmLogin(threeMembers());
+
+        final List<HsmManagerGroup.Lease> held = new ArrayList<HsmManagerGroup.Lease>();
+        try {
+            held.add(group.acquire("tenant-a"));
+            final HsmManager tenantA = held.get(0).getHsmManager();
+            for (int i = 0; i < 2; i++) {
+                held.add(group.acquire("tenant-a"));
+                assertSame("A slightly busier member should keep the key", tenantA,
+                           held.get(held.size() - 1).getHsmManager());
+            }
+
+            try (HsmManagerGroup.Lease lease = group.acquire("tenant-a")) {
+                assertNotSame("A much busier member should give the key up", tenantA, lease.getHsmManager());
+            }
+        } finally {
+            for (final HsmManagerGroup.Lease lease : held) {
+                lease.close();
+            }
+        }
+    }
+
+    @Test
+    public void failedTaskFailsOverToAnotherMember() throws Exception {
+        group.hsmLogin(threeMembers());
+        sessions.get(0).setRequestsFail(true);
+
+        // Whichever member each task starts on, none of them may fail
+        for (int i = 0; i < 3; i++) {
+            assertNotSame("Task should succeed on a healthy member", sessions.get(0).getName(),
+                          group.execute(new RequestTask()));
+        }
+        assertEquals("The failed member should be tried", 1, sessions.get(0).getRequestCount());
+    }
+
+    @Test
+    public void failedMemberIsTakenOutOfRotation() throws Exception {
+        group.hsmLogin(new HsmGroupLoginParameters(Arrays.asList(new HsmLoginParameters(PASSWORD),
+                                                                 new HsmLoginParameters(PASSWORD))));
+        sessions.get(0).setRequestsFail(true);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("Work should go to the healthy member", sessions.get(1).getName(),
+                         group.execute(new RequestTask()));
+        }
+        assertEquals("The failed member should only be tried once", 1, sessions.get(0).getRequestCount());
+        assertEquals("One member should be available", 1, group.getAvailableMemberCount());
+    }
+
+    @Test
+    public void reconnectingMemberThatGivesUpIsFailedOver() throws Exception {
+        // Reconnecting members keep reporting themselves connected after giving up, as the factory's groups do
+        final FakeSessionHsmManager[] partitionSessions = new FakeSessionHsmManager[3];
+        final boolean[] partitionDown = new boolean[3];
+        final HsmManagerGroup reconnectingGroup = new HsmManagerGroup(new Callable<HsmManager>() {
+            private int partitions;
+
+            @Override
+            public HsmManager call() {
+                final int partition = partitions++;
+                return new ReconnectingHsmManager(new Callable<HsmManager>() {
+                    @Override
+                    public HsmManager call() {
+                        final FakeSessionHsmManager session = new FakeSessionHsmManager("partition" + partition);
+                        session.setLoginFails(partitionDown[partition]);
+                        partitionSessions[partition] = session;
+                        return session;
+                    }
+                }, 0, 1, 1, 1);
+            }
+        }, 60000);
+        reconnectingGroup.hsmLogin(threeMembers());
+
+        // The first partition goes away: its session is dropped, and it takes no more logins
+        partitionDown[0] = true;
+        partitionSessions[0].dropSession();
+
+        for (int i = 0; i < 3; i++) {
+            reconnectingGroup.execute(new HsmTask<Key>() {
+                @Override
+                public Key call(final HsmManager hsmManager) {
+                    return hsmManager.getKey(PASSWORD, "key");
+                }
+            });
+        }
+        assertEquals("The member that gave up should be taken out of rotation", 2,
+                     reconnectingGroup.getAvailableMemberCount());
+        assertEquals("The member should still report itself connected", ConnectionState.CONNECTED,
+                     reconnectingGroup.getConnectionState());
+    }
+
+    @Test
+    public void taskRunsOnEachConnectedMember() throws Exception {
+        group.hsmLogin(threeMembers());
+        sessions.get(2).dropSession();
+
+        final List<String> names = group.executeOnEach(new RequestTask());
+
+        assertEquals("The task should run on each connected member in turn",
+                     Arrays.asList(sessions.get(0).getName(), sessions.get(1).getName()), names);
+        assertEquals("The dropped member should be skipped", 0, sessions.get(2).getRequestCount());
+        assertEquals("No latency should be recorded", 0, group.getLatencySampleCount());
+    }
+
+    @Test
+    public void refusedTaskIsNotFailedOver() throws Exception {
+        group.hsmLogin(new HsmGroupLoginParameters(Arrays.asList(new HsmLoginParameters(PASSWORD),
+                                                                 new HsmLoginParameters(PASSWORD))));
+        for (final FakeSessionHsmManager session : sessions) {
+            session.setRequestsRefused(true);
+        }
+
+        try {
+            group.execute(new RequestTask());
+            fail("A refused task should fail");
+        } catch (final SecurityException e) {
+            assertEquals("The task should only run once", 1,
+                         sessions.get(0).getRequestCount() + sessions.get(1).getRequestCount());
+        }
+        assertEquals("Both members should stay available", 2, group.getAvailableMemberCount());
+    }
+
+    @Test
+    public void groupIsDisconnectedWhenAllMembersDrop() {
+        group.hsmLogin(threeMembers());
+        for (final FakeSessionHsmManager session : sessions) {
+            session.dropSession();
+        }
+
+        assertEquals("Group should be disconnected", ConnectionState.DISCONNECTED, group.getConnectionState());
+    }
+
+    @Test
+    public void slowTaskIsHedgedOnAnotherMember() throws Exception {
+        group.hsmLogin(threeMembers());
+        final HedgingPolicy policy = new HedgingPolicy(0.5, 1.0, 5, 1);
+        for (int i = 0; i < 5; i++) {
+            group.executeHedged(new RequestTask(), policy);
+        }
+
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            final String result = group.executeHedged(new FirstAttemptIsSlowTask(release), policy);
+
+            assertEquals("The hedged attempt should win", FirstAttemptIsSlowTask.FAST, result);
+            assertEquals("One task should be hedged", 1, group.getHedgedRequestCount());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void hedgedLatencyIsTimedFromTheOriginalRequest() throws Exception {
+        group.hsmLogin(threeMembers());
+        final HedgingPolicy policy = new HedgingPolicy(0.5, 1.0, 5, 50);
+        for (int i = 0; i < 5; i++) {
+            group.executeHedged(new RequestTask(), policy);
+        }
+
+        // Two samples, as the tracker only re-sorts once a tenth of its samples are new
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            for (int i = 0; i < 2; i++) {
+                assertEquals("The hedged attempt should win", FirstAttemptIsSlowTask.FAST,
+                             group.executeHedged(new FirstAttemptIsSlowTask(release), policy));
+            }
+        } finally {
+            release.countDown();
+        }
+
+        // The hedges started after the 50 ms delay, but the caller waited for the delay as well
+        assertTrue("The latency should include the hedging delay",
+                   group.getLatencyPercentile(1.0) >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void hedgedTaskIsTimedOnce() throws Exception {
+        group.hsmLogin(threeMembers());
+        final HedgingPolicy policy = new HedgingPolicy(0.5, 1.0, 5, 1);
+        for (int i = 0; i < 5; i++) {
+            group.executeHedged(new RequestTask(), policy);
+        }
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final FirstAttemptIsSlowTask task = new FirstAttemptIsSlowTask(release);
+        try {
+            assertEquals("The hedged attempt should win", FirstAttemptIsSlowTask.FAST,
+                         group.executeHedged(task, policy));
+        } finally {
+            release.countDown();
+        }
+        // Let the losing attempt finish as well
+        task.awaitSlowAttempt();
+
+        assertEquals("Only the request, not each attempt, should be timed", 6, group.getLatencySampleCount());
+    }
+
+    @Test
+    public void tasksAreNotHedgedWithoutSamples() throws Exception {
+        group.hsmLogin(threeMembers());
+        final HedgingPolicy policy = new HedgingPolicy(0.5, 1.0, 5, 1);
+
+        group.executeHedged(new RequestTask(), policy);
+
+        assertEquals("No task should be hedged", 0, group.getHedgedRequestCount());
+    }
+
+    private static HsmGroupLoginParameters threeMembers() {
+        return new HsmGroupLoginParameters(Arrays.asList(new HsmLoginParameters(PASSWORD),
+                                                         new HsmLoginParameters(PASSWORD),
+                                                         new HsmLoginParameters(PASSWORD)));
+    }
+
+    /*
+     * A task whose first attempt is stuck until released, and whose later attempts finish at once.
+     */
+    private static final class FirstAttemptIsSlowTask implements HsmTask<String> {
+        static final String SLOW = "slow";
+        static final String FAST = "fast";
+
+        private final AtomicInteger attempts = new AtomicInteger();
+        private final CountDownLatch slowAttemptDone = new CountDownLatch(1);
+        private final CountDownLatch release;
+
+        private FirstAttemptIsSlowTask(final CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public String call(final HsmManager hsmManager) throws InterruptedException {
+            if (attempts.getAndIncrement() == 0) {
+                try {
+                    // Not interrupted by the cancellation, like a task already busy on the HSM
+                    awaitUninterruptibly(release);
+                    return SLOW;
+                } finally {
+                    slowAttemptDone.countDown();
+                }
+            }
+            return FAST;
+        }
+
+        void awaitSlowAttempt() throws InterruptedException {
+            slowAttemptDone.await(10, TimeUnit.SECONDS);
+            // The attempt has returned; give its worker a moment to hand the result back
+            Thread.sleep(50);
+        }
+
+        private static void awaitUninterruptibly(final CountDownLatch latch) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                    break;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /*
+     * Make a request on a member, and report which member it was.
+     */
+    private static final class RequestTask implements HsmTask<String> {
+        @Override
+        public String call(final HsmManager hsmManager) {
+            final FakeSessionHsmManager session = (FakeSessionHsmManager) hsmManager;
+            session.request();
+            return session.getName();
+        }
+    }
+}
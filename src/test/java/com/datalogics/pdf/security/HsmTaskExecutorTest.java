@@ -0,0 +1,428 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.datalogics.pdf.hsm.samples.fakes.FakeSessionHsmManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for the HsmTaskExecutor.
+ */
+public class HsmTaskExecutorTest {
+    public static final String PASSWORD = "password";
+
+    private final List<FakeSessionHsmManager> sessions = new ArrayList<FakeSessionHsmManager>();
+    private HsmManagerGroup group;
+    private HsmTaskExecutor executor;
+
+    /**
+     * Log a two member group in.
+     */
+    @Before
+    public void setUp() {
+        group = new HsmManagerGroup(new Callable<HsmManager>() {
+            @Override
+            public HsmManager call() {
+                final FakeSessionHsmManager session = new FakeSessionHsmManager("member" + sessions.size());
+                sessions.add(session);
+                return session;
+            }
+        }, 60000);
+        group.hsmLogin(new HsmGroupLoginParameters(Arrays.asList(new HsmLoginParameters(PASSWORD),
+                                                                 new HsmLoginParameters(PASSWORD))));
+    }
+
+    /**
+     * Shut the executor down.
+     */
+    @After
+    public void tearDown() {
+        if (executor != null) {
+            executor.close();
+        }
+    }
+
+    @Test
+    public void submittedTaskRunsOnGroup() throws Exception {
+        executor = new HsmTaskExecutor(group);
+
+        final Future<String> result = executor.submit(new HsmTask<String>() {
+            @Override
+            public String call(final HsmManager hsmManager) {
+                return ((FakeSessionHsmManager) hsmManager).getName();
+            }
+        });
+
+        assertTrue("Task should run on a group member",
+                   result.get(10, TimeUnit.SECONDS).startsWith("member"));
+    }
+
+    @Test
+    public void concurrencyStaysWithinLimit() throws Exception {
+        executor = new HsmTaskExecutor(group, new AdaptiveConcurrencyLimit(3, 1, 3));
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < 30; i++) {
+            results.add(executor.submit(new HsmTask<Integer>() {
+                @Override
+                public Integer call(final HsmManager hsmManager) throws InterruptedException {
+                    final int now = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), now));
+                    }
+                    Thread.sleep(5);
+                    running.decrementAndGet();
+                    return now;
+                }
+            }));
+        }
+        for (final Future<Integer> result : results) {
+            result.get(10, TimeUnit.SECONDS);
+        }
+
+        assertTrue("No more than three tasks should run at once", maxRunning.get() <= 3);
+        assertEquals("All permits should be returned", 0, executor.getConcurrencyLimit().getInFlight());
+    }
+
+    @Test
+    public void fullQueueRejectsTasks() throws Exception {
+        executor = new HsmTaskExecutor(group, new AdaptiveConcurrencyLimit(1, 1, 1), new CircuitBreaker(), 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final Future<Boolean> running = executor.submit(new HsmTask<Boolean>() {
+            @Override
+            public Boolean call(final HsmManager hsmManager) throws InterruptedException {
+                started.countDown();
+                return finish.await(10, TimeUnit.SECONDS);
+            }
+        });
+        started.await(10, TimeUnit.SECONDS);
+        final List<Future<Boolean>> queued = new ArrayList<Future<Boolean>>();
+
+        try {
+            // The dispatcher leaves tasks queued while it waits for a permit, so the queue fills after one
+            queued.add(executor.submit(new ConstantTask(true)));
+            executor.submit(new ConstantTask(true));
+            fail("A task should be rejected when the queue is full");
+        } catch (final SigningRejectedException e) {
+            assertTrue("A retry-after hint should be given", e.getRetryAfterMillis() > 0);
+        } finally {
+            finish.countDown();
+        }
+
+        assertTrue("The running task should complete", running.get(10, TimeUnit.SECONDS));
+        for (final Future<Boolean> result : queued) {
+            assertTrue("The queued tasks should complete", result.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void interactiveTaskOvertakesBulkBacklog() throws Exception {
+        executor = new HsmTaskExecutor(group, new AdaptiveConcurrencyLimit(1, 1, 1), new CircuitBreaker(), 100);
+        final CountDownLatch finish = blockOnlySession();
+
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < 20; i++) {
+            results.add(executor.submit(new RecordingTask(order, "bulk"), TaskPriority.BULK));
+        }
+        results.add(executor.submit(new RecordingTask(order, "interactive"), TaskPriority.INTERACTIVE));
+        finish.countDown();
+        for (final Future<Boolean> result : results) {
+            result.get(10, TimeUnit.SECONDS);
+        }
+
+        assertEquals("The interactive task should run before the bulk backlog", "interactive", order.get(0));
+    }
+
+    @Test
+    public void tasksRunEarliestDeadlineFirst() throws Exception {
+        executor = new HsmTaskExecutor(group, new AdaptiveConcurrencyLimit(1, 1, 1), new CircuitBreaker(), 100);
+        final CountDownLatch finish = blockOnlySession();
+
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        results.add(executor.submit(new RecordingTask(order, "none"), TaskPriority.NORMAL));
+        results.add(executor.submit(new RecordingTask(order, "late"), TaskPriority.NORMAL, 20, TimeUnit.SECONDS));
+        results.add(executor.submit(new RecordingTask(order, "soon"), TaskPriority.NORMAL, 10, TimeUnit.SECONDS));
+        finish.countDown();
+        for (final Future<Boolean> result : results) {
+            result.get(10, TimeUnit.SECONDS);
+        }
+
+        assertEquals("Tasks should run by deadline, then those without one", Arrays.asList("soon", "late", "none"),
+                     order);
+    }
+
+    @Test
+    public void expiredTaskIsDroppedBeforeReachingHsm() throws Exception {
+        executor = new HsmTaskExecutor(group, new AdaptiveConcurrencyLimit(1, 1, 1), new CircuitBreaker(), 100);
+        final CountDownLatch finish = blockOnlySession();
+
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final Future<Boolean> expired = executor.submit(new RecordingTask(order, "expired"), TaskPriority.NORMAL, 1,
+                                                        TimeUnit.MILLISECONDS);
+        Thread.sleep(20);
+        finish.countDown();
+
+        try {
+            expired.get(10, TimeUnit.SECONDS);
+            fail("A task whose deadline passed should not run");
+        } catch (final ExecutionException e) {
+            assertTrue("The task should fail with a timeout", e.getCause() instanceof TimeoutException);
+        }
+        assertTrue("The task should not have reached the HSM", order.isEmpty());
+        assertEquals("The task should be counted as expired", 1, executor.getExpiredCount());
+    }
+
+    @Test
+    public void fullBulkLaneAcceptsInteractiveTasks() throws Exception {
+        executor = new HsmTaskExecutor(group, new AdaptiveConcurrencyLimit(1, 1, 1), new CircuitBreaker(), 1);
+        final CountDownLatch finish = blockOnlySession();
+
+        try {
+            executor.submit(new ConstantTask(true), TaskPriority.BULK);
+            try {
+                executor.submit(new ConstantTask(true), TaskPriority.BULK);
+                fail("The bulk lane should be full");
+            } catch (final SigningRejectedException e) {
+                // Expected exception
+            }
+            final Future<Boolean> interactive = executor.submit(new ConstantTask(true), TaskPriority.INTERACTIVE);
+            assertEquals("The interactive lane should have room", 1,
+                         executor.getQueueDepth(TaskPriority.INTERACTIVE));
+            finish.countDown();
+            assertTrue("The interactive task should complete", interactive.get(10, TimeUnit.SECONDS));
+        } finally {
+            finish.countDown();
+        }
+    }
+
+    @Test
+    public void openBreakerRejectsTasks() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker(0.5, 1000, 10, 1, 60000);
+        executor = new HsmTaskExecutor(group, new AdaptiveConcurrencyLimit(1, 1, 1), breaker, 10);
+
+        for (final FakeSessionHsmManager session : sessions) {
+            session.setRequestsFail(true);
+        }
+
+        final Future<Boolean> failing = executor.submit(new RequestTask());
+        try {
+            failing.get(10, TimeUnit.SECONDS);
+            fail("The task should fail");
+        } catch (final ExecutionException e) {
+            assertEquals("Breaker should be open", CircuitBreaker.State.OPEN, breaker.getState());
+        }
+
+        try {
+            executor.submit(new ConstantTask(true));
+            fail("A task should be rejected while the breaker is open");
+        } catch (final SigningRejectedException e) {
+            assertTrue("The hint should reflect the open duration", e.getRetryAfterMillis() > 1000);
+        }
+    }
+
+    @Test
+    public void halfOpenBreakerSendsOneTrialTask() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker(0.5, 1000, 10, 1, 500);
+        executor = new HsmTaskExecutor(group, new AdaptiveConcurrencyLimit(4, 1, 4), breaker, 10);
+        breaker.onFailure();
+        Thread.sleep(600);
+        assertEquals("Breaker should be half open", CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        final AtomicInteger started = new AtomicInteger();
+        final CountDownLatch trialStarted = new CountDownLatch(1);
+        final CountDownLatch finishTrial = new CountDownLatch(1);
+        final Future<Boolean> trial = executor.submit(new HsmTask<Boolean>() {
+            @Override
+            public Boolean call(final HsmManager hsmManager) throws InterruptedException {
+                started.incrementAndGet();
+                trialStarted.countDown();
+                return finishTrial.await(10, TimeUnit.SECONDS);
+            }
+        });
+        trialStarted.await(10, TimeUnit.SECONDS);
+        final List<Future<Boolean>> held = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < 3; i++) {
+            held.add(executor.submit(new HsmTask<Boolean>() {
+                @Override
+                public Boolean call(final HsmManager hsmManager) {
+                    return started.incrementAndGet() > 0;
+                }
+            }));
+        }
+
+        Thread.sleep(100);
+        assertEquals("Only the trial should reach the HSM", 1, started.get());
+
+        finishTrial.countDown();
+        assertTrue("The trial should succeed", trial.get(10, TimeUnit.SECONDS));
+        for (final Future<Boolean> future : held) {
+            assertTrue("Held tasks should run once the trial succeeds", future.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals("Breaker should be closed", CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void reconnectingGroupThatGivesUpOpensBreaker() throws Exception {
+        final List<FakeSessionHsmManager> reconnectingSessions =
+                        Collections.synchronizedList(new ArrayList<FakeSessionHsmManager>());
+        final AtomicBoolean loginsFail = new AtomicBoolean();
+        final HsmManagerGroup reconnectingGroup = HsmManagerFactory.newGroupInstance(new Callable<HsmManager>() {
+            @Override
+            public HsmManager call() {
+                final FakeSessionHsmManager session = new FakeSessionHsmManager("session");
+                session.setLoginFails(loginsFail.get());
+                reconnectingSessions.add(session);
+                return session;
+            }
+        }, 1);
+        reconnectingGroup.hsmLogin(new HsmGroupLoginParameters(Arrays.asList(new HsmLoginParameters(PASSWORD),
+                                                                             new HsmLoginParameters(PASSWORD))));
+        try {
+            final CircuitBreaker breaker = new CircuitBreaker(0.5, 1000, 10, 1, 60000);
+            executor = new HsmTaskExecutor(reconnectingGroup, new AdaptiveConcurrencyLimit(1, 1, 1), breaker, 10);
+
+            // Both partitions go away; the members give up reconnecting, but still report themselves connected
+            loginsFail.set(true);
+            for (final FakeSessionHsmManager session : reconnectingSessions) {
+                session.dropSession();
+            }
+
+            try {
+                executor.submit(new HsmTask<Key>() {
+                    @Override
+                    public Key call(final HsmManager hsmManager) {
+                        return hsmManager.getKey(PASSWORD, "key");
+                    }
+                }).get(10, TimeUnit.SECONDS);
+                fail("The task should fail");
+            } catch (final ExecutionException e) {
+                assertTrue("The members should have given up", e.getCause() instanceof HsmUnavailableException);
+                assertEquals("The group should still report itself connected",
+                             HsmManager.ConnectionState.CONNECTED, reconnectingGroup.getConnectionState());
+                assertEquals("Breaker should be open", CircuitBreaker.State.OPEN, breaker.getState());
+            }
+        } finally {
+            reconnectingGroup.hsmLogout();
+        }
+    }
+
+    @Test
+    public void refusedTasksDoNotOpenBreaker() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker(0.5, 1000, 10, 1, 60000);
+        executor = new HsmTaskExecutor(group, new AdaptiveConcurrencyLimit(1, 1, 1), breaker, 10);
+        for (final FakeSessionHsmManager session : sessions) {
+            session.setRequestsRefused(true);
+        }
+
+        try {
+            executor.submit(new RequestTask()).get(10, TimeUnit.SECONDS);
+            fail("The task should fail");
+        } catch (final ExecutionException e) {
+            assertEquals("Breaker should stay closed", CircuitBreaker.State.CLOSED, breaker.getState());
+        }
+    }
+
+    @Test
+    public void taskFailuresDoNotOpenBreaker() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker(0.5, 1000, 10, 1, 60000);
+        executor = new HsmTaskExecutor(group, new AdaptiveConcurrencyLimit(1, 1, 1), breaker, 10);
+
+        final Future<Boolean> failing = executor.submit(new HsmTask<Boolean>() {
+            @Override
+            public Boolean call(final HsmManager hsmManager) throws IOException {
+                throw new IOException("Unreadable document");
+            }
+        });
+        try {
+            failing.get(10, TimeUnit.SECONDS);
+            fail("The task should fail");
+        } catch (final ExecutionException e) {
+            assertEquals("Breaker should stay closed", CircuitBreaker.State.CLOSED, breaker.getState());
+        }
+    }
+
+    /*
+     * Occupy the executor's only session until the returned latch is counted down.
+     */
+    private CountDownLatch blockOnlySession() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        executor.submit(new HsmTask<Boolean>() {
+            @Override
+            public Boolean call(final HsmManager hsmManager) throws InterruptedException {
+                started.countDown();
+                return finish.await(10, TimeUnit.SECONDS);
+            }
+        }, TaskPriority.BULK);
+        started.await(10, TimeUnit.SECONDS);
+        return finish;
+    }
+
+    private static final class RecordingTask implements HsmTask<Boolean> {
+        private final List<String> order;
+        private final String name;
+
+        private RecordingTask(final List<String> order, final String name) {
+            this.order = order;
+            this.name = name;
+        }
+
+        @Override
+        public Boolean call(final HsmManager hsmManager) {
+            return order.add(name);
+        }
+    }
+
+    /*
+     * Make a request on the session the task runs on.
+     */
+    private static final class RequestTask implements HsmTask<Boolean> {
+        @Override
+        public Boolean call(final HsmManager hsmManager) {
+            ((FakeSessionHsmManager) hsmManager).request();
+            return true;
+        }
+    }
+
+    private static final class ConstantTask implements HsmTask<Boolean> {
+        private final Boolean value;
+
+        private ConstantTask(final Boolean value) {
+            this.value = value;
+        }
+
+        @Override
+        public Boolean call(final HsmManager hsmManager) {
+            return value;
+        }
+    }
+}
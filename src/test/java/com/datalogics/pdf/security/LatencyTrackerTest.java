@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Unit tests for the LatencyTracker.
+ */
+public class LatencyTrackerTest {
+    @Rule
+    public ExpectedException expected = ExpectedException.none();
+
+    @Test
+    public void emptyTrackerHasNoPercentile() {
+        final LatencyTracker tracker = new LatencyTracker();
+
+        assertEquals("Empty tracker should report -1", -1, tracker.getPercentile(0.5));
+    }
+
+    @Test
+    public void percentilesAreComputedOverSamples() {
+        final LatencyTracker tracker = new LatencyTracker(100);
+        for (int i = 100; i >= 1; i--) {
+            tracker.record(i);
+        }
+
+        assertEquals("Median should be 50", 50, tracker.getPercentile(0.5));
+        assertEquals("95th percentile should be 95", 95, tracker.getPercentile(0.95));
+        assertEquals("Maximum should be 100", 100, tracker.getPercentile(1.0));
+    }
+
+    @Test
+    public void oldSamplesAgeOut() {
+        final LatencyTracker tracker = new LatencyTracker(10);
+        for (int i = 0; i < 10; i++) {
+            tracker.record(1000);
+        }
+        for (int i = 0; i < 10; i++) {
+            tracker.record(1);
+        }
+
+        assertEquals("Window should be full", 10, tracker.getSampleCount());
+        assertEquals("Old samples should no longer count", 1, tracker.getPercentile(1.0));
+    }
+
+    @Test
+    public void percentileMustBeInRange() {
+        expected.expect(IllegalArgumentException.class);
+
+        new LatencyTracker().getPercentile(1.5);
+    }
+}
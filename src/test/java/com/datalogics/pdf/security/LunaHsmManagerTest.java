@@ -5,14 +5,20 @@
 package com.datalogics.pdf.security;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import com.datalogics.pdf.hsm.samples.fakes.FakeKeyStore;
 import com.datalogics.pdf.hsm.samples.fakes.FakeProvider;
 import com.datalogics.pdf.security.HsmManager.ConnectionState;
 
+import mockit.Invocation;
 import mockit.Mock;
 import mockit.MockUp;
 
+import org.apache.commons.io.IOUtils;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -22,9 +28,21 @@ import com.safenetinc.luna.LunaException;
 import com.safenetinc.luna.LunaSlotManager;
 import com.safenetinc.luna.provider.LunaProvider;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.Security;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Unit tests for the LunaHsmManager.
@@ -34,10 +52,15 @@ public class LunaHsmManagerTest {
     public static final String BAD_PASSWORD = "bad_password";
     public static final String GOOD_SLOT_NAME = "good_slot_name";
     public static final String BAD_SLOT_NAME = "bad_slot_name";
+    public static final String OTHER_SLOT_NAME = "other_slot_name";
+    public static final int DEFAULT_SLOT = 0;
+    public static final int GOOD_SLOT = 1;
+    public static final int OTHER_SLOT = 2;
     public static final String KEY_LABEL = "key_label";
     public static final String CERTIFICATE_LABEL = "certificate_label";
 
     private LunaHsmManager lunaHsmManager;
+    private MockLunaSlotManager slotManager;
 
     @Rule
     public ExpectedException expected = ExpectedException.none();
@@ -47,7 +70,7 @@ public class LunaHsmManagerTest {
      */
     @Before
     public void setUp() {
-        new MockLunaSlotManager();
+        slotManager = new MockLunaSlotManager();
         new MockLunaProvider();
 
         lunaHsmManager = (LunaHsmManager) HsmManagerFactory.newInstance(HsmManagerFactory.LUNA_HSM_TYPE);
@@ -154,55 +177,269 @@ public class LunaHsmManagerTest {
         }
     }
 
+    @Test
+    public void keyStoreIsLoadedOnceAfterLogin() {
+        final MockKeyStore keyStore = new MockKeyStore();
+        lunaHsmManager.hsmLogin(new LunaHsmLoginParameters(GOOD_PASSWORD));
+
+        lunaHsmManager.getKey(GOOD_PASSWORD, KEY_LABEL);
+        lunaHsmManager.getCertificateChain(CERTIFICATE_LABEL);
+        assertEquals("Key store should be loaded once", 1, keyStore.loadCount);
+    }
+
+    @Test
+    public void loginDoesNotWaitForKeyStore() throws Exception {
+        final MockKeyStore keyStore = new MockKeyStore();
+        keyStore.loadGate = new CountDownLatch(1);
+
+        lunaHsmManager.hsmLogin(new LunaHsmLoginParameters(GOOD_PASSWORD));
+        assertTrue("The key store should be loading", keyStore.loadStarted.await(30, TimeUnit.SECONDS));
+        assertEquals("Login should return while the key store is loading", ConnectionState.CONNECTED,
+                     lunaHsmManager.getConnectionState());
+
+        keyStore.loadGate.countDown();
+        assertEquals("Key should come from the loaded key store", "RSA",
+                     lunaHsmManager.getKey(GOOD_PASSWORD, KEY_LABEL).getAlgorithm());
+        assertEquals("Key store should be loaded once, off the login thread", 1, keyStore.loadCount);
+        assertFalse("Key store should not be loaded on the login thread", keyStore.loadedOnTestThread);
+    }
+
+    @Test
+    public void keyCacheDoesNotHoldPasswords() {
+        lunaHsmManager.hsmLogin(new LunaHsmLoginParameters(GOOD_PASSWORD));
+        lunaHsmManager.getKey(GOOD_PASSWORD, KEY_LABEL);
+
+        assertEquals("The key should be cached", 1, lunaHsmManager.getKeyCache().size());
+        assertNull("The key should not be cached under its password",
+                   lunaHsmManager.getKeyCache().get(KEY_LABEL + '\u0000' + GOOD_PASSWORD));
+    }
+
+    @Test
+    public void keysAreIndexedByLabel() {
+        final MockKeyStore keyStore = new MockKeyStore();
+        lunaHsmManager.hsmLogin(new LunaHsmLoginParameters(GOOD_PASSWORD));
+
+        final PrivateKey key = lunaHsmManager.getKey(GOOD_PASSWORD, KEY_LABEL);
+        assertSame("Key should come from the index", key, lunaHsmManager.getKey(GOOD_PASSWORD, KEY_LABEL));
+        assertEquals("Key should be looked up once", 1, keyStore.getKeyCount);
+        assertEquals("Second lookup should hit the cache", 1, lunaHsmManager.getKeyCache().getHitCount());
+    }
+
+    @Test
+    public void cacheSizeIsTakenFromLogin() {
+        lunaHsmManager.hsmLogin(new LunaHsmLoginParameters(null, GOOD_PASSWORD, 10));
+
+        assertEquals("The key cache should have the size asked for", 10, lunaHsmManager.getKeyCache().getMaxSize());
+        assertEquals("The certificate cache should have the size asked for", 10,
+                     lunaHsmManager.getCertificateCache().getMaxSize());
+    }
+
+    @Test
+    public void otherPasswordIsNotServedFromCache() {
+        final MockKeyStore keyStore = new MockKeyStore();
+        lunaHsmManager.hsmLogin(new LunaHsmLoginParameters(GOOD_PASSWORD));
+
+        lunaHsmManager.getKey(GOOD_PASSWORD, KEY_LABEL);
+        lunaHsmManager.getKey(BAD_PASSWORD, KEY_LABEL);
+        assertEquals("A different password should look the key up again", 2, keyStore.getKeyCount);
+        assertEquals("There should be no cache hits", 0, lunaHsmManager.getKeyCache().getHitCount());
+    }
+
+    @Test
+    public void nullKeyPasswordIsRejected() {
+        lunaHsmManager.hsmLogin(new LunaHsmLoginParameters(GOOD_PASSWORD));
+        lunaHsmManager.getKey(GOOD_PASSWORD, KEY_LABEL);
+
+        expected.expect(IllegalArgumentException.class);
+        expected.expectMessage("Password must not be null");
+
+        lunaHsmManager.getKey(null, KEY_LABEL);
+    }
+
+    @Test
+    public void partitionsLogOutIndependently() {
+        final LunaHsmManager otherHsmManager = (LunaHsmManager) HsmManagerFactory.newInstance(
+                        HsmManagerFactory.LUNA_HSM_TYPE);
+        lunaHsmManager.hsmLogin(new LunaHsmLoginParameters(GOOD_SLOT_NAME, GOOD_PASSWORD));
+        otherHsmManager.hsmLogin(new LunaHsmLoginParameters(OTHER_SLOT_NAME, GOOD_PASSWORD));
+
+        lunaHsmManager.hsmLogout();
+
+        assertEquals("The other partition should stay connected", ConnectionState.CONNECTED,
+                     otherHsmManager.getConnectionState());
+        assertEquals("Only the other slot should be logged in", Collections.singleton(OTHER_SLOT),
+                     slotManager.loggedInSlots);
+    }
+
+    @Test
+    public void lostPartitionDoesNotDisconnectOthers() {
+        final LunaHsmManager otherHsmManager = (LunaHsmManager) HsmManagerFactory.newInstance(
+                        HsmManagerFactory.LUNA_HSM_TYPE);
+        lunaHsmManager.hsmLogin(new LunaHsmLoginParameters(GOOD_SLOT_NAME, GOOD_PASSWORD));
+        otherHsmManager.hsmLogin(new LunaHsmLoginParameters(OTHER_SLOT_NAME, GOOD_PASSWORD));
+
+        slotManager.absentSlots.add(GOOD_SLOT);
+
+        assertEquals("The lost partition should be disconnected", ConnectionState.DISCONNECTED,
+                     lunaHsmManager.getConnectionState());
+        assertEquals("The other partition should stay connected", ConnectionState.CONNECTED,
+                     otherHsmManager.getConnectionState());
+    }
+
+    @Test
+    public void tokenPresenceIsNotCheckedOnEveryCall() {
+        lunaHsmManager.hsmLogin(new LunaHsmLoginParameters(GOOD_SLOT_NAME, GOOD_PASSWORD));
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals("The partition should stay connected", ConnectionState.CONNECTED,
+                         lunaHsmManager.getConnectionState());
+        }
+
+        assertEquals("The token should be checked once within the interval", 1, slotManager.tokenChecks.get());
+    }
+
+    @Test
+    public void loginsToOneSlotTakeTurns() throws Exception {
+        final LunaHsmManager otherHsmManager = (LunaHsmManager) HsmManagerFactory.newInstance(
+                        HsmManagerFactory.LUNA_HSM_TYPE);
+        slotManager.loginMillis = 50;
+
+        final Thread otherLogin = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                otherHsmManager.hsmLogin(new LunaHsmLoginParameters(GOOD_SLOT_NAME, GOOD_PASSWORD));
+            }
+        });
+        otherLogin.start();
+        lunaHsmManager.hsmLogin(new LunaHsmLoginParameters(GOOD_SLOT_NAME, GOOD_PASSWORD));
+        otherLogin.join();
+
+        assertFalse("Logins to one slot should not run at the same time", slotManager.slotLoginsOverlapped);
+    }
+
+    @Test
+    public void loginsToDifferentSlotsRunTogether() throws Exception {
+        final LunaHsmManager otherHsmManager = (LunaHsmManager) HsmManagerFactory.newInstance(
+                        HsmManagerFactory.LUNA_HSM_TYPE);
+        slotManager.loginMillis = 500;
+
+        final Thread otherLogin = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                otherHsmManager.hsmLogin(new LunaHsmLoginParameters(OTHER_SLOT_NAME, GOOD_PASSWORD));
+            }
+        });
+        otherLogin.start();
+        lunaHsmManager.hsmLogin(new LunaHsmLoginParameters(GOOD_SLOT_NAME, GOOD_PASSWORD));
+        otherLogin.join();
+
+        assertTrue("Logins to different slots should run at the same time", slotManager.loginsOverlapped);
+        assertEquals("Both slots should be logged in", new HashSet<Integer>(Arrays.asList(GOOD_SLOT, OTHER_SLOT)),
+                     slotManager.loggedInSlots);
+    }
+
+    @Test
+    public void keyStoreOfLoginSlotIsLoaded() {
+        final MockKeyStore keyStore = new MockKeyStore();
+        lunaHsmManager.hsmLogin(new LunaHsmLoginParameters(OTHER_SLOT_NAME, GOOD_PASSWORD));
+
+        lunaHsmManager.getKey(GOOD_PASSWORD, KEY_LABEL);
+        assertEquals("The key store of the login slot should be loaded", "slot:" + OTHER_SLOT,
+                     keyStore.loadedSlot);
+    }
+
+    /*
+     * Key store that counts loads and key lookups
+     */
+    public static final class MockKeyStore extends MockUp<KeyStore> {
+        private final Thread testThread = Thread.currentThread();
+        private final CountDownLatch loadStarted = new CountDownLatch(1);
+        private volatile CountDownLatch loadGate;
+        private volatile int loadCount = 0;
+        private volatile boolean loadedOnTestThread;
+        private int getKeyCount = 0;
+        private volatile String loadedSlot;
+
+        @Mock
+        void load(final Invocation invocation, final InputStream stream, final char[] password)
+                        throws IOException, InterruptedException {
+            loadStarted.countDown();
+            if (loadGate != null) {
+                loadGate.await();
+            }
+            loadCount++;
+            loadedOnTestThread |= Thread.currentThread() == testThread;
+            loadedSlot = stream == null ? null : new String(IOUtils.toByteArray(stream), StandardCharsets.US_ASCII);
+            invocation.proceed();
+        }
+
+        @Mock
+        Key getKey(final Invocation invocation, final String alias, final char[] password) {
+            getKeyCount++;
+            return invocation.proceed();
+        }
+    }
+
     /*
      * Fake LunaSlotManager
      */
     public static final class MockLunaSlotManager extends MockUp<LunaSlotManager> {
-        private boolean loggedIn = false;
+        private final Set<Integer> loggedInSlots = Collections.synchronizedSet(new HashSet<Integer>());
+        private final Set<Integer> absentSlots = new HashSet<Integer>();
+        private final AtomicInteger activeLogins = new AtomicInteger();
+        private final AtomicInteger tokenChecks = new AtomicInteger();
+        private final Set<Integer> activeLoginSlots = Collections.synchronizedSet(new HashSet<Integer>());
+        private volatile boolean loginsOverlapped;
+        private volatile boolean slotLoginsOverlapped;
+        private volatile long loginMillis;
 
         @Mock
         // CHECKSTYLE IGNORE MethodName FOR NEXT 1 LINE
         public void $init() {}
 
         @Mock
-        int login(final String password) {
-            // We will only accept GOOD_PASSWORD
-            if (!password.contentEquals(GOOD_PASSWORD)) {
-                throw new LunaException("Bad password");
+        void login(final int slot, final String password) throws InterruptedException {
+            if (activeLogins.incrementAndGet() > 1) {
+                loginsOverlapped = true;
+            }
+            if (!activeLoginSlots.add(slot)) {
+                slotLoginsOverlapped = true;
+            }
+            try {
+                Thread.sleep(loginMillis);
+                // We will only accept GOOD_PASSWORD
+                if (!password.contentEquals(GOOD_PASSWORD)) {
+                    throw new LunaException("Bad password");
+                }
+                loggedInSlots.add(slot);
+            } finally {
+                activeLoginSlots.remove(slot);
+                activeLogins.decrementAndGet();
             }
-            loggedIn = true;
-            return 0;
         }
 
         @Mock
-        boolean login(final String slot, final String password) {
-            // We will only accept GOOD_SLOT_NAME
-            if (!slot.contentEquals(GOOD_SLOT_NAME)) {
-                loggedIn = false;
-                return loggedIn;
-            }
-            // We will only accept GOOD_PASSWORD
-            if (!password.contentEquals(GOOD_PASSWORD)) {
-                throw new LunaException("Bad password");
-            }
-            loggedIn = true;
-            return loggedIn;
+        void logout(final int slot) {
+            loggedInSlots.remove(slot);
         }
 
         @Mock
-        void logout() {
-            loggedIn = false;
+        int getDefaultSlot() {
+            return DEFAULT_SLOT;
         }
 
         @Mock
-        boolean isLoggedIn() {
-            return loggedIn;
+        boolean isTokenPresent(final int slot) {
+            tokenChecks.incrementAndGet();
+            return !absentSlots.contains(slot);
         }
 
         @Mock
         int findSlotFromLabel(final String tokenLabel) {
             if (tokenLabel.contentEquals(GOOD_SLOT_NAME)) {
-                return 0;
+                return GOOD_SLOT;
+            } else if (tokenLabel.contentEquals(OTHER_SLOT_NAME)) {
+                return OTHER_SLOT;
             } else {
                 return -1;
             }
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Unit tests for the PriorityLaneQueue.
+ */
+public class PriorityLaneQueueTest {
+    @Test
+    public void busyLanesAreServedByWeight() {
+        final PriorityLaneQueue<TaskPriority> queue = new PriorityLaneQueue<TaskPriority>(100);
+        for (int i = 0; i < 100; i++) {
+            for (final TaskPriority priority : TaskPriority.values()) {
+                queue.offer(priority, priority);
+            }
+        }
+
+        // One full round of the weights: 16 + 4 + 1
+        final Map<TaskPriority, Integer> served = new EnumMap<TaskPriority, Integer>(TaskPriority.class);
+        for (int i = 0; i < 21; i++) {
+            final TaskPriority priority = queue.poll();
+            served.put(priority, served.containsKey(priority) ? served.get(priority) + 1 : 1);
+        }
+
+        assertEquals("Interactive lane should get its share", Integer.valueOf(16),
+                     served.get(TaskPriority.INTERACTIVE));
+        assertEquals("Normal lane should get its share", Integer.valueOf(4), served.get(TaskPriority.NORMAL));
+        assertEquals("Bulk lane should still be served", Integer.valueOf(1), served.get(TaskPriority.BULK));
+    }
+
+    @Test
+    public void lonelyLaneIsServedInOrder() {
+        final PriorityLaneQueue<Integer> queue = new PriorityLaneQueue<Integer>(10);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(i, TaskPriority.BULK);
+        }
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals("Elements of one lane should come out in order", Integer.valueOf(i), queue.poll());
+        }
+        assertNull("Queue should be empty", queue.poll());
+    }
+
+    @Test
+    public void fullLaneDoesNotBlockOthers() {
+        final PriorityLaneQueue<String> queue = new PriorityLaneQueue<String>(1);
+
+        assertTrue("Bulk lane should take one element", queue.offer("bulk", TaskPriority.BULK));
+        assertFalse("Full bulk lane should refuse", queue.offer("bulk", TaskPriority.BULK));
+        assertTrue("Interactive lane should still have room", queue.offer("interactive", TaskPriority.INTERACTIVE));
+        assertEquals("Both elements should be waiting", 2, queue.size());
+    }
+}
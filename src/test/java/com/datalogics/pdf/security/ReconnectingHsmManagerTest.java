@@ -0,0 +1,251 @@
+/*
+ * Copyright 2016 Datalogics Inc.
+ */
+
+package com.datalogics.pdf.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.datalogics.pdf.hsm.samples.fakes.AbstractHsmManager;
+import com.datalogics.pdf.security.HsmManager.ConnectionState;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the ReconnectingHsmManager.
+ */
+public class ReconnectingHsmManagerTest {
+    public static final String PASSWORD = "password";
+    public static final String KEY_LABEL = "key_label";
+
+    private final List<FakeSession> sessions = Collections.synchronizedList(new ArrayList<FakeSession>());
+    private volatile boolean loginsFail;
+    private ReconnectingHsmManager hsmManager;
+
+    @Rule
+    public ExpectedException expected = ExpectedException.none();
+
+    /**
+     * Create a reconnecting manager whose sessions are recorded for inspection.
+     */
+    @Before
+    public void setUp() {
+        final Callable<HsmManager> source = new Callable<HsmManager>() {
+            @Override
+            public HsmManager call() {
+                final FakeSession session = new FakeSession(loginsFail);
+                sessions.add(session);
+                return session;
+            }
+        };
+        hsmManager = new ReconnectingHsmManager(source, 0, 1, 4, 3);
+    }
+
+    @Test
+    public void loginConnects() {
+        hsmManager.hsmLogin(new HsmLoginParameters(PASSWORD));
+
+        assertEquals("Manager should be connected after login", ConnectionState.CONNECTED,
+                     hsmManager.getConnectionState());
+        assertEquals("Exactly one session should be created", 1, sessions.size());
+    }
+
+    @Test
+    public void deadSessionIsReplacedBeforeRequest() {
+        hsmManager.hsmLogin(new HsmLoginParameters(PASSWORD));
+        sessions.get(0).state = ConnectionState.DISCONNECTED;
+
+        final Key key = hsmManager.getKey(PASSWORD, KEY_LABEL);
+
+        assertEquals("A new session should be created", 2, sessions.size());
+        assertSame("Key should come from the new session", sessions.get(1).key, key);
+    }
+
+    @Test
+    public void failedRequestIsRetriedOnFreshSession() {
+        hsmManager.hsmLogin(new HsmLoginParameters(PASSWORD));
+        sessions.get(0).failRequests = true;
+
+        final Key key = hsmManager.getKey(PASSWORD, KEY_LABEL);
+
+        assertEquals("A new session should be created", 2, sessions.size());
+        assertTrue("The failed session should be logged out", sessions.get(0).loggedOut);
+        assertSame("Key should come from the new session", sessions.get(1).key, key);
+    }
+
+    @Test
+    public void requestRefusedByConnectedSessionIsNotRetried() {
+        hsmManager.hsmLogin(new HsmLoginParameters(PASSWORD));
+        sessions.get(0).refuseRequests = true;
+
+        try {
+            hsmManager.getKey("wrong password", KEY_LABEL);
+            fail("The refusal should be reported");
+        } catch (final SecurityException e) {
+            assertEquals("Key could not be recovered", e.getMessage());
+        }
+        assertEquals("No new session should be created", 1, sessions.size());
+        assertFalse("The healthy session should stay logged in", sessions.get(0).loggedOut);
+    }
+
+    @Test
+    public void backoffDoesNotBlockStateQueries() throws Exception {
+        final ReconnectingHsmManager slowManager = new ReconnectingHsmManager(new Callable<HsmManager>() {
+            @Override
+            public HsmManager call() {
+                final FakeSession session = new FakeSession(loginsFail);
+                sessions.add(session);
+                return session;
+            }
+        }, 0, 2000, 2000, 2);
+        slowManager.hsmLogin(new HsmLoginParameters(PASSWORD));
+        sessions.get(0).state = ConnectionState.DISCONNECTED;
+        loginsFail = true;
+
+        final Thread reconnecting = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    slowManager.getKey(PASSWORD, KEY_LABEL);
+                } catch (final IllegalStateException e) {
+                    // Gives up after the second attempt
+                }
+            }
+        });
+        reconnecting.start();
+        while (sessions.size() < 2) {
+            Thread.sleep(1);
+        }
+
+        // The reconnecting thread is now backing off
+        final long start = System.nanoTime();
+        assertEquals("Manager should still report connected", ConnectionState.CONNECTED,
+                     slowManager.getConnectionState());
+        assertTrue("State should be answered during the backoff",
+                   TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        reconnecting.join();
+    }
+
+    @Test
+    public void reconnectGivesUpAfterMaxAttempts() {
+        hsmManager.hsmLogin(new HsmLoginParameters(PASSWORD));
+        sessions.get(0).state = ConnectionState.DISCONNECTED;
+        loginsFail = true;
+
+        try {
+            hsmManager.getKey(PASSWORD, KEY_LABEL);
+            fail("Reconnection should give up");
+        } catch (final IllegalStateException e) {
+            assertTrue(e.getMessage().startsWith("Could not reconnect to the HSM"));
+        }
+        assertEquals("Each login attempt should use a new session", 4, sessions.size());
+        assertEquals("Manager stays connected so later requests can reconnect", ConnectionState.CONNECTED,
+                     hsmManager.getConnectionState());
+    }
+
+    @Test
+    public void probeReplacesDeadSession() {
+        hsmManager.hsmLogin(new HsmLoginParameters(PASSWORD));
+        sessions.get(0).state = ConnectionState.DISCONNECTED;
+
+        assertTrue("Probe should report a connected session", hsmManager.probe());
+        assertEquals("A new session should be created", 2, sessions.size());
+    }
+
+    @Test
+    public void requestAfterLogoutThrowsException() {
+        hsmManager.hsmLogin(new HsmLoginParameters(PASSWORD));
+        hsmManager.hsmLogout();
+
+        assertEquals("Manager should be disconnected after logout", ConnectionState.DISCONNECTED,
+                     hsmManager.getConnectionState());
+
+        expected.expect(SecurityException.class);
+        hsmManager.getKey(PASSWORD, KEY_LABEL);
+    }
+
+    /*
+     * A session that can be made to fail.
+     */
+    private static final class FakeSession extends AbstractHsmManager {
+        private final boolean loginFails;
+        private final Key key = new FakeKey();
+        private volatile ConnectionState state = ConnectionState.READY;
+        private boolean failRequests;
+        private boolean refuseRequests;
+        private volatile boolean loggedOut;
+
+        private FakeSession(final boolean loginFails) {
+            super();
+            this.loginFails = loginFails;
+        }
+
+        @Override
+        public void hsmLogin(final HsmLoginParameters parms) {
+            if (loginFails) {
+                throw new IllegalArgumentException("Error while logging into the fake HSM");
+            }
+            state = ConnectionState.CONNECTED;
+        }
+
+        @Override
+        public void hsmLogout() {
+            loggedOut = true;
+            state = ConnectionState.DISCONNECTED;
+        }
+
+        @Override
+        public ConnectionState getConnectionState() {
+            return state;
+        }
+
+        @Override
+        public Key getKey(final String password, final String keyLabel) {
+            if (failRequests) {
+                // The device dropped the session
+                state = ConnectionState.DISCONNECTED;
+                throw new SecurityException("Session handle is invalid");
+            }
+            if (refuseRequests) {
+                throw new SecurityException("Key could not be recovered");
+            }
+            return key;
+        }
+    }
+
+    /*
+     * A distinguishable key.
+     */
+    private static final class FakeKey implements Key {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public String getAlgorithm() {
+            return "RSA";
+        }
+
+        @Override
+        public String getFormat() {
+            return null;
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return new byte[0];
+        }
+    }
+}